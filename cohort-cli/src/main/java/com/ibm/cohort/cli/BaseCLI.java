@@ -6,17 +6,26 @@
 package com.ibm.cohort.cli;
 
 import java.io.IOException;
+import java.time.Duration;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.cohort.cql.hapi.NdjsonResourceIndex;
+import com.ibm.cohort.cql.hapi.R4RestFhirTerminologyProvider;
+import com.ibm.cohort.cql.terminology.CachingTerminologyProvider;
+import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
+import com.ibm.cohort.cql.terminology.TerminologyExpansionCache;
+import com.ibm.cohort.cql.terminology.UnsupportedTerminologyProvider;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilderFactory;
 import com.ibm.cohort.fhir.client.config.FhirServerConfig;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
 
 public class BaseCLI {
 
 	public static final boolean DEFAULT_TERMINOLOGY_OPTIMIZATION_ENABLED = false;
 	public static final int DEFAULT_PAGE_SIZE = 1000;
+	public static final long DEFAULT_TERMINOLOGY_CACHE_TTL_MINUTES = TerminologyExpansionCache.DEFAULT_TIME_TO_LIVE.toMinutes();
 	
 	protected FhirContext fhirContext = null;
 	protected FhirClientBuilderFactory fhirClientBuilderFactory = null;
@@ -51,7 +60,28 @@ public class BaseCLI {
 	}
 
 	protected void readDataServerConfiguration(ConnectionArguments arguments) throws IOException {
-		dataServerConfig = om.readValue(arguments.dataServerConfigFile, FhirServerConfig.class);
+		if (arguments.dataServerConfigFile != null) {
+			dataServerConfig = om.readValue(arguments.dataServerConfigFile, FhirServerConfig.class);
+		} else if (arguments.dataNdjsonDirectory == null) {
+			throw new IllegalArgumentException("Must specify one of -d or --data-ndjson options");
+		} else if (!arguments.dataNdjsonDirectory.isDirectory()) {
+			throw new IllegalArgumentException("NDJSON data directory does not exist: " + arguments.dataNdjsonDirectory.getPath());
+		}
+	}
+
+	/**
+	 * Open the index of the NDJSON data files, building it if needed.
+	 *
+	 * @param arguments connection arguments
+	 * @return index of the NDJSON data files or null when data is retrieved
+	 *         from a FHIR server
+	 * @throws IOException if the files cannot be indexed
+	 */
+	protected NdjsonResourceIndex openNdjsonIndex(ConnectionArguments arguments) throws IOException {
+		if (arguments.dataServerConfigFile != null || arguments.dataNdjsonDirectory == null) {
+			return null;
+		}
+		return NdjsonResourceIndex.open(getFhirContext(), arguments.dataNdjsonDirectory.toPath());
 	}
 
 	protected void readTerminologyServerConfiguration(ConnectionArguments arguments) throws IOException {
@@ -62,6 +92,27 @@ public class BaseCLI {
 		}
 	}
 	
+	/**
+	 * Create a terminology provider for the configured terminology server that
+	 * caches ValueSet expansions according to the provided arguments.
+	 *
+	 * @param arguments        connection arguments
+	 * @param terminologyClient client for the terminology server or null
+	 *                          when no terminology server is configured
+	 * @return terminology provider
+	 */
+	protected CqlTerminologyProvider createTerminologyProvider(ConnectionArguments arguments, IGenericClient terminologyClient) {
+		if (terminologyClient == null) {
+			return new UnsupportedTerminologyProvider();
+		}
+		TerminologyExpansionCache cache = new TerminologyExpansionCache(
+				TerminologyExpansionCache.DEFAULT_MAX_ENTRIES,
+				Duration.ofMinutes(arguments.terminologyCacheTimeToLiveMinutes),
+				arguments.terminologyCacheDirectory != null ? arguments.terminologyCacheDirectory.toPath() : null);
+		String namespace = terminologyServerConfig != null ? terminologyServerConfig.getEndpoint() : null;
+		return new CachingTerminologyProvider(new R4RestFhirTerminologyProvider(terminologyClient), cache, namespace);
+	}
+
 	protected void readMeasureServerConfiguration(ConnectionArguments arguments) throws IOException {
 		if (arguments.measureServerConfigFile != null) {
 			measureServerConfig = om.readValue(arguments.measureServerConfigFile, FhirServerConfig.class);
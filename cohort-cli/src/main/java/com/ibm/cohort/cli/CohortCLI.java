@@ -53,11 +53,11 @@ import com.ibm.cohort.cql.library.PriorityCqlLibraryProvider;
 import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
 import com.ibm.cohort.cql.translation.CqlToElmTranslator;
 import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
+import com.ibm.cohort.cql.hapi.NdjsonResourceIndex;
 import com.ibm.cohort.cql.hapi.R4DataProviderFactory;
 import com.ibm.cohort.cql.cache.DefaultRetrieveCacheContext;
 import com.ibm.cohort.cql.cache.RetrieveCacheContext;
 import com.ibm.cohort.cql.hapi.R4FhirModelResolverFactory;
-import com.ibm.cohort.cql.hapi.R4RestFhirTerminologyProvider;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilder;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilderFactory;
 
@@ -118,6 +118,21 @@ public class CohortCLI extends BaseCLI {
 		@Parameter(names = { "--search-page-size" }, description = "Specifies how many records are requested per page during a FHIR search operation. The default value for servers can be quite small and setting this to a larger number will potentially improve performance.")
 		private int searchPageSize = DEFAULT_PAGE_SIZE;
 
+		@Parameter(names = { "--prefetch-terminology" }, description = "If set, all ValueSets referenced by the library are expanded in parallel before the first context is evaluated.")
+		private boolean prefetchTerminology = false;
+
+		@Parameter(names = { "--fuse-retrieves" }, description = "If set, retrieves of the same resource type and code path that filter on different codes are combined into one search per context and the results are divided between them.")
+		private boolean fuseRetrieves = false;
+
+		@Parameter(names = { "--prefetch-retrieves" }, description = "If set, the searches that the library makes for a context are sent to the data server in one FHIR batch request before the context is evaluated, and the searches of the next context are sent while the current context is evaluated. Searches are made one at a time if the server rejects the batch.")
+		private boolean prefetchRetrieves = false;
+
+		@Parameter(names = { "--project-elements" }, description = "If set, searches request only the elements of each resource that the library reads, using the _elements search parameter. Resources in the results then hold only those elements. Whole resources are requested when the elements that are read cannot be determined or the server rejects the parameter.")
+		private boolean projectElements = false;
+
+		@Parameter(names = { "--push-date-ranges" }, description = "If set, queries that filter a retrieve by a date element being during a fixed range, such as a measurement period, search with that range as a date search parameter. Searches are not filtered by date when the server does not declare the search parameter in its capability statement.")
+		private boolean pushDateRanges = false;
+
 		@Parameter(names = { "--summarize-collections" }, description = "If set, collection sizes will be displayed in the CLI output instead of collection contents.")
 		private boolean isSummarizeCollections;
 		
@@ -172,6 +187,9 @@ public class CohortCLI extends BaseCLI {
 				backingLibraryProvider = libraryProviderFactory.fromZipFile(libraryFolder, filters);
 			} else {
 				out.println(String.format("Loading libraries from FHIR Library '%s'", libraryFolder.toString()));
+				if (measureServerConfig == null) {
+					throw new IllegalArgumentException("Must specify -m option when data is read from NDJSON files");
+				}
 				IGenericClient measureClient = fhirClientBuilder.createFhirClient(measureServerConfig);
 				FhirResourceResolver<Library> libraryResolver = R4FhirServerResourceResolverFactory.createLibraryResolver(measureClient);
 				R4LibraryDependencyGatherer dependencyGatherer = new R4LibraryDependencyGatherer(libraryResolver);
@@ -191,10 +209,8 @@ public class CohortCLI extends BaseCLI {
 			boolean isForceTranslation = arguments.sourceFormat == Format.CQL;
 			CqlLibraryProvider libraryProvider = new TranslatingCqlLibraryProvider(backingLibraryProvider, translator, isForceTranslation);
 
-			IGenericClient dataClient = fhirClientBuilder.createFhirClient(dataServerConfig);
-
-			IGenericClient termClient = fhirClientBuilder.createFhirClient(terminologyServerConfig);
-			CqlTerminologyProvider termProvider = new R4RestFhirTerminologyProvider(termClient);
+			IGenericClient termClient = terminologyServerConfig != null ? fhirClientBuilder.createFhirClient(terminologyServerConfig) : null;
+			CqlTerminologyProvider termProvider = createTerminologyProvider(arguments, termClient);
 
 			Map<String, com.ibm.cohort.cql.evaluation.parameters.Parameter> parameters = null;
 			if (arguments.parameters != null) {
@@ -214,23 +230,41 @@ public class CohortCLI extends BaseCLI {
 						.collect(Collectors.toList());
 			}
 
-			try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
-				CqlDataProvider dataProvider = R4DataProviderFactory.createDataProvider(
-						dataClient,
-						termProvider,
-						cacheContext,
-						R4FhirModelResolverFactory.createCachingResolver(),
-						!arguments.enableTerminologyOptimization,
-						arguments.searchPageSize
-				);
+			try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext();
+					NdjsonResourceIndex ndjsonIndex = openNdjsonIndex(arguments)) {
+				CqlDataProvider dataProvider;
+				if (ndjsonIndex != null) {
+					out.println(String.format("Reading data from NDJSON files in '%s'", arguments.dataNdjsonDirectory.toString()));
+					dataProvider = R4DataProviderFactory.createDataProvider(
+							ndjsonIndex,
+							termProvider,
+							cacheContext,
+							R4FhirModelResolverFactory.createCachingResolver()
+					);
+				} else {
+					dataProvider = R4DataProviderFactory.createDataProvider(
+							fhirClientBuilder.createFhirClient(dataServerConfig),
+							termProvider,
+							cacheContext,
+							R4FhirModelResolverFactory.createCachingResolver(),
+							!arguments.enableTerminologyOptimization,
+							arguments.searchPageSize
+					);
+				}
 
 				wrapper = new CqlEvaluator()
 						.setLibraryProvider(libraryProvider)
 						.setDataProvider(dataProvider)
-						.setTerminologyProvider(termProvider);
+						.setTerminologyProvider(termProvider)
+						.setPrefetchTerminology(arguments.prefetchTerminology)
+						.setFuseRetrieves(arguments.fuseRetrieves)
+						.setPrefetchRetrieves(arguments.prefetchRetrieves)
+						.setProjectElements(arguments.projectElements)
+						.setPushDateRanges(arguments.pushDateRanges);
 
 				ZonedDateTime evaluationDateTime = ZonedDateTime.now();
-				for (Pair<String, String> context : contexts) {
+				for (int i = 0; i < contexts.size(); i++) {
+					Pair<String, String> context = contexts.get(i);
 					String contextLabel = context == null ? "null" : context.getRight();
 					out.println("Context: " + contextLabel);
 					CqlEvaluationResult result = wrapper.evaluate(
@@ -239,7 +273,8 @@ public class CohortCLI extends BaseCLI {
 							context,
 							arguments.expressions,
 							arguments.loggingLevel,
-							evaluationDateTime
+							evaluationDateTime,
+							i + 1 < contexts.size() ? contexts.get(i + 1) : null
 					);
 
 					out.print(prettyPrinter.prettyPrintResult(result));
@@ -11,9 +11,12 @@ import com.beust.jcommander.Parameter;
 
 public class ConnectionArguments {
 	@Parameter(names = { "-d",
-			"--data-server" }, description = "Path to JSON configuration data for the FHIR server connection that will be used to retrieve data.", required = true)
+			"--data-server" }, description = "Path to JSON configuration data for the FHIR server connection that will be used to retrieve data. Either this or --data-ndjson is required.", required = false)
 	File dataServerConfigFile;
 
+	@Parameter(names = { "--data-ndjson" }, description = "Directory of FHIR bulk data export NDJSON files that will be used to retrieve data instead of a FHIR server. The files are indexed the first time they are read and the index is kept in the directory.", required = false)
+	File dataNdjsonDirectory;
+
 	@Parameter(names = { "-t",
 			"--terminology-server" }, description = "Path to JSON configuration data for the FHIR server connection that will be used to retrieve terminology.", required = false)
 	File terminologyServerConfigFile;
@@ -21,4 +24,10 @@ public class ConnectionArguments {
 	@Parameter(names = { "-m",
 			"--measure-server" }, description = "Path to configuration data for the FHIR knowledge assets. This will be either a JSON configuration file containing FHIR server connection details or the path to a file containing the FHIR resources of interest.", required = false)
 	File measureServerConfigFile;
+
+	@Parameter(names = { "--terminology-cache-dir" }, description = "Directory in which ValueSet expansions retrieved from the terminology server are persisted and reused across runs.", required = false)
+	File terminologyCacheDirectory;
+
+	@Parameter(names = { "--terminology-cache-ttl" }, description = "Number of minutes that a cached ValueSet expansion is used before it is requested from the terminology server again.", required = false)
+	long terminologyCacheTimeToLiveMinutes = BaseCLI.DEFAULT_TERMINOLOGY_CACHE_TTL_MINUTES;
 }
@@ -38,11 +38,11 @@ import com.beust.jcommander.internal.Console;
 import com.beust.jcommander.internal.DefaultConsole;
 import com.ibm.cohort.cli.input.MeasureContextProvider;
 import com.ibm.cohort.cli.input.NoSplittingSplitter;
+import com.ibm.cohort.cql.hapi.NdjsonResourceIndex;
 import com.ibm.cohort.cql.hapi.R4DataProviderFactory;
 import com.ibm.cohort.cql.cache.DefaultRetrieveCacheContext;
 import com.ibm.cohort.cql.cache.RetrieveCacheContext;
 import com.ibm.cohort.cql.hapi.R4FhirModelResolverFactory;
-import com.ibm.cohort.cql.hapi.R4RestFhirTerminologyProvider;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilderFactory;
 
 import ca.uhn.fhir.parser.IParser;
@@ -96,6 +96,24 @@ public class MeasureCLI extends BaseCLI {
 		@Parameter(names = { "--enable-terminology-optimization" }, description = "By default, ValueSet resources used in CQL are first expanded by the terminology provider, then the codes are used to query the data server. If the data server contains the necessary terminology resources and supports the token :in search modifier, setting this flag to false will enable code filtering directly on the data server which should improve CQL engine throughput.", required = false )
 		private boolean enableTerminologyOptimization= DEFAULT_TERMINOLOGY_OPTIMIZATION_ENABLED;
 		
+		@Parameter(names = { "--prefetch-terminology" }, description = "If set, all ValueSets referenced by the measure libraries are expanded in parallel before the first patient is evaluated.")
+		private boolean prefetchTerminology = false;
+
+		@Parameter(names = { "--fuse-retrieves" }, description = "If set, retrieves of the same resource type and code path that filter on different codes are combined into one search per patient and the results are divided between them. Requires the retrieve cache.")
+		private boolean fuseRetrieves = false;
+
+		@Parameter(names = { "--prefetch-retrieves" }, description = "If set, the searches that the measure libraries make for a patient are sent to the data server in one FHIR batch request before the patient is evaluated, and the searches of the next patient are sent while the current patient is evaluated. Requires the retrieve cache.")
+		private boolean prefetchRetrieves = false;
+
+		@Parameter(names = { "--project-elements" }, description = "If set, searches request only the elements of each resource that the measure libraries read, using the _elements search parameter. Whole resources are requested when the elements that are read cannot be determined or the server rejects the parameter.")
+		private boolean projectElements = false;
+
+		@Parameter(names = { "--push-date-ranges" }, description = "If set, queries that filter a retrieve by a date element being during a fixed range, such as the measurement period, search with that range as a date search parameter. Searches are not filtered by date when the server does not declare the search parameter in its capability statement.")
+		private boolean pushDateRanges = false;
+
+		@Parameter(names = { "--measure-threads" }, description = "Maximum number of measures evaluated in parallel for each patient. Measures share the retrieve cache, so each search for a patient is only issued once.")
+		private int measureThreads = MeasureEvaluator.DEFAULT_MEASURE_THREADS;
+
 		@Parameter(names = { "--search-page-size" }, description = "Specifies how many records are requested per page during a FHIR search operation. The default value for servers can be quite small and setting this to a larger number will potentially improve performance.")
 		private int searchPageSize = DEFAULT_PAGE_SIZE;
 
@@ -131,8 +149,7 @@ public class MeasureCLI extends BaseCLI {
 
 			FhirClientBuilderFactory fhirClientBuilderFactory = getFhirClientBuilderFactory();
 
-			IGenericClient dataServerClient = fhirClientBuilderFactory.newFhirClientBuilder().createFhirClient(dataServerConfig);
-			IGenericClient terminologyServerClient = fhirClientBuilderFactory.newFhirClientBuilder().createFhirClient(terminologyServerConfig);
+			IGenericClient terminologyServerClient = terminologyServerConfig != null ? fhirClientBuilderFactory.newFhirClientBuilder().createFhirClient(terminologyServerConfig) : null;
 
 			String [] filters = (arguments.filters != null) ? arguments.filters.toArray(new String[arguments.filters.size()]) : null;
 
@@ -151,6 +168,9 @@ public class MeasureCLI extends BaseCLI {
 				measureResolver = resolvers.getMeasureResolver();
 			} else {
 				readMeasureServerConfiguration( arguments );
+				if (measureServerConfig == null) {
+					throw new IllegalArgumentException("Must specify -m option when data is read from NDJSON files");
+				}
 				IGenericClient measureServerClient = fhirClientBuilderFactory.newFhirClientBuilder().createFhirClient(measureServerConfig);
 				libraryResolver = R4FhirServerResourceResolverFactory.createLibraryResolver(measureServerClient);
 				measureResolver = R4FhirServerResourceResolverFactory.createMeasureResolver(measureServerClient);
@@ -167,11 +187,24 @@ public class MeasureCLI extends BaseCLI {
 			validateMeasureContexts(measureContexts);
 
 			R4LibraryDependencyGatherer libraryDependencyGatherer = new R4LibraryDependencyGatherer(libraryResolver);
-			CqlTerminologyProvider terminologyProvider = new R4RestFhirTerminologyProvider(terminologyServerClient);
-			try (RetrieveCacheContext retrieveCacheContext = arguments.disableRetrieveCache ? null : new DefaultRetrieveCacheContext()) {
-				Map<String, CqlDataProvider> dataProviders = R4DataProviderFactory.createDataProviderMap(dataServerClient, terminologyProvider, retrieveCacheContext, R4FhirModelResolverFactory.createCachingResolver(), ! arguments.enableTerminologyOptimization, arguments.searchPageSize);
+			CqlTerminologyProvider terminologyProvider = createTerminologyProvider(arguments, terminologyServerClient);
+			try (RetrieveCacheContext retrieveCacheContext = arguments.disableRetrieveCache ? null : new DefaultRetrieveCacheContext();
+					NdjsonResourceIndex ndjsonIndex = openNdjsonIndex(arguments)) {
+				Map<String, CqlDataProvider> dataProviders;
+				if (ndjsonIndex != null) {
+					dataProviders = R4DataProviderFactory.createDataProviderMap(ndjsonIndex, terminologyProvider, retrieveCacheContext, R4FhirModelResolverFactory.createCachingResolver());
+				} else {
+					IGenericClient dataServerClient = fhirClientBuilderFactory.newFhirClientBuilder().createFhirClient(dataServerConfig);
+					dataProviders = R4DataProviderFactory.createDataProviderMap(dataServerClient, terminologyProvider, retrieveCacheContext, R4FhirModelResolverFactory.createCachingResolver(), ! arguments.enableTerminologyOptimization, arguments.searchPageSize);
+				}
 
 				evaluator = new MeasureEvaluator(measureResolver, libraryResolver, libraryDependencyGatherer, terminologyProvider, dataProviders);
+				evaluator.setPrefetchTerminology(arguments.prefetchTerminology);
+				evaluator.setFuseRetrieves(arguments.fuseRetrieves);
+				evaluator.setPrefetchRetrieves(arguments.prefetchRetrieves);
+				evaluator.setProjectElements(arguments.projectElements);
+				evaluator.setPushDateRanges(arguments.pushDateRanges);
+				evaluator.setMeasureThreads(arguments.measureThreads);
 
 				for (String contextId : arguments.contextIds) {
 					out.println("Evaluating: " + contextId);
@@ -21,6 +21,7 @@ import java.io.FileWriter;
 import java.io.PrintStream;
 import java.io.Writer;
 
+import com.ibm.cohort.cql.hapi.NdjsonResourceIndex;
 import com.ibm.cohort.cql.hapi.PatientTestBase;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -36,7 +37,9 @@ import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.RelatedArtifact.RelatedArtifactType;
 import org.hl7.fhir.r4.model.StringType;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ibm.cohort.fhir.client.config.FhirServerConfig;
@@ -46,6 +49,9 @@ import ca.uhn.fhir.parser.IParser;
 public class CohortCLITest extends PatientTestBase {
 	private static final String DEFAULT_RESOURCE_VERSION = "1.0.0";
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	@Test
 	public void testMainWithParams() throws Exception {
 		Patient patient = getPatient("123", Enumerations.AdministrativeGender.FEMALE, null);
@@ -117,6 +123,41 @@ public class CohortCLITest extends PatientTestBase {
 		}
 	}
 	
+	@Test
+	public void testMainNdjsonData() throws Exception {
+		Patient female = getPatient("123", Enumerations.AdministrativeGender.FEMALE, null);
+		Patient male = getPatient("456", Enumerations.AdministrativeGender.MALE, null);
+
+		File dataDirectory = temporaryFolder.newFolder();
+		// NDJSON holds one resource per line
+		IParser parser = fhirContext.newJsonParser();
+		try (Writer w = new FileWriter(new File(dataDirectory, "Patient.ndjson"))) {
+			w.write(parser.encodeResourceToString(female) + "\n" + parser.encodeResourceToString(male) + "\n");
+		}
+
+		PrintStream originalOut = System.out;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (PrintStream captureOut = new PrintStream(baos)) {
+			System.setOut(captureOut);
+			CohortCLI.main(new String[] { "--data-ndjson", dataDirectory.getAbsolutePath(),
+					"-f", "src/test/resources/cql/no-version", "-l", "Test", "-e", "Female", "-e", "Male",
+					"-c", "123", "-c", "456" });
+		} finally {
+			System.setOut(originalOut);
+		}
+
+		String output = new String(baos.toByteArray());
+		assertThat(output, containsString("Context: 123" + System.lineSeparator() + "Expression: \"Female\", Result: true"));
+		assertThat(output, containsString("Context: 456" + System.lineSeparator() + "Expression: \"Female\", Result: false"));
+		assertTrue(new File(dataDirectory, NdjsonResourceIndex.DEFAULT_INDEX_FILE_NAME).exists());
+	}
+
+	@Test
+	public void testMainNoDataSource() {
+		assertThrows(IllegalArgumentException.class, () -> new CohortCLI().runWithArgs(new String[] {
+				"-f", "src/test/resources/cql/no-version", "-l", "Test", "-c", "123" }, System.out));
+	}
+
 	@Test
 	public void testMainMultiFolder() throws Exception {
 		Patient patient = getPatient("123", Enumerations.AdministrativeGender.FEMALE, null);
@@ -22,4 +22,40 @@ public class CohortEngineRestConstants {
 	public static final String DARK_LAUNCHED_PATIENT_LIST_MEASURE_EVALUATION = "patient_list_measure_evaluation_feature";
 	public static final String DARK_LAUNCHED_VALUE_SET_UPLOAD = "value_set_upload_feature";
 	public static final String DARK_LAUNCHED_COHORT_EVALUATION = "cohort_evaluation_feature";
+	public static final String DARK_LAUNCHED_EVALUATION_JOBS = "evaluation_jobs_feature";
+	public static final String DARK_LAUNCHED_MEASURE_ARTIFACTS = "measure_artifacts_feature";
+
+	// System properties that limit the measure artifact packages kept in memory
+	public static final String MEASURE_ARTIFACTS_MAX_ENTRIES_PROPERTY = "cohort.artifacts.maxEntries";
+	public static final String MEASURE_ARTIFACTS_MAX_BYTES_PROPERTY = "cohort.artifacts.maxBytes";
+
+	// System property that limits the prepared measure evaluation seeds kept by the evaluator of a request
+	public static final String MEASURE_SEEDS_MAX_ENTRIES_PROPERTY = "cohort.seeds.maxEntries";
+
+	// System properties that limit the value set expansions kept in memory and optionally persist them
+	public static final String TERMINOLOGY_CACHE_MAX_ENTRIES_PROPERTY = "cohort.terminology.maxEntries";
+	public static final String TERMINOLOGY_CACHE_TTL_MINUTES_PROPERTY = "cohort.terminology.ttlMinutes";
+	public static final String TERMINOLOGY_CACHE_DIRECTORY_PROPERTY = "cohort.terminology.directory";
+
+	// System property for the number of patients of a cohort request evaluated at once
+	public static final String COHORT_EVALUATION_THREADS_PROPERTY = "cohort.cohortEvaluation.threads";
+	public static final int DEFAULT_COHORT_EVALUATION_THREADS = 8;
+
+	// System properties for the pooled connections and cached clients used to call FHIR servers
+	public static final String FHIR_CLIENT_MAX_TOTAL_CONNECTIONS_PROPERTY = "cohort.fhirClient.maxTotalConnections";
+	public static final String FHIR_CLIENT_MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "cohort.fhirClient.maxConnectionsPerRoute";
+	public static final String FHIR_CLIENT_KEEP_ALIVE_MILLIS_PROPERTY = "cohort.fhirClient.keepAliveMillis";
+	public static final String FHIR_CLIENT_MAX_CLIENTS_PROPERTY = "cohort.fhirClient.maxClients";
+
+	// System property that combines retrieves of the same resource type and code path into one search per patient
+	public static final String FUSE_RETRIEVES_PROPERTY = "cohort.retrieve.fuse";
+
+	// System property that sends the searches made for a patient in one FHIR batch request before the patient is evaluated
+	public static final String PREFETCH_RETRIEVES_PROPERTY = "cohort.retrieve.prefetch";
+
+	// System property that requests only the resource elements that the libraries read with the _elements search parameter
+	public static final String PROJECT_ELEMENTS_PROPERTY = "cohort.retrieve.elements";
+
+	// System property that searches with the date ranges, such as the measurement period, that queries filter by
+	public static final String PUSH_DATE_RANGES_PROPERTY = "cohort.retrieve.dateRanges";
 }
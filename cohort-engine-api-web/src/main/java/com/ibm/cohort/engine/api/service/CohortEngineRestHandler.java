@@ -8,12 +8,24 @@ package com.ibm.cohort.engine.api.service;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipInputStream;
 
 import javax.servlet.http.HttpServletRequest;
@@ -23,42 +35,53 @@ import javax.validation.Validator;
 import javax.validation.ValidatorFactory;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 import ca.uhn.fhir.context.FhirContext;
 import com.ibm.cohort.cql.data.CqlDataProvider;
 import com.ibm.cohort.cql.evaluation.ContextNames;
 import com.ibm.cohort.cql.evaluation.CqlEvaluationResult;
 import com.ibm.cohort.cql.evaluation.CqlEvaluator;
-import com.ibm.cohort.cql.hapi.resolver.R4QualityMeasureResolverFactory;
-import com.ibm.cohort.cql.hapi.resolver.R4QualityMeasureResolvers;
 import com.ibm.cohort.cql.fhir.resolver.FhirResourceResolver;
-import com.ibm.cohort.cql.hapi.R4LibraryDependencyGatherer;
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
 import com.ibm.cohort.cql.hapi.resolver.R4FhirServerResourceResolverFactory;
 import com.ibm.cohort.cql.library.ClasspathCqlLibraryProvider;
 import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
 import com.ibm.cohort.cql.library.CqlLibraryHelpers;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.Format;
 import com.ibm.cohort.cql.library.MapCqlLibraryProviderFactory;
 import com.ibm.cohort.cql.library.PriorityCqlLibraryProvider;
+import com.ibm.cohort.cql.terminology.CachingTerminologyProvider;
 import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
+import com.ibm.cohort.cql.terminology.TerminologyExpansionCache;
 import com.ibm.cohort.cql.translation.CqlToElmTranslator;
 import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
 import com.ibm.cohort.cql.hapi.R4FhirModelResolverFactory;
 import com.ibm.cohort.measure.MeasureEvaluator;
+import com.ibm.cohort.measure.artifact.MeasureArtifactRegistry;
+import com.ibm.cohort.measure.artifact.MeasureArtifacts;
+import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions;
+import com.ibm.cohort.measure.evidence.MeasureReportEvidenceWriter;
+import com.ibm.cohort.measure.seed.MeasureEvaluationSeedCache;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.Identifier;
-import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.slf4j.Logger;
@@ -66,7 +89,12 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ibm.cohort.engine.api.service.model.CohortEvaluation;
+import com.ibm.cohort.engine.api.service.model.CohortPatientResult;
+import com.ibm.cohort.engine.api.service.job.EvaluationJobManager;
 import com.ibm.cohort.engine.api.service.model.CohortResult;
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus.JobState;
+import com.ibm.cohort.engine.api.service.model.MeasureArtifactHandle;
 import com.ibm.cohort.engine.api.service.model.MeasureEvaluation;
 import com.ibm.cohort.engine.api.service.model.MeasureParameterInfo;
 import com.ibm.cohort.engine.api.service.model.MeasureParameterInfoList;
@@ -76,6 +104,7 @@ import com.ibm.cohort.cql.hapi.R4DataProviderFactory;
 import com.ibm.cohort.cql.cache.DefaultRetrieveCacheContext;
 import com.ibm.cohort.cql.cache.RetrieveCacheContext;
 import com.ibm.cohort.cql.hapi.R4RestFhirTerminologyProvider;
+import com.ibm.cohort.fhir.client.config.CachingFhirClientBuilder;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilder;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilderFactory;
 import com.ibm.cohort.fhir.client.config.FhirServerConfig;
@@ -112,11 +141,32 @@ import io.swagger.annotations.Tag;
 @SwaggerDefinition(
 tags={	@Tag(name = "FHIR Measures", description = "IBM Cohort Engine FHIR Measure Information"),
 		@Tag(name = "Measure Evaluation", description = "IBM Cohort Engine Measure Evaluation"),
-		@Tag(name = "ValueSet", description = "IBM Cohort Engine ValueSet Operations")})
+		@Tag(name = "ValueSet", description = "IBM Cohort Engine ValueSet Operations"),
+		@Tag(name = "Evaluation Jobs", description = "IBM Cohort Engine Asynchronous Evaluation Jobs")})
 public class CohortEngineRestHandler {
 	private static final String EVALUATION_API_NOTES = "The body of the request is a multipart/form-data request with an application/json attachment named 'request_data' that describes the measure evaluation that will be performed and an application/zip attachment named 'measure' that contains the measure and library artifacts to be evaluated. Valueset resources required for Measure evaluation must be loaded to the FHIR server in advance of an evaluation request. Examples of the response measure reports (individual and patient list) can be found as part the FHIR IG: https://www.hl7.org/fhir/measurereport-examples.html.";
-	private static final String COHORT_EVALUATION_API_NOTES = "The body of the request is a multipart/form-data request with  an application/zip attachment named 'cql_definition' that contains the cohort cql definition to be evaluated.";
+	private static final String MEASURE_ARTIFACTS_API_NOTES = "Parses and keeps a measure ZIP so that evaluation requests can send the returned handle in a text attachment named 'measure_artifact_handle' instead of uploading the ZIP again. Packages that are not used for a while are discarded, so clients should be prepared to upload the ZIP again when a handle is reported as unknown. Evaluation requests that upload a ZIP register it as well.";
+	private static final String MEASURE_ARTIFACT_HANDLE_DESC = "Handle returned by /measure-artifacts. When the measure attachment is also sent, the handle must be the SHA-256 of the ZIP and the ZIP is only parsed if the handle is not registered.";
+	private static final String EVALUATION_JOB_API_NOTES = "Accepts the same multipart/form-data request as /evaluation-patient-list and returns as soon as the evaluation is queued. Poll /jobs/{job_id} for progress and read the MeasureReport from /jobs/{job_id}/results once the job has completed.";
+	private static final String COHORT_EVALUATION_JOB_API_NOTES = "Accepts the same multipart/form-data request as /cohort-evaluation and returns as soon as the evaluation is queued. Poll /jobs/{job_id} for progress and read the passing patient ids from /jobs/{job_id}/results.";
+	private static final String JOB_RESULTS_API_NOTES = "Returns the results of a completed job as newline delimited JSON. A failed job returns its error message instead of partial results. Patient-list measure jobs return one MeasureReport and cohort jobs return one JSON string per passing patient. Use offset and count to page through large results.";
+	private static final String JOB_ID_DESC = "Job identifier returned when the job was submitted";
+	private static final String RESULTS_OFFSET_DESC = "Index of the first result to return";
+	private static final String RESULTS_COUNT_DESC = "Maximum number of results to return. All remaining results are returned when not provided.";
+	private static final int RESULTS_PAGE_SIZE = 1000;
+	private static final String COHORT_EVALUATION_API_NOTES = "The body of the request is a multipart/form-data request with  an application/zip attachment named 'cql_definition' that contains the cohort cql definition to be evaluated."
+			+ " When " + CohortEngineRestHandler.NDJSON_MEDIA_TYPE + " is the most preferred media type of the Accept header, the response is streamed with one CohortPatientResult per line as soon as each patient is evaluated."
+			+ " Patients are not written in request order and a patient whose evaluation fails is reported with an error instead of failing the request.";
 	private static final Logger logger = LoggerFactory.getLogger(CohortEngineRestHandler.class.getName());
+	private static final TerminologyExpansionCache TERMINOLOGY_CACHE = createTerminologyCache();
+	private static final MeasureArtifactRegistry MEASURE_ARTIFACTS = new MeasureArtifactRegistry(
+			FhirContext.forR4(),
+			Integer.getInteger(CohortEngineRestConstants.MEASURE_ARTIFACTS_MAX_ENTRIES_PROPERTY, MeasureArtifactRegistry.DEFAULT_MAX_ENTRIES),
+			Long.getLong(CohortEngineRestConstants.MEASURE_ARTIFACTS_MAX_BYTES_PROPERTY, MeasureArtifactRegistry.DEFAULT_MAX_BYTES));
+	private static final int COHORT_EVALUATION_THREADS = Math.max(1,
+			Integer.getInteger(CohortEngineRestConstants.COHORT_EVALUATION_THREADS_PROPERTY, CohortEngineRestConstants.DEFAULT_COHORT_EVALUATION_THREADS));
+	private static ExecutorService cohortEvaluationExecutor;
+	private static CachingFhirClientBuilder fhirClientBuilder;
 	private static final String MEASURE_IDENTIFIER_VALUE_DESC = "Used to identify the FHIR measure resource you would like the parameter information "
 			+ "for using the Measure.Identifier.Value field.";
 	private static final String MEASURE_ID_DESC = "FHIR measure resource id for the measure you would like the parameter information "
@@ -138,6 +188,7 @@ public class CohortEngineRestHandler {
 	public static final String CQL_DEFINITION = "cql_definition";
 	public static final String REQUEST_DATA_PART = "request_data";
 	public static final String MEASURE_PART = "measure";
+	public static final String MEASURE_ARTIFACT_HANDLE_PART = "measure_artifact_handle";
 	public static final String FHIR_DATA_SERVER_CONFIG_PART = "fhir_data_server_config";
 	public static final String UPDATE_IF_EXISTS_PARM = "update_if_exists";
 	public static final String VERSION = "version";
@@ -145,6 +196,12 @@ public class CohortEngineRestHandler {
 	public static final String MEASURE_IDENTIFIER_SYSTEM = "measure_identifier_system";
 	public static final String MEASURE_VERSION = "measure_version";
 	public static final String MEASURE_ID = "measure_id";
+	public static final String JOB_ID = "job_id";
+	public static final String RESULTS_OFFSET = "offset";
+	public static final String RESULTS_COUNT = "count";
+	public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+	public static final String JOB_TYPE_PATIENT_LIST_MEASURE = "patient-list-measure";
+	public static final String JOB_TYPE_COHORT = "cohort";
 
 	
 	public final static String VALUE_SET_PART = "value_set";
@@ -310,7 +367,12 @@ public class CohortEngineRestHandler {
 		EVALUATE_COHORT("evaluateCohort"),
 		GET_MEASURE_PARAMETERS("getMeasureParameters"),
 		GET_MEASURE_PARAMETERS_BY_ID("getMeasureParametersById"),
-		CREATE_VALUE_SET("createValueSet")
+		CREATE_VALUE_SET("createValueSet"),
+		SUBMIT_PATIENT_LIST_MEASURE_JOB("submitPatientListMeasureJob"),
+		SUBMIT_COHORT_JOB("submitCohortJob"),
+		GET_JOB_STATUS("getJobStatus"),
+		GET_JOB_RESULTS("getJobResults"),
+		REGISTER_MEASURE_ARTIFACTS("registerMeasureArtifacts")
 		;
 		
 		private String name;
@@ -340,7 +402,7 @@ public class CohortEngineRestHandler {
 	@POST
 	@Path("/cohort-evaluation")
 	@Consumes(MediaType.MULTIPART_FORM_DATA)
-	@Produces({ MediaType.APPLICATION_JSON })
+	@Produces({ MediaType.APPLICATION_JSON, NDJSON_MEDIA_TYPE })
 	@ApiOperation(value = "Evaluates a specific define within a CQL for a set of patients"
 			, notes = COHORT_EVALUATION_API_NOTES, response = String.class
 			, tags = {"Cohort Evaluation"}
@@ -366,6 +428,7 @@ public class CohortEngineRestHandler {
 	})
 	public Response evaluateCohort(
 			@Context HttpServletRequest request,
+			@Context HttpHeaders httpHeaders,
 			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version,
 			@ApiParam(hidden = true, type="file", required=true) IMultipartBody multipartBody)
 	{
@@ -409,50 +472,47 @@ public class CohortEngineRestHandler {
 			validateBean(dataServerConfig);
 			validateBean(terminologyServerConfig);
 
-			FhirClientBuilderFactory clientBuilderFactory = FhirClientBuilderFactory.newInstance();
-			FhirClientBuilder clientBuilder = clientBuilderFactory.newFhirClientBuilder();
-
-			CqlLibraryProvider libraryProvider;
-			try(InputStream is = cqlAttachment.getDataHandler().getInputStream()) {
-				ZipInputStream zis = new ZipInputStream(is);
-				MapCqlLibraryProviderFactory libraryProviderFactory = new MapCqlLibraryProviderFactory();
-				String[] attachmentHeaders = cqlAttachment.getHeader("Content-Disposition").split(";");
-				String filename = null;
-				for (String header : attachmentHeaders) {
-					if (header.contains("filename")) {
-						filename = FilenameUtils.removeExtension(header.split("=")[1].replaceAll("\"", ""));
-					}
-				}
-				String[] searchPaths = new String[]{"cql", filename + "/cql"};
-				libraryProvider = libraryProviderFactory.fromZipStream(zis, searchPaths);
-			}
+			FhirClientBuilder clientBuilder = getFhirClientBuilder();
 
-			CqlLibraryProvider fhirClasspathProvider = new ClasspathCqlLibraryProvider();
-			libraryProvider = new PriorityCqlLibraryProvider(libraryProvider, fhirClasspathProvider);
-
-			CqlToElmTranslator translator = new CqlToElmTranslator();
-			libraryProvider = new TranslatingCqlLibraryProvider(libraryProvider, translator);
+			CqlLibraryProvider libraryProvider = createCohortLibraryProvider(cqlAttachment);
 
 			IGenericClient dataClient = clientBuilder.createFhirClient(dataServerConfig);
 
 			IGenericClient termClient = clientBuilder.createFhirClient(terminologyServerConfig);
-			CqlTerminologyProvider termProvider = new R4RestFhirTerminologyProvider(termClient);
-
-			List<String> passingPatients;
-			try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
-				passingPatients = evaluateCohort(
+			CqlTerminologyProvider termProvider = createTerminologyProvider(termClient, terminologyServerConfig);
+
+			if (isNdjsonPreferred(httpHeaders)) {
+				// Translate the entry point before the response is committed so
+				// that CQL errors are still reported with an error status
+				loadCohortLibrary(libraryProvider, evaluationRequest);
+
+				StreamingOutput entity = output -> {
+					Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+					try {
+						evaluateCohort(dataClient, termProvider, libraryProvider, evaluationRequest, new StreamingCohortPatientListener(writer, om));
+					} catch (IOException | RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IOException("Cohort evaluation failed", e);
+					}
+					writer.flush();
+				};
+				response = Response.status(Response.Status.OK).header("Content-Type", NDJSON_MEDIA_TYPE).entity(entity).build();
+			}
+			else {
+				List<String> passingPatients = evaluateCohort(
 						dataClient,
 						termProvider,
 						libraryProvider,
-						retrieveCacheContext,
-						evaluationRequest
+						evaluationRequest,
+						() -> { }
 				);
-			}
 
-			response = Response.status(Response.Status.OK)
-					.header("Content-Type", "application/json")
-					.entity(new CohortResult(passingPatients))
-					.build();
+				response = Response.status(Response.Status.OK)
+						.header("Content-Type", "application/json")
+						.entity(new CohortResult(passingPatients))
+						.build();
+			}
 		} catch (Throwable e) {
 			//map any exceptions caught into the proper REST error response objects
 			response = new CohortServiceExceptionMapper().toResponse(e);
@@ -488,7 +548,8 @@ public class CohortEngineRestHandler {
 		@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string"),
 		// These are necessary to create a proper view of the request body that is all wrapped up in the Liberty IMultipartBody parameter
 		@ApiImplicitParam(name=REQUEST_DATA_PART, value=EXAMPLE_REQUEST_DATA_JSON, dataTypeClass = MeasureEvaluation.class, required=true, paramType="form", type="file"),
-		@ApiImplicitParam(name=MEASURE_PART, value=EXAMPLE_MEASURE_ZIP, dataTypeClass = File.class, required=true, paramType="form", type="file" )
+		@ApiImplicitParam(name=MEASURE_PART, value=EXAMPLE_MEASURE_ZIP, dataTypeClass = File.class, required=false, paramType="form", type="file" ),
+		@ApiImplicitParam(name=MEASURE_ARTIFACT_HANDLE_PART, value=MEASURE_ARTIFACT_HANDLE_DESC, dataTypeClass = String.class, required=false, paramType="form", type="string" )
 	})
 	@ApiResponses(value = {
 			@ApiResponse(code = 200, message = "Successful Operation: This API returns the JSON representation of a FHIR MeasureReport. A full example can be found at https://www.hl7.org/fhir/measurereport-cms146-cat1-example.html"),
@@ -523,7 +584,8 @@ public class CohortEngineRestHandler {
 			}
 
 			IAttachment measureAttachment = multipartBody.getAttachment(MEASURE_PART);
-			if( measureAttachment == null ) {
+			IAttachment handleAttachment = multipartBody.getAttachment(MEASURE_ARTIFACT_HANDLE_PART);
+			if( measureAttachment == null && handleAttachment == null ) {
 				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", MEASURE_PART));
 			}
 			
@@ -534,26 +596,31 @@ public class CohortEngineRestHandler {
 			//validate the contents of the evaluationRequest
 			validateBean(evaluationRequest);
 
+			MeasureArtifacts measureArtifacts = getMeasureArtifacts(measureAttachment, handleAttachment);
 			FhirContext fhirContext = FhirContext.forR4();
-			try (
-					InputStream is = measureAttachment.getDataHandler().getInputStream();
-					RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()
-			) {
+			try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
 				MeasureEvaluator evaluator = createMeasureEvaluator(
-						is,
+						measureArtifacts,
 						evaluationRequest.getDataServerConfig(),
 						evaluationRequest.getTerminologyServerConfig(),
 						evaluationRequest.isExpandValueSets(),
 						evaluationRequest.getSearchPageSize(),
-						retrieveCacheContext,
-						fhirContext
+						retrieveCacheContext
 				);
-				MeasureReport report = evaluator.evaluatePatientMeasure(evaluationRequest.getPatientId(), evaluationRequest.getMeasureContext(), evaluationRequest.getEvidenceOptions());
+				MeasureEvidenceOptions evidenceOptions = null;
+				if (evaluationRequest.getEvidenceOptions() != null) {
+					// Define results are converted to evidence one at a time while the response is written
+					evidenceOptions = new MeasureEvidenceOptions(evaluationRequest.getEvidenceOptions());
+					evidenceOptions.setStreamDefineResults(true);
+				}
+				MeasureReport report = evaluator.evaluatePatientMeasure(evaluationRequest.getPatientId(), evaluationRequest.getMeasureContext(), evidenceOptions);
 
 				// The default serializer gets into an infinite loop when trying to serialize MeasureReport, so we use the
-				// HAPI encoder instead.
-				IParser parser = fhirContext.newJsonParser();
-				ResponseBuilder responseBuilder = Response.status(Response.Status.OK).header("Content-Type", "application/json").entity(parser.encodeResourceToString(report));
+				// HAPI encoder instead. The report is encoded before a status is chosen, so that encoding errors are
+				// reported with an error status, and the evidence is written as the response is streamed.
+				MeasureReportEvidenceWriter.EncodedReport encodedReport = new MeasureReportEvidenceWriter(fhirContext).prepare(report);
+				StreamingOutput entity = output -> encodedReport.writeTo(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+				ResponseBuilder responseBuilder = Response.status(Response.Status.OK).header("Content-Type", "application/json").entity(entity);
 				response = responseBuilder.build();
 
 			}
@@ -591,7 +658,8 @@ public class CohortEngineRestHandler {
 			@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string"),
 			// These are necessary to create a proper view of the request body that is all wrapped up in the Liberty IMultipartBody parameter
 			@ApiImplicitParam(name=REQUEST_DATA_PART, value=EXAMPLE_PATIENT_LIST_MEASURE_REQUEST_DATA_JSON, dataTypeClass = PatientListMeasureEvaluation.class, required=true, paramType="form", type="file"),
-			@ApiImplicitParam(name=MEASURE_PART, value=EXAMPLE_MEASURE_ZIP, dataTypeClass = File.class, required=true, paramType="form", type="file" )
+			@ApiImplicitParam(name=MEASURE_PART, value=EXAMPLE_MEASURE_ZIP, dataTypeClass = File.class, required=false, paramType="form", type="file" ),
+			@ApiImplicitParam(name=MEASURE_ARTIFACT_HANDLE_PART, value=MEASURE_ARTIFACT_HANDLE_DESC, dataTypeClass = String.class, required=false, paramType="form", type="string" )
 	})
 	@ApiResponses(value = {
 			@ApiResponse(code = 200, message = "Successful Operation: This API returns the JSON representation of a FHIR MeasureReport. A full example can be found at https://www.hl7.org/fhir/measurereport-cms146-cat2-example.html"),
@@ -626,7 +694,8 @@ public class CohortEngineRestHandler {
 			}
 
 			IAttachment measureAttachment = multipartBody.getAttachment(MEASURE_PART);
-			if( measureAttachment == null ) {
+			IAttachment handleAttachment = multipartBody.getAttachment(MEASURE_ARTIFACT_HANDLE_PART);
+			if( measureAttachment == null && handleAttachment == null ) {
 				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", MEASURE_PART));
 			}
 
@@ -637,19 +706,16 @@ public class CohortEngineRestHandler {
 			//validate the contents of the evaluationRequest
 			validateBean(evaluationRequest);
 
+			MeasureArtifacts measureArtifacts = getMeasureArtifacts(measureAttachment, handleAttachment);
 			FhirContext fhirContext = FhirContext.forR4();
-			try (
-					InputStream is = measureAttachment.getDataHandler().getInputStream();
-					RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()
-			) {
+			try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
 				MeasureEvaluator evaluator = createMeasureEvaluator(
-						is,
+						measureArtifacts,
 						evaluationRequest.getDataServerConfig(),
 						evaluationRequest.getTerminologyServerConfig(),
 						evaluationRequest.isExpandValueSets(),
 						evaluationRequest.getSearchPageSize(),
-						retrieveCacheContext,
-						fhirContext
+						retrieveCacheContext
 				);
 				MeasureReport report = evaluator.evaluatePatientListMeasure(evaluationRequest.getPatientIds(), evaluationRequest.getMeasureContext(), evaluationRequest.getEvidenceOptions());
 
@@ -674,6 +740,427 @@ public class CohortEngineRestHandler {
 		return response;
 	}
 
+	@POST
+	@Path("/measure-artifacts")
+	@Consumes(MediaType.MULTIPART_FORM_DATA)
+	@Produces({ MediaType.APPLICATION_JSON })
+	@ApiOperation(value = "Registers a measure artifact package for use by later evaluation requests"
+			, notes = MEASURE_ARTIFACTS_API_NOTES, response = MeasureArtifactHandle.class
+			, tags = {"Measure Evaluation"}
+			, extensions = {
+			@Extension(properties = {
+					@ExtensionProperty(
+							name = DarkFeatureSwaggerFilter.DARK_FEATURE_NAME
+							, value = CohortEngineRestConstants.DARK_LAUNCHED_MEASURE_ARTIFACTS)
+			})
+	}
+	)
+	@ApiImplicitParams({
+			// This is necessary for the dark launch feature
+			@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string"),
+			@ApiImplicitParam(name=MEASURE_PART, value=EXAMPLE_MEASURE_ZIP, dataTypeClass = File.class, required=true, paramType="form", type="file" )
+	})
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "Successful Operation", response = MeasureArtifactHandle.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ServiceErrorList.class),
+			@ApiResponse(code = 500, message = "Server Error", response = ServiceErrorList.class)
+	})
+	public Response registerMeasureArtifacts(
+			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version,
+			@ApiParam(hidden = true, type="file", required=true) IMultipartBody multipartBody) {
+		final String methodName = MethodNames.REGISTER_MEASURE_ARTIFACTS.getName();
+
+		Response response = null;
+
+		// Error out if feature is not enabled
+		ServiceBaseUtility.isDarkFeatureEnabled(CohortEngineRestConstants.DARK_LAUNCHED_MEASURE_ARTIFACTS);
+
+		try {
+			// Perform api setup
+			Response errorResponse = ServiceBaseUtility.apiSetup(version, logger, methodName);
+			if(errorResponse != null) {
+				return errorResponse;
+			}
+
+			if( multipartBody == null ) {
+				throw new IllegalArgumentException("A multipart/form-data body is required");
+			}
+
+			IAttachment measureAttachment = multipartBody.getAttachment(MEASURE_PART);
+			if( measureAttachment == null ) {
+				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", MEASURE_PART));
+			}
+
+			MeasureArtifacts measureArtifacts = getMeasureArtifacts(measureAttachment, null);
+			MeasureArtifactHandle handle = new MeasureArtifactHandle(measureArtifacts.getHandle(), measureArtifacts.getSize());
+			response = Response.status(Response.Status.OK).header("Content-Type", "application/json").entity(handle).build();
+		} catch (Throwable e) {
+			//map any exceptions caught into the proper REST error response objects
+			response = new CohortServiceExceptionMapper().toResponse(e);
+		} finally {
+			// Perform api cleanup
+			Response errorResponse = ServiceBaseUtility.apiCleanup(logger, methodName);
+			if( errorResponse != null ) {
+				response = errorResponse;
+			}
+		}
+
+		return response;
+	}
+
+	@POST
+	@Path("/evaluation-patient-list/jobs")
+	@Consumes(MediaType.MULTIPART_FORM_DATA)
+	@Produces({ MediaType.APPLICATION_JSON })
+	@ApiOperation(value = "Submits the evaluation of a measure bundle for a list of patients as an asynchronous job"
+			, notes = EVALUATION_JOB_API_NOTES, response = EvaluationJobStatus.class
+			, tags = {"Evaluation Jobs"}
+			, extensions = {
+			@Extension(properties = {
+					@ExtensionProperty(
+							name = DarkFeatureSwaggerFilter.DARK_FEATURE_NAME
+							, value = CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS)
+			})
+	}
+	)
+	@ApiImplicitParams({
+			// This is necessary for the dark launch feature
+			@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string"),
+			// These are necessary to create a proper view of the request body that is all wrapped up in the Liberty IMultipartBody parameter
+			@ApiImplicitParam(name=REQUEST_DATA_PART, value=EXAMPLE_PATIENT_LIST_MEASURE_REQUEST_DATA_JSON, dataTypeClass = PatientListMeasureEvaluation.class, required=true, paramType="form", type="file"),
+			@ApiImplicitParam(name=MEASURE_PART, value=EXAMPLE_MEASURE_ZIP, dataTypeClass = File.class, required=false, paramType="form", type="file" ),
+			@ApiImplicitParam(name=MEASURE_ARTIFACT_HANDLE_PART, value=MEASURE_ARTIFACT_HANDLE_DESC, dataTypeClass = String.class, required=false, paramType="form", type="string" )
+	})
+	@ApiResponses(value = {
+			@ApiResponse(code = 202, message = "Job accepted", response = EvaluationJobStatus.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ServiceErrorList.class),
+			@ApiResponse(code = 500, message = "Server Error", response = ServiceErrorList.class),
+			@ApiResponse(code = 503, message = "Too many jobs are waiting to run", response = ServiceErrorList.class)
+	})
+	public Response submitPatientListMeasureJob(
+			@Context HttpServletRequest request,
+			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version,
+			@ApiParam(hidden = true, type="file", required=true) IMultipartBody multipartBody) {
+		final String methodName = MethodNames.SUBMIT_PATIENT_LIST_MEASURE_JOB.getName();
+
+		Response response = null;
+
+		// Error out if feature is not enabled
+		ServiceBaseUtility.isDarkFeatureEnabled(CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS);
+
+		try {
+			// Perform api setup
+			Response errorResponse = ServiceBaseUtility.apiSetup(version, logger, methodName);
+			if(errorResponse != null) {
+				return errorResponse;
+			}
+
+			if( multipartBody == null ) {
+				throw new IllegalArgumentException("A multipart/form-data body is required");
+			}
+
+			IAttachment metadataAttachment = multipartBody.getAttachment(REQUEST_DATA_PART);
+			if( metadataAttachment == null ) {
+				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", REQUEST_DATA_PART));
+			}
+
+			IAttachment measureAttachment = multipartBody.getAttachment(MEASURE_PART);
+			IAttachment handleAttachment = multipartBody.getAttachment(MEASURE_ARTIFACT_HANDLE_PART);
+			if( measureAttachment == null && handleAttachment == null ) {
+				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", MEASURE_PART));
+			}
+
+			// deserialize the PatientListMeasureEvaluation request
+			ObjectMapper om = new ObjectMapper();
+			PatientListMeasureEvaluation evaluationRequest = om.readValue(metadataAttachment.getDataHandler().getInputStream(), PatientListMeasureEvaluation.class);
+
+			//validate the contents of the evaluationRequest
+			validateBean(evaluationRequest);
+
+			// The request body is gone once this method returns, so the package is parsed before the job is queued
+			MeasureArtifacts measureArtifacts = getMeasureArtifacts(measureAttachment, handleAttachment);
+
+			EvaluationJobStatus status = EvaluationJobManager.getInstance().submit(JOB_TYPE_PATIENT_LIST_MEASURE, evaluationRequest.getPatientIds().size(), context -> {
+				FhirContext fhirContext = FhirContext.forR4();
+				try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
+					MeasureEvaluator evaluator = createMeasureEvaluator(
+							measureArtifacts,
+							evaluationRequest.getDataServerConfig(),
+							evaluationRequest.getTerminologyServerConfig(),
+							evaluationRequest.isExpandValueSets(),
+							evaluationRequest.getSearchPageSize(),
+							retrieveCacheContext
+					);
+					MeasureReport report = evaluator.evaluatePatientListMeasure(evaluationRequest.getPatientIds(), evaluationRequest.getMeasureContext(), evaluationRequest.getEvidenceOptions());
+					context.patientsCompleted(evaluationRequest.getPatientIds().size());
+					context.addResult(fhirContext.newJsonParser().encodeResourceToString(report));
+				}
+			});
+
+			response = Response.status(Response.Status.ACCEPTED).header("Content-Type", "application/json").entity(status).build();
+		} catch (Throwable e) {
+			//map any exceptions caught into the proper REST error response objects
+			response = new CohortServiceExceptionMapper().toResponse(e);
+		} finally {
+			// Perform api cleanup
+			Response errorResponse = ServiceBaseUtility.apiCleanup(logger, methodName);
+			if( errorResponse != null ) {
+				response = errorResponse;
+			}
+		}
+
+		return response;
+	}
+
+	@POST
+	@Path("/cohort-evaluation/jobs")
+	@Consumes(MediaType.MULTIPART_FORM_DATA)
+	@Produces({ MediaType.APPLICATION_JSON })
+	@ApiOperation(value = "Submits the evaluation of a specific define within a CQL for a set of patients as an asynchronous job"
+			, notes = COHORT_EVALUATION_JOB_API_NOTES, response = EvaluationJobStatus.class
+			, tags = {"Evaluation Jobs"}
+			, extensions = {
+			@Extension(properties = {
+					@ExtensionProperty(
+							name = DarkFeatureSwaggerFilter.DARK_FEATURE_NAME
+							, value = CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS)
+			})
+	}
+	)
+	@ApiImplicitParams({
+			// This is necessary for the dark launch feature
+			@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string"),
+			@ApiImplicitParam(name=REQUEST_DATA_PART, value=EXAMPLE_COHORT_REQUEST_DATA_JSON, dataTypeClass = CohortEvaluation.class, required=true, paramType="form", type="file"),
+			@ApiImplicitParam(name=CQL_DEFINITION, value = CQL_REQUIREMENTS,dataTypeClass = File.class, required=true, paramType="form", type="file" )
+	})
+	@ApiResponses(value = {
+			@ApiResponse(code = 202, message = "Job accepted", response = EvaluationJobStatus.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ServiceErrorList.class),
+			@ApiResponse(code = 500, message = "Server Error", response = ServiceErrorList.class),
+			@ApiResponse(code = 503, message = "Too many jobs are waiting to run", response = ServiceErrorList.class)
+	})
+	public Response submitCohortJob(
+			@Context HttpServletRequest request,
+			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version,
+			@ApiParam(hidden = true, type="file", required=true) IMultipartBody multipartBody)
+	{
+		final String methodName = MethodNames.SUBMIT_COHORT_JOB.getName();
+		Response response = null;
+
+		// Error out if feature is not enabled
+		ServiceBaseUtility.isDarkFeatureEnabled(CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS);
+
+		try {
+			// Perform api setup
+			Response errorResponse = ServiceBaseUtility.apiSetup(version, logger, methodName);
+			if (errorResponse != null) {
+				return errorResponse;
+			}
+
+			if (multipartBody == null) {
+				throw new IllegalArgumentException("A multipart/form-data body is required");
+			}
+
+			IAttachment metadataAttachment = multipartBody.getAttachment(REQUEST_DATA_PART);
+			if (metadataAttachment == null) {
+				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", REQUEST_DATA_PART));
+			}
+
+			// deserialize the CohortEvaluation request
+			ObjectMapper om = new ObjectMapper();
+			CohortEvaluation evaluationRequest = om.readValue( metadataAttachment.getDataHandler().getInputStream(), CohortEvaluation.class );
+
+			FhirServerConfig dataServerConfig = evaluationRequest.getDataServerConfig();
+			FhirServerConfig terminologyServerConfig = evaluationRequest.getTerminologyServerConfig() == null
+					? evaluationRequest.getDataServerConfig() : evaluationRequest.getTerminologyServerConfig();
+
+			IAttachment cqlAttachment = multipartBody.getAttachment(CQL_DEFINITION);
+			if (cqlAttachment == null) {
+				throw new IllegalArgumentException(String.format("Missing '%s' MIME attachment", CQL_DEFINITION));
+			}
+
+			//validate the contents of the fhirServerConfig
+			validateBean(dataServerConfig);
+			validateBean(terminologyServerConfig);
+
+			FhirClientBuilder clientBuilder = getFhirClientBuilder();
+			CqlLibraryProvider libraryProvider = createCohortLibraryProvider(cqlAttachment);
+			IGenericClient dataClient = clientBuilder.createFhirClient(dataServerConfig);
+			IGenericClient termClient = clientBuilder.createFhirClient(terminologyServerConfig);
+			CqlTerminologyProvider termProvider = createTerminologyProvider(termClient, terminologyServerConfig);
+
+			String[] patientIds = evaluationRequest.getPatientIds().split(",");
+			EvaluationJobStatus status = EvaluationJobManager.getInstance().submit(JOB_TYPE_COHORT, patientIds.length, context -> {
+				List<String> passingPatients = evaluateCohort(dataClient, termProvider, libraryProvider, evaluationRequest, context::patientCompleted);
+				for (String patientId : passingPatients) {
+					context.addResult(om.writeValueAsString(patientId));
+				}
+			});
+
+			response = Response.status(Response.Status.ACCEPTED).header("Content-Type", "application/json").entity(status).build();
+		} catch (Throwable e) {
+			//map any exceptions caught into the proper REST error response objects
+			response = new CohortServiceExceptionMapper().toResponse(e);
+		} finally {
+			// Perform api cleanup
+			Response errorResponse = ServiceBaseUtility.apiCleanup(logger, methodName);
+			if (errorResponse != null) {
+				response = errorResponse;
+			}
+		}
+
+		return response;
+	}
+
+	@GET
+	@Path("/jobs/{job_id}")
+	@Produces({ MediaType.APPLICATION_JSON })
+	@ApiOperation(value = "Gets the state and progress of an asynchronous evaluation job"
+			, response = EvaluationJobStatus.class
+			, tags = {"Evaluation Jobs"}
+			, extensions = {
+			@Extension(properties = {
+					@ExtensionProperty(
+							name = DarkFeatureSwaggerFilter.DARK_FEATURE_NAME
+							, value = CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS)
+			})
+	}
+	)
+	@ApiImplicitParams({
+			// This is necessary for the dark launch feature
+			@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string")
+	})
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "Successful Operation", response = EvaluationJobStatus.class),
+			@ApiResponse(code = 404, message = "Unknown job", response = ServiceErrorList.class),
+			@ApiResponse(code = 500, message = "Server Error", response = ServiceErrorList.class)
+	})
+	public Response getJobStatus(
+			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version,
+			@ApiParam(value = JOB_ID_DESC, required = true) @PathParam(CohortEngineRestHandler.JOB_ID) String jobId)
+	{
+		final String methodName = MethodNames.GET_JOB_STATUS.getName();
+		Response response = null;
+
+		// Error out if feature is not enabled
+		ServiceBaseUtility.isDarkFeatureEnabled(CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS);
+
+		try {
+			// Perform api setup
+			Response errorResponse = ServiceBaseUtility.apiSetup(version, logger, methodName);
+			if (errorResponse != null) {
+				return errorResponse;
+			}
+
+			EvaluationJobStatus status = getJob(jobId);
+			response = Response.status(Response.Status.OK).header("Content-Type", "application/json").entity(status).build();
+		} catch (Throwable e) {
+			//map any exceptions caught into the proper REST error response objects
+			response = new CohortServiceExceptionMapper().toResponse(e);
+		} finally {
+			// Perform api cleanup
+			Response errorResponse = ServiceBaseUtility.apiCleanup(logger, methodName);
+			if (errorResponse != null) {
+				response = errorResponse;
+			}
+		}
+
+		return response;
+	}
+
+	@GET
+	@Path("/jobs/{job_id}/results")
+	@Produces({ NDJSON_MEDIA_TYPE, MediaType.APPLICATION_JSON })
+	@ApiOperation(value = "Gets the results of an asynchronous evaluation job"
+			, notes = JOB_RESULTS_API_NOTES, response = String.class
+			, tags = {"Evaluation Jobs"}
+			, extensions = {
+			@Extension(properties = {
+					@ExtensionProperty(
+							name = DarkFeatureSwaggerFilter.DARK_FEATURE_NAME
+							, value = CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS)
+			})
+	}
+	)
+	@ApiImplicitParams({
+			// This is necessary for the dark launch feature
+			@ApiImplicitParam(access = DarkFeatureSwaggerFilter.DARK_FEATURE_CONTROLLED, paramType = "header", dataType = "string")
+	})
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "Successful Operation: one JSON result per line"),
+			@ApiResponse(code = 202, message = "The job has not finished yet", response = EvaluationJobStatus.class),
+			@ApiResponse(code = 404, message = "Unknown job", response = ServiceErrorList.class),
+			@ApiResponse(code = 500, message = "The job failed or Server Error", response = ServiceErrorList.class)
+	})
+	public Response getJobResults(
+			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version,
+			@ApiParam(value = JOB_ID_DESC, required = true) @PathParam(CohortEngineRestHandler.JOB_ID) String jobId,
+			@ApiParam(value = RESULTS_OFFSET_DESC, required = false) @DefaultValue("0") @QueryParam(CohortEngineRestHandler.RESULTS_OFFSET) int offset,
+			@ApiParam(value = RESULTS_COUNT_DESC, required = false) @QueryParam(CohortEngineRestHandler.RESULTS_COUNT) Integer count)
+	{
+		final String methodName = MethodNames.GET_JOB_RESULTS.getName();
+		Response response = null;
+
+		// Error out if feature is not enabled
+		ServiceBaseUtility.isDarkFeatureEnabled(CohortEngineRestConstants.DARK_LAUNCHED_EVALUATION_JOBS);
+
+		try {
+			// Perform api setup
+			Response errorResponse = ServiceBaseUtility.apiSetup(version, logger, methodName);
+			if (errorResponse != null) {
+				return errorResponse;
+			}
+
+			EvaluationJobStatus status = getJob(jobId);
+			if (!status.isFinished()) {
+				response = Response.status(Response.Status.ACCEPTED).header("Content-Type", "application/json").entity(status).build();
+			}
+			else if (status.getState() != JobState.COMPLETED) {
+				// Partial results of a failed job must not be mistaken for a complete result set
+				throw new IllegalStateException(String.format("Job '%s' failed: %s", jobId, status.getErrorMessage()));
+			}
+			else {
+				int end = count == null ? Integer.MAX_VALUE : (int) Math.min((long) offset + count, Integer.MAX_VALUE);
+				// The first page is read before the response is committed so that a job discarded since its
+				// status was read is reported as unknown instead of as an empty result set
+				List<String> firstPage = getJobResults(jobId, offset, Math.min(RESULTS_PAGE_SIZE, end - offset));
+				StreamingOutput entity = output -> {
+					Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+					List<String> results = firstPage;
+					int next = offset;
+					while (!results.isEmpty()) {
+						for (String result : results) {
+							writer.write(result);
+							writer.write('\n');
+						}
+						next += results.size();
+						if (next >= end) {
+							break;
+						}
+						results = EvaluationJobManager.getInstance().getResults(jobId, next, Math.min(RESULTS_PAGE_SIZE, end - next));
+						if (results == null) {
+							// Aborts the response so that the client does not mistake it for a complete result set
+							throw new IOException(String.format("Job '%s' was discarded while its results were read", jobId));
+						}
+					}
+					writer.flush();
+				};
+				response = Response.status(Response.Status.OK).header("Content-Type", NDJSON_MEDIA_TYPE).entity(entity).build();
+			}
+		} catch (Throwable e) {
+			//map any exceptions caught into the proper REST error response objects
+			response = new CohortServiceExceptionMapper().toResponse(e);
+		} finally {
+			// Perform api cleanup
+			Response errorResponse = ServiceBaseUtility.apiCleanup(logger, methodName);
+			if (errorResponse != null) {
+				response = errorResponse;
+			}
+		}
+
+		return response;
+	}
+
 	@POST
 	@Path("/fhir/measure/identifier/{measure_identifier_value}/parameters")
 	@Produces(MediaType.APPLICATION_JSON)
@@ -718,7 +1205,7 @@ public class CohortEngineRestHandler {
 			validateBean(fhirServerConfig);
 			
 			//get the fhir client object used to call to FHIR
-			FhirClientBuilder clientBuilder = FhirClientBuilderFactory.newInstance().newFhirClientBuilder();
+			FhirClientBuilder clientBuilder = getFhirClientBuilder();
 			IGenericClient measureClient = clientBuilder.createFhirClient(fhirServerConfig);
 			
 			//build the identifier object which is used by the fhir client
@@ -791,7 +1278,7 @@ public class CohortEngineRestHandler {
 			validateBean(fhirServerConfig);
 			
 			//get the fhir client object used to call to FHIR
-			FhirClientBuilder clientBuilder = FhirClientBuilderFactory.newInstance().newFhirClientBuilder();
+			FhirClientBuilder clientBuilder = getFhirClientBuilder();
 			IGenericClient measureClient = clientBuilder.createFhirClient(fhirServerConfig);
 
 			//resolve the measure, and return the parameter info for all the libraries linked to by the measure
@@ -871,7 +1358,7 @@ public class CohortEngineRestHandler {
 			validateBean(fhirServerConfig);
 
 			//get the fhir client object used to call to FHIR
-			FhirClientBuilder clientBuilder = FhirClientBuilderFactory.newInstance().newFhirClientBuilder();
+			FhirClientBuilder clientBuilder = getFhirClientBuilder();
 			IGenericClient terminologyClient = clientBuilder.createFhirClient(fhirServerConfig);
 			
 			IAttachment valueSetAttachment = multipartBody.getAttachment(VALUE_SET_PART);
@@ -913,12 +1400,222 @@ public class CohortEngineRestHandler {
 		return response;
 	}
 
-	private List<String> evaluateCohort(
+	private static CqlLibraryProvider createCohortLibraryProvider(IAttachment cqlAttachment) throws IOException {
+		CqlLibraryProvider libraryProvider;
+		try(InputStream is = cqlAttachment.getDataHandler().getInputStream()) {
+			ZipInputStream zis = new ZipInputStream(is);
+			MapCqlLibraryProviderFactory libraryProviderFactory = new MapCqlLibraryProviderFactory();
+			String[] attachmentHeaders = cqlAttachment.getHeader("Content-Disposition").split(";");
+			String filename = null;
+			for (String header : attachmentHeaders) {
+				if (header.contains("filename")) {
+					filename = FilenameUtils.removeExtension(header.split("=")[1].replaceAll("\"", ""));
+				}
+			}
+			String[] searchPaths = new String[]{"cql", filename + "/cql"};
+			libraryProvider = libraryProviderFactory.fromZipStream(zis, searchPaths);
+		}
+
+		CqlLibraryProvider fhirClasspathProvider = new ClasspathCqlLibraryProvider();
+		libraryProvider = new PriorityCqlLibraryProvider(libraryProvider, fhirClasspathProvider);
+
+		CqlToElmTranslator translator = new CqlToElmTranslator();
+		return new TranslatingCqlLibraryProvider(libraryProvider, translator);
+	}
+
+	/**
+	 * Evaluate the patients of a cohort request and collect the passing
+	 * patients. The first patient that cannot be evaluated fails the request.
+	 *
+	 * @return the ids of the passing patients in request order
+	 */
+	private static List<String> evaluateCohort(
+			IGenericClient dataClient,
+			CqlTerminologyProvider termProvider,
+			CqlLibraryProvider libraryProvider,
+			CohortEvaluation evaluationRequest,
+			Runnable patientCompleted
+	) throws Exception {
+		String[] patientIds = evaluationRequest.getPatientIds().split(",");
+		boolean[] members = new boolean[patientIds.length];
+		evaluateCohort(dataClient, termProvider, libraryProvider, evaluationRequest, new CohortPatientListener() {
+			@Override
+			public void patientEvaluated(int index, String patientId, boolean member) {
+				members[index] = member;
+				patientCompleted.run();
+			}
+
+			@Override
+			public boolean patientFailed(int index, String patientId, Exception cause) {
+				return false;
+			}
+		});
+
+		List<String> retVal = new ArrayList<>();
+		for (int i = 0; i < patientIds.length; i++) {
+			if (members[i]) {
+				retVal.add(patientIds[i]);
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Evaluate the patients of a cohort request on the cohort evaluation pool.
+	 * Each worker builds one evaluator, with its own data provider, retrieve
+	 * cache and CQL context, and reuses it for every patient it takes from the
+	 * request. All patients are evaluated with the same evaluation date time
+	 * so that the context built for the first patient can be reused.
+	 * <p>
+	 * The listener is called from the worker threads as each patient finishes.
+	 */
+	private static void evaluateCohort(
 			IGenericClient dataClient,
 			CqlTerminologyProvider termProvider,
 			CqlLibraryProvider libraryProvider,
-			RetrieveCacheContext retrieveCacheContext,
-			CohortEvaluation evaluationRequest
+			CohortEvaluation evaluationRequest,
+			CohortPatientListener listener
+	) throws Exception {
+		String[] patientIds = evaluationRequest.getPatientIds().split(",");
+		ZonedDateTime evaluationDateTime = ZonedDateTime.now();
+		AtomicInteger nextPatient = new AtomicInteger();
+
+		Callable<Void> worker = () -> {
+			try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
+				CqlEvaluator evaluator = createCohortEvaluator(dataClient, termProvider, libraryProvider, retrieveCacheContext);
+				int index;
+				while ((index = nextPatient.getAndIncrement()) < patientIds.length) {
+					boolean member;
+					try {
+						member = isCohortMember(evaluator, evaluationRequest, patientIds[index], evaluationDateTime);
+					} catch (Exception e) {
+						if (listener.patientFailed(index, patientIds[index], e)) {
+							continue;
+						}
+						throw e;
+					}
+					listener.patientEvaluated(index, patientIds[index], member);
+				}
+			} catch (Exception | Error e) {
+				// Stop the other workers from taking more patients
+				nextPatient.set(patientIds.length);
+				throw e;
+			}
+			return null;
+		};
+
+		int workers = Math.min(COHORT_EVALUATION_THREADS, patientIds.length);
+		if (workers <= 1) {
+			worker.call();
+		}
+		else {
+			List<Future<Void>> futures = getCohortEvaluationExecutor().invokeAll(Collections.nCopies(workers, worker));
+			try {
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	private static void loadCohortLibrary(CqlLibraryProvider libraryProvider, CohortEvaluation evaluationRequest) {
+		CqlLibraryDescriptor topLevelLibrary = CqlLibraryHelpers.filenameToLibraryDescriptor(evaluationRequest.getEntrypoint());
+		CqlLibraryDescriptor elmDescriptor = new CqlLibraryDescriptor()
+				.setLibraryId(topLevelLibrary.getLibraryId())
+				.setVersion(topLevelLibrary.getVersion())
+				.setFormat(Format.ELM);
+		if (libraryProvider.getLibrary(elmDescriptor) == null) {
+			throw new IllegalArgumentException(String.format("Library '%s' was not found", evaluationRequest.getEntrypoint()));
+		}
+	}
+
+	/**
+	 * @return true when the most preferred acceptable media type that the
+	 *         cohort API produces is NDJSON. Wildcards select the JSON response.
+	 */
+	static boolean isNdjsonPreferred(HttpHeaders httpHeaders) {
+		if (httpHeaders == null) {
+			return false;
+		}
+		MediaType ndjson = MediaType.valueOf(NDJSON_MEDIA_TYPE);
+		// Acceptable media types are sorted by quality, most preferred first
+		for (MediaType acceptable : httpHeaders.getAcceptableMediaTypes()) {
+			if ("0".equals(acceptable.getParameters().get("q"))) {
+				continue;
+			}
+			if (acceptable.isWildcardType() || acceptable.isWildcardSubtype() || acceptable.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+				return false;
+			}
+			if (acceptable.isCompatible(ndjson)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static TerminologyExpansionCache createTerminologyCache() {
+		String directory = System.getProperty(CohortEngineRestConstants.TERMINOLOGY_CACHE_DIRECTORY_PROPERTY);
+		return new TerminologyExpansionCache(
+				Integer.getInteger(CohortEngineRestConstants.TERMINOLOGY_CACHE_MAX_ENTRIES_PROPERTY, TerminologyExpansionCache.DEFAULT_MAX_ENTRIES),
+				Duration.ofMinutes(Long.getLong(CohortEngineRestConstants.TERMINOLOGY_CACHE_TTL_MINUTES_PROPERTY, TerminologyExpansionCache.DEFAULT_TIME_TO_LIVE.toMinutes())),
+				directory != null ? Paths.get(directory) : null);
+	}
+
+	private static synchronized ExecutorService getCohortEvaluationExecutor() {
+		if (cohortEvaluationExecutor == null) {
+			cohortEvaluationExecutor = DaemonExecutors.newFixedThreadPool("cohort-evaluation", COHORT_EVALUATION_THREADS);
+		}
+		return cohortEvaluationExecutor;
+	}
+
+	/**
+	 * Return the builder used to create the clients that call FHIR servers.
+	 * The clients are cached and share pooled connections unless a custom
+	 * FhirClientBuilderFactory is configured with the
+	 * {@value FhirClientBuilderFactory#IMPL_CLASS_NAME} system property, in which
+	 * case a new builder is created from that factory for every call.
+	 */
+	static FhirClientBuilder getFhirClientBuilder() {
+		if (StringUtils.isNotEmpty(System.getProperty(FhirClientBuilderFactory.IMPL_CLASS_NAME))) {
+			return FhirClientBuilderFactory.newInstance().newFhirClientBuilder();
+		}
+		return getCachingFhirClientBuilder();
+	}
+
+	static synchronized CachingFhirClientBuilder getCachingFhirClientBuilder() {
+		if (fhirClientBuilder == null) {
+			// The builder takes over the HTTP configuration of its context, so it gets one of its own
+			fhirClientBuilder = new CachingFhirClientBuilder(
+					FhirContext.forR4(),
+					Integer.getInteger(CohortEngineRestConstants.FHIR_CLIENT_MAX_TOTAL_CONNECTIONS_PROPERTY, CachingFhirClientBuilder.DEFAULT_MAX_TOTAL_CONNECTIONS),
+					Integer.getInteger(CohortEngineRestConstants.FHIR_CLIENT_MAX_CONNECTIONS_PER_ROUTE_PROPERTY, CachingFhirClientBuilder.DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+					Long.getLong(CohortEngineRestConstants.FHIR_CLIENT_KEEP_ALIVE_MILLIS_PROPERTY, CachingFhirClientBuilder.DEFAULT_KEEP_ALIVE_MILLIS),
+					Integer.getInteger(CohortEngineRestConstants.FHIR_CLIENT_MAX_CLIENTS_PROPERTY, CachingFhirClientBuilder.DEFAULT_MAX_CLIENTS));
+		}
+		return fhirClientBuilder;
+	}
+
+	static synchronized void closeFhirClientBuilder() {
+		if (fhirClientBuilder != null) {
+			fhirClientBuilder.close();
+			fhirClientBuilder = null;
+		}
+	}
+
+	private static CqlEvaluator createCohortEvaluator(
+			IGenericClient dataClient,
+			CqlTerminologyProvider termProvider,
+			CqlLibraryProvider libraryProvider,
+			RetrieveCacheContext retrieveCacheContext
 	) {
 		CqlDataProvider dataProvider = R4DataProviderFactory.createDataProvider(
 				dataClient,
@@ -926,76 +1623,85 @@ public class CohortEngineRestHandler {
 				retrieveCacheContext
 		);
 
-		CqlEvaluator evaluator = new CqlEvaluator()
+		return new CqlEvaluator()
 				.setLibraryProvider(libraryProvider)
 				.setDataProvider(dataProvider)
 				.setTerminologyProvider(termProvider)
-				.setCacheContexts(false);
+				.setCacheContexts(true)
+				.setLocalContextCache(true)
+				.setFuseRetrieves(Boolean.getBoolean(CohortEngineRestConstants.FUSE_RETRIEVES_PROPERTY))
+				.setPrefetchRetrieves(Boolean.getBoolean(CohortEngineRestConstants.PREFETCH_RETRIEVES_PROPERTY))
+				.setProjectElements(Boolean.getBoolean(CohortEngineRestConstants.PROJECT_ELEMENTS_PROPERTY))
+				.setPushDateRanges(Boolean.getBoolean(CohortEngineRestConstants.PUSH_DATE_RANGES_PROPERTY));
+	}
 
+	private static boolean isCohortMember(CqlEvaluator evaluator, CohortEvaluation evaluationRequest, String patientId, ZonedDateTime evaluationDateTime) {
 		Set<String> expressions = new HashSet<>();
 		expressions.add(evaluationRequest.getDefineToRun());
 
-		String[] patients = evaluationRequest.getPatientIds().split(",");
 		CqlLibraryDescriptor topLevelLibrary = CqlLibraryHelpers.filenameToLibraryDescriptor(evaluationRequest.getEntrypoint());
 
-		List<String> retVal = new ArrayList<>();
-		for (String patientId : patients) {
-			Pair<String, String> contextPair = new ImmutablePair<>(ContextNames.PATIENT, patientId);
-			CqlEvaluationResult result = evaluator.evaluate(
-					topLevelLibrary.getVersionedIdentifier(),
-					evaluationRequest.getParameters(),
-					contextPair,
-					expressions,
-					evaluationRequest.getLoggingLevel(),
-					ZonedDateTime.now()
-			);
-
-			for (Map.Entry<String, Object> entry : result.getExpressionResults().entrySet()) {
-				String expression = entry.getKey();
-				Object rawValue = entry.getValue();
-				if (rawValue == null) {
-					throw new RuntimeException(String.format("Null result is unsupported! Expression: \"%s\", ContextId: %s", expression, patientId));
-				}
-				if (!(rawValue instanceof Boolean)) {
-					throw new RuntimeException(String.format("Only boolean CQLs are currently supported! Expression: \"%s\", Result: %s, ContextId: %s", expression, result, patientId));
-				}
-				Boolean booleanResult = (Boolean) rawValue;
-				if (booleanResult) {
-					retVal.add(patientId);
-				}
-				logger.info(String.format("Expression: \"%s\", Result: %s, ContextId: %s", expression, booleanResult, patientId));
+		boolean member = false;
+		Pair<String, String> contextPair = new ImmutablePair<>(ContextNames.PATIENT, patientId);
+		CqlEvaluationResult result = evaluator.evaluate(
+				topLevelLibrary.getVersionedIdentifier(),
+				evaluationRequest.getParameters(),
+				contextPair,
+				expressions,
+				evaluationRequest.getLoggingLevel(),
+				evaluationDateTime
+		);
+
+		for (Map.Entry<String, Object> entry : result.getExpressionResults().entrySet()) {
+			String expression = entry.getKey();
+			Object rawValue = entry.getValue();
+			if (rawValue == null) {
+				throw new RuntimeException(String.format("Null result is unsupported! Expression: \"%s\", ContextId: %s", expression, patientId));
 			}
+			if (!(rawValue instanceof Boolean)) {
+				throw new RuntimeException(String.format("Only boolean CQLs are currently supported! Expression: \"%s\", Result: %s, ContextId: %s", expression, result, patientId));
+			}
+			Boolean booleanResult = (Boolean) rawValue;
+			if (booleanResult) {
+				member = true;
+			}
+			logger.info(String.format("Expression: \"%s\", Result: %s, ContextId: %s", expression, booleanResult, patientId));
 		}
 
-		return retVal;
+		return member;
+	}
+
+	/**
+	 * Create a terminology provider that shares ValueSet expansions with
+	 * other requests to the same terminology server. Expansions are keyed by
+	 * endpoint, user and request headers so that they are not shared between
+	 * tenants.
+	 */
+	private static CqlTerminologyProvider createTerminologyProvider(IGenericClient terminologyClient, FhirServerConfig terminologyServerConfig) {
+		Map<String, String> headers = new TreeMap<>(terminologyServerConfig.getAdditionalHeaders());
+		if (terminologyServerConfig.getHeaders() != null) {
+			headers.putAll(terminologyServerConfig.getHeaders());
+		}
+		String namespace = String.format("%s|%s|%s", terminologyServerConfig.getEndpoint(), terminologyServerConfig.getUser(), headers);
+		return new CachingTerminologyProvider(new R4RestFhirTerminologyProvider(terminologyClient), TERMINOLOGY_CACHE, namespace);
 	}
 
 	private MeasureEvaluator createMeasureEvaluator(
-			InputStream inputStream,
+			MeasureArtifacts measureArtifacts,
 			FhirServerConfig dataServerConfig,
 			FhirServerConfig terminologyServerConfig,
 			Boolean expandValueSets,
 			Integer searchPageSize,
-			RetrieveCacheContext retrieveCacheContext,
-			FhirContext fhirContext
+			RetrieveCacheContext retrieveCacheContext
 	) throws IOException {
-		FhirClientBuilder clientBuilder = FhirClientBuilderFactory.newInstance().newFhirClientBuilder(fhirContext);
+		FhirClientBuilder clientBuilder = getFhirClientBuilder();
 		IGenericClient dataClient = clientBuilder.createFhirClient(dataServerConfig);
 		IGenericClient terminologyClient = dataClient;
 		if(terminologyServerConfig != null) {
 			terminologyClient = clientBuilder.createFhirClient(terminologyServerConfig);
 		}
 
-		IParser parser = dataClient.getFhirContext().newJsonParser();
-		String [] searchPaths = new String[] { "fhirResources", "fhirResources/libraries" };
-
-		R4QualityMeasureResolverFactory resolverFactory = new R4QualityMeasureResolverFactory(parser);
-		R4QualityMeasureResolvers resolvers = resolverFactory.fromZipStream(new ZipInputStream(inputStream), searchPaths);
-		FhirResourceResolver<Library> libraryResolver = resolvers.getLibraryResolver();
-		FhirResourceResolver<Measure> measureResolver = resolvers.getMeasureResolver();
-		R4LibraryDependencyGatherer libraryDependencyGatherer = new R4LibraryDependencyGatherer(libraryResolver);
-
-		CqlTerminologyProvider terminologyProvider = new R4RestFhirTerminologyProvider(terminologyClient);
+		CqlTerminologyProvider terminologyProvider = createTerminologyProvider(terminologyClient, terminologyServerConfig != null ? terminologyServerConfig : dataServerConfig);
 		if( expandValueSets == null ) {
 			expandValueSets = R4DataProviderFactory.DEFAULT_IS_EXPAND_VALUE_SETS;
 		}
@@ -1012,9 +1718,56 @@ public class CohortEngineRestHandler {
 				expandValueSets,
 				searchPageSize
 		);
-		return new MeasureEvaluator(measureResolver, libraryResolver, libraryDependencyGatherer, terminologyProvider, dataProviders);
+		MeasureEvaluator evaluator = measureArtifacts.createEvaluator(terminologyProvider, dataProviders);
+		evaluator.setFuseRetrieves(Boolean.getBoolean(CohortEngineRestConstants.FUSE_RETRIEVES_PROPERTY));
+		evaluator.setPrefetchRetrieves(Boolean.getBoolean(CohortEngineRestConstants.PREFETCH_RETRIEVES_PROPERTY));
+		evaluator.setProjectElements(Boolean.getBoolean(CohortEngineRestConstants.PROJECT_ELEMENTS_PROPERTY));
+		evaluator.setPushDateRanges(Boolean.getBoolean(CohortEngineRestConstants.PUSH_DATE_RANGES_PROPERTY));
+		evaluator.setMaxCachedSeeds(Integer.getInteger(CohortEngineRestConstants.MEASURE_SEEDS_MAX_ENTRIES_PROPERTY, MeasureEvaluationSeedCache.DEFAULT_MAX_ENTRIES));
+		return evaluator;
 	}
 	
+	/**
+	 * Find the measure artifact package of a request in the registry. An
+	 * uploaded package that is not registered yet is parsed and registered, so
+	 * packages that are sent with every request are only parsed once.
+	 */
+	private static MeasureArtifacts getMeasureArtifacts(IAttachment measureAttachment, IAttachment handleAttachment) throws IOException {
+		String handle = null;
+		if (handleAttachment != null) {
+			try (InputStream is = handleAttachment.getDataHandler().getInputStream()) {
+				handle = IOUtils.toString(is, StandardCharsets.UTF_8).trim();
+			}
+			MeasureArtifacts artifacts = MEASURE_ARTIFACTS.get(handle);
+			if (artifacts != null) {
+				return artifacts;
+			}
+			if (measureAttachment == null) {
+				throw new IllegalArgumentException(String.format("Unknown measure artifact handle '%s'. Register the package again or include the '%s' MIME attachment", handle, MEASURE_PART));
+			}
+		}
+
+		try (InputStream is = measureAttachment.getDataHandler().getInputStream()) {
+			return MEASURE_ARTIFACTS.register(IOUtils.toByteArray(is), handle);
+		}
+	}
+
+	private static EvaluationJobStatus getJob(String jobId) {
+		EvaluationJobStatus status = EvaluationJobManager.getInstance().getStatus(jobId);
+		if (status == null) {
+			throw new NotFoundException(String.format("Unknown job '%s'", jobId));
+		}
+		return status;
+	}
+
+	private static List<String> getJobResults(String jobId, int offset, int count) {
+		List<String> results = EvaluationJobManager.getInstance().getResults(jobId, offset, count);
+		if (results == null) {
+			throw new NotFoundException(String.format("Unknown job '%s'", jobId));
+		}
+		return results;
+	}
+
 	protected static <T> void validateBean(T beanInput) {
 		// See https://openliberty.io/guides/bean-validation.html
 		// TODO: The validator below is recommended to be injected using CDI in the
@@ -1036,5 +1789,49 @@ public class CohortEngineRestHandler {
 			factory.close();
 		}
 	}
-}
 
+	/**
+	 * Receives the outcome of each patient of a cohort request.
+	 */
+	interface CohortPatientListener {
+		void patientEvaluated(int index, String patientId, boolean member) throws IOException;
+
+		/**
+		 * @return true to record the failure and continue with the remaining
+		 *         patients, false to fail the request
+		 */
+		boolean patientFailed(int index, String patientId, Exception cause) throws IOException;
+	}
+
+	/**
+	 * Writes one {@link CohortPatientResult} line per patient and flushes it
+	 * so that clients receive each result as soon as it is available.
+	 */
+	static class StreamingCohortPatientListener implements CohortPatientListener {
+		private final Writer writer;
+		private final ObjectMapper om;
+
+		StreamingCohortPatientListener(Writer writer, ObjectMapper om) {
+			this.writer = writer;
+			this.om = om;
+		}
+
+		@Override
+		public void patientEvaluated(int index, String patientId, boolean member) throws IOException {
+			write(new CohortPatientResult(patientId, member, null));
+		}
+
+		@Override
+		public boolean patientFailed(int index, String patientId, Exception cause) throws IOException {
+			logger.warn("Cohort evaluation failed for patient " + patientId, cause);
+			write(new CohortPatientResult(patientId, null, cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName()));
+			return true;
+		}
+
+		private synchronized void write(CohortPatientResult result) throws IOException {
+			writer.write(om.writeValueAsString(result));
+			writer.write('\n');
+			writer.flush();
+		}
+	}
+}
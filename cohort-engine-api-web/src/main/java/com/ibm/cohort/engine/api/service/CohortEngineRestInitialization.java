@@ -11,6 +11,7 @@ import javax.servlet.annotation.WebListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ibm.cohort.engine.api.service.job.EvaluationJobManager;
 import com.ibm.watson.common.service.base.ServiceBaseInitialization;
 
 /**
@@ -31,7 +32,8 @@ public class CohortEngineRestInitialization extends ServiceBaseInitialization {
 
 	@Override
 	public void contextDestroyed(ServletContextEvent event) {
-		//no-op
+		EvaluationJobManager.shutdownInstance();
+		CohortEngineRestHandler.closeFhirClientBuilder();
 	}
 
 	/**
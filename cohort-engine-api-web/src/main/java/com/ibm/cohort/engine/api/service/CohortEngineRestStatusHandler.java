@@ -6,6 +6,7 @@
 package com.ibm.cohort.engine.api.service;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -26,7 +27,7 @@ import com.ibm.cohort.engine.api.service.model.FhirServerConnectionStatusInfo.Fh
 import com.ibm.cohort.engine.api.service.model.FhirServerConnectionStatusInfo.FhirServerConfigType;
 import com.ibm.cohort.engine.api.service.model.ServiceErrorList;
 import com.ibm.cohort.fhir.client.config.FhirClientBuilder;
-import com.ibm.cohort.fhir.client.config.FhirClientBuilderFactory;
+import com.ibm.cohort.fhir.client.config.FhirClientPoolStats;
 import com.ibm.cohort.fhir.client.config.FhirServerConfig;
 import com.ibm.watson.common.service.base.ServiceBaseConstants;
 import com.ibm.watson.common.service.base.ServiceBaseUtility;
@@ -53,6 +54,7 @@ import io.swagger.annotations.Tag;
 public class CohortEngineRestStatusHandler extends ServiceStatusHandler {
 	private static final Logger logger = LoggerFactory.getLogger(CohortEngineRestStatusHandler.class.getName());
 	private static final String HEALTH_CHECK_ENHANCED_API_NOTES = "Checks the status of the cohorting service and any downstream services used by the cohorting service";
+	private static final String FHIR_CLIENT_POOL_API_NOTES = "Returns the usage of the pooled connections and the number of cached clients used to call FHIR servers";
 
 	public static final String EXAMPLE_HEALTH_CHECK_DATA_SERVER_CONFIG_JSON = "A configuration file containing information needed to connect to the FHIR server. "
 			+ "See https://github.com/Alvearie/quality-measure-and-cohort-service/blob/main/docs/user-guide/fhir-server-config.md for more details. \n" +
@@ -83,6 +85,7 @@ public class CohortEngineRestStatusHandler extends ServiceStatusHandler {
 	
 	public static final String FHIR_SERVER_CONNECTION_CONFIG = "fhir_server_connection_config";
 	public static final String GET_HEALTH_CHECK_ENCHANCED = "getHealthCheckEnhanced";
+	public static final String GET_FHIR_CLIENT_POOL_STATS = "getFhirClientPoolStats";
 	
 	
 	/**
@@ -161,7 +164,7 @@ public class CohortEngineRestStatusHandler extends ServiceStatusHandler {
 			}
 
 			//get the fhir client object used to call to FHIR
-			FhirClientBuilder clientBuilder = FhirClientBuilderFactory.newInstance().newFhirClientBuilder();
+			FhirClientBuilder clientBuilder = CohortEngineRestHandler.getFhirClientBuilder();
 			IGenericClient dataClient = clientBuilder.createFhirClient(fhirServerConfigs.getDataServerConfig());
 			
 			//try a simple patient search to validate the connection info
@@ -204,4 +207,42 @@ public class CohortEngineRestStatusHandler extends ServiceStatusHandler {
 		return response;
 	}
 
+	@GET
+	@Path("fhir_client_pool")
+	@Produces(MediaType.APPLICATION_JSON)
+	@ApiOperation(value = "Get the usage of the FHIR client connection pool", notes = CohortEngineRestStatusHandler.FHIR_CLIENT_POOL_API_NOTES, response = FhirClientPoolStats.class, nickname = "fhir_client_pool")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "Successful Operation", response = FhirClientPoolStats.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ServiceErrorList.class),
+			@ApiResponse(code = 500, message = "Server Error", response = ServiceErrorList.class) })
+	public Response getFhirClientPoolStats(
+			@ApiParam(value = ServiceBaseConstants.MINOR_VERSION_DESCRIPTION, required = true, defaultValue = ServiceBuildConstants.DATE) @QueryParam(CohortEngineRestHandler.VERSION) String version)
+			{
+
+		final String methodName = CohortEngineRestStatusHandler.GET_FHIR_CLIENT_POOL_STATS;
+
+		Response response = null;
+
+		try {
+			// Perform api setup
+			Response errorResponse = ServiceBaseUtility.apiSetup(version, logger, methodName);
+			if(errorResponse != null) {
+				return errorResponse;
+			}
+
+			response = Response.ok(CohortEngineRestHandler.getCachingFhirClientBuilder().getPoolStats()).build();
+		} catch (Throwable e) {
+			//map any exceptions caught into the proper REST error response objects
+			return new CohortServiceExceptionMapper().toResponse(e);
+		}finally {
+			// Perform api cleanup
+			Response errorResponse = ServiceBaseUtility.apiCleanup(logger, methodName);
+			if(errorResponse != null) {
+				response = errorResponse;
+			}
+		}
+
+		return response;
+	}
+
 }
@@ -7,7 +7,9 @@ package com.ibm.cohort.engine.api.service;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
@@ -102,6 +104,19 @@ public class CohortServiceExceptionMapper implements ExceptionMapper<Throwable>{
 				description = rnfe.getResponseBody();
 				errorSource = ErrorSource.FHIR_SERVER;
 			}
+			//will get thrown when an unknown evaluation job is requested
+			else if (ex instanceof NotFoundException) {
+				serviceErrorCode = Status.NOT_FOUND.getStatusCode();
+				serviceErrorListCode = serviceErrorCode;
+				errorSource = ErrorSource.COHORT_SERVICE;
+			}
+			//will get thrown when the evaluation job queue is full
+			else if (ex instanceof RejectedExecutionException) {
+				serviceErrorCode = Status.SERVICE_UNAVAILABLE.getStatusCode();
+				serviceErrorListCode = serviceErrorCode;
+				reason = "Too many evaluation jobs are waiting to run";
+				errorSource = ErrorSource.COHORT_SERVICE;
+			}
 			//will get thrown is invalid measure ids are input or
 			//library ids don't resolve properly
 			else if (ex instanceof IllegalArgumentException || ex instanceof UnsupportedOperationException){
@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.job;
+
+import java.time.Instant;
+
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus.JobState;
+
+/**
+ * Handed to a running job so that it can publish results and report
+ * progress. Progress is written to the job store when the job changes state
+ * and every {@link #PROGRESS_INTERVAL} patients in between.
+ */
+public class EvaluationJobContext {
+
+	public static final int PROGRESS_INTERVAL = 100;
+
+	private final EvaluationJobStore store;
+	private final EvaluationJobStatus status;
+
+	EvaluationJobContext(EvaluationJobStore store, EvaluationJobStatus status) {
+		this.store = store;
+		this.status = status;
+	}
+
+	public String getJobId() {
+		return status.getJobId();
+	}
+
+	/**
+	 * @param result one line of JSON
+	 */
+	public void addResult(String result) {
+		store.addResult(status.getJobId(), result);
+	}
+
+	public synchronized void patientCompleted() {
+		patientsCompleted(1);
+	}
+
+	public synchronized void patientsCompleted(int count) {
+		int before = status.getCompletedPatients();
+		status.setCompletedPatients(before + count);
+		if (before / PROGRESS_INTERVAL != status.getCompletedPatients() / PROGRESS_INTERVAL) {
+			store.saveJob(status);
+		}
+	}
+
+	synchronized EvaluationJobStatus submitted() {
+		status.setState(JobState.SUBMITTED);
+		status.setSubmittedTime(Instant.now().toString());
+		store.saveJob(status);
+		return new EvaluationJobStatus(status);
+	}
+
+	synchronized void started() {
+		status.setState(JobState.RUNNING);
+		status.setStartedTime(Instant.now().toString());
+		store.saveJob(status);
+	}
+
+	synchronized void completed() {
+		status.setState(JobState.COMPLETED);
+		status.setCompletedPatients(Math.max(status.getCompletedPatients(), status.getTotalPatients()));
+		status.setFinishedTime(Instant.now().toString());
+		store.saveJob(status);
+	}
+
+	synchronized void failed(Throwable cause) {
+		status.setState(JobState.FAILED);
+		status.setErrorMessage(cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName());
+		status.setFinishedTime(Instant.now().toString());
+		store.saveJob(status);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.job;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
+
+/**
+ * Runs evaluation jobs in the background on a bounded pool of worker threads.
+ * Submission fails with a {@link RejectedExecutionException} when all workers
+ * are busy and the queue of waiting jobs is full.
+ *
+ * <p>The shared instance used by the REST handler is configured with system
+ * properties:
+ * <ul>
+ * <li>{@value #THREADS_PROPERTY} - number of jobs that run at the same time</li>
+ * <li>{@value #QUEUE_SIZE_PROPERTY} - number of jobs that can wait for a worker</li>
+ * <li>{@value #MAX_JOBS_PROPERTY} - number of jobs kept by the in-memory job store</li>
+ * <li>{@value #RETENTION_MINUTES_PROPERTY} - how long the in-memory job store keeps finished jobs</li>
+ * <li>{@value #JOB_STORE_CLASS_PROPERTY} - class name of an {@link EvaluationJobStore}
+ * with a no-argument constructor to use instead of the in-memory job store</li>
+ * </ul>
+ */
+public class EvaluationJobManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(EvaluationJobManager.class);
+
+	public static final String THREADS_PROPERTY = "cohort.jobs.threads";
+	public static final String QUEUE_SIZE_PROPERTY = "cohort.jobs.queueSize";
+	public static final String MAX_JOBS_PROPERTY = "cohort.jobs.maxJobs";
+	public static final String RETENTION_MINUTES_PROPERTY = "cohort.jobs.retentionMinutes";
+	public static final String JOB_STORE_CLASS_PROPERTY = "cohort.jobs.storeClass";
+
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE_SIZE = 20;
+
+	@FunctionalInterface
+	public interface EvaluationTask {
+		void run(EvaluationJobContext context) throws Exception;
+	}
+
+	private static EvaluationJobManager instance;
+
+	private final EvaluationJobStore store;
+	private final ThreadPoolExecutor executor;
+
+	public EvaluationJobManager(EvaluationJobStore store, int threads, int queueSize) {
+		this.store = store;
+		this.executor = DaemonExecutors.newFixedThreadPool("evaluation-job", threads, new ArrayBlockingQueue<>(queueSize));
+	}
+
+	public static synchronized EvaluationJobManager getInstance() {
+		if (instance == null) {
+			instance = new EvaluationJobManager(
+					createJobStore(),
+					Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+					Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+		}
+		return instance;
+	}
+
+	public static synchronized void shutdownInstance() {
+		if (instance != null) {
+			instance.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Queue a job for evaluation.
+	 *
+	 * @param jobType       kind of evaluation, reported in the job status
+	 * @param totalPatients number of patients the job evaluates
+	 * @param task          the evaluation
+	 * @return status of the submitted job
+	 * @throws RejectedExecutionException when the job queue is full
+	 */
+	public EvaluationJobStatus submit(String jobType, int totalPatients, EvaluationTask task) {
+		EvaluationJobStatus status = new EvaluationJobStatus();
+		status.setJobId(UUID.randomUUID().toString());
+		status.setJobType(jobType);
+		status.setTotalPatients(totalPatients);
+
+		EvaluationJobContext context = new EvaluationJobContext(store, status);
+		EvaluationJobStatus submitted = context.submitted();
+		try {
+			executor.execute(() -> run(context, task));
+		}
+		catch (RejectedExecutionException e) {
+			store.removeJob(status.getJobId());
+			throw e;
+		}
+		return submitted;
+	}
+
+	/**
+	 * @param jobId job identifier
+	 * @return job status or null if the job is unknown
+	 */
+	public EvaluationJobStatus getStatus(String jobId) {
+		return store.getJob(jobId);
+	}
+
+	/**
+	 * @param jobId  job identifier
+	 * @param offset index of the first result to return
+	 * @param count  maximum number of results to return
+	 * @return results in the requested range or null if the job is unknown
+	 */
+	public List<String> getResults(String jobId, int offset, int count) {
+		return store.getResults(jobId, offset, count);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static void run(EvaluationJobContext context, EvaluationTask task) {
+		context.started();
+		try {
+			task.run(context);
+			context.completed();
+		}
+		catch (Throwable th) {
+			logger.error("Evaluation job {} failed", context.getJobId(), th);
+			context.failed(th);
+		}
+	}
+
+	private static EvaluationJobStore createJobStore() {
+		String storeClass = System.getProperty(JOB_STORE_CLASS_PROPERTY);
+		if (storeClass == null) {
+			return new InMemoryEvaluationJobStore(
+					Integer.getInteger(MAX_JOBS_PROPERTY, InMemoryEvaluationJobStore.DEFAULT_MAX_JOBS),
+					Duration.ofMinutes(Long.getLong(RETENTION_MINUTES_PROPERTY, InMemoryEvaluationJobStore.DEFAULT_RETENTION.toMinutes())));
+		}
+
+		try {
+			return Class.forName(storeClass).asSubclass(EvaluationJobStore.class).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalStateException("Failed to create evaluation job store " + storeClass, e);
+		}
+	}
+}
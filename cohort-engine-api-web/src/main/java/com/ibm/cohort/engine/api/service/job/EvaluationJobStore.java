@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.job;
+
+import java.util.List;
+
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
+
+/**
+ * Holds the state and results of asynchronous evaluation jobs. Results are
+ * opaque lines of JSON that are returned to the client as NDJSON.
+ *
+ * <p>Implementations must be safe for use by multiple threads. The default
+ * implementation keeps everything in memory; an implementation backed by
+ * persistent storage can be configured with
+ * {@link EvaluationJobManager#JOB_STORE_CLASS_PROPERTY} so that results
+ * survive a restart of the service.
+ */
+public interface EvaluationJobStore {
+
+	/**
+	 * Create or replace the stored state of a job.
+	 *
+	 * @param status current job status
+	 */
+	void saveJob(EvaluationJobStatus status);
+
+	/**
+	 * @param jobId job identifier
+	 * @return the stored job status or null if the job is unknown
+	 */
+	EvaluationJobStatus getJob(String jobId);
+
+	/**
+	 * Append a result line to a job.
+	 *
+	 * @param jobId  job identifier
+	 * @param result one line of JSON
+	 */
+	void addResult(String jobId, String result);
+
+	/**
+	 * @param jobId  job identifier
+	 * @param offset index of the first result to return
+	 * @param count  maximum number of results to return
+	 * @return results in the order they were added, empty if there are none
+	 *         in the requested range or null if the job is unknown
+	 */
+	List<String> getResults(String jobId, int offset, int count);
+
+	/**
+	 * Remove a job and its results.
+	 *
+	 * @param jobId job identifier
+	 */
+	void removeJob(String jobId);
+}
@@ -0,0 +1,129 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.job;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
+
+/**
+ * Keeps jobs and their results in memory. Finished jobs are discarded once
+ * they are older than the retention period, and the oldest finished jobs are
+ * discarded first when more than the maximum number of jobs are stored. Jobs
+ * that are still running are never discarded. Expired jobs are discarded
+ * whenever the store is used, so they are not reported after the retention
+ * period even when no new jobs are saved.
+ */
+public class InMemoryEvaluationJobStore implements EvaluationJobStore {
+
+	public static final int DEFAULT_MAX_JOBS = 100;
+	public static final Duration DEFAULT_RETENTION = Duration.ofHours(1);
+
+	private static class StoredJob {
+		private EvaluationJobStatus status;
+		private Instant finished;
+		private final List<String> results = new ArrayList<>();
+	}
+
+	private final Map<String, StoredJob> jobs = new LinkedHashMap<>();
+	private final int maxJobs;
+	private final Duration retention;
+	private final Clock clock;
+
+	public InMemoryEvaluationJobStore() {
+		this(DEFAULT_MAX_JOBS, DEFAULT_RETENTION);
+	}
+
+	public InMemoryEvaluationJobStore(int maxJobs, Duration retention) {
+		this(maxJobs, retention, Clock.systemUTC());
+	}
+
+	protected InMemoryEvaluationJobStore(int maxJobs, Duration retention, Clock clock) {
+		if (maxJobs < 1) {
+			throw new IllegalArgumentException("maxJobs must be at least 1");
+		}
+		this.maxJobs = maxJobs;
+		this.retention = retention;
+		this.clock = clock;
+	}
+
+	@Override
+	public synchronized void saveJob(EvaluationJobStatus status) {
+		StoredJob job = jobs.get(status.getJobId());
+		if (job == null) {
+			job = new StoredJob();
+			jobs.put(status.getJobId(), job);
+		}
+		job.status = new EvaluationJobStatus(status);
+		job.status.setResultCount(job.results.size());
+		if (status.isFinished() && job.finished == null) {
+			job.finished = clock.instant();
+		}
+		evict();
+	}
+
+	@Override
+	public synchronized EvaluationJobStatus getJob(String jobId) {
+		evict();
+		StoredJob job = jobs.get(jobId);
+		if (job == null) {
+			return null;
+		}
+		EvaluationJobStatus status = new EvaluationJobStatus(job.status);
+		status.setResultCount(job.results.size());
+		return status;
+	}
+
+	@Override
+	public synchronized void addResult(String jobId, String result) {
+		StoredJob job = jobs.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Unknown job " + jobId);
+		}
+		job.results.add(result);
+	}
+
+	@Override
+	public synchronized List<String> getResults(String jobId, int offset, int count) {
+		evict();
+		StoredJob job = jobs.get(jobId);
+		if (job == null) {
+			return null;
+		}
+		int start = Math.max(offset, 0);
+		if (start >= job.results.size() || count <= 0) {
+			return Collections.emptyList();
+		}
+		int end = (int) Math.min((long) start + count, job.results.size());
+		return new ArrayList<>(job.results.subList(start, end));
+	}
+
+	@Override
+	public synchronized void removeJob(String jobId) {
+		jobs.remove(jobId);
+	}
+
+	private void evict() {
+		Instant expired = clock.instant().minus(retention);
+		int excess = jobs.size() - maxJobs;
+		Iterator<StoredJob> iterator = jobs.values().iterator();
+		while (iterator.hasNext()) {
+			StoredJob job = iterator.next();
+			if (job.finished != null && (excess > 0 || job.finished.isBefore(expired))) {
+				iterator.remove();
+				excess--;
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@
 package com.ibm.cohort.engine.api.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -16,6 +17,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -29,14 +31,18 @@ import java.util.zip.ZipOutputStream;
 
 import javax.activation.DataHandler;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import com.ibm.cohort.cql.evaluation.CqlDebug;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Patient;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -56,14 +62,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.cohort.cql.cdm.CDMConstants;
 import com.ibm.cohort.engine.api.service.CohortEngineRestHandler.MethodNames;
+import com.ibm.cohort.engine.api.service.job.EvaluationJobManager;
 import com.ibm.cohort.engine.api.service.model.CohortEvaluation;
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
 import com.ibm.cohort.engine.api.service.model.MeasureEvaluation;
 import com.ibm.cohort.engine.api.service.model.MeasureParameterInfo;
 import com.ibm.cohort.engine.api.service.model.PatientListMeasureEvaluation;
 import com.ibm.cohort.engine.api.service.model.ServiceErrorList;
 import com.ibm.cohort.measure.Identifier;
 import com.ibm.cohort.measure.MeasureContext;
+import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions;
+import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions.DefineReturnOptions;
 import com.ibm.cohort.cql.evaluation.parameters.DateParameter;
 import com.ibm.cohort.cql.evaluation.parameters.IntervalParameter;
 import com.ibm.cohort.cql.evaluation.parameters.Parameter;
@@ -191,7 +202,76 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		Response.status(Response.Status.OK);
 	}
 
-
+	@PrepareForTest({ Response.class, TenantManager.class, ServiceBaseUtility.class })
+	@Test
+	public void testEvaluateMeasureEvidenceStreamed() throws Exception {
+		prepMocks();
+		
+		PowerMockito.mockStatic(ServiceBaseUtility.class);
+		PowerMockito.when(ServiceBaseUtility.apiSetup(VERSION, logger, MethodNames.EVALUATE_MEASURE.getName())).thenReturn(null);
+		
+		mockResponseClasses();
+		
+		Library library = TestHelper.getTemplateLibrary();
+		
+		Measure measure = TestHelper.getTemplateMeasure(library);
+		
+		Patient patient = getPatient("patientId", AdministrativeGender.MALE, 40);
+		
+		mockFhirResourceRetrieval("/metadata?_format=json", getCapabilityStatement());
+		mockFhirResourceRetrieval(patient);
+		
+		FhirServerConfig clientConfig = getFhirServerConfig();
+		
+		Map<String,Parameter> parameterOverrides = new HashMap<>();
+		parameterOverrides.put("Measurement Period", new IntervalParameter(
+				new DateParameter("2019-07-04")
+				, true
+				, new DateParameter("2020-07-04")
+				, true));
+		
+		MeasureContext measureContext = new MeasureContext(measure.getId(), parameterOverrides);
+		
+		MeasureEvaluation evaluationRequest = new MeasureEvaluation();
+		evaluationRequest.setDataServerConfig(clientConfig);
+		evaluationRequest.setPatientId(patient.getId());
+		evaluationRequest.setMeasureContext(measureContext);
+		evaluationRequest.setEvidenceOptions(new MeasureEvidenceOptions(false, DefineReturnOptions.ALL));
+		
+		FhirContext fhirContext = FhirContext.forR4();
+		IParser parser = fhirContext.newJsonParser().setPrettyPrint(true);
+				
+		// Create the metadata part of the request
+		ObjectMapper om = new ObjectMapper();
+		String json = om.writeValueAsString(evaluationRequest);
+		ByteArrayInputStream jsonIs = new ByteArrayInputStream(json.getBytes());
+		IAttachment rootPart = mockAttachment(jsonIs);
+		
+		// Create the ZIP part of the request
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TestHelper.createMeasureArtifact(baos, parser, measure, library);
+		ByteArrayInputStream zipIs = new ByteArrayInputStream( baos.toByteArray() );
+		IAttachment measurePart = mockAttachment(zipIs);
+		
+		// Assemble them together into a reasonable facsimile of the real request
+		IMultipartBody body = mock(IMultipartBody.class);
+		when( body.getAttachment(CohortEngineRestHandler.REQUEST_DATA_PART) ).thenReturn(rootPart);
+		when( body.getAttachment(CohortEngineRestHandler.MEASURE_PART) ).thenReturn(measurePart);
+		
+		Response loadResponse = restHandler.evaluateMeasure(mockRequestContext, VERSION, body);
+		assertEquals(mockResponse, loadResponse);
+		
+		// The evidence is converted as the report is streamed
+		ArgumentCaptor<StreamingOutput> entity = ArgumentCaptor.forClass(StreamingOutput.class);
+		Mockito.verify(mockResponseBuilder).entity(entity.capture());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		entity.getValue().write(output);
+		MeasureReport report = parser.parseResource(MeasureReport.class, new String(output.toByteArray(), StandardCharsets.UTF_8));
+		assertTrue(report.getExtension().stream().anyMatch(extension -> CDMConstants.EVIDENCE_URL.equals(extension.getUrl())));
+		
+		PowerMockito.verifyStatic(Response.class);
+		Response.status(Response.Status.OK);
+	}
 
 	@PrepareForTest({ Response.class, TenantManager.class, ServiceBaseUtility.class })
 	@Test
@@ -438,6 +518,79 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		assertTrue( errorBody.getValue().getErrors().get(0).getMessage().contains("Unrecognized field"));
 	}
 	
+	@PrepareForTest({ Response.class, TenantManager.class, ServiceBaseUtility.class })
+	@Test
+	public void testGetJobResultsFailedJob() throws Exception {
+		prepMocks();
+		
+		PowerMockito.mockStatic(ServiceBaseUtility.class);
+		PowerMockito.when(ServiceBaseUtility.apiSetup(VERSION, logger, MethodNames.GET_JOB_RESULTS.getName())).thenReturn(null);
+		
+		mockResponseClasses();
+		
+		try {
+			EvaluationJobStatus submitted = EvaluationJobManager.getInstance().submit("cohort", 2, context -> {
+				context.addResult("\"1\"");
+				context.patientCompleted();
+				throw new IllegalStateException("Bad define");
+			});
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!EvaluationJobManager.getInstance().getStatus(submitted.getJobId()).isFinished() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			
+			Response loadResponse = restHandler.getJobResults(VERSION, submitted.getJobId(), 0, null);
+			assertNotNull(loadResponse);
+			
+			PowerMockito.verifyStatic(Response.class);
+			Response.status(500);
+			
+			ArgumentCaptor<ServiceErrorList> errorBody = ArgumentCaptor.forClass(ServiceErrorList.class);
+			Mockito.verify(mockResponseBuilder).entity(errorBody.capture());
+			assertTrue( errorBody.getValue().getErrors().get(0).getMessage().contains("Bad define"));
+		} finally {
+			EvaluationJobManager.shutdownInstance();
+		}
+	}
+	
+	@PrepareForTest({ Response.class, TenantManager.class, ServiceBaseUtility.class })
+	@Test
+	public void testGetJobResultsCompletedJob() throws Exception {
+		prepMocks();
+		
+		PowerMockito.mockStatic(ServiceBaseUtility.class);
+		PowerMockito.when(ServiceBaseUtility.apiSetup(VERSION, logger, MethodNames.GET_JOB_RESULTS.getName())).thenReturn(null);
+		
+		mockResponseClasses();
+		
+		try {
+			EvaluationJobStatus submitted = EvaluationJobManager.getInstance().submit("cohort", 3, context -> {
+				for (String patientId : Arrays.asList("1", "2", "3")) {
+					context.addResult("\"" + patientId + "\"");
+					context.patientCompleted();
+				}
+			});
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!EvaluationJobManager.getInstance().getStatus(submitted.getJobId()).isFinished() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			
+			Response loadResponse = restHandler.getJobResults(VERSION, submitted.getJobId(), 1, 5);
+			assertNotNull(loadResponse);
+			
+			PowerMockito.verifyStatic(Response.class);
+			Response.status(Response.Status.OK);
+			
+			ArgumentCaptor<StreamingOutput> entity = ArgumentCaptor.forClass(StreamingOutput.class);
+			Mockito.verify(mockResponseBuilder).entity(entity.capture());
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			entity.getValue().write(output);
+			assertEquals("\"2\"\n\"3\"\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			EvaluationJobManager.shutdownInstance();
+		}
+	}
+	
 	private void mockResponseClasses() {
 		PowerMockito.mockStatic(Response.class);
 		PowerMockito.when(Response.status(Mockito.any(Response.Status.class))).thenReturn(mockResponseBuilder);
@@ -664,6 +817,8 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		mockFhirResourceRetrieval("/metadata?_format=json", getCapabilityStatement());
 		mockFhirResourceRetrieval(patient1);
 		mockFhirResourceRetrieval(patient2);
+		// Patient lists are read with one search by _id
+		mockFhirResourceRetrieval("/Patient?_id=patientId1%2CpatientId2&_count=2&_format=json", makeBundle(patient1, patient2));
 
 		FhirServerConfig clientConfig = getFhirServerConfig();
 
@@ -732,6 +887,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 
 		mockFhirResourceRetrieval("/metadata?_format=json", getCapabilityStatement());
 		mockNotFound("/Patient/" + patient.getId() + "\\?_format=json");
+		mockFhirResourceRetrieval("/Patient?_id=" + patient.getId() + "&_count=1&_format=json", makeBundle());
 
 		FhirServerConfig clientConfig = getFhirServerConfig();
 
@@ -887,7 +1043,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		when( measurePart.getDataHandler().getName()).thenReturn("Test_1.0.0.zip");
 		when( measurePart.getHeader("Content-Disposition")).thenReturn("Test_1.0.0.zip");
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, null, body);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, body);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(Status.OK);
@@ -962,7 +1118,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		when( measurePart.getDataHandler().getName()).thenReturn("dependency_test-1.0.0.zip");
 		when( measurePart.getHeader("Content-Disposition")).thenReturn("dependency_test-1.0.0.zip");
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, null, body);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, body);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(Status.OK);
@@ -975,6 +1131,96 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		ServiceBaseUtility.apiCleanup(Mockito.any(), Mockito.eq(MethodNames.EVALUATE_COHORT.getName()));
 	}
 
+	@PrepareForTest({ Response.class, FHIRRestUtils.class })
+	@Test
+	public void testCohortNdjsonAccepted() throws Exception {
+		prepMocks();
+		mockResponseClasses();
+		mockFhirResourceRetrieval("/metadata?_format=json", getCapabilityStatement());
+		Patient patient = getPatient("123", AdministrativeGender.FEMALE, 40);
+		mockFhirResourceRetrieval(patient);
+
+		PowerMockito.mockStatic(ServiceBaseUtility.class);
+		PowerMockito.mockStatic(FHIRRestUtils.class);
+		PowerMockito.mockStatic(DefaultFhirClientBuilder.class);
+		PowerMockito.when(ServiceBaseUtility.apiSetup(VERSION, logger, MethodNames.EVALUATE_COHORT.getName())).thenReturn(null);
+		PowerMockito.whenNew(DefaultFhirClientBuilder.class).withArguments(Mockito.any()).thenReturn(mockDefaultFhirClientBuilder);
+		when(mockHttpHeaders.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.valueOf(CohortEngineRestHandler.NDJSON_MEDIA_TYPE), MediaType.APPLICATION_JSON_TYPE));
+
+		// Create the ZIP part of the request
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try( ZipOutputStream zos = new ZipOutputStream(baos) ) {
+			File baseFile = new File("src/test/resources/cql/dependency_test-1.0.0/DependencyTest-1.0.0.cql");
+			zos.putNextEntry(new ZipEntry("cql/DependencyTest-1.0.0.cql"));
+			zos.write(Files.readAllBytes(baseFile.toPath()));
+
+			File additionalFile = new File("src/test/resources/cql/dependency_test-1.0.0/ImportantDependency-1.1.1.cql");
+			zos.putNextEntry(new ZipEntry("cql/ImportantDependency-1.1.1.cql"));
+			zos.write(Files.readAllBytes(additionalFile.toPath()));
+
+			zos.closeEntry();
+		}
+
+		CohortEvaluation requestData = new CohortEvaluation();
+
+		FhirServerConfig serverConfig = getFhirServerConfig();
+
+		requestData.setDataServerConfig(serverConfig);
+		requestData.setTerminologyServerConfig(serverConfig);
+		requestData.setDefineToRun("DependentFemale");
+		requestData.setEntrypoint("DependencyTest-1.0.0.cql");
+		requestData.setPatientIds("123");
+
+		ObjectMapper om = new ObjectMapper();
+		IAttachment request = mockAttachment(new ByteArrayInputStream(om.writeValueAsBytes(requestData)));
+		IAttachment measurePart = mockAttachment(new ByteArrayInputStream(baos.toByteArray()));
+
+		// Assemble them together into a reasonable facsimile of the real request
+		IMultipartBody body = getFhirConfigFileBody();
+		when( body.getAttachment(CohortEngineRestHandler.CQL_DEFINITION) ).thenReturn(measurePart);
+		when( body.getAttachment(CohortEngineRestHandler.REQUEST_DATA_PART) ).thenReturn(request);
+		when( measurePart.getHeader("Content-Disposition")).thenReturn("dependency_test-1.0.0.zip");
+
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, body);
+		assertNotNull(loadResponse);
+		PowerMockito.verifyStatic(Response.class);
+		Response.status(Status.OK);
+		Mockito.verify(mockResponseBuilder).header("Content-Type", CohortEngineRestHandler.NDJSON_MEDIA_TYPE);
+
+		ArgumentCaptor<StreamingOutput> entity = ArgumentCaptor.forClass(StreamingOutput.class);
+		Mockito.verify(mockResponseBuilder).entity(entity.capture());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		entity.getValue().write(output);
+		assertEquals("{\"patientId\":\"123\",\"member\":true}\n", new String(output.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testIsNdjsonPreferred() {
+		MediaType ndjson = MediaType.valueOf(CohortEngineRestHandler.NDJSON_MEDIA_TYPE);
+		HttpHeaders headers = mock(HttpHeaders.class);
+
+		when(headers.getAcceptableMediaTypes()).thenReturn(Arrays.asList(ndjson, MediaType.APPLICATION_JSON_TYPE));
+		assertTrue(CohortEngineRestHandler.isNdjsonPreferred(headers));
+
+		// JSON preferred over NDJSON by quality
+		when(headers.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.APPLICATION_JSON_TYPE, MediaType.valueOf(CohortEngineRestHandler.NDJSON_MEDIA_TYPE + ";q=0.5")));
+		assertFalse(CohortEngineRestHandler.isNdjsonPreferred(headers));
+
+		// NDJSON explicitly not acceptable
+		when(headers.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.valueOf(CohortEngineRestHandler.NDJSON_MEDIA_TYPE + ";q=0")));
+		assertFalse(CohortEngineRestHandler.isNdjsonPreferred(headers));
+
+		// Parameters other than the quality do not matter
+		when(headers.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.valueOf(CohortEngineRestHandler.NDJSON_MEDIA_TYPE + ";charset=utf-8")));
+		assertTrue(CohortEngineRestHandler.isNdjsonPreferred(headers));
+
+		when(headers.getAcceptableMediaTypes()).thenReturn(Arrays.asList(MediaType.WILDCARD_TYPE, ndjson));
+		assertFalse(CohortEngineRestHandler.isNdjsonPreferred(headers));
+
+		when(headers.getAcceptableMediaTypes()).thenReturn(Collections.emptyList());
+		assertFalse(CohortEngineRestHandler.isNdjsonPreferred(headers));
+	}
+
 	@PrepareForTest({ Response.class, FHIRRestUtils.class })
 	@Test
 	public void testCohortBadCQLDefinition() throws Exception {
@@ -1029,7 +1275,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		when( measurePart.getDataHandler().getName()).thenReturn("Test-bad_1.0.0_cql.zip");
 		when( measurePart.getHeader("Content-Disposition")).thenReturn("Test-bad_1.0.0_cql.zip");
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, null, body);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, body);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(500);
@@ -1086,7 +1332,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		when( measurePart.getDataHandler().getName()).thenReturn("cql/basic/Test-1.0.0.cql");
 		when( measurePart.getHeader("Content-Disposition")).thenReturn("cql/basic/Test-1.0.0.cql");
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, null, body);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, body);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(400);
@@ -1108,7 +1354,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		// Assemble them together into a reasonable facsimile of the real request
 		IMultipartBody body = getFhirConfigFileBody();
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, "bad-version", body);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, "bad-version", body);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(400);
@@ -1127,7 +1373,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		prepMocks();
 		mockResponseClasses();
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, null, null);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, null);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(400);
@@ -1149,7 +1395,7 @@ public class CohortEngineRestHandlerTest extends CohortHandlerTestBase {
 		// Assemble them together into a reasonable facsimile of the real request
 		IMultipartBody body = getFhirConfigFileBody();
 
-		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, null, body);
+		Response loadResponse = restHandler.evaluateCohort(mockRequestContext, mockHttpHeaders, null, body);
 		assertNotNull(loadResponse);
 		PowerMockito.verifyStatic(Response.class);
 		Response.status(400);
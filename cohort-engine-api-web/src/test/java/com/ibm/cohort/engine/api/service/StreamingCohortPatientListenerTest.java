@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.cohort.engine.api.service.CohortEngineRestHandler.StreamingCohortPatientListener;
+
+public class StreamingCohortPatientListenerTest {
+
+	@Test
+	public void patientEvaluated___one_line_per_patient() throws Exception {
+		StringWriter writer = new StringWriter();
+		StreamingCohortPatientListener listener = new StreamingCohortPatientListener(writer, new ObjectMapper());
+
+		listener.patientEvaluated(0, "1", true);
+		listener.patientEvaluated(1, "2", false);
+
+		assertEquals("{\"patientId\":\"1\",\"member\":true}\n{\"patientId\":\"2\",\"member\":false}\n", writer.toString());
+	}
+
+	@Test
+	public void patientFailed___error_written_and_evaluation_continues() throws Exception {
+		StringWriter writer = new StringWriter();
+		StreamingCohortPatientListener listener = new StreamingCohortPatientListener(writer, new ObjectMapper());
+
+		assertTrue(listener.patientFailed(0, "1", new IllegalStateException("Bad define")));
+		assertTrue(listener.patientFailed(1, "2", new NullPointerException()));
+
+		assertEquals("{\"patientId\":\"1\",\"error\":\"Bad define\"}\n{\"patientId\":\"2\",\"error\":\"java.lang.NullPointerException\"}\n", writer.toString());
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus;
+import com.ibm.cohort.engine.api.service.model.EvaluationJobStatus.JobState;
+
+public class EvaluationJobManagerTest {
+
+	private EvaluationJobManager manager;
+
+	@After
+	public void tearDown() {
+		if (manager != null) {
+			manager.shutdown();
+		}
+	}
+
+	@Test
+	public void submit_completes___progress_and_results_available() throws Exception {
+		manager = new EvaluationJobManager(new InMemoryEvaluationJobStore(), 1, 1);
+
+		EvaluationJobStatus submitted = manager.submit("cohort", 3, context -> {
+			for (String patientId : Arrays.asList("1", "2", "3")) {
+				context.addResult("\"" + patientId + "\"");
+				context.patientCompleted();
+			}
+		});
+		assertEquals(3, submitted.getTotalPatients());
+
+		EvaluationJobStatus status = waitForFinish(submitted.getJobId());
+		assertEquals(JobState.COMPLETED, status.getState());
+		assertEquals(3, status.getCompletedPatients());
+		assertEquals(3, status.getResultCount());
+		assertEquals(Arrays.asList("\"2\"", "\"3\""), manager.getResults(submitted.getJobId(), 1, 10));
+	}
+
+	@Test
+	public void submit_task_fails___job_failed_with_message() throws Exception {
+		manager = new EvaluationJobManager(new InMemoryEvaluationJobStore(), 1, 1);
+
+		EvaluationJobStatus submitted = manager.submit("cohort", 1, context -> {
+			throw new IllegalStateException("Bad define");
+		});
+
+		EvaluationJobStatus status = waitForFinish(submitted.getJobId());
+		assertEquals(JobState.FAILED, status.getState());
+		assertEquals("Bad define", status.getErrorMessage());
+	}
+
+	@Test
+	public void submit_queue_full___rejected_and_not_stored() throws Exception {
+		manager = new EvaluationJobManager(new InMemoryEvaluationJobStore(), 1, 1);
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		manager.submit("cohort", 1, context -> {
+			started.countDown();
+			release.await();
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		EvaluationJobStatus queued = manager.submit("cohort", 1, context -> { });
+
+		try {
+			manager.submit("cohort", 1, context -> { });
+			throw new AssertionError("Expected the job to be rejected");
+		}
+		catch (RejectedExecutionException e) {
+			// expected
+		}
+		finally {
+			release.countDown();
+		}
+
+		assertEquals(JobState.COMPLETED, waitForFinish(queued.getJobId()).getState());
+	}
+
+	@Test
+	public void inMemoryStore_finished_jobs_over_limit___oldest_evicted() {
+		InMemoryEvaluationJobStore store = new InMemoryEvaluationJobStore(2, Duration.ofHours(1));
+		for (String jobId : Arrays.asList("a", "b", "c")) {
+			EvaluationJobStatus status = new EvaluationJobStatus();
+			status.setJobId(jobId);
+			status.setState(JobState.COMPLETED);
+			store.saveJob(status);
+		}
+
+		assertNull(store.getJob("a"));
+		assertEquals(JobState.COMPLETED, store.getJob("c").getState());
+	}
+
+	@Test
+	public void inMemoryStore_finished_job_expired___evicted_on_read() {
+		MutableClock clock = new MutableClock(Instant.parse("2022-01-01T00:00:00Z"));
+		InMemoryEvaluationJobStore store = new InMemoryEvaluationJobStore(10, Duration.ofMinutes(5), clock);
+		EvaluationJobStatus status = new EvaluationJobStatus();
+		status.setJobId("a");
+		status.setState(JobState.COMPLETED);
+		store.saveJob(status);
+		store.addResult("a", "\"1\"");
+		assertEquals(Arrays.asList("\"1\""), store.getResults("a", 0, 10));
+
+		clock.instant = clock.instant.plus(Duration.ofMinutes(6));
+
+		assertNull(store.getResults("a", 0, 10));
+		assertNull(store.getJob("a"));
+	}
+
+	private static class MutableClock extends Clock {
+		private Instant instant;
+
+		private MutableClock(Instant instant) {
+			this.instant = instant;
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return instant;
+		}
+	}
+
+	private EvaluationJobStatus waitForFinish(String jobId) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		EvaluationJobStatus status = manager.getStatus(jobId);
+		while (!status.isFinished() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			status = manager.getStatus(jobId);
+		}
+		return status;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.model;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+@ApiModel(description = "Result for one patient of a streamed CohortEvaluation")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CohortPatientResult {
+
+	private String patientId;
+	private Boolean member;
+	private String error;
+
+	public CohortPatientResult() {
+	}
+
+	public CohortPatientResult(String patientId, Boolean member, String error) {
+		this.patientId = patientId;
+		this.member = member;
+		this.error = error;
+	}
+
+	@ApiModelProperty(value = "Id of the evaluated patient", required = true)
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public void setPatientId(String patientId) {
+		this.patientId = patientId;
+	}
+
+	@ApiModelProperty(value = "Whether the patient passed the define. Not present when the evaluation failed.")
+	public Boolean getMember() {
+		return member;
+	}
+
+	public void setMember(Boolean member) {
+		this.member = member;
+	}
+
+	@ApiModelProperty(value = "Reason the evaluation of the patient failed")
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	@Override
+	public int hashCode() {
+		return HashCodeBuilder.reflectionHashCode(this);
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return EqualsBuilder.reflectionEquals(this, o);
+	}
+}
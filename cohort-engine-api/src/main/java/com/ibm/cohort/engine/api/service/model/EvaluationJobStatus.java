@@ -0,0 +1,160 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.model;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+@ApiModel(description = "State and progress of an asynchronous evaluation job")
+public class EvaluationJobStatus {
+
+	public enum JobState {
+		SUBMITTED, RUNNING, COMPLETED, FAILED
+	}
+
+	private String jobId;
+	private String jobType;
+	private JobState state;
+	private int totalPatients;
+	private int completedPatients;
+	private int resultCount;
+	private String submittedTime;
+	private String startedTime;
+	private String finishedTime;
+	private String errorMessage;
+
+	public EvaluationJobStatus() {
+	}
+
+	public EvaluationJobStatus(EvaluationJobStatus other) {
+		this.jobId = other.jobId;
+		this.jobType = other.jobType;
+		this.state = other.state;
+		this.totalPatients = other.totalPatients;
+		this.completedPatients = other.completedPatients;
+		this.resultCount = other.resultCount;
+		this.submittedTime = other.submittedTime;
+		this.startedTime = other.startedTime;
+		this.finishedTime = other.finishedTime;
+		this.errorMessage = other.errorMessage;
+	}
+
+	@ApiModelProperty(value = "Identifier used to query the job and its results", required = true)
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	@ApiModelProperty(value = "Kind of evaluation performed by the job", required = true)
+	public String getJobType() {
+		return jobType;
+	}
+
+	public void setJobType(String jobType) {
+		this.jobType = jobType;
+	}
+
+	@ApiModelProperty(required = true)
+	public JobState getState() {
+		return state;
+	}
+
+	public void setState(JobState state) {
+		this.state = state;
+	}
+
+	@ApiModelProperty(value = "Number of patients in the request")
+	public int getTotalPatients() {
+		return totalPatients;
+	}
+
+	public void setTotalPatients(int totalPatients) {
+		this.totalPatients = totalPatients;
+	}
+
+	@ApiModelProperty(value = "Number of patients evaluated so far")
+	public int getCompletedPatients() {
+		return completedPatients;
+	}
+
+	public void setCompletedPatients(int completedPatients) {
+		this.completedPatients = completedPatients;
+	}
+
+	@ApiModelProperty(value = "Number of result lines available from the results endpoint")
+	public int getResultCount() {
+		return resultCount;
+	}
+
+	public void setResultCount(int resultCount) {
+		this.resultCount = resultCount;
+	}
+
+	@ApiModelProperty(value = "ISO-8601 time the job was submitted")
+	public String getSubmittedTime() {
+		return submittedTime;
+	}
+
+	public void setSubmittedTime(String submittedTime) {
+		this.submittedTime = submittedTime;
+	}
+
+	@ApiModelProperty(value = "ISO-8601 time the job started running")
+	public String getStartedTime() {
+		return startedTime;
+	}
+
+	public void setStartedTime(String startedTime) {
+		this.startedTime = startedTime;
+	}
+
+	@ApiModelProperty(value = "ISO-8601 time the job completed or failed")
+	public String getFinishedTime() {
+		return finishedTime;
+	}
+
+	public void setFinishedTime(String finishedTime) {
+		this.finishedTime = finishedTime;
+	}
+
+	@ApiModelProperty(value = "Reason the job failed")
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+
+	@JsonIgnore
+	public boolean isFinished() {
+		return state == JobState.COMPLETED || state == JobState.FAILED;
+	}
+
+	@Override
+	public int hashCode() {
+		return HashCodeBuilder.reflectionHashCode(this);
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return EqualsBuilder.reflectionEquals(this, o);
+	}
+}
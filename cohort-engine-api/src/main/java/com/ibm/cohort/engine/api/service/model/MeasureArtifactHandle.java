@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.engine.api.service.model;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+@ApiModel(description = "Handle of a registered measure artifact package")
+public class MeasureArtifactHandle {
+
+	private String handle;
+	private long size;
+
+	public MeasureArtifactHandle() {
+	}
+
+	public MeasureArtifactHandle(String handle, long size) {
+		this.handle = handle;
+		this.size = size;
+	}
+
+	@ApiModelProperty(value = "SHA-256 of the package content, sent in the measure_artifact_handle attachment of evaluation requests", required = true)
+	public String getHandle() {
+		return handle;
+	}
+
+	public void setHandle(String handle) {
+		this.handle = handle;
+	}
+
+	@ApiModelProperty(value = "Size of the package in bytes")
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	@Override
+	public int hashCode() {
+		return HashCodeBuilder.reflectionHashCode(this);
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return EqualsBuilder.reflectionEquals(this, o);
+	}
+}
@@ -0,0 +1,599 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+
+/**
+ * Index of the resources in a directory of FHIR bulk data export NDJSON
+ * files. Each line of a file with the {@value #NDJSON_EXTENSION} extension
+ * holds one resource.
+ *
+ * <p>The first time a directory is opened, every file is scanned once and the
+ * location of each resource is written to an index file, grouped by resource
+ * type and by the patients whose compartment holds the resource. Later opens
+ * memory-map the index file instead of scanning the files again, unless a file
+ * was added, removed or changed. Resources are only read from the files, one
+ * line at a time, when they are requested.
+ *
+ * <p>Index files larger than 2GB are not supported.
+ */
+public class NdjsonResourceIndex implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NdjsonResourceIndex.class);
+
+	public static final String NDJSON_EXTENSION = ".ndjson";
+	public static final String DEFAULT_INDEX_FILE_NAME = ".ndjson-index";
+
+	private static final String PATIENT = "Patient";
+	private static final String PATIENT_REFERENCE = PATIENT + "/";
+	private static final int MAGIC = 0x4E444A58;
+	private static final int VERSION = 1;
+	private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+	private final FhirContext fhirContext;
+	private final List<Path> files;
+	private final List<FileChannel> channels;
+	private final Map<String, int[]> typeEntries;
+	private final List<String> typeNames;
+	private final MappedByteBuffer buffer;
+	private final int entriesPosition;
+	private final int referencesPosition;
+	private final int patientCount;
+	private final int patientTablePosition;
+
+	private NdjsonResourceIndex(FhirContext fhirContext, List<Path> files, MappedByteBuffer buffer) throws IOException {
+		this.fhirContext = fhirContext;
+		this.files = files;
+		this.buffer = buffer;
+
+		ByteBuffer header = buffer.duplicate();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Unsupported NDJSON index format");
+		}
+		// The files were checked when the index was opened
+		int fileCount = header.getInt();
+		for (int i = 0; i < fileCount; i++) {
+			readString(header);
+			header.getLong();
+			header.getLong();
+		}
+
+		int typeCount = header.getInt();
+		this.typeNames = new ArrayList<>(typeCount);
+		this.typeEntries = new HashMap<>();
+		for (int i = 0; i < typeCount; i++) {
+			String typeName = readString(header);
+			typeNames.add(typeName);
+			typeEntries.put(typeName, new int[] { header.getInt(), header.getInt() });
+		}
+
+		int entryCount = header.getInt();
+		this.entriesPosition = header.position();
+		header.position(entriesPosition + entryCount * ENTRY_SIZE);
+		int referenceCount = header.getInt();
+		this.referencesPosition = header.position();
+		header.position(referencesPosition + referenceCount * Integer.BYTES);
+		this.patientCount = header.getInt();
+		this.patientTablePosition = header.position();
+
+		this.channels = new ArrayList<>(files.size());
+		try {
+			for (Path file : files) {
+				channels.add(FileChannel.open(file, StandardOpenOption.READ));
+			}
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open the index of a directory of NDJSON files that is kept in
+	 * {@value #DEFAULT_INDEX_FILE_NAME} in the directory.
+	 *
+	 * @param fhirContext context used to find the patient compartment of each resource type
+	 * @param directory   directory of NDJSON files
+	 * @return index of the files
+	 * @throws IOException if the files cannot be read or the index cannot be written
+	 */
+	public static NdjsonResourceIndex open(FhirContext fhirContext, Path directory) throws IOException {
+		return open(fhirContext, directory, directory.resolve(DEFAULT_INDEX_FILE_NAME));
+	}
+
+	/**
+	 * Open the index of a directory of NDJSON files. The index is built and
+	 * written to the index file when the file does not exist or does not
+	 * match the NDJSON files in the directory.
+	 *
+	 * @param fhirContext context used to find the patient compartment of each resource type
+	 * @param directory   directory of NDJSON files
+	 * @param indexFile   file that holds the index
+	 * @return index of the files
+	 * @throws IOException if the files cannot be read or the index cannot be written
+	 */
+	public static NdjsonResourceIndex open(FhirContext fhirContext, Path directory, Path indexFile) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + NDJSON_EXTENSION)) {
+			stream.forEach(files::add);
+		}
+		Collections.sort(files);
+
+		if (!isCurrent(indexFile, files)) {
+			LOG.info("Indexing {} NDJSON files in {}", files.size(), directory);
+			new Builder(fhirContext, files).write(indexFile);
+		}
+
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("NDJSON index " + indexFile + " is larger than 2GB");
+			}
+			return new NdjsonResourceIndex(fhirContext, files, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	public FhirContext getFhirContext() {
+		return fhirContext;
+	}
+
+	/**
+	 * @param resourceType FHIR resource type
+	 * @return every resource of the type, read from the files as the list is
+	 *         consumed
+	 */
+	public List<String> getResources(String resourceType) {
+		int[] range = typeEntries.get(resourceType);
+		if (range == null) {
+			return Collections.emptyList();
+		}
+		return new ResourceList(range[1]) {
+			@Override
+			int getEntry(int index) {
+				return range[0] + index;
+			}
+		};
+	}
+
+	/**
+	 * @param patientId    id of a Patient resource
+	 * @param resourceType FHIR resource type
+	 * @return the resources of the type in the compartment of the patient,
+	 *         read from the files as the list is consumed
+	 */
+	public List<String> getPatientResources(String patientId, String resourceType) {
+		int record = findPatient(patientId);
+		if (record < 0) {
+			return Collections.emptyList();
+		}
+		ByteBuffer patient = buffer.duplicate();
+		patient.position(record);
+		readString(patient);
+		int types = patient.getShort();
+		for (int i = 0; i < types; i++) {
+			String typeName = typeNames.get(patient.getShort());
+			int start = patient.getInt();
+			int count = patient.getInt();
+			if (typeName.equals(resourceType)) {
+				return new ResourceList(count) {
+					@Override
+					int getEntry(int index) {
+						return buffer.getInt(referencesPosition + (start + index) * Integer.BYTES);
+					}
+				};
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (FileChannel channel : channels) {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * @return the position of the record of the patient or -1 when no
+	 *         resource is in the compartment of the patient
+	 */
+	private int findPatient(String patientId) {
+		int low = 0;
+		int high = patientCount - 1;
+		ByteBuffer record = buffer.duplicate();
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int position = buffer.getInt(patientTablePosition + middle * Integer.BYTES);
+			record.position(position);
+			int comparison = readString(record).compareTo(patientId);
+			if (comparison < 0) {
+				low = middle + 1;
+			}
+			else if (comparison > 0) {
+				high = middle - 1;
+			}
+			else {
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	private String read(int entry) {
+		int position = entriesPosition + entry * ENTRY_SIZE;
+		FileChannel channel = channels.get(buffer.getInt(position));
+		long offset = buffer.getLong(position + Integer.BYTES);
+		ByteBuffer line = ByteBuffer.allocate(buffer.getInt(position + Integer.BYTES + Long.BYTES));
+		try {
+			while (line.hasRemaining()) {
+				if (channel.read(line, offset + line.position()) < 0) {
+					throw new EOFException("NDJSON file changed after it was indexed");
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Failed to read resource from " + files.get(buffer.getInt(position)), e);
+		}
+		return new String(line.array(), StandardCharsets.UTF_8);
+	}
+
+	private static boolean isCurrent(Path indexFile, List<Path> files) throws IOException {
+		if (!Files.isRegularFile(indexFile)) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+			if (header.remaining() < 3 * Integer.BYTES || header.getInt() != MAGIC || header.getInt() != VERSION
+					|| header.getInt() != files.size()) {
+				return false;
+			}
+			for (Path file : files) {
+				if (!file.getFileName().toString().equals(readString(header))
+						|| header.getLong() != Files.size(file)
+						|| header.getLong() != Files.getLastModifiedTime(file).toMillis()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Resources of a range of index entries, read when they are accessed.
+	 */
+	private abstract class ResourceList extends AbstractList<String> {
+		private final int size;
+
+		ResourceList(int size) {
+			this.size = size;
+		}
+
+		abstract int getEntry(int index);
+
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return read(getEntry(index));
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Scans NDJSON files and writes their index. Only the resource type, id
+	 * and references of each resource are read while scanning.
+	 */
+	private static class Builder {
+		private final FhirContext fhirContext;
+		private final List<Path> files;
+		private final JsonFactory jsonFactory = new JsonFactory();
+		private final Map<String, Set<String>> compartmentElements = new HashMap<>();
+		// Entries of each type as file index, offset and length
+		private final Map<String, List<long[]>> entries = new TreeMap<>();
+		// Entries in the compartment of each patient as type and index in the entries of the type
+		private final Map<String, Map<String, List<Integer>>> patients = new TreeMap<>();
+
+		Builder(FhirContext fhirContext, List<Path> files) {
+			this.fhirContext = fhirContext;
+			this.files = files;
+		}
+
+		void write(Path indexFile) throws IOException {
+			for (int i = 0; i < files.size(); i++) {
+				scan(i);
+			}
+
+			Path tempFile = Files.createTempFile(indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp");
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+					write(out);
+				}
+				Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally {
+				Files.deleteIfExists(tempFile);
+			}
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(files.size());
+			for (Path file : files) {
+				writeString(out, file.getFileName().toString());
+				out.writeLong(Files.size(file));
+				out.writeLong(Files.getLastModifiedTime(file).toMillis());
+			}
+
+			List<String> typeNames = new ArrayList<>(entries.keySet());
+			Map<String, Integer> typeStarts = new HashMap<>();
+			out.writeInt(typeNames.size());
+			int entryCount = 0;
+			for (String typeName : typeNames) {
+				writeString(out, typeName);
+				out.writeInt(entryCount);
+				out.writeInt(entries.get(typeName).size());
+				typeStarts.put(typeName, entryCount);
+				entryCount += entries.get(typeName).size();
+			}
+
+			out.writeInt(entryCount);
+			for (List<long[]> typeEntries : entries.values()) {
+				for (long[] entry : typeEntries) {
+					out.writeInt((int) entry[0]);
+					out.writeLong(entry[1]);
+					out.writeInt((int) entry[2]);
+				}
+			}
+
+			int referenceCount = 0;
+			for (Map<String, List<Integer>> patientEntries : patients.values()) {
+				for (List<Integer> references : patientEntries.values()) {
+					referenceCount += references.size();
+				}
+			}
+			out.writeInt(referenceCount);
+			for (Map<String, List<Integer>> patientEntries : patients.values()) {
+				for (Map.Entry<String, List<Integer>> references : patientEntries.entrySet()) {
+					int typeStart = typeStarts.get(references.getKey());
+					for (int entry : references.getValue()) {
+						out.writeInt(typeStart + entry);
+					}
+				}
+			}
+
+			// Patient records follow the table of their positions, in the order of their ids
+			out.writeInt(patients.size());
+			int position = out.size() + patients.size() * Integer.BYTES;
+			for (Map.Entry<String, Map<String, List<Integer>>> patient : patients.entrySet()) {
+				out.writeInt(position);
+				position += Integer.BYTES + patient.getKey().getBytes(StandardCharsets.UTF_8).length
+						+ Short.BYTES + patient.getValue().size() * (Short.BYTES + 2 * Integer.BYTES);
+			}
+			int reference = 0;
+			for (Map.Entry<String, Map<String, List<Integer>>> patient : patients.entrySet()) {
+				writeString(out, patient.getKey());
+				out.writeShort(patient.getValue().size());
+				for (Map.Entry<String, List<Integer>> references : patient.getValue().entrySet()) {
+					out.writeShort(typeNames.indexOf(references.getKey()));
+					out.writeInt(reference);
+					out.writeInt(references.getValue().size());
+					reference += references.getValue().size();
+				}
+			}
+		}
+
+		private void scan(int fileIndex) throws IOException {
+			Path file = files.get(fileIndex);
+			try (InputStream in = Files.newInputStream(file)) {
+				byte[] chunk = new byte[65536];
+				byte[] line = new byte[8192];
+				long offset = 0;
+				int length = 0;
+				int read;
+				while ((read = in.read(chunk)) >= 0) {
+					for (int i = 0; i < read; i++) {
+						if (chunk[i] == '\n') {
+							index(fileIndex, file, offset, line, length);
+							offset += length + 1;
+							length = 0;
+						}
+						else {
+							if (length == line.length) {
+								line = Arrays.copyOf(line, line.length * 2);
+							}
+							line[length++] = chunk[i];
+						}
+					}
+				}
+				index(fileIndex, file, offset, line, length);
+			}
+		}
+
+		private void index(int fileIndex, Path file, long offset, byte[] line, int length) throws IOException {
+			// A line ending in a carriage return is read without it
+			int resourceLength = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+			if (resourceLength == 0) {
+				return;
+			}
+
+			String resourceType = null;
+			String id = null;
+			Map<String, Set<String>> references = new HashMap<>();
+			try (JsonParser parser = jsonFactory.createParser(line, 0, resourceLength)) {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new IOException("Line at offset " + offset + " of " + file + " is not a resource");
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					JsonToken value = parser.nextToken();
+					if ("resourceType".equals(name)) {
+						resourceType = parser.getText();
+					}
+					else if ("id".equals(name)) {
+						id = parser.getText();
+					}
+					else if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+						Set<String> patientIds = new HashSet<>();
+						addPatientReferences(parser, patientIds);
+						if (!patientIds.isEmpty()) {
+							references.put(name, patientIds);
+						}
+					}
+				}
+			}
+			if (resourceType == null) {
+				throw new IOException("Line at offset " + offset + " of " + file + " has no resourceType");
+			}
+
+			List<long[]> typeEntries = entries.computeIfAbsent(resourceType, key -> new ArrayList<>());
+			int entry = typeEntries.size();
+			typeEntries.add(new long[] { fileIndex, offset, resourceLength });
+
+			Set<String> patientIds = new HashSet<>();
+			if (PATIENT.equals(resourceType) && id != null) {
+				patientIds.add(id);
+			}
+			for (String element : getCompartmentElements(resourceType)) {
+				patientIds.addAll(references.getOrDefault(element, Collections.emptySet()));
+			}
+			for (String patientId : patientIds) {
+				patients.computeIfAbsent(patientId, key -> new LinkedHashMap<>())
+						.computeIfAbsent(resourceType, key -> new ArrayList<>())
+						.add(entry);
+			}
+		}
+
+		/**
+		 * Collect the ids of the patients referenced by the current object or
+		 * array and skip past its end.
+		 */
+		private static void addPatientReferences(JsonParser parser, Set<String> patientIds) throws IOException {
+			int depth = 1;
+			while (depth > 0) {
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+					depth++;
+				}
+				else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+					depth--;
+				}
+				else if (token == JsonToken.VALUE_STRING && "reference".equals(parser.getCurrentName())) {
+					String reference = parser.getText();
+					int start = reference.lastIndexOf(PATIENT_REFERENCE);
+					if (start == 0 || (start > 0 && reference.charAt(start - 1) == '/')) {
+						String patientId = reference.substring(start + PATIENT_REFERENCE.length());
+						int end = patientId.indexOf('/');
+						patientIds.add(end < 0 ? patientId : patientId.substring(0, end));
+					}
+				}
+				else if (token == null) {
+					throw new EOFException("Unexpected end of resource");
+				}
+			}
+		}
+
+		/**
+		 * @return the top level elements of the resource type that make a
+		 *         resource a member of the compartments of the patients they
+		 *         reference
+		 */
+		private Set<String> getCompartmentElements(String resourceType) {
+			return compartmentElements.computeIfAbsent(resourceType, key -> {
+				Set<String> elements = new HashSet<>();
+				RuntimeResourceDefinition definition;
+				try {
+					definition = fhirContext.getResourceDefinition(resourceType);
+				}
+				catch (RuntimeException e) {
+					LOG.warn("Unknown resource type {}, its resources are not indexed by patient", resourceType);
+					return elements;
+				}
+				for (RuntimeSearchParam searchParam : definition.getSearchParams()) {
+					if (searchParam.getProvidesMembershipInCompartments() != null
+							&& searchParam.getProvidesMembershipInCompartments().contains(PATIENT)
+							&& searchParam.getPath() != null) {
+						for (String path : searchParam.getPath().split("\\|")) {
+							String element = path.trim();
+							if (element.startsWith(resourceType + ".")) {
+								element = element.substring(resourceType.length() + 1);
+								int end = 0;
+								while (end < element.length() && Character.isJavaIdentifierPart(element.charAt(end))) {
+									end++;
+								}
+								elements.add(element.substring(0, end));
+							}
+						}
+					}
+				}
+				return elements;
+			});
+		}
+	}
+}
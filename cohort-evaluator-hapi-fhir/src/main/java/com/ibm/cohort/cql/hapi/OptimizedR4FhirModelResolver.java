@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseEnumeration;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+
+import com.ibm.cohort.cql.data.PropertyAccessor;
+import com.ibm.cohort.cql.data.PropertyAccessorCompiler;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeDeclaredChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+
+/**
+ * R4 model resolver that can compile single-segment property paths into
+ * {@link PropertyAccessor} objects. The HAPI child definition lookup
+ * (including choice type resolution) happens once per class and path and the
+ * backing field is read through a {@link MethodHandle}. The post-processing
+ * mirrors <code>FhirModelResolver.resolveProperty</code> in CQL Engine 1.5.5.
+ * Revisit on upgrade of that dependency.
+ */
+public class OptimizedR4FhirModelResolver extends R4FhirModelResolver implements PropertyAccessorCompiler {
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public PropertyAccessor compilePropertyAccessor(Class<?> targetType, String path) {
+		// Indexed and multi-segment paths, primitive values and resource type
+		// checks are cheap enough or depend on the instance, so they are left
+		// to the regular resolution logic.
+		if (path.contains(".") || path.contains("[")
+				|| !IBase.class.isAssignableFrom(targetType)
+				|| IBaseEnumeration.class.isAssignableFrom(targetType)
+				|| IPrimitiveType.class.isAssignableFrom(targetType)) {
+			return null;
+		}
+
+		BaseRuntimeElementDefinition<?> definition;
+		if (IAnyResource.class.isAssignableFrom(targetType)) {
+			definition = getFhirContext().getResourceDefinition((Class<? extends IBaseResource>) targetType);
+			if (definition.getName().equals(path)) {
+				return null;
+			}
+		} else {
+			definition = getFhirContext().getElementDefinition((Class<? extends IBase>) targetType);
+		}
+
+		if (!(definition instanceof BaseRuntimeElementCompositeDefinition)) {
+			return null;
+		}
+
+		BaseRuntimeElementCompositeDefinition<?> compositeDefinition = (BaseRuntimeElementCompositeDefinition<?>) definition;
+		BaseRuntimeChildDefinition child = compositeDefinition.getChildByName(path);
+		if (child == null) {
+			child = resolveChoiceProperty(compositeDefinition, path);
+		}
+		if (child == null) {
+			return target -> null;
+		}
+
+		ValuesReader reader = createValuesReader(child);
+
+		Class<?> choiceType = null;
+		if (child instanceof RuntimeChildChoiceDefinition && !child.getElementName().equalsIgnoreCase(path)) {
+			choiceType = child.getChildByName(path).getImplementingClass();
+		}
+		String choiceTypeName = (choiceType != null) ? choiceType.getSimpleName() : null;
+		boolean isList = child.getMax() < 1;
+
+		return target -> {
+			List<? extends IBase> values = reader.getValues((IBase) target);
+			if (values == null || values.isEmpty()) {
+				return null;
+			}
+			if (choiceTypeName != null && !values.get(0).getClass().getSimpleName().equalsIgnoreCase(choiceTypeName)) {
+				return null;
+			}
+			return toJavaPrimitive(isList ? values : values.get(0), target);
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private ValuesReader createValuesReader(BaseRuntimeChildDefinition child) {
+		if (child instanceof BaseRuntimeDeclaredChildDefinition) {
+			Field field = ((BaseRuntimeDeclaredChildDefinition) child).getField();
+			try {
+				field.setAccessible(true);
+				MethodHandle getter = MethodHandles.lookup().unreflectGetter(field);
+				return target -> {
+					Object value;
+					try {
+						value = getter.invoke(target);
+					} catch (RuntimeException | Error e) {
+						throw e;
+					} catch (Throwable t) {
+						throw new IllegalStateException(t);
+					}
+
+					if (value == null) {
+						return Collections.emptyList();
+					} else if (value instanceof List) {
+						return (List<? extends IBase>) value;
+					} else {
+						return Collections.singletonList((IBase) value);
+					}
+				};
+			} catch (IllegalAccessException | RuntimeException e) {
+				return createAccessorValuesReader(child);
+			}
+		}
+		return createAccessorValuesReader(child);
+	}
+
+	private ValuesReader createAccessorValuesReader(BaseRuntimeChildDefinition child) {
+		BaseRuntimeChildDefinition.IAccessor accessor = child.getAccessor();
+		return accessor::getValues;
+	}
+
+	@FunctionalInterface
+	private interface ValuesReader {
+		List<? extends IBase> getValues(IBase target);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleUtil;
+
+/**
+ * The resources returned by one or more FHIR searches, read a page at a time.
+ * Elements are returned in the same order as the searches and their pages.
+ *
+ * <p>When a prefetch executor is provided, the first page of every search is
+ * requested in the background as soon as the list is created and the next
+ * page of a search is requested as soon as the page before it is read, so the
+ * network latency of a page overlaps with the parsing of the previous one.
+ * Without an executor, pages are requested by the consuming thread.
+ *
+ * <p>Pages are not left unread during CQL evaluation. The CQL engine iterates
+ * every element of a retrieve result that is a {@link List} to record the
+ * evaluated resources, so every page is read before the retrieve returns.
+ * The list is read-only and safe for use by multiple threads, so it can be
+ * cached and iterated again once the pages are read.
+ */
+public class PrefetchingSearchResults extends AbstractList<Object> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PrefetchingSearchResults.class);
+
+	private final IGenericClient fhirClient;
+	private final Class<? extends IBaseResource> resourceType;
+	private final Executor prefetchExecutor;
+	private final List<Object> resources = new ArrayList<>();
+	private final Deque<FutureTask<IBaseResource>> searches = new ArrayDeque<>();
+
+	/**
+	 * @param fhirClient       client used to follow the next page links
+	 * @param dataType         resource type returned from the search bundles or
+	 *                         null to return every resource in the bundles
+	 * @param searches         searches that each return the first page of
+	 *                         results or, for reads, a single resource
+	 * @param prefetchExecutor executor used to request pages in the background
+	 *                         or null to only request pages on demand
+	 */
+	public PrefetchingSearchResults(IGenericClient fhirClient, String dataType, List<Callable<IBaseResource>> searches, Executor prefetchExecutor) {
+		this.fhirClient = fhirClient;
+		this.resourceType = dataType != null
+				? fhirClient.getFhirContext().getResourceDefinition(dataType).getImplementingClass()
+				: null;
+		this.prefetchExecutor = prefetchExecutor;
+
+		for (Callable<IBaseResource> search : searches) {
+			FutureTask<IBaseResource> task = new FutureTask<>(search);
+			this.searches.add(task);
+			prefetch(task);
+		}
+	}
+
+	@Override
+	public synchronized Object get(int index) {
+		if (index < 0 || !isLoaded(index)) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		return resources.get(index);
+	}
+
+	@Override
+	public synchronized int size() {
+		while (readNextPage()) {
+			// read every remaining page
+		}
+		return resources.size();
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return new Iterator<Object>() {
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return isLoaded(index);
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return get(index++);
+			}
+		};
+	}
+
+	private synchronized boolean isLoaded(int index) {
+		while (index >= resources.size()) {
+			if (!readNextPage()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add the resources of the next page to the list.
+	 *
+	 * @return false when every page has been read
+	 */
+	private boolean readNextPage() {
+		FutureTask<IBaseResource> search = searches.peekFirst();
+		if (search == null) {
+			return false;
+		}
+
+		// A page that failed stays at the head so every consumer sees the failure
+		IBaseResource page = await(search);
+		searches.removeFirst();
+		if (page instanceof IBaseBundle) {
+			IBaseBundle bundle = (IBaseBundle) page;
+			resources.addAll(resourceType != null
+					? BundleUtil.toListOfResourcesOfType(fhirClient.getFhirContext(), bundle, resourceType)
+					: BundleUtil.toListOfResources(fhirClient.getFhirContext(), bundle));
+
+			if (BundleUtil.getLinkUrlOfType(fhirClient.getFhirContext(), bundle, IBaseBundle.LINK_NEXT) != null) {
+				FutureTask<IBaseResource> nextPage = new FutureTask<>(() -> fhirClient.loadPage().next(bundle).execute());
+				searches.addFirst(nextPage);
+				prefetch(nextPage);
+			}
+		}
+		else {
+			resources.add(page);
+		}
+		return true;
+	}
+
+	private void prefetch(FutureTask<IBaseResource> task) {
+		if (prefetchExecutor != null) {
+			try {
+				prefetchExecutor.execute(task);
+			}
+			catch (RejectedExecutionException e) {
+				LOG.debug("Prefetch rejected, the page will be requested when it is consumed: {}", e.getMessage());
+			}
+		}
+	}
+
+	private static IBaseResource await(FutureTask<IBaseResource> task) {
+		// Requests the page on this thread if it has not been started in the background
+		task.run();
+		try {
+			return task.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException("FHIR search failed", e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for FHIR search results", e);
+		}
+	}
+}
@@ -8,15 +8,14 @@ package com.ibm.cohort.cql.hapi;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import com.ibm.cohort.cql.data.CqlDataProvider;
 import com.ibm.cohort.cql.data.DefaultCqlDataProvider;
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
 import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.exception.FhirVersionMisMatchException;
-import org.opencds.cqf.cql.engine.fhir.retrieve.BaseFhirQueryGenerator;
-import org.opencds.cqf.cql.engine.fhir.retrieve.FhirQueryGeneratorFactory;
-import org.opencds.cqf.cql.engine.fhir.retrieve.RestFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
@@ -50,6 +49,17 @@ public class R4DataProviderFactory {
 	
 	public static final String FHIR_R4_URL = "http://hl7.org/fhir";
 
+	/**
+	 * Default number of threads, shared by every data provider created by this
+	 * factory, that request the next page of search results while the current
+	 * page is parsed. The {@value #PREFETCH_THREADS_PROPERTY} system property
+	 * overrides it.
+	 */
+	public static final int PREFETCH_THREADS = 16;
+	public static final String PREFETCH_THREADS_PROPERTY = "cohort.pagePrefetch.threads";
+
+	private static ExecutorService prefetchExecutor;
+
 	public static Map<String, CqlDataProvider> createDataProviderMap(
 			IGenericClient client,
 			CqlTerminologyProvider terminologyProvider,
@@ -112,10 +122,9 @@ public class R4DataProviderFactory {
 			Integer pageSize
 	) {
 		SearchParameterResolver resolver = new SearchParameterResolver(client.getFhirContext());
-		RestFhirRetrieveProvider baseRetrieveProvider = new RestFhirRetrieveProvider(resolver, client);
+		R4RestFhirRetrieveProvider baseRetrieveProvider = new R4RestFhirRetrieveProvider(resolver, client);
 		try {
-			BaseFhirQueryGenerator queryGenerator = FhirQueryGeneratorFactory.create(modelResolver, resolver, terminologyProvider);
-			baseRetrieveProvider.setFhirQueryGenerator(queryGenerator);
+			baseRetrieveProvider.setFhirQueryGenerator(new R4SearchQueryGenerator(resolver, terminologyProvider, modelResolver));
 		} catch (FhirVersionMisMatchException e) {
 			throw new IllegalArgumentException("Unsupported FHIR version", e);
 		}
@@ -124,11 +133,58 @@ public class R4DataProviderFactory {
 			baseRetrieveProvider.setPageSize(pageSize);
 		}
 		baseRetrieveProvider.setTerminologyProvider(terminologyProvider);
+		baseRetrieveProvider.setPrefetchExecutor(getPrefetchExecutor());
+		RetrieveProvider retrieveProvider = retrieveCacheContext != null
+				? new CachingRetrieveProvider(baseRetrieveProvider, retrieveCacheContext, new R4RetrieveCodeExtractor(modelResolver), terminologyProvider)
+				: baseRetrieveProvider;
+
+		return new DefaultCqlDataProvider(modelResolver, retrieveProvider);
+	}
+
+	public static Map<String, CqlDataProvider> createDataProviderMap(
+			NdjsonResourceIndex index,
+			CqlTerminologyProvider terminologyProvider,
+			RetrieveCacheContext retrieveCacheContext,
+			ModelResolver modelResolver
+	) {
+		Map<String, CqlDataProvider> retVal = new HashMap<>();
+		retVal.put(FHIR_R4_URL, createDataProvider(index, terminologyProvider, retrieveCacheContext, modelResolver));
+
+		return retVal;
+	}
+
+	/**
+	 * Create a data provider for the resources of a directory of FHIR bulk
+	 * data export NDJSON files instead of a FHIR server.
+	 *
+	 * @param index                index of the NDJSON files, which stays
+	 *                             owned by the caller
+	 * @param terminologyProvider  provider used to expand ValueSets
+	 * @param retrieveCacheContext cache for retrieve results or null to not
+	 *                             cache them
+	 * @param modelResolver        resolver for the R4 model
+	 * @return data provider
+	 */
+	public static CqlDataProvider createDataProvider(
+			NdjsonResourceIndex index,
+			CqlTerminologyProvider terminologyProvider,
+			RetrieveCacheContext retrieveCacheContext,
+			ModelResolver modelResolver
+	) {
+		R4NdjsonRetrieveProvider baseRetrieveProvider = new R4NdjsonRetrieveProvider(index, modelResolver);
+		baseRetrieveProvider.setTerminologyProvider(terminologyProvider);
 		RetrieveProvider retrieveProvider = retrieveCacheContext != null
-				? new CachingRetrieveProvider(baseRetrieveProvider, retrieveCacheContext)
+				? new CachingRetrieveProvider(baseRetrieveProvider, retrieveCacheContext, new R4RetrieveCodeExtractor(modelResolver), terminologyProvider)
 				: baseRetrieveProvider;
 
 		return new DefaultCqlDataProvider(modelResolver, retrieveProvider);
 	}
 
+	private static synchronized ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null) {
+			prefetchExecutor = DaemonExecutors.newFixedThreadPool("fhir-page-prefetch",
+					DaemonExecutors.getThreads(PREFETCH_THREADS_PROPERTY, PREFETCH_THREADS));
+		}
+		return prefetchExecutor;
+	}
 }
@@ -7,7 +7,6 @@
 package com.ibm.cohort.cql.hapi;
 
 import com.ibm.cohort.cql.data.CachingModelResolverDecorator;
-import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 
 public class R4FhirModelResolverFactory {
@@ -17,7 +16,7 @@ public class R4FhirModelResolverFactory {
 	 * This operation should be threadsafe given the way we currently use
 	 * these objects.
 	 */
-	private static final ModelResolver modelResolver = new R4FhirModelResolver();
+	private static final ModelResolver modelResolver = new OptimizedR4FhirModelResolver();
 
 	public static ModelResolver createCachingResolver() {
 		return new CachingModelResolverDecorator(modelResolver);
@@ -7,7 +7,10 @@
 package com.ibm.cohort.cql.hapi;
 
 import com.ibm.cohort.cql.fhir.resolver.FhirResourceResolver;
+import com.ibm.cohort.cql.hapi.resolver.R4BaseFhirServerResourceResolver;
 import com.ibm.cohort.cql.helpers.CanonicalHelper;
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
+import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.Coding;
@@ -21,24 +24,86 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Gathers all logic {@link Library} dependencies for a specified
  * {@link Library} id or all logic libraries referenced by a {@link Measure}.
+ *
+ * <p>Library references are only resolved once and the dependency closure of
+ * each library is remembered by its canonical URL and version, so repeated
+ * evaluations of the same measure do not walk the dependency graph again.
+ * Use {@link #invalidate(String)} or {@link #invalidateAll()} when libraries
+ * change on the backing server. When more than one thread is configured,
+ * the sibling dependencies of a library are resolved in parallel on an
+ * executor that is shared by every gatherer. This is the default for
+ * resolvers that query a FHIR server.
  */
 public class R4LibraryDependencyGatherer {
 
+    /**
+     * Default number of threads, shared by every gatherer, that resolve
+     * dependencies in parallel. The {@value #THREADS_PROPERTY} system property
+     * overrides it.
+     */
+    public static final int DEFAULT_MAX_THREADS = 4;
+    public static final String THREADS_PROPERTY = "cohort.libraryDependency.threads";
+
+    private static ExecutorService sharedExecutor;
+
     private final FhirResourceResolver<Library> libraryResolver;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Library> resolvedLibraries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<Library>> closures = new ConcurrentHashMap<>();
 
     public R4LibraryDependencyGatherer(FhirResourceResolver<Library> libraryResolver) {
+        this(libraryResolver, libraryResolver instanceof R4BaseFhirServerResourceResolver ? DEFAULT_MAX_THREADS : 1);
+    }
+
+    /**
+     * @param libraryResolver Resolver used to load Library resources. It must be
+     *                        safe for use by multiple threads when maxThreads is
+     *                        greater than one.
+     * @param maxThreads      A value of one resolves dependencies on the calling
+     *                        thread. Larger values resolve dependencies on the
+     *                        shared executor (see {@link #getSharedExecutor()}),
+     *                        which resolves at most {@value #THREADS_PROPERTY}
+     *                        dependencies at a time for all gatherers.
+     */
+    public R4LibraryDependencyGatherer(FhirResourceResolver<Library> libraryResolver, int maxThreads) {
+        this(libraryResolver, checkMaxThreads(maxThreads) > 1 ? getSharedExecutor() : null);
+    }
+
+    /**
+     * @param libraryResolver Resolver used to load Library resources. It must be
+     *                        safe for use by multiple threads when an executor is
+     *                        provided.
+     * @param executor        Executor used to resolve sibling dependencies in
+     *                        parallel, or null to resolve dependencies on the
+     *                        calling thread. The executor is not shut down by
+     *                        the gatherer.
+     */
+    public R4LibraryDependencyGatherer(FhirResourceResolver<Library> libraryResolver, ExecutorService executor) {
         this.libraryResolver = libraryResolver;
+        this.executor = executor;
+    }
+
+    private static int checkMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be greater than zero");
+        }
+        return maxThreads;
     }
 
     public List<Library> gatherForLibraryId(String rootLibraryId) {
         List<Library> retVal = Collections.emptyList();
         Library rootLibrary = resolveLibrary(rootLibraryId);
         if (rootLibrary != null) {
-            retVal = recurse(rootLibrary, new HashSet<>());
+            retVal = new ArrayList<>(getClosure(rootLibrary));
         }
         return retVal;
     }
@@ -49,14 +114,66 @@ public class R4LibraryDependencyGatherer {
         for (CanonicalType ref : measure.getLibrary()) {
             Library library = resolveLibrary(ref.getValue());
             if (library != null) {
-                retVal.addAll(recurse(library, loadedCanonicalUrls));
+                // The closure of an earlier library contains everything reachable from
+                // its members, so skipping those members gives the same order as a
+                // walk that shares the set of visited libraries.
+                for (Library dependency : getClosure(library)) {
+                    if (loadedCanonicalUrls.add(getCanonicalUrl(dependency))) {
+                        retVal.add(dependency);
+                    }
+                }
             }
         }
         return retVal;
     }
 
+    /**
+     * Forget the resolved libraries and dependency closures that include the
+     * specified library.
+     *
+     * @param canonicalUrl Library URL with an optional version (url|version). When
+     *                     no version is provided, all versions are invalidated.
+     */
+    public void invalidate(String canonicalUrl) {
+        Pair<String, String> parts = CanonicalHelper.separateParts(canonicalUrl);
+        resolvedLibraries.values().removeIf(library -> matches(library, parts));
+        closures.values().removeIf(closure -> closure.stream().anyMatch(library -> matches(library, parts)));
+    }
+
+    public void invalidateAll() {
+        resolvedLibraries.clear();
+        closures.clear();
+    }
+
+    private static boolean matches(Library library, Pair<String, String> parts) {
+        return parts.getLeft().equals(library.getUrl())
+                && (parts.getRight() == null || parts.getRight().equals(library.getVersion()));
+    }
+
+    private List<Library> getClosure(Library library) {
+        // Libraries without a URL cannot be told apart, so their closures are not kept
+        if (!library.hasUrl()) {
+            return recurse(library, new HashSet<>());
+        }
+
+        String canonicalUrl = getCanonicalUrl(library);
+        List<Library> closure = closures.get(canonicalUrl);
+        if (closure == null) {
+            closure = Collections.unmodifiableList(recurse(library, new HashSet<>()));
+            List<Library> existing = closures.putIfAbsent(canonicalUrl, closure);
+            if (existing != null) {
+                closure = existing;
+            }
+        }
+        return closure;
+    }
+
+    private static String getCanonicalUrl(Library library) {
+        return CanonicalHelper.toCanonicalUrl(library.getUrl(), library.getVersion());
+    }
+
     private List<Library> recurse(Library library, Set<String> loadedCanonicalUrls) {
-        String canonicalUrl = CanonicalHelper.toCanonicalUrl(library.getUrl(), library.getVersion());
+        String canonicalUrl = getCanonicalUrl(library);
         if (loadedCanonicalUrls.contains(canonicalUrl)) {
             return Collections.emptyList();
         }
@@ -66,20 +183,77 @@ public class R4LibraryDependencyGatherer {
         loadedCanonicalUrls.add(canonicalUrl);
 
         if (library.hasRelatedArtifact()) {
+            List<String> relatedIdentifiers = new ArrayList<>();
             for (RelatedArtifact related : library.getRelatedArtifact()) {
                 if (related.hasType() && related.getType().equals(RelatedArtifact.RelatedArtifactType.DEPENDSON) && related.hasResource()) {
-                    String relatedIdentifier = related.getResource();
-                    Library relatedLibrary = resolveLibrary(relatedIdentifier);
-                    if (relatedLibrary != null) {
-                        retVal.addAll(recurse(relatedLibrary, loadedCanonicalUrls));
-                    }
+                    relatedIdentifiers.add(related.getResource());
                 }
             }
+
+            for (Library relatedLibrary : resolveLibraries(relatedIdentifiers)) {
+                if (relatedLibrary != null) {
+                    retVal.addAll(recurse(relatedLibrary, loadedCanonicalUrls));
+                }
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Resolve each of the provided references, in parallel when more than one
+     * reference has not been resolved before and more than one thread is allowed.
+     *
+     * @param resources String references to FHIR Library resources
+     * @return Loaded FHIR Library resources in reference order with null entries
+     *         for references that could not be resolved
+     */
+    private List<Library> resolveLibraries(List<String> resources) {
+        long unresolved = resources.stream().filter(resource -> !resolvedLibraries.containsKey(resource)).count();
+        if (executor == null || unresolved < 2) {
+            List<Library> retVal = new ArrayList<>(resources.size());
+            for (String resource : resources) {
+                retVal.add(resolveLibrary(resource));
+            }
+            return retVal;
         }
 
+        List<Future<Library>> futures = new ArrayList<>(resources.size());
+        for (String resource : resources) {
+            futures.add(executor.submit(() -> resolveLibrary(resource)));
+        }
+
+        List<Library> retVal = new ArrayList<>(resources.size());
+        try {
+            for (Future<Library> future : futures) {
+                retVal.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Failed to resolve library dependencies", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while resolving library dependencies", e);
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
         return retVal;
     }
 
+    /**
+     * @return executor, shared by every gatherer, used to resolve dependencies
+     *         in parallel
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = DaemonExecutors.newFixedThreadPool("library-dependency",
+                    DaemonExecutors.getThreads(THREADS_PROPERTY, DEFAULT_MAX_THREADS));
+        }
+        return sharedExecutor;
+    }
+
     /**
      * Resolve a FHIR Library resource based on the string reference provided.
      *
@@ -88,6 +262,18 @@ public class R4LibraryDependencyGatherer {
      *         an understood reference
      */
     private Library resolveLibrary(String resource) {
+        Library library = resolvedLibraries.get(resource);
+        if (library == null) {
+            library = resolveUncachedLibrary(resource);
+            // Missing libraries are not remembered so that they are found once they are loaded
+            if (library != null) {
+                resolvedLibraries.putIfAbsent(resource, library);
+            }
+        }
+        return library;
+    }
+
+    private Library resolveUncachedLibrary(String resource) {
 
         Library library = null;
 
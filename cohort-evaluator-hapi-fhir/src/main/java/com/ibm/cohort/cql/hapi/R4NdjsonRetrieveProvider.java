@@ -0,0 +1,219 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Period;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import com.ibm.cohort.cql.cache.RetrieveCodeExtractor;
+import com.ibm.cohort.cql.evaluation.ContextNames;
+
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * FHIR R4 retrieve provider for the resources of a directory of FHIR bulk
+ * data export NDJSON files (see {@link NdjsonResourceIndex}). Retrieves in the
+ * Patient context read only the resources in the compartment of the patient,
+ * and only resources of the retrieved data type are parsed. A resource can be
+ * in the compartment through any of several elements, so only the resources
+ * whose element at the context path references the patient are returned.
+ *
+ * <p>Codes and date ranges are applied in memory the way FHIR token and date
+ * searches apply them. Date ranges match resources whose dates overlap the
+ * range, widened by the largest time zone offset since dates in resources may
+ * have no time zone, so a retrieve can return more resources than a query
+ * condition on the same dates keeps.
+ */
+public class R4NdjsonRetrieveProvider extends TerminologyAwareRetrieveProvider {
+
+	private static final long MAX_OFFSET_MILLIS = TimeUnit.HOURS.toMillis(14);
+	private static final String PATIENT = "Patient";
+
+	private final NdjsonResourceIndex index;
+	private final ModelResolver modelResolver;
+	private final RetrieveCodeExtractor codeExtractor;
+	private final ThreadLocal<IParser> parsers;
+
+	public R4NdjsonRetrieveProvider(NdjsonResourceIndex index, ModelResolver modelResolver) {
+		this.index = index;
+		this.modelResolver = modelResolver;
+		this.codeExtractor = new R4RetrieveCodeExtractor(modelResolver);
+		// ValueSets are always expanded to filter the local resources
+		setExpandValueSets(true);
+		// Parsers are not thread-safe
+		this.parsers = ThreadLocal.withInitial(() -> index.getFhirContext().newJsonParser());
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType, String templateId,
+			String codePath, Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath,
+			Interval dateRange) {
+		String patientId = ContextNames.PATIENT.equals(context) && contextPath != null && contextValue != null
+				? String.valueOf(contextValue)
+				: null;
+		List<String> resources = patientId != null
+				? index.getPatientResources(patientId, dataType)
+				: index.getResources(dataType);
+
+		Iterable<Code> filterCodes = codes;
+		if (codePath != null && valueSet != null && filterCodes == null) {
+			filterCodes = terminologyProvider.expand(new ValueSetInfo().withId(valueSet));
+		}
+		if (codePath != null && filterCodes != null && !filterCodes.iterator().hasNext()) {
+			return Collections.emptyList();
+		}
+
+		IParser parser = parsers.get();
+		List<Object> results = new ArrayList<>();
+		for (String json : resources) {
+			Object resource = parser.parseResource(json);
+			if ((patientId == null || references(modelResolver.resolvePath(resource, contextPath), patientId))
+					&& (codePath == null || filterCodes == null || hasCode(resource, codePath, filterCodes))
+					&& isInRange(resource, datePath, dateLowPath, dateHighPath, dateRange)) {
+				results.add(resource);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return true when the value of a context path, such as the subject
+	 *         reference of a resource or the id of a Patient, is the patient
+	 */
+	private static boolean references(Object value, String patientId) {
+		if (value instanceof Iterable) {
+			for (Object item : (Iterable<?>) value) {
+				if (references(item, patientId)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		IIdType id;
+		if (value instanceof IBaseReference) {
+			id = ((IBaseReference) value).getReferenceElement();
+		}
+		else if (value instanceof IIdType) {
+			id = (IIdType) value;
+		}
+		else if (value instanceof IPrimitiveType || value instanceof String) {
+			String text = value instanceof String ? (String) value : ((IPrimitiveType<?>) value).getValueAsString();
+			id = text != null ? new IdType(text) : null;
+		}
+		else {
+			return false;
+		}
+		return id != null && patientId.equals(id.getIdPart())
+				&& (!id.hasResourceType() || PATIENT.equals(id.getResourceType()));
+	}
+
+	private boolean hasCode(Object resource, String codePath, Iterable<Code> filterCodes) {
+		for (Code code : codeExtractor.extractCodes(resource, codePath)) {
+			for (Code filterCode : filterCodes) {
+				if (Objects.equals(code.getCode(), filterCode.getCode())
+						&& (filterCode.getSystem() == null || Objects.equals(code.getSystem(), filterCode.getSystem()))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isInRange(Object resource, String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+		if (dateRange == null || (datePath == null && dateLowPath == null && dateHighPath == null)) {
+			return true;
+		}
+		Long rangeLow = getStart(dateRange.getLow());
+		Long rangeHigh = getEnd(dateRange.getHigh());
+
+		if (datePath != null) {
+			return overlaps(modelResolver.resolvePath(resource, datePath), rangeLow, rangeHigh);
+		}
+		Object low = dateLowPath != null ? modelResolver.resolvePath(resource, dateLowPath) : null;
+		Object high = dateHighPath != null ? modelResolver.resolvePath(resource, dateHighPath) : null;
+		Long valueLow = low instanceof BaseDateTimeType ? getStart((BaseDateTimeType) low) : null;
+		Long valueHigh = high instanceof BaseDateTimeType ? getEnd((BaseDateTimeType) high) : null;
+		return overlaps(valueLow, valueHigh, rangeLow, rangeHigh);
+	}
+
+	private static boolean overlaps(Object value, Long rangeLow, Long rangeHigh) {
+		if (value == null) {
+			return false;
+		}
+		else if (value instanceof Iterable) {
+			for (Object item : (Iterable<?>) value) {
+				if (overlaps(item, rangeLow, rangeHigh)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		else if (value instanceof BaseDateTimeType) {
+			BaseDateTimeType date = (BaseDateTimeType) value;
+			return date.getValue() != null && overlaps(getStart(date), getEnd(date), rangeLow, rangeHigh);
+		}
+		else if (value instanceof Period) {
+			Period period = (Period) value;
+			return overlaps(period.getStartElement().getValue() != null ? getStart(period.getStartElement()) : null,
+					period.getEndElement().getValue() != null ? getEnd(period.getEndElement()) : null,
+					rangeLow, rangeHigh);
+		}
+		// Values that are not dates, such as ages, are not filtered
+		return true;
+	}
+
+	/**
+	 * Null bounds are treated as unbounded.
+	 */
+	private static boolean overlaps(Long valueLow, Long valueHigh, Long rangeLow, Long rangeHigh) {
+		return (valueHigh == null || rangeLow == null || valueHigh + MAX_OFFSET_MILLIS >= rangeLow)
+				&& (valueLow == null || rangeHigh == null || valueLow - MAX_OFFSET_MILLIS <= rangeHigh);
+	}
+
+	private static long getStart(BaseDateTimeType date) {
+		return date.getValue().getTime();
+	}
+
+	private static long getEnd(BaseDateTimeType date) {
+		Date end = date.getPrecision().add(date.getValue(), 1);
+		return end.getTime() - 1;
+	}
+
+	private static Long getStart(Object bound) {
+		return bound instanceof DateTime ? ((DateTime) bound).getDateTime().toInstant().toEpochMilli() : null;
+	}
+
+	private static Long getEnd(Object bound) {
+		if (!(bound instanceof DateTime)) {
+			return null;
+		}
+		DateTime dateTime = (DateTime) bound;
+		ChronoUnit unit = dateTime.getPrecision() != null ? dateTime.getPrecision().toChronoUnit() : ChronoUnit.MILLIS;
+		OffsetDateTime end = dateTime.getDateTime().plus(1, unit);
+		return end.toInstant().toEpochMilli() - 1;
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.cql.engine.fhir.retrieve.RestFhirRetrieveProvider;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.cohort.cql.cache.DateRangeAware;
+import com.ibm.cohort.cql.cache.ElementProjection;
+import com.ibm.cohort.cql.cache.ElementProjectionAware;
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrieveRequest;
+import com.ibm.cohort.cql.data.BatchRetrieveProvider;
+import com.ibm.cohort.cql.data.MultiRetrieveProvider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * FHIR R4 REST retrieve provider that looks up resources by id with
+ * <code>_id</code> searches of up to {@link #getMaxIdsPerQuery()} ids each
+ * instead of reading every resource on its own. When the server rejects a
+ * search, the resources in that search are read one at a time.
+ *
+ * <p>Search results are returned as a {@link PrefetchingSearchResults}. When
+ * a prefetch executor is set, the next page of a search is requested in the
+ * background while the current one is parsed.
+ *
+ * <p>Multiple retrieves are made with one FHIR batch Bundle that holds the
+ * search of every retrieve. Searches that fail in the batch, or every search
+ * when the server rejects the batch, are made on their own, in the background
+ * when a prefetch executor is set. Batches need an {@link R4SearchQueryGenerator}
+ * to generate the searches; with any other query generator the retrieves are
+ * made one at a time.
+ *
+ * <p>Once element requirements are added, searches for a data type whose
+ * elements are known request only those elements with the
+ * <code>_elements</code> parameter. When the server rejects a search with
+ * <code>_elements</code>, the search is made again for whole resources and
+ * elements are no longer requested from that server.
+ *
+ * <p>When date ranges may be widened (see {@link DateRangeAware}), retrieves
+ * with a date range search with the date search parameter of their date
+ * property unless the CapabilityStatement of the server lists the search
+ * parameters of the data type without that parameter, or the range cannot be
+ * expressed as a date search. The retrieve is then made without the range and
+ * every resource is returned. This is correct for retrieves whose queries
+ * apply the date condition themselves, as the retrieves of
+ * {@link com.ibm.cohort.cql.evaluation.RetrieveDateRangeOptimizer} do.
+ * Otherwise date ranges are given to the query generator as they are.
+ */
+public class R4RestFhirRetrieveProvider extends RestFhirRetrieveProvider implements BatchRetrieveProvider, MultiRetrieveProvider, ElementProjectionAware, DateRangeAware {
+
+	private static final Logger LOG = LoggerFactory.getLogger(R4RestFhirRetrieveProvider.class);
+
+	/**
+	 * Keeps the search URL well under the request line limits of common
+	 * servers and proxies for typical id lengths.
+	 */
+	public static final int DEFAULT_MAX_IDS_PER_QUERY = 100;
+
+	private static final String ELEMENTS_PARAMETER = "_elements";
+
+	private int maxIdsPerQuery = DEFAULT_MAX_IDS_PER_QUERY;
+	private Executor prefetchExecutor;
+	private final ElementProjection elementProjection = new ElementProjection();
+	private volatile boolean elementsSupported = true;
+	private volatile CapabilityStatement capabilityStatement;
+	private volatile boolean widenDateRanges;
+
+	public R4RestFhirRetrieveProvider(SearchParameterResolver searchParameterResolver, IGenericClient fhirClient) {
+		super(searchParameterResolver, fhirClient);
+	}
+
+	public int getMaxIdsPerQuery() {
+		return maxIdsPerQuery;
+	}
+
+	public void setMaxIdsPerQuery(int maxIdsPerQuery) {
+		if (maxIdsPerQuery < 1) {
+			throw new IllegalArgumentException("maxIdsPerQuery must be greater than zero");
+		}
+		this.maxIdsPerQuery = maxIdsPerQuery;
+	}
+
+	public Executor getPrefetchExecutor() {
+		return prefetchExecutor;
+	}
+
+	/**
+	 * @param prefetchExecutor executor used to request search result pages in
+	 *                         the background or null to request pages when
+	 *                         they are consumed
+	 */
+	public void setPrefetchExecutor(Executor prefetchExecutor) {
+		this.prefetchExecutor = prefetchExecutor;
+	}
+
+	@Override
+	public void addElementRequirements(RetrievePlan retrievePlan) {
+		elementProjection.add(retrievePlan);
+	}
+
+	@Override
+	public void setWidenDateRanges(boolean widenDateRanges) {
+		this.widenDateRanges = widenDateRanges;
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType, String templateId,
+			String codePath, Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath,
+			Interval dateRange) {
+		if (widenDateRanges && (datePath != null || dateLowPath != null || dateHighPath != null || dateRange != null)
+				&& !isDateSearchSupported(dataType, datePath, dateLowPath, dateHighPath, dateRange)) {
+			LOG.debug("Searching {} resources without the date range of {}", dataType, datePath);
+			return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+					null, null, null, null);
+		}
+		return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+				datePath, dateLowPath, dateHighPath, dateRange);
+	}
+
+	@Override
+	protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
+		if (queries == null || queries.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<Callable<IBaseResource>> searches = new ArrayList<>(queries.size());
+		for (SearchParameterMap query : queries) {
+			addElements(dataType, query);
+			searches.add(() -> search(dataType, query));
+		}
+		return new PrefetchingSearchResults(fhirClient, dataType, searches, prefetchExecutor);
+	}
+
+	@Override
+	public Map<String, Object> retrieveByIds(String dataType, List<String> ids) {
+		Map<String, Object> resources = new HashMap<>();
+		for (int start = 0; start < ids.size(); start += maxIdsPerQuery) {
+			List<String> chunk = ids.subList(start, Math.min(ids.size(), start + maxIdsPerQuery));
+			try {
+				searchByIds(dataType, chunk, resources);
+			}
+			catch (BaseServerResponseException e) {
+				LOG.warn("Search for {} {} resources by id failed, reading them individually: {}", chunk.size(), dataType, e.getMessage());
+				resources.putAll(BatchRetrieveProvider.retrieveEach(this, dataType, chunk));
+			}
+		}
+		return resources;
+	}
+
+	@Override
+	public List<Iterable<Object>> retrieveAll(List<RetrieveRequest> requests) {
+		if (!(getFhirQueryGenerator() instanceof R4SearchQueryGenerator)) {
+			return MultiRetrieveProvider.retrieveEach(this, requests);
+		}
+
+		List<List<SearchParameterMap>> queries = new ArrayList<>(requests.size());
+		Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+		for (RetrieveRequest request : requests) {
+			List<SearchParameterMap> requestQueries = generateQueries(request);
+			queries.add(requestQueries);
+			for (SearchParameterMap query : requestQueries) {
+				if (query.getCount() == null && getPageSize() != null) {
+					query.setCount(getPageSize());
+				}
+				addElements(request.getDataType(), query);
+				batch.addEntry().getRequest()
+						.setMethod(Bundle.HTTPVerb.GET)
+						.setUrl(request.getDataType() + query.toNormalizedQueryString(fhirClient.getFhirContext()));
+			}
+		}
+
+		List<Bundle.BundleEntryComponent> responses = Collections.emptyList();
+		if (!batch.getEntry().isEmpty()) {
+			try {
+				responses = fhirClient.transaction().withBundle(batch).execute().getEntry();
+			}
+			catch (BaseServerResponseException e) {
+				LOG.warn("Batch of {} searches failed, making them individually: {}", batch.getEntry().size(), e.getMessage());
+			}
+			if (!responses.isEmpty() && responses.size() != batch.getEntry().size()) {
+				LOG.warn("Batch of {} searches returned {} entries, making them individually", batch.getEntry().size(), responses.size());
+				responses = Collections.emptyList();
+			}
+		}
+
+		List<Iterable<Object>> results = new ArrayList<>(requests.size());
+		int entry = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			String dataType = requests.get(i).getDataType();
+			List<Callable<IBaseResource>> searches = new ArrayList<>();
+			for (SearchParameterMap query : queries.get(i)) {
+				Resource page = !responses.isEmpty() ? getSearchResponse(responses.get(entry++)) : null;
+				searches.add(page != null ? () -> page : () -> search(dataType, query));
+			}
+			results.add(new PrefetchingSearchResults(fhirClient, dataType, searches, prefetchExecutor));
+		}
+		return results;
+	}
+
+	/**
+	 * Generate the searches that {@link #retrieve} makes for a request without
+	 * making them.
+	 */
+	private List<SearchParameterMap> generateQueries(RetrieveRequest request) {
+		R4SearchQueryGenerator queryGenerator = (R4SearchQueryGenerator) getFhirQueryGenerator();
+		queryGenerator.setExpandValueSets(isExpandValueSets());
+		queryGenerator.setMaxCodesPerQuery(getMaxCodesPerQuery());
+		if (getPageSize() != null) {
+			queryGenerator.setPageSize(getPageSize());
+		}
+		List<SearchParameterMap> queries = queryGenerator.setupQueries(request.getContext(), request.getContextPath(),
+				request.getContextValue(), request.getDataType(), request.getTemplateId(), request.getCodePath(),
+				request.getCodes(), request.getValueSet(), null, null, null, null);
+		return queries != null ? queries : Collections.emptyList();
+	}
+
+	/**
+	 * Request only the elements that are read from the data type, unless
+	 * they are unknown. Reads by id are left as they are.
+	 */
+	private void addElements(String dataType, SearchParameterMap query) {
+		SortedSet<String> elements = elementsSupported ? elementProjection.getElements(dataType) : null;
+		if (elements == null || query.containsKey("_id")) {
+			return;
+		}
+		// Servers return the id and mandatory elements of every resource, which is all that is needed when no
+		// element is read
+		query.add(ELEMENTS_PARAMETER, new ElementsParam(elements.isEmpty() ? Collections.singleton("id") : elements));
+	}
+
+	private IBaseResource search(String dataType, SearchParameterMap query) {
+		try {
+			return executeQuery(dataType, query);
+		}
+		catch (InvalidRequestException e) {
+			if (!query.containsKey(ELEMENTS_PARAMETER)) {
+				throw e;
+			}
+			LOG.warn("Search of {} resources with {} was rejected, requesting whole resources: {}", dataType, ELEMENTS_PARAMETER, e.getMessage());
+			query.remove(ELEMENTS_PARAMETER);
+			IBaseResource result;
+			try {
+				result = executeQuery(dataType, query);
+			}
+			catch (RuntimeException retryException) {
+				// The search was rejected for another reason, so elements are still requested
+				e.addSuppressed(retryException);
+				throw e;
+			}
+			elementsSupported = false;
+			return result;
+		}
+	}
+
+	/**
+	 * @return true when the date range can be searched with a date parameter
+	 *         that the server does not declare as unsupported for the data
+	 *         type
+	 */
+	private boolean isDateSearchSupported(String dataType, String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+		if (datePath == null || dateLowPath != null || dateHighPath != null || dateRange == null
+				|| !(dateRange.getLow() instanceof DateTime) || !(dateRange.getHigh() instanceof DateTime)) {
+			return false;
+		}
+		RuntimeSearchParam searchParam = searchParameterResolver.getSearchParameterDefinition(dataType, datePath, RestSearchParameterTypeEnum.DATE);
+		if (searchParam == null) {
+			return false;
+		}
+		// Servers that do not list the search parameters of a data type are assumed to support the standard ones
+		boolean declared = false;
+		for (CapabilityStatement.CapabilityStatementRestComponent rest : getCapabilityStatement().getRest()) {
+			for (CapabilityStatement.CapabilityStatementRestResourceComponent resource : rest.getResource()) {
+				if (dataType.equals(resource.getType()) && resource.hasSearchParam()) {
+					declared = true;
+					for (CapabilityStatement.CapabilityStatementRestResourceSearchParamComponent param : resource.getSearchParam()) {
+						if (searchParam.getName().equals(param.getName())) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return !declared;
+	}
+
+	/**
+	 * @return the CapabilityStatement of the server, read once, or an empty
+	 *         statement when it cannot be read
+	 */
+	private CapabilityStatement getCapabilityStatement() {
+		CapabilityStatement result = capabilityStatement;
+		if (result == null) {
+			try {
+				result = fhirClient.capabilities().ofType(CapabilityStatement.class).execute();
+			}
+			catch (BaseServerResponseException e) {
+				LOG.warn("Reading the server CapabilityStatement failed, assuming it supports the standard date search parameters: {}", e.getMessage());
+				result = new CapabilityStatement();
+			}
+			capabilityStatement = result;
+		}
+		return result;
+	}
+
+	private static Resource getSearchResponse(Bundle.BundleEntryComponent entry) {
+		if (entry.hasResource() && entry.getResource() instanceof Bundle
+				&& entry.hasResponse() && entry.getResponse().getStatus() != null && entry.getResponse().getStatus().startsWith("2")) {
+			return entry.getResource();
+		}
+		LOG.debug("Search failed in batch, making it individually: {}", entry.hasResponse() ? entry.getResponse().getStatus() : null);
+		return null;
+	}
+
+	private void searchByIds(String dataType, List<String> ids, Map<String, Object> resources) {
+		Bundle bundle = fhirClient.search()
+				.forResource(dataType)
+				.where(IAnyResource.RES_ID.exactly().codes(ids))
+				.count(ids.size())
+				.returnBundle(Bundle.class)
+				.execute();
+
+		while (bundle != null) {
+			for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+				if (entry.hasResource()) {
+					resources.put(entry.getResource().getIdElement().getIdPart(), entry.getResource());
+				}
+			}
+
+			bundle = bundle.getLink(IBaseBundle.LINK_NEXT) != null
+					? fhirClient.loadPage().next(bundle).execute()
+					: null;
+		}
+	}
+
+	/**
+	 * The element names of an <code>_elements</code> parameter, separated by
+	 * commas that are not escaped the way the commas of string parameter
+	 * values are.
+	 */
+	private static class ElementsParam implements IQueryParameterType {
+		private String value;
+		private Boolean missing;
+
+		ElementsParam(Collection<String> elements) {
+			this.value = String.join(",", elements);
+		}
+
+		@Override
+		public void setValueAsQueryToken(FhirContext context, String paramName, String qualifier, String value) {
+			this.value = value;
+		}
+
+		@Override
+		public String getValueAsQueryToken(FhirContext context) {
+			return value;
+		}
+
+		@Override
+		public String getQueryParameterQualifier() {
+			return null;
+		}
+
+		@Override
+		public Boolean getMissing() {
+			return missing;
+		}
+
+		@Override
+		public IQueryParameterType setMissing(Boolean missing) {
+			this.missing = missing;
+			return this;
+		}
+	}
+}
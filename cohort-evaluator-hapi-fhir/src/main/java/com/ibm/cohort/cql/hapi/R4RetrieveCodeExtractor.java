@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import com.ibm.cohort.cql.cache.RetrieveCodeExtractor;
+
+/**
+ * Reads the codes at the code path of a retrieve from R4 resources. The
+ * codings of CodeableConcepts, Codings and plain code values, alone or in
+ * lists, are returned the way FHIR token search matches them.
+ */
+public class R4RetrieveCodeExtractor implements RetrieveCodeExtractor {
+
+	private final ModelResolver modelResolver;
+
+	public R4RetrieveCodeExtractor(ModelResolver modelResolver) {
+		this.modelResolver = modelResolver;
+	}
+
+	@Override
+	public Iterable<Code> extractCodes(Object resource, String codePath) {
+		List<Code> codes = new ArrayList<>();
+		addCodes(modelResolver.resolvePath(resource, codePath), codes);
+		return codes;
+	}
+
+	private static void addCodes(Object value, List<Code> codes) {
+		if (value instanceof Iterable) {
+			for (Object item : (Iterable<?>) value) {
+				addCodes(item, codes);
+			}
+		}
+		else if (value instanceof CodeableConcept) {
+			for (Coding coding : ((CodeableConcept) value).getCoding()) {
+				addCodes(coding, codes);
+			}
+		}
+		else if (value instanceof Coding) {
+			Coding coding = (Coding) value;
+			codes.add(new Code().withSystem(coding.getSystem()).withCode(coding.getCode()));
+		}
+		else if (value instanceof Code) {
+			codes.add((Code) value);
+		}
+		else if (value instanceof IPrimitiveType) {
+			codes.add(new Code().withCode(((IPrimitiveType<?>) value).getValueAsString()));
+		}
+		else if (value instanceof String) {
+			codes.add(new Code().withCode((String) value));
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import java.util.List;
+
+import org.opencds.cqf.cql.engine.fhir.exception.FhirVersionMisMatchException;
+import org.opencds.cqf.cql.engine.fhir.retrieve.R4FhirQueryGenerator;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+
+/**
+ * R4 query generator that lets callers generate the searches of a retrieve
+ * without making them, so that {@link R4RestFhirRetrieveProvider} can put the
+ * searches of several retrieves in one batch.
+ */
+public class R4SearchQueryGenerator extends R4FhirQueryGenerator {
+
+	public R4SearchQueryGenerator(SearchParameterResolver searchParameterResolver, TerminologyProvider terminologyProvider,
+			ModelResolver modelResolver) throws FhirVersionMisMatchException {
+		super(searchParameterResolver, terminologyProvider, modelResolver);
+	}
+
+	@Override
+	public List<SearchParameterMap> setupQueries(String context, String contextPath, Object contextValue, String dataType,
+			String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath, String dateLowPath,
+			String dateHighPath, Interval dateRange) {
+		return super.setupQueries(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+				datePath, dateLowPath, dateHighPath, dateRange);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class NdjsonResourceIndexTest {
+
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path directory;
+	private IParser parser;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = temporaryFolder.newFolder().toPath();
+		parser = FHIR_CONTEXT.newJsonParser();
+	}
+
+	@Test
+	public void open_new_directory___resources_indexed_by_type_and_patient() throws IOException {
+		write("Patient.ndjson", "\n", patient("1"), patient("2"));
+		write("Condition.ndjson", "\r\n", condition("c1", "1"), condition("c2", "2"), condition("c3", "1"));
+		write("Observation.ndjson", "\n", observation("o1", "1", "2"));
+		write("Medication.ndjson", "\n", new Medication().setId("m1"));
+
+		try (NdjsonResourceIndex index = NdjsonResourceIndex.open(FHIR_CONTEXT, directory)) {
+			assertEquals(Arrays.asList("c1", "c3"), ids(index.getPatientResources("1", "Condition")));
+			assertEquals(Collections.singletonList("c2"), ids(index.getPatientResources("2", "Condition")));
+			assertEquals(Collections.singletonList("1"), ids(index.getPatientResources("1", "Patient")));
+			// Resources can be in the compartments of several patients
+			assertEquals(Collections.singletonList("o1"), ids(index.getPatientResources("2", "Observation")));
+			assertEquals(Collections.singletonList("o1"), ids(index.getPatientResources("1", "Observation")));
+
+			assertEquals(3, index.getResources("Condition").size());
+			assertEquals(Collections.singletonList("m1"), ids(index.getResources("Medication")));
+			assertTrue(index.getPatientResources("1", "Medication").isEmpty());
+			assertTrue(index.getPatientResources("3", "Condition").isEmpty());
+			assertTrue(index.getResources("Encounter").isEmpty());
+		}
+	}
+
+	@Test
+	public void open_indexed_directory___index_reused_until_files_change() throws IOException {
+		write("Condition.ndjson", "\n", condition("c1", "1"));
+		NdjsonResourceIndex.open(FHIR_CONTEXT, directory).close();
+		Path indexFile = directory.resolve(NdjsonResourceIndex.DEFAULT_INDEX_FILE_NAME);
+		FileTime indexed = FileTime.fromMillis(0);
+		Files.setLastModifiedTime(indexFile, indexed);
+
+		NdjsonResourceIndex.open(FHIR_CONTEXT, directory).close();
+		assertEquals(indexed, Files.getLastModifiedTime(indexFile));
+
+		Files.write(directory.resolve("Condition.ndjson"), (parser.encodeResourceToString(condition("c2", "1")) + "\n").getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+		try (NdjsonResourceIndex index = NdjsonResourceIndex.open(FHIR_CONTEXT, directory)) {
+			assertEquals(Arrays.asList("c1", "c2"), ids(index.getPatientResources("1", "Condition")));
+		}
+	}
+
+	private void write(String fileName, String lineSeparator, Resource... resources) throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (Resource resource : resources) {
+			content.append(parser.encodeResourceToString(resource)).append(lineSeparator);
+		}
+		Files.write(directory.resolve(fileName), content.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private List<String> ids(List<String> resources) {
+		List<String> ids = new ArrayList<>();
+		for (String resource : resources) {
+			ids.add(parser.parseResource(resource).getIdElement().getIdPart());
+		}
+		return ids;
+	}
+
+	static Patient patient(String id) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		return patient;
+	}
+
+	static Condition condition(String id, String patientId) {
+		Condition condition = new Condition();
+		condition.setId(id);
+		condition.setSubject(new Reference("Patient/" + patientId));
+		return condition;
+	}
+
+	static Observation observation(String id, String subjectId, String performerId) {
+		Observation observation = new Observation();
+		observation.setId(id);
+		observation.setSubject(new Reference("Patient/" + subjectId));
+		observation.addPerformer(new Reference("Patient/" + performerId));
+		return observation;
+	}
+}
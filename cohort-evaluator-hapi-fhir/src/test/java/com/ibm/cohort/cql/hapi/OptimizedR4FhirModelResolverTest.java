@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+
+import com.ibm.cohort.cql.data.PropertyAccessor;
+
+public class OptimizedR4FhirModelResolverTest {
+
+	private final OptimizedR4FhirModelResolver resolver = new OptimizedR4FhirModelResolver();
+
+	@Test
+	public void testCompiledAccessorsMatchResolvePath() {
+		Patient patient = new Patient();
+		patient.setId("123");
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+		patient.setBirthDate(new Date());
+		patient.addName(new HumanName().setFamily("Doe"));
+
+		for (String path : Arrays.asList("id", "gender", "birthDate", "name", "deceased", "deceasedBoolean", "active", "unknownField")) {
+			PropertyAccessor accessor = resolver.compilePropertyAccessor(Patient.class, path);
+			assertNotNull(path, accessor);
+			assertEquals(path, resolver.resolvePath(patient, path), accessor.getValue(patient));
+		}
+	}
+
+	@Test
+	public void testChoiceTypeAccessors() {
+		Observation observation = new Observation();
+		observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "1234-5", null)));
+		observation.setValue(new Quantity(5));
+
+		for (String path : Arrays.asList("value", "valueQuantity", "valueString", "code")) {
+			PropertyAccessor accessor = resolver.compilePropertyAccessor(Observation.class, path);
+			assertNotNull(path, accessor);
+			assertEquals(path, resolver.resolvePath(observation, path), accessor.getValue(observation));
+		}
+
+		observation.setValue(new StringType("text"));
+		assertNull(resolver.compilePropertyAccessor(Observation.class, "valueQuantity").getValue(observation));
+		assertEquals(resolver.resolvePath(observation, "valueString"),
+				resolver.compilePropertyAccessor(Observation.class, "valueString").getValue(observation));
+	}
+
+	@Test
+	public void testUncompilablePaths() {
+		assertNull(resolver.compilePropertyAccessor(Patient.class, "name.family"));
+		assertNull(resolver.compilePropertyAccessor(Patient.class, "name[0]"));
+		assertNull(resolver.compilePropertyAccessor(Patient.class, "Patient"));
+		assertNull(resolver.compilePropertyAccessor(StringType.class, "value"));
+		assertNull(resolver.compilePropertyAccessor(String.class, "value"));
+	}
+}
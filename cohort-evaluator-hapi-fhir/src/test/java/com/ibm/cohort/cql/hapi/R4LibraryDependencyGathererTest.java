@@ -8,6 +8,9 @@ package com.ibm.cohort.cql.hapi;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import com.ibm.cohort.cql.helpers.CanonicalHelper;
@@ -25,6 +28,7 @@ import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.codesystems.LibraryType;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 public class R4LibraryDependencyGathererTest {
 
@@ -96,6 +100,93 @@ public class R4LibraryDependencyGathererTest {
         Assert.assertEquals(expected, actual);
     }
 
+    @Test
+    public void repeated_gather___dependencies_resolved_once() {
+        MapFhirResourceResolver<Library, Identifier> resourceResolver = Mockito.spy(getMapFhirResourceResolver());
+        Measure measure = createMeasureWithDependencies(resourceResolver);
+
+        R4LibraryDependencyGatherer dependencyGatherer = new R4LibraryDependencyGatherer(resourceResolver);
+        List<Library> first = dependencyGatherer.gatherForMeasure(measure);
+        List<Library> second = dependencyGatherer.gatherForMeasure(measure);
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(3, first.size());
+        Mockito.verify(resourceResolver, Mockito.times(1)).resolveByCanonicalUrl(Mockito.anyString());
+        Mockito.verify(resourceResolver, Mockito.times(2)).resolveById(Mockito.anyString());
+    }
+
+    @Test
+    public void invalidate___dependencies_resolved_again() {
+        MapFhirResourceResolver<Library, Identifier> resourceResolver = Mockito.spy(getMapFhirResourceResolver());
+        Measure measure = createMeasureWithDependencies(resourceResolver);
+
+        R4LibraryDependencyGatherer dependencyGatherer = new R4LibraryDependencyGatherer(resourceResolver);
+        dependencyGatherer.gatherForMeasure(measure);
+        dependencyGatherer.invalidate("http://some.url.com/Library/Child");
+        dependencyGatherer.gatherForMeasure(measure);
+
+        // Only the invalidated library is resolved again
+        Mockito.verify(resourceResolver, Mockito.times(2)).resolveByCanonicalUrl(Mockito.anyString());
+        Mockito.verify(resourceResolver, Mockito.times(2)).resolveById(Mockito.anyString());
+
+        dependencyGatherer.invalidateAll();
+        dependencyGatherer.gatherForMeasure(measure);
+        Mockito.verify(resourceResolver, Mockito.times(3)).resolveByCanonicalUrl(Mockito.anyString());
+        Mockito.verify(resourceResolver, Mockito.times(4)).resolveById(Mockito.anyString());
+    }
+
+    @Test
+    public void parallel_resolution___same_order_as_sequential() {
+        MapFhirResourceResolver<Library, Identifier> resourceResolver = getMapFhirResourceResolver();
+        Library parent = new Library();
+        withIdentifiers(parent, "Parent", "http://some.url.com/Library/Parent", VERSION_ONE);
+        asLogicLibrary(parent);
+        resourceResolver.addResource(parent);
+
+        for (int i = 0; i < 10; i++) {
+            Library child = new Library();
+            withIdentifiers(child, "Child" + i, "http://some.url.com/Library/Child" + i, VERSION_ONE);
+            asLogicLibrary(child);
+            withRelation(child, "Library/Common");
+            withRelation(parent, "Library/Child" + i);
+            resourceResolver.addResource(child);
+        }
+
+        Library common = new Library();
+        withIdentifiers(common, "Common", "http://some.url.com/Library/Common", VERSION_ONE);
+        asLogicLibrary(common);
+        resourceResolver.addResource(common);
+
+        List<Library> sequential = new R4LibraryDependencyGatherer(resourceResolver, 1).gatherForLibraryId("Parent");
+        List<Library> parallel = new R4LibraryDependencyGatherer(resourceResolver, 4).gatherForLibraryId("Parent");
+
+        Assert.assertEquals(12, sequential.size());
+        Assert.assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void parallel_resolution___executor_shared_or_injected() {
+        MapFhirResourceResolver<Library, Identifier> resourceResolver = getMapFhirResourceResolver();
+        Measure measure = createMeasureWithDependencies(resourceResolver);
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+            threads.incrementAndGet();
+            return new Thread(r);
+        });
+        try {
+            List<Library> injected = new R4LibraryDependencyGatherer(resourceResolver, executor).gatherForMeasure(measure);
+            List<Library> sequential = new R4LibraryDependencyGatherer(resourceResolver, 1).gatherForMeasure(measure);
+
+            Assert.assertEquals(sequential, injected);
+            Assert.assertTrue(threads.get() > 0);
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertSame(R4LibraryDependencyGatherer.getSharedExecutor(), R4LibraryDependencyGatherer.getSharedExecutor());
+    }
+
     @Test
     public void library_with_no_type_but_cql_attachment___returns_library() {
         String libraryId = "lib";
@@ -174,6 +265,29 @@ public class R4LibraryDependencyGathererTest {
         Assert.assertTrue(libraries.isEmpty());
     }
 
+    private Measure createMeasureWithDependencies(MapFhirResourceResolver<Library, Identifier> resourceResolver) {
+        String childUrl = "http://some.url.com/Library/Child";
+        Library child = new Library();
+        withIdentifiers(child, "Child", childUrl, VERSION_ONE);
+        asLogicLibrary(child);
+
+        Library parent = new Library();
+        withIdentifiers(parent, "Parent", "http://some.url.com/Library/Parent", VERSION_ONE);
+        asLogicLibrary(parent);
+        withRelation(parent, CanonicalHelper.toCanonicalUrl(childUrl, VERSION_ONE));
+        withRelation(parent, "Library/Other");
+
+        Library other = new Library();
+        withIdentifiers(other, "Other", "http://some.url.com/Library/Other", VERSION_ONE);
+        asLogicLibrary(other);
+
+        resourceResolver.addResource(parent);
+        resourceResolver.addResource(child);
+        resourceResolver.addResource(other);
+
+        return createMeasure("Library/Parent");
+    }
+
     private void withRelation(Library library, String relatedUrl) {
         RelatedArtifact relation = new RelatedArtifact()
                 .setType(RelatedArtifact.RelatedArtifactType.DEPENDSON)
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class R4NdjsonRetrieveProviderTest {
+
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+	private static final String SNOMED = "http://snomed.info/sct";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private NdjsonResourceIndex index;
+	private R4NdjsonRetrieveProvider provider;
+	private TerminologyProvider terminologyProvider;
+
+	@Before
+	public void setUp() throws IOException {
+		Path directory = temporaryFolder.newFolder().toPath();
+		write(directory.resolve("Condition.ndjson"),
+				condition("c1", "1", "123"),
+				condition("c2", "1", "456"),
+				condition("c3", "2", "123"),
+				asserted(condition("c4", "2", "123"), "1"));
+		write(directory.resolve("Patient.ndjson"),
+				patient("1", null),
+				patient("2", "1"));
+		write(directory.resolve("Encounter.ndjson"),
+				encounter("e1", "1", "2019-06-01", "2019-06-02"),
+				encounter("e2", "1", "2020-03-01", "2020-03-05"),
+				encounter("e3", "1", "2020-12-31", null));
+
+		index = NdjsonResourceIndex.open(FHIR_CONTEXT, directory);
+		terminologyProvider = mock(TerminologyProvider.class);
+		provider = new R4NdjsonRetrieveProvider(index, R4FhirModelResolverFactory.createCachingResolver());
+		provider.setTerminologyProvider(terminologyProvider);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		index.close();
+	}
+
+	@Test
+	public void retrieve_patient_context___only_patient_resources_returned() {
+		assertEquals(ids("c1", "c2"), retrieve("Condition", null, null, null, null, null));
+	}
+
+	@Test
+	public void retrieve_patient_context___other_compartment_references_not_returned() {
+		// c4 is in the compartment of patient 1 as its asserter, but its subject is patient 2
+		assertEquals(ids("c1", "c2"), retrieve("1", "Condition", "subject"));
+		assertEquals(ids("c4"), retrieve("1", "Condition", "asserter"));
+		assertEquals(ids("c3", "c4"), retrieve("2", "Condition", "subject"));
+	}
+
+	@Test
+	public void retrieve_patient_context_patient___linked_patients_not_returned() {
+		// Patient 2 links to patient 1, which puts it in the compartment of patient 1
+		assertEquals(ids("1"), retrieve("1", "Patient", "id"));
+		assertEquals(ids("2"), retrieve("2", "Patient", "id"));
+	}
+
+	@Test
+	public void retrieve_unfiltered_context___every_resource_returned() {
+		List<Object> resources = new ArrayList<>();
+		provider.retrieve("Unfiltered", null, null, "Condition", null, null, null, null, null, null, null, null).forEach(resources::add);
+		assertEquals(4, resources.size());
+	}
+
+	@Test
+	public void retrieve_codes___resources_with_codes_returned() {
+		Code code = new Code().withSystem(SNOMED).withCode("456");
+		assertEquals(ids("c2"), retrieve("Condition", "code", Collections.singletonList(code), null, null, null));
+	}
+
+	@Test
+	public void retrieve_value_set___value_set_expanded() {
+		when(terminologyProvider.expand(any(ValueSetInfo.class)))
+				.thenReturn(Collections.singletonList(new Code().withSystem(SNOMED).withCode("123")));
+		assertEquals(ids("c1"), retrieve("Condition", "code", null, "http://example.org/ValueSet/vs", null, null));
+	}
+
+	@Test
+	public void retrieve_date_range___overlapping_resources_returned() {
+		Interval measurementPeriod = new Interval(
+				new DateTime("2020-01-01T00:00:00", ZoneOffset.UTC), true,
+				new DateTime("2020-12-01T00:00:00", ZoneOffset.UTC), false);
+		assertEquals(ids("e2"), retrieve("Encounter", null, null, null, "period", measurementPeriod));
+	}
+
+	private List<String> retrieve(String dataType, String codePath, Iterable<Code> codes, String valueSet, String datePath, Interval dateRange) {
+		List<String> ids = new ArrayList<>();
+		for (Object resource : provider.retrieve("Patient", "subject", "1", dataType, null, codePath, codes, valueSet, datePath, null, null, dateRange)) {
+			ids.add(((Resource) resource).getIdElement().getIdPart());
+		}
+		return ids;
+	}
+
+	private List<String> retrieve(String patientId, String dataType, String contextPath) {
+		List<String> ids = new ArrayList<>();
+		for (Object resource : provider.retrieve("Patient", contextPath, patientId, dataType, null, null, null, null, null, null, null, null)) {
+			ids.add(((Resource) resource).getIdElement().getIdPart());
+		}
+		return ids;
+	}
+
+	private static List<String> ids(String... ids) {
+		List<String> list = new ArrayList<>();
+		Collections.addAll(list, ids);
+		return list;
+	}
+
+	private static void write(Path file, Resource... resources) throws IOException {
+		IParser parser = FHIR_CONTEXT.newJsonParser();
+		StringBuilder content = new StringBuilder();
+		for (Resource resource : resources) {
+			content.append(parser.encodeResourceToString(resource)).append('\n');
+		}
+		Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Condition condition(String id, String patientId, String code) {
+		Condition condition = new Condition();
+		condition.setId(id);
+		condition.setSubject(new Reference("Patient/" + patientId));
+		condition.setCode(new CodeableConcept().addCoding(new Coding(SNOMED, code, null)));
+		return condition;
+	}
+
+	private static Condition asserted(Condition condition, String patientId) {
+		condition.setAsserter(new Reference("Patient/" + patientId));
+		return condition;
+	}
+
+	private static Patient patient(String id, String linkedPatientId) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		if (linkedPatientId != null) {
+			patient.addLink().setOther(new Reference("Patient/" + linkedPatientId));
+		}
+		return patient;
+	}
+
+	private static Encounter encounter(String id, String patientId, String start, String end) {
+		Encounter encounter = new Encounter();
+		encounter.setId(id);
+		encounter.setSubject(new Reference("Patient/" + patientId));
+		Period period = new Period().setStartElement(new DateTimeType(start));
+		if (end != null) {
+			period.setEndElement(new DateTimeType(end));
+		}
+		encounter.setPeriod(period);
+		return encounter;
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.hapi;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.fhir.retrieve.R4FhirQueryGenerator;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrieveRequest;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+public class R4RestFhirRetrieveProviderTest extends FhirTestBase {
+
+	private SearchParameterResolver resolver;
+	private R4RestFhirRetrieveProvider provider;
+
+	@Before
+	public void setUp() throws Exception {
+		IGenericClient client = newClient();
+		TerminologyProvider termProvider = new R4RestFhirTerminologyProvider(client);
+
+		resolver = new SearchParameterResolver(client.getFhirContext());
+
+		provider = new R4RestFhirRetrieveProvider(resolver, client);
+		provider.setTerminologyProvider(termProvider);
+		provider.setFhirQueryGenerator(new R4SearchQueryGenerator(resolver, termProvider, null));
+
+		mockFhirResourceRetrieval("/metadata?_format=json", getCapabilityStatement());
+	}
+
+	@Test
+	public void retrieveByIds___ids_searched_in_chunks() throws Exception {
+		Patient first = getPatient("1", AdministrativeGender.MALE, "1970-10-10");
+		Patient second = getPatient("2", AdministrativeGender.FEMALE, "1970-10-10");
+		Patient third = getPatient("3", AdministrativeGender.MALE, "1970-10-10");
+
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Patient")).withQueryParam("_id", equalTo("1,2")), bundle(first, second));
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Patient")).withQueryParam("_id", equalTo("3,4")), bundle(third));
+
+		provider.setMaxIdsPerQuery(2);
+		Map<String, Object> resources = provider.retrieveByIds("Patient", Arrays.asList("1", "2", "3", "4"));
+
+		assertEquals(3, resources.size());
+		assertEquals("2", ((Patient) resources.get("2")).getIdElement().getIdPart());
+		verify(2, getRequestedFor(urlPathEqualTo("/Patient")));
+	}
+
+	@Test
+	public void retrieveByIds_search_rejected___ids_read_individually() throws Exception {
+		Patient patient = getPatient("1", AdministrativeGender.MALE, "1970-10-10");
+
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Patient")).withQueryParam("_id", equalTo("1")), getFhirParser(), new OperationOutcome(), getFhirServerConfig(), 400);
+		mockFhirResourceRetrieval(patient);
+
+		Map<String, Object> resources = provider.retrieveByIds("Patient", Arrays.asList("1"));
+
+		assertEquals(1, resources.size());
+		verify(getRequestedFor(urlPathEqualTo("/Patient/1")));
+	}
+
+	@Test
+	public void retrieve_multiple_pages___next_page_read_when_consumed() {
+		mockConditionPages();
+
+		Iterator<Object> iterator = retrieveConditions().iterator();
+		assertEquals("1", ((Condition) iterator.next()).getIdElement().getIdPart());
+		verify(0, getRequestedFor(urlPathEqualTo("/page2")));
+
+		List<Object> remaining = new ArrayList<>();
+		iterator.forEachRemaining(remaining::add);
+		assertEquals(1, remaining.size());
+		assertEquals("2", ((Condition) remaining.get(0)).getIdElement().getIdPart());
+		verify(1, getRequestedFor(urlPathEqualTo("/page2")));
+	}
+
+	@Test
+	public void retrieve_multiple_pages_with_prefetch___next_page_requested_before_consumed() {
+		mockConditionPages();
+
+		// Background requests run on the calling thread so the test is deterministic
+		provider.setPrefetchExecutor(Runnable::run);
+		Iterable<Object> conditions = retrieveConditions();
+		conditions.iterator().next();
+		verify(1, getRequestedFor(urlPathEqualTo("/page2")));
+
+		List<Object> all = new ArrayList<>();
+		conditions.forEach(all::add);
+		assertEquals(2, all.size());
+		verify(1, getRequestedFor(urlPathEqualTo("/Condition")));
+		verify(1, getRequestedFor(urlPathEqualTo("/page2")));
+	}
+
+	@Test
+	public void retrieve_element_requirements___only_read_elements_requested() {
+		mockConditionPages();
+
+		provider.addElementRequirements(elementsPlan("Condition", "onset", "code"));
+		List<Object> conditions = new ArrayList<>();
+		retrieveConditions().forEach(conditions::add);
+
+		assertEquals(2, conditions.size());
+		verify(1, getRequestedFor(urlPathEqualTo("/Condition")).withQueryParam("_elements", equalTo("code,onset")));
+	}
+
+	@Test
+	public void retrieve_elements_rejected___whole_resources_requested() {
+		mockConditionPages();
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Condition")).withQueryParam("_elements", equalTo("code")), getFhirParser(), new OperationOutcome(), getFhirServerConfig(), 400);
+
+		provider.addElementRequirements(elementsPlan("Condition", "code"));
+		assertEquals("1", ((Condition) retrieveConditions().iterator().next()).getIdElement().getIdPart());
+		// Elements are no longer requested once the server rejected them
+		retrieveConditions().iterator().next();
+
+		verify(1, getRequestedFor(urlPathEqualTo("/Condition")).withQueryParam("_elements", equalTo("code")));
+		verify(2, getRequestedFor(urlPathEqualTo("/Condition")).withQueryParam("_elements", absent()));
+	}
+
+	@Test
+	public void retrieve_elements_rejected_and_retry_fails___original_error_thrown() {
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Condition")), getFhirParser(), new OperationOutcome(), getFhirServerConfig(), 500);
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Condition")).withQueryParam("_elements", equalTo("code")), getFhirParser(), new OperationOutcome(), getFhirServerConfig(), 400);
+
+		provider.addElementRequirements(elementsPlan("Condition", "code"));
+		assertThrows(InvalidRequestException.class, () -> retrieveConditions().iterator().next());
+		// Elements are still requested because the search without them failed as well
+		assertThrows(InvalidRequestException.class, () -> retrieveConditions().iterator().next());
+
+		verify(2, getRequestedFor(urlPathEqualTo("/Condition")).withQueryParam("_elements", equalTo("code")));
+		verify(2, getRequestedFor(urlPathEqualTo("/Condition")).withQueryParam("_elements", absent()));
+	}
+
+	@Test
+	public void retrieve_date_range_search_supported___range_searched() {
+		mockEncounterSearchParams("subject", "date");
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")), bundle(encounter("1")));
+
+		provider.setWidenDateRanges(true);
+		assertEquals(1, retrieveEncounters().size());
+
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter"))
+				.withQueryParam("subject", equalTo("Patient/123"))
+				.withQueryParam("date", containing("2020-01-01")));
+	}
+
+	@Test
+	public void retrieve_date_range_search_not_supported___range_not_searched() {
+		mockEncounterSearchParams("subject");
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")), bundle(encounter("1")));
+
+		provider.setWidenDateRanges(true);
+		assertEquals(1, retrieveEncounters().size());
+
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter"))
+				.withQueryParam("subject", equalTo("Patient/123"))
+				.withQueryParam("date", absent()));
+	}
+
+	@Test
+	public void retrieve_date_range_search_not_supported_not_widened___range_searched() {
+		mockEncounterSearchParams("subject");
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")), bundle(encounter("1")));
+
+		assertEquals(1, retrieveEncounters().size());
+
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter"))
+				.withQueryParam("subject", equalTo("Patient/123"))
+				.withQueryParam("date", containing("2020-01-01")));
+	}
+
+	@Test
+	public void retrieve_date_range_capability_statement_not_read___range_searched() {
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")), bundle(encounter("1")));
+		// The client reads the CapabilityStatement once to validate the server
+		assertEquals(1, retrieveEncounters().size());
+
+		stubFor(get(urlPathEqualTo("/metadata")).willReturn(aResponse().withStatus(500)));
+		provider.setWidenDateRanges(true);
+		assertEquals(1, retrieveEncounters().size());
+
+		verify(2, getRequestedFor(urlPathEqualTo("/Encounter"))
+				.withQueryParam("subject", equalTo("Patient/123"))
+				.withQueryParam("date", containing("2020-01-01")));
+	}
+
+	@Test
+	public void retrieveAll___searches_made_in_one_batch() {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().setResource(bundle(condition("1"))).getResponse().setStatus("200 OK");
+		response.addEntry().setResource(bundle(encounter("2"))).getResponse().setStatus("200 OK");
+		mockFhirResourceRetrieval(post(urlPathEqualTo("/")), response);
+
+		List<Iterable<Object>> results = retrieveAll();
+
+		assertEquals(2, results.size());
+		assertEquals("1", ((Condition) results.get(0).iterator().next()).getIdElement().getIdPart());
+		assertEquals("2", ((Encounter) results.get(1).iterator().next()).getIdElement().getIdPart());
+		verify(1, postRequestedFor(urlPathEqualTo("/"))
+				.withRequestBody(containing("Condition?subject=Patient%2F123"))
+				.withRequestBody(containing("Encounter?subject=Patient%2F123")));
+		verify(0, getRequestedFor(urlPathEqualTo("/Condition")));
+		verify(0, getRequestedFor(urlPathEqualTo("/Encounter")));
+	}
+
+	@Test
+	public void retrieveAll_element_requirements___elements_requested_in_batch() {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().setResource(bundle(condition("1"))).getResponse().setStatus("200 OK");
+		response.addEntry().setResource(bundle(encounter("2"))).getResponse().setStatus("200 OK");
+		mockFhirResourceRetrieval(post(urlPathEqualTo("/")), response);
+
+		provider.addElementRequirements(elementsPlan("Condition", "onset", "code"));
+		retrieveAll();
+
+		verify(1, postRequestedFor(urlPathEqualTo("/"))
+				.withRequestBody(containing("Condition?_elements=code%2Conset&subject=Patient%2F123"))
+				.withRequestBody(containing("Encounter?subject=Patient%2F123")));
+	}
+
+	@Test
+	public void retrieveAll_search_failed_in_batch___search_made_individually() {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.BATCHRESPONSE);
+		response.addEntry().setResource(new OperationOutcome()).getResponse().setStatus("400 Bad Request");
+		response.addEntry().setResource(bundle(encounter("2"))).getResponse().setStatus("200 OK");
+		mockFhirResourceRetrieval(post(urlPathEqualTo("/")), response);
+		mockConditionPages();
+
+		List<Iterable<Object>> results = retrieveAll();
+
+		List<Object> conditions = new ArrayList<>();
+		results.get(0).forEach(conditions::add);
+		assertEquals(2, conditions.size());
+		assertEquals("2", ((Encounter) results.get(1).iterator().next()).getIdElement().getIdPart());
+		verify(1, getRequestedFor(urlPathEqualTo("/Condition")));
+		verify(0, getRequestedFor(urlPathEqualTo("/Encounter")));
+	}
+
+	@Test
+	public void retrieveAll_batch_rejected___searches_made_individually() {
+		mockFhirResourceRetrieval(post(urlPathEqualTo("/")), getFhirParser(), new OperationOutcome(), getFhirServerConfig(), 400);
+		mockConditionPages();
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")).withQueryParam("subject", equalTo("Patient/123")), bundle(encounter("2")));
+
+		provider.setPrefetchExecutor(Runnable::run);
+		List<Iterable<Object>> results = retrieveAll();
+
+		// Every search is requested as soon as the results are created
+		verify(1, getRequestedFor(urlPathEqualTo("/Condition")));
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter")));
+		assertEquals("2", ((Encounter) results.get(1).iterator().next()).getIdElement().getIdPart());
+	}
+
+	@Test
+	public void retrieveAll_other_query_generator___searches_made_individually() throws Exception {
+		mockConditionPages();
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")).withQueryParam("subject", equalTo("Patient/123")), bundle(encounter("2")));
+
+		provider.setFhirQueryGenerator(new R4FhirQueryGenerator(resolver, provider.getTerminologyProvider(), null));
+		List<Iterable<Object>> results = retrieveAll();
+
+		List<Object> conditions = new ArrayList<>();
+		results.get(0).forEach(conditions::add);
+		assertEquals(2, conditions.size());
+		assertEquals("2", ((Encounter) results.get(1).iterator().next()).getIdElement().getIdPart());
+		verify(0, postRequestedFor(urlPathEqualTo("/")));
+		verify(1, getRequestedFor(urlPathEqualTo("/Condition")));
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter")));
+	}
+
+	private List<Iterable<Object>> retrieveAll() {
+		provider.setExpandValueSets(false);
+		return provider.retrieveAll(Arrays.asList(
+				new RetrieveRequest("Patient", "subject", "123", "Condition", null, null, null, null),
+				new RetrieveRequest("Patient", "subject", "123", "Encounter", null, null, null, null)
+		));
+	}
+
+	private void mockEncounterSearchParams(String... names) {
+		CapabilityStatement metadata = getCapabilityStatement();
+		CapabilityStatement.CapabilityStatementRestResourceComponent resource = metadata.addRest().addResource().setType("Encounter");
+		for (String name : names) {
+			resource.addSearchParam().setName(name);
+		}
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+	}
+
+	private List<Object> retrieveEncounters() {
+		Interval measurementPeriod = new Interval(
+				new DateTime("2020-01-01T00:00:00", ZoneOffset.UTC), true,
+				new DateTime("2021-01-01T00:00:00", ZoneOffset.UTC), false);
+		List<Object> encounters = new ArrayList<>();
+		provider.retrieve("Patient", "subject", "123", "Encounter", null, null, null, null, "period", null, null, measurementPeriod)
+				.forEach(encounters::add);
+		return encounters;
+	}
+
+	private RetrievePlan elementsPlan(String dataType, String... elements) {
+		return new RetrievePlan(Collections.emptyList(), Collections.singletonMap(dataType, new HashSet<>(Arrays.asList(elements))));
+	}
+
+	private Encounter encounter(String id) {
+		Encounter encounter = new Encounter();
+		encounter.setId(id);
+		return encounter;
+	}
+
+	private Iterable<Object> retrieveConditions() {
+		provider.setExpandValueSets(false);
+		return provider.retrieve("Patient", "subject", "123", "Condition",
+				null, null, null, null,
+				null, null, null, null);
+	}
+
+	private void mockConditionPages() {
+		Bundle first = bundle(condition("1"));
+		first.addLink().setRelation(Bundle.LINK_NEXT).setUrl(getFhirServerConfig().getEndpoint() + "/page2");
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Condition")).withQueryParam("subject", equalTo("Patient/123")), first);
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/page2")), bundle(condition("2")));
+	}
+
+	private Condition condition(String id) {
+		Condition condition = new Condition();
+		condition.setId(id);
+		return condition;
+	}
+
+	private Bundle bundle(Resource... resources) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (Resource resource : resources) {
+			bundle.addEntry().setResource(resource);
+		}
+		return bundle;
+	}
+}
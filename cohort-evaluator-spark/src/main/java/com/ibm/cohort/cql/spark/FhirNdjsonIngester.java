@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.cql.spark;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.functions;
+import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.beust.jcommander.JCommander;
+import com.ibm.cohort.cql.spark.data.FhirResourceFlattener;
+import com.ibm.cohort.cql.spark.data.FhirResourceFlattener.ResourceTable;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+
+/**
+ * Spark program that flattens FHIR R4 NDJSON files, such as the output of a
+ * FHIR bulk data export, into the tables read by the SparkCqlEvaluator. The
+ * tables are described by the same modelinfo files that are given to the
+ * evaluator (see {@link FhirResourceFlattener} for the mapping rules) and each
+ * table is written to a subfolder of the output path named after its type.
+ *
+ * Rows of tables that are related to the Patient context are grouped into
+ * output partitions by patient key and sorted by patient key within each
+ * partition, so the rows of a patient are stored together without creating a
+ * folder per patient.
+ */
+public class FhirNdjsonIngester implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = LoggerFactory.getLogger(FhirNdjsonIngester.class);
+
+    private final FhirNdjsonIngesterArgs args;
+
+    public FhirNdjsonIngester(FhirNdjsonIngesterArgs args) {
+        this.args = args;
+    }
+
+    public void run() throws Exception {
+        SparkSession.Builder sparkBuilder = SparkSession.builder();
+        try (SparkSession spark = sparkBuilder.getOrCreate()) {
+            boolean useJava8API = Boolean.valueOf(spark.conf().get("spark.sql.datetime.java8API.enabled"));
+            FhirResourceFlattener flattener = createFlattener(spark.sparkContext().hadoopConfiguration(), useJava8API);
+
+            JavaPairRDD<String, Row> rows = spark.read()
+                    .textFile(args.inputPaths.toArray(new String[0]))
+                    .javaRDD()
+                    .filter(line -> !line.trim().isEmpty())
+                    .flatMapToPair(line -> flattener.flatten(line).iterator())
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+            try {
+                for (ResourceTable table : flattener.getTables()) {
+                    String resourceType = table.getResourceType();
+                    Dataset<Row> dataFrame = spark.createDataFrame(
+                            rows.filter(row -> resourceType.equals(row._1())).values(),
+                            table.getSchema()
+                    );
+                    writeTable(spark, table, dataFrame);
+                }
+            } finally {
+                rows.unpersist(false);
+            }
+        }
+    }
+
+    /**
+     * Create the flattener for the tables described by the configured
+     * modelinfo files.
+     *
+     * @param hadoopConfiguration configuration used to access the modelinfo files
+     * @param useJava8APIDatetime true when the Spark session uses the Java 8 date and time API
+     * @return configured flattener
+     * @throws IOException when model info cannot be read
+     */
+    protected FhirResourceFlattener createFlattener(Configuration hadoopConfiguration, boolean useJava8APIDatetime) throws IOException {
+        CqlToElmTranslator translator = new CqlToElmTranslator();
+        for (String path : args.modelInfoPaths) {
+            Path filePath = new Path(path);
+            FileSystem modelInfoFilesystem = filePath.getFileSystem(hadoopConfiguration);
+            try (Reader r = new InputStreamReader(modelInfoFilesystem.open(filePath))) {
+                translator.registerModelInfo(r);
+            }
+        }
+        return new FhirResourceFlattener(translator.getRegisteredModelInfos().values(), useJava8APIDatetime);
+    }
+
+    protected void writeTable(SparkSession spark, ResourceTable table, Dataset<Row> dataFrame) {
+        String patientKeyColumn = table.getPatientKeyColumn();
+        if (patientKeyColumn != null) {
+            dataFrame = args.outputPartitions != null
+                    ? dataFrame.repartition(args.outputPartitions, functions.col(patientKeyColumn))
+                    : dataFrame.repartition(functions.col(patientKeyColumn));
+            dataFrame = dataFrame.sortWithinPartitions(patientKeyColumn);
+        } else if (args.outputPartitions != null) {
+            dataFrame = dataFrame.repartition(args.outputPartitions);
+        }
+
+        String outputURI = new Path(args.outputPath, table.getName()).toString();
+        LOG.info("Writing {} resources to {}", table.getResourceType(), outputURI);
+        dataFrame.write()
+                .mode(args.overwriteOutput ? SaveMode.Overwrite : SaveMode.ErrorIfExists)
+                .format(args.outputFormat != null ? args.outputFormat : spark.conf().get("spark.sql.sources.default"))
+                .save(outputURI);
+    }
+
+    public static void main(String[] args) throws Exception {
+        FhirNdjsonIngesterArgs programArgs = new FhirNdjsonIngesterArgs();
+
+        JCommander commander = JCommander.newBuilder()
+                .programName("FhirNdjsonIngester")
+                .addObject(programArgs)
+                .build();
+        commander.parse(args);
+
+        if (programArgs.help) {
+            commander.usage();
+        } else {
+            new FhirNdjsonIngester(programArgs).run();
+        }
+    }
+}
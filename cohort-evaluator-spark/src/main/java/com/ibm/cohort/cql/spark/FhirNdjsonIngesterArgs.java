@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.cql.spark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * Command-line arguments for the FhirNdjsonIngester program.
+ */
+public class FhirNdjsonIngesterArgs implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Parameter(names = { "-h", "--help" }, description = "Print help text", help = true)
+    public boolean help;
+
+    @Parameter(names = { "-i",
+            "--input-path" }, description = "URI(s) of FHIR R4 NDJSON files, such as the files of a FHIR bulk data export. Directories and glob patterns are supported.", required = true)
+    public List<String> inputPaths = new ArrayList<>();
+
+    @Parameter(names = { "-m",
+            "--model-info" }, description = "Filesystem path(s) to the model-info files that describe the tables to create. Each retrievable type becomes a table.", required = true)
+    public List<String> modelInfoPaths = new ArrayList<>();
+
+    @Parameter(names = { "-o",
+            "--output-path" }, description = "URI of the folder where the tables are written. Each table is written to a subfolder named after its type.", required = true)
+    public String outputPath;
+
+    @Parameter(names = { "--output-format" }, description = "Spark SQL format identifier for output files. If not provided, the value of spark.sql.datasources.default is used.", required = false)
+    public String outputFormat;
+
+    @Parameter(names = { "-n",
+            "--output-partitions" }, description = "Number of partitions to use when storing data. Rows are assigned to partitions by patient key. If not provided, the value of spark.sql.shuffle.partitions is used.", required = false)
+    public Integer outputPartitions = null;
+
+    @Parameter(names = {"--overwrite-output"}, description = "WARNING: NOT RECOMMENDED FOR PRODUCTION USE. If option is set, program overwrites existing tables.")
+    public boolean overwriteOutput = false;
+}
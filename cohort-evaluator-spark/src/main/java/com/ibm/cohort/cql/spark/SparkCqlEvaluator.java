@@ -85,6 +85,7 @@ import com.ibm.cohort.cql.spark.metadata.EvaluationSummary;
 import com.ibm.cohort.cql.spark.metadata.HadoopPathOutputMetadataWriter;
 import com.ibm.cohort.cql.spark.metadata.OutputMetadataWriter;
 import com.ibm.cohort.cql.spark.metrics.CustomMetricSparkPlugin;
+import com.ibm.cohort.cql.spark.optimizer.ElmAnalysisService;
 import com.ibm.cohort.cql.spark.optimizer.ModelUtils;
 import com.ibm.cohort.cql.spark.util.EncodedParametersCache;
 import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
@@ -165,16 +166,46 @@ public class SparkCqlEvaluator implements Serializable {
      *         or if inferring an output schema fails for any reason.
      */
     protected Map<String, StructType> calculateSparkSchema(List<String> contextNames, ContextDefinitions contextDefinitions, SparkOutputColumnEncoder encoder, CqlToElmTranslator cqlTranslator) throws Exception {
+        return calculateSparkSchema(contextNames, contextDefinitions, encoder, cqlTranslator, createElmAnalysisService(cqlTranslator));
+    }
+
+    /**
+     * Auto-detect an output schema for 1 or more contexts using ELM analysis
+     * that is shared with the other driver-side consumers of the job.
+     * 
+     * @param contextNames          List of context names to calculate schemas for.
+     * @param contextDefinitions    Context definitions used during schema calculation.
+     * @param encoder               Encoder used to calculate the output column names.
+     * @param cqlTranslator         Pre-configured CQL Translator instance
+     * @param elmAnalysis           ELM analysis service for the job
+     * @return Map of context name to the output Spark schema for that context.
+     * @throws Exception if deserialization errors occur when reading in any of the input files
+     *         or if inferring an output schema fails for any reason.
+     */
+    protected Map<String, StructType> calculateSparkSchema(List<String> contextNames, ContextDefinitions contextDefinitions, SparkOutputColumnEncoder encoder, CqlToElmTranslator cqlTranslator, ElmAnalysisService elmAnalysis) throws Exception {
+        CqlEvaluationRequests cqlEvaluationRequests = getFilteredJobSpecificationWithIds();
+
+        SparkSchemaCreator sparkSchemaCreator = new SparkSchemaCreator(elmAnalysis, cqlEvaluationRequests, contextDefinitions, encoder, cqlTranslator);
+        return sparkSchemaCreator.calculateSchemasForContexts(contextNames);
+    }
+
+    /**
+     * Create the ELM analysis service that is used on the driver for schema
+     * creation and column filtering. Libraries are loaded through the same
+     * per-thread library provider that is used for evaluation so that CQL
+     * translation is not repeated.
+     * 
+     * @param cqlTranslator Pre-configured CQL Translator instance
+     * @return ELM analysis service
+     * @throws IOException when model info cannot be read
+     */
+    protected ElmAnalysisService createElmAnalysisService(CqlToElmTranslator cqlTranslator) throws IOException {
         CqlLibraryProvider libProvider = SparkCqlEvaluator.libraryProvider.get();
         if (libProvider == null) {
             libProvider = createLibraryProvider();
             SparkCqlEvaluator.libraryProvider.set(libProvider);
         }
-
-        CqlEvaluationRequests cqlEvaluationRequests = getFilteredJobSpecificationWithIds();
-
-        SparkSchemaCreator sparkSchemaCreator = new SparkSchemaCreator(libProvider, cqlEvaluationRequests, contextDefinitions, encoder, cqlTranslator);
-        return sparkSchemaCreator.calculateSchemasForContexts(contextNames);
+        return new ElmAnalysisService(libProvider, cqlTranslator);
     }
 
     public SparkCqlEvaluator(SparkCqlEvaluatorArgs args) {
@@ -316,11 +347,14 @@ public class SparkCqlEvaluator implements Serializable {
                             "At least one context definition is required (after filtering if enabled).");
                 }
 
+                ElmAnalysisService elmAnalysis = createElmAnalysisService(cqlTranslator);
+
                 Map<String, StructType> resultSchemas = calculateSparkSchema(
                         filteredContexts.stream().map(ContextDefinition::getName).collect(Collectors.toList()),
                         contexts,
                         columnEncoder,
-                        cqlTranslator
+                        cqlTranslator,
+                        elmAnalysis
                 );
 
                 ZonedDateTime batchRunTime = ZonedDateTime.now();
@@ -334,8 +368,7 @@ public class SparkCqlEvaluator implements Serializable {
 
                 ColumnRuleCreator columnRuleCreator = new ColumnRuleCreator(
                         getFilteredJobSpecificationWithIds().getEvaluations(),
-                        getCqlTranslator(),
-                        createLibraryProvider()
+                        elmAnalysis
                 );
 
                 Map<String, String> dataTypeAliases = createDataTypeAliases(filteredContexts, cqlTranslator);
@@ -558,7 +591,8 @@ public class SparkCqlEvaluator implements Serializable {
             .setLibraryProvider(libraryProvider)
             .setDataProvider(dataProvider)
             .setTerminologyProvider(termProvider)
-            .setExternalFunctionProvider(funProvider);
+            .setExternalFunctionProvider(funProvider)
+            .setPrefetchTerminology(args.prefetchTerminology);
 
         CqlEvaluationRequests requests = getFilteredJobSpecificationWithIds();
 
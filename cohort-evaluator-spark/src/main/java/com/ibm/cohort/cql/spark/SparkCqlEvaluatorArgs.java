@@ -81,6 +81,9 @@ public class SparkCqlEvaluatorArgs implements Serializable {
     "--terminology-path" }, description = "Filesystem path to the location containing the ValueSet definitions in FHIR XML or JSON format.")
     public String terminologyPath;
 
+    @Parameter(names = { "--prefetch-terminology" }, description = "If set, all ValueSets referenced by a library are loaded in parallel when the library is first loaded instead of one at a time as they are used during evaluation.", required = false)
+    public boolean prefetchTerminology = false;
+
     @Parameter(names = {"--metadata-output-path"}, description = "Folder where program output metadata (a batch summary file and possible _SUCCESS marker file) will be written.", required = true)
     public String metadataOutputPath = null;
 
@@ -13,6 +13,7 @@ import com.ibm.cohort.cql.evaluation.CqlEvaluationRequest;
 import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
 import com.ibm.cohort.cql.spark.optimizer.DataTypeRequirementsProcessor;
+import com.ibm.cohort.cql.spark.optimizer.ElmAnalysisService;
 import com.ibm.cohort.cql.translation.CqlToElmTranslator;
 import com.ibm.cohort.cql.util.EqualsStringMatcher;
 import com.ibm.cohort.cql.util.StringMatcher;
@@ -21,13 +22,15 @@ public class ColumnRuleCreator {
 	private static final Logger LOG = LoggerFactory.getLogger(ColumnRuleCreator.class);
 
 	private final List<CqlEvaluationRequest> requests;
-	private final CqlToElmTranslator cqlTranslator;
-	private final CqlLibraryProvider libraryProvider;
+	private final ElmAnalysisService elmAnalysis;
 	
 	public ColumnRuleCreator(List<CqlEvaluationRequest> requests, CqlToElmTranslator cqlTranslator, CqlLibraryProvider libraryProvider) {
+		this(requests, new ElmAnalysisService(libraryProvider, cqlTranslator));
+	}
+
+	public ColumnRuleCreator(List<CqlEvaluationRequest> requests, ElmAnalysisService elmAnalysis) {
 		this.requests = requests;
-		this.cqlTranslator = cqlTranslator;
-		this.libraryProvider = libraryProvider;
+		this.elmAnalysis = elmAnalysis;
 	}
 
 	/**
@@ -45,13 +48,11 @@ public class ColumnRuleCreator {
 			request.getExpressions().stream().forEach( exp -> expressions.add(exp.getName()) );
 		}
 
-		DataTypeRequirementsProcessor requirementsProcessor = new DataTypeRequirementsProcessor(cqlTranslator);
-
 		Map<String,Set<StringMatcher>> pathsByDataType = new HashMap<>();
 		for( Map.Entry<CqlLibraryDescriptor, Set<String>> entry : expressionsByLibrary.entrySet() ) {
 			LOG.debug("Extracting data requirements for {}", entry.getKey());
 
-			DataTypeRequirementsProcessor.DataTypeRequirements requirements = requirementsProcessor.getDataRequirements(libraryProvider, entry.getKey(), entry.getValue());
+			DataTypeRequirementsProcessor.DataTypeRequirements requirements = elmAnalysis.getDataRequirements(entry.getKey(), entry.getValue());
 
 			Map<String,Set<StringMatcher>> newPaths = requirements.allAsStringMatcher();
 
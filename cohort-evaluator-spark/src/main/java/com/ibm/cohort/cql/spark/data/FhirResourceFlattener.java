@@ -0,0 +1,395 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.cql.spark.data;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.Metadata;
+import org.apache.spark.sql.types.MetadataBuilder;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.elm_modelinfo.r1.ClassInfo;
+import org.hl7.elm_modelinfo.r1.ClassInfoElement;
+import org.hl7.elm_modelinfo.r1.ContextInfo;
+import org.hl7.elm_modelinfo.r1.ModelInfo;
+import org.hl7.elm_modelinfo.r1.RelationshipInfo;
+import org.hl7.elm_modelinfo.r1.TypeInfo;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ibm.cohort.cql.spark.optimizer.CqlConstants;
+import com.ibm.cohort.cql.spark.optimizer.ModelUtils;
+
+import scala.Tuple2;
+
+/**
+ * Flattens FHIR R4 resources in JSON format into the rows of the tables
+ * described by the retrievable ClassInfo types of one or more modelinfo files.
+ *
+ * Each table holds the resources whose resourceType matches the target of the
+ * ClassInfo, or its name when no target is set. Each element of the ClassInfo,
+ * including the elements of its base types, becomes a column whose value is
+ * read from the dot-separated path in the element target, or from the element
+ * name when no target is set. For example, an element with the target
+ * code.coding.code is filled with the code of a coding of a resource.
+ *
+ * A resource becomes one row for each item of the repeating elements that are
+ * read, so a resource with two codings becomes two rows with the same id.
+ * Columns whose paths go through the same repeating element read the same
+ * item, so the code, system and display of a row belong to one coding. When
+ * several repeating elements are read, there is a row for each combination of
+ * their items.
+ *
+ * Elements must be of a System type. Columns of System.Code elements are
+ * String columns marked with the isCodeCol metadata used by SparkDataRow. When
+ * another element reads the system or display sibling of the code (e.g.
+ * code.coding.system), that column is named in the systemCol or displayCol
+ * metadata of the code column.
+ *
+ * The patient key of a table is the related key element of its Patient
+ * context relationship or, for the type of the Patient context, the key
+ * element of the context. Relative references in a related key element, such
+ * as Patient/123, are reduced to the id of the referenced resource so that the
+ * tables can be joined on the key.
+ */
+public class FhirResourceFlattener implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PATIENT_CONTEXT = "Patient";
+    public static final String RESOURCE_TYPE = "resourceType";
+
+    private static final String CODE_TYPE = "Code";
+    private static final String CODE_SUFFIX = ".code";
+    private static final String SYSTEM_SUFFIX = ".system";
+    private static final String DISPLAY_SUFFIX = ".display";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+
+    /**
+     * Description of the table for one resource type.
+     */
+    public static class ResourceTable implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String resourceType;
+        private final StructType schema;
+        private final List<String[]> paths;
+        private final List<String> elementTypes;
+        private final String patientKeyColumn;
+        private final boolean referenceKey;
+
+        public ResourceTable(String name, String resourceType, StructType schema, List<String[]> paths,
+                List<String> elementTypes, String patientKeyColumn, boolean referenceKey) {
+            this.name = name;
+            this.resourceType = resourceType;
+            this.schema = schema;
+            this.paths = paths;
+            this.elementTypes = elementTypes;
+            this.patientKeyColumn = patientKeyColumn;
+            this.referenceKey = referenceKey;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public StructType getSchema() {
+            return schema;
+        }
+
+        /**
+         * @return name of the column holding the id of the patient each row
+         *         belongs to, or null when the table is not related to patients
+         */
+        public String getPatientKeyColumn() {
+            return patientKeyColumn;
+        }
+    }
+
+    private final Map<String, ResourceTable> tablesByResourceType;
+    private final boolean useJava8APIDatetime;
+
+    public FhirResourceFlattener(Collection<ModelInfo> modelInfos) {
+        this(modelInfos, false);
+    }
+
+    /**
+     * @param modelInfos          modelinfo files that describe the tables
+     * @param useJava8APIDatetime true to return Date and DateTime values as
+     *                            LocalDate and Instant, as Spark expects when
+     *                            spark.sql.datetime.java8API.enabled is set,
+     *                            instead of java.sql.Date and Timestamp
+     */
+    public FhirResourceFlattener(Collection<ModelInfo> modelInfos, boolean useJava8APIDatetime) {
+        this.useJava8APIDatetime = useJava8APIDatetime;
+        Map<String, ResourceTable> tables = new LinkedHashMap<>();
+        for (ModelInfo modelInfo : modelInfos) {
+            Map<QName, ClassInfo> classInfos = new HashMap<>();
+            for (TypeInfo typeInfo : modelInfo.getTypeInfo()) {
+                if (typeInfo instanceof ClassInfo) {
+                    ClassInfo classInfo = (ClassInfo) typeInfo;
+                    classInfos.put(new QName(modelInfo.getUrl(), classInfo.getName()), classInfo);
+                }
+            }
+
+            for (TypeInfo typeInfo : modelInfo.getTypeInfo()) {
+                if (typeInfo instanceof ClassInfo && ((ClassInfo) typeInfo).isRetrievable()) {
+                    ResourceTable table = createTable(modelInfo, classInfos, (ClassInfo) typeInfo);
+                    if (tables.put(table.getResourceType(), table) != null) {
+                        throw new IllegalArgumentException(String.format("More than one table is defined for resource type %s", table.getResourceType()));
+                    }
+                }
+            }
+        }
+        this.tablesByResourceType = Collections.unmodifiableMap(tables);
+    }
+
+    public Collection<ResourceTable> getTables() {
+        return tablesByResourceType.values();
+    }
+
+    public ResourceTable getTable(String resourceType) {
+        return tablesByResourceType.get(resourceType);
+    }
+
+    /**
+     * Flatten a single resource.
+     *
+     * @param json FHIR resource in JSON format
+     * @return the rows of the resource, each with the resource type, or an
+     *         empty list when there is no table for the resource type
+     * @throws IOException when the resource cannot be parsed
+     */
+    public List<Tuple2<String, Row>> flatten(String json) throws IOException {
+        JsonNode resource = MAPPER.readTree(json);
+        JsonNode resourceType = resource.get(RESOURCE_TYPE);
+        ResourceTable table = resourceType != null ? tablesByResourceType.get(resourceType.asText()) : null;
+        if (table == null) {
+            return Collections.emptyList();
+        }
+
+        List<Tuple2<String, Row>> rows = new ArrayList<>();
+        addRows(resource, table, new HashMap<>(), rows);
+        return rows;
+    }
+
+    /**
+     * Add the rows of a resource for the chosen items of repeating elements.
+     * The first repeating element with more than one item that has no chosen
+     * item yet adds the rows of each of its items instead.
+     *
+     * @param items index of the chosen item by path of repeating element
+     */
+    private void addRows(JsonNode resource, ResourceTable table, Map<String, Integer> items, List<Tuple2<String, Row>> rows) {
+        StructField[] fields = table.schema.fields();
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            String[] path = table.paths.get(i);
+            JsonNode node = resource;
+            for (int depth = 0; node != null && depth < path.length; depth++) {
+                node = node.get(path[depth]);
+                if (node != null && node.isArray()) {
+                    Integer item = 0;
+                    if (node.size() > 1) {
+                        String arrayPath = String.join(".", Arrays.copyOf(path, depth + 1));
+                        item = items.get(arrayPath);
+                        if (item == null) {
+                            for (int j = 0; j < node.size(); j++) {
+                                Map<String, Integer> itemChoice = new HashMap<>(items);
+                                itemChoice.put(arrayPath, j);
+                                addRows(resource, table, itemChoice, rows);
+                            }
+                            return;
+                        }
+                    }
+                    node = node.get(item);
+                }
+            }
+            if (node != null && node.isValueNode() && !node.isNull()) {
+                values[i] = convert(node, table.elementTypes.get(i), fields[i].name(), useJava8APIDatetime);
+                if (table.referenceKey && values[i] != null && fields[i].name().equals(table.patientKeyColumn)) {
+                    String reference = (String) values[i];
+                    values[i] = reference.substring(reference.lastIndexOf('/') + 1);
+                }
+            }
+        }
+        rows.add(new Tuple2<>(table.getResourceType(), RowFactory.create(values)));
+    }
+
+    private static ResourceTable createTable(ModelInfo modelInfo, Map<QName, ClassInfo> classInfos, ClassInfo classInfo) {
+        Map<String, ClassInfoElement> elements = new LinkedHashMap<>();
+        addElements(modelInfo, classInfos, classInfo, elements);
+
+        Map<String, String> columnsByPath = new HashMap<>();
+        for (ClassInfoElement element : elements.values()) {
+            columnsByPath.putIfAbsent(getPath(element), element.getName());
+        }
+
+        List<StructField> fields = new ArrayList<>();
+        List<String[]> paths = new ArrayList<>();
+        List<String> elementTypes = new ArrayList<>();
+        for (ClassInfoElement element : elements.values()) {
+            String elementType = getSystemTypeName(classInfo, element);
+            String path = getPath(element);
+
+            DataType dataType;
+            Metadata metadata = Metadata.empty();
+            if (CODE_TYPE.equals(elementType)) {
+                dataType = DataTypes.StringType;
+                MetadataBuilder builder = new MetadataBuilder().putBoolean(MetadataUtils.IS_CODE_COL, true);
+                if (path.endsWith(CODE_SUFFIX)) {
+                    String parentPath = path.substring(0, path.length() - CODE_SUFFIX.length());
+                    String systemCol = columnsByPath.get(parentPath + SYSTEM_SUFFIX);
+                    if (systemCol != null) {
+                        builder.putString(MetadataUtils.SYSTEM_COL, systemCol);
+                    }
+                    String displayCol = columnsByPath.get(parentPath + DISPLAY_SUFFIX);
+                    if (displayCol != null) {
+                        builder.putString(MetadataUtils.DISPLAY_COL, displayCol);
+                    }
+                }
+                metadata = builder.build();
+            } else {
+                dataType = QNameToDataTypeConverter.getFieldType(QNameToDataTypeConverter.createQNameForElmNamespace(elementType));
+            }
+
+            fields.add(DataTypes.createStructField(element.getName(), dataType, true, metadata));
+            paths.add(path.split("\\."));
+            elementTypes.add(elementType);
+        }
+
+        String patientKeyColumn = null;
+        boolean referenceKey = false;
+        for (RelationshipInfo relationship : classInfo.getContextRelationship()) {
+            if (PATIENT_CONTEXT.equals(relationship.getContext()) && elements.containsKey(relationship.getRelatedKeyElement())) {
+                patientKeyColumn = relationship.getRelatedKeyElement();
+                referenceKey = true;
+            }
+        }
+        if (patientKeyColumn == null) {
+            for (ContextInfo contextInfo : modelInfo.getContextInfo()) {
+                if (PATIENT_CONTEXT.equals(contextInfo.getName()) && contextInfo.getContextType() != null
+                        && classInfo.getName().equals(contextInfo.getContextType().getName())
+                        && elements.containsKey(contextInfo.getKeyElement())) {
+                    patientKeyColumn = contextInfo.getKeyElement();
+                }
+            }
+        }
+
+        String resourceType = classInfo.getTarget() != null ? classInfo.getTarget() : classInfo.getName();
+        return new ResourceTable(classInfo.getName(), resourceType, DataTypes.createStructType(fields), paths,
+                elementTypes, patientKeyColumn, referenceKey);
+    }
+
+    private static void addElements(ModelInfo modelInfo, Map<QName, ClassInfo> classInfos, ClassInfo classInfo, Map<String, ClassInfoElement> elements) {
+        QName baseTypeName = ModelUtils.getBaseTypeName(modelInfo, classInfo);
+        ClassInfo baseType = baseTypeName != null ? classInfos.get(baseTypeName) : null;
+        if (baseType != null) {
+            addElements(modelInfo, classInfos, baseType, elements);
+        }
+        for (ClassInfoElement element : classInfo.getElement()) {
+            elements.put(element.getName(), element);
+        }
+    }
+
+    private static String getPath(ClassInfoElement element) {
+        return element.getTarget() != null ? element.getTarget() : element.getName();
+    }
+
+    private static String getSystemTypeName(ClassInfo classInfo, ClassInfoElement element) {
+        String elementType = element.getElementType() != null ? element.getElementType() : element.getType();
+        String[] parts = elementType != null ? elementType.split("\\.") : new String[0];
+        if (parts.length != 2 || !CqlConstants.SYSTEM_MODEL.equals(parts[0])) {
+            throw new UnsupportedOperationException(String.format("Element %s of type %s has type %s. Only System types can be flattened.",
+                    element.getName(), classInfo.getName(), elementType));
+        }
+        return parts[1];
+    }
+
+    private static Object convert(JsonNode node, String elementType, String column, boolean useJava8APIDatetime) {
+        String text = node.asText();
+        try {
+            switch (elementType) {
+                case "Boolean":
+                    return node.isBoolean() ? node.booleanValue() : Boolean.valueOf(text);
+                case "Integer":
+                    return node.isNumber() ? node.intValue() : Integer.valueOf(text);
+                case "Long":
+                    return node.isNumber() ? node.longValue() : Long.valueOf(text);
+                case "Decimal":
+                    return node.isNumber() ? node.decimalValue() : new BigDecimal(text);
+                case "Date":
+                    LocalDate date = toLocalDate(text);
+                    return useJava8APIDatetime ? date : Date.valueOf(date);
+                case "DateTime":
+                    Instant instant = toOffsetDateTime(text).toInstant();
+                    return useJava8APIDatetime ? instant : Timestamp.from(instant);
+                default:
+                    return text;
+            }
+        } catch (NumberFormatException | DateTimeParseException ex) {
+            throw new IllegalArgumentException(String.format("Failed to convert value '%s' of column %s to %s", text, column, elementType), ex);
+        }
+    }
+
+    /**
+     * Partial FHIR dates, such as 2020 or 2020-06, are read as the first day
+     * of the year or month. The date part of a dateTime is read as a date.
+     */
+    private static LocalDate toLocalDate(String text) {
+        String date = text.length() > 10 ? text.substring(0, 10) : text;
+        if (date.length() == 4) {
+            date += "-01-01";
+        } else if (date.length() == 7) {
+            date += "-01";
+        }
+        return LocalDate.parse(date);
+    }
+
+    /**
+     * FHIR dates and dateTimes without a time zone are read in UTC.
+     */
+    private static OffsetDateTime toOffsetDateTime(String text) {
+        if (text.indexOf('T') < 0) {
+            return toLocalDate(text).atStartOfDay().atOffset(ZoneOffset.UTC);
+        }
+        try {
+            return OffsetDateTime.parse(text);
+        } catch (DateTimeParseException ex) {
+            return LocalDateTime.parse(text).atOffset(ZoneOffset.UTC);
+        }
+    }
+}
@@ -15,27 +15,24 @@ import java.util.stream.Collectors;
 
 import javax.xml.namespace.QName;
 
-import com.ibm.cohort.cql.library.Format;
 import org.apache.spark.sql.types.DataType;
 import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.cqframework.cql.cql2elm.ModelManager;
-import org.cqframework.cql.elm.execution.ExpressionDef;
-import org.cqframework.cql.elm.execution.Library;
+import org.hl7.elm.r1.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.elm_modelinfo.r1.ClassInfo;
 import org.hl7.elm_modelinfo.r1.ClassInfoElement;
 import org.hl7.elm_modelinfo.r1.ModelInfo;
-import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
 
 import com.ibm.cohort.cql.evaluation.CqlEvaluationRequest;
 import com.ibm.cohort.cql.evaluation.CqlEvaluationRequests;
-import com.ibm.cohort.cql.library.CqlLibrary;
 import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
 import com.ibm.cohort.cql.spark.aggregation.ContextDefinition;
 import com.ibm.cohort.cql.spark.aggregation.ContextDefinitions;
+import com.ibm.cohort.cql.spark.optimizer.ElmAnalysisService;
 import com.ibm.cohort.cql.spark.optimizer.ModelUtils;
 import com.ibm.cohort.cql.translation.CqlToElmTranslator;
 
@@ -75,7 +72,7 @@ import scala.Tuple2;
 public class SparkSchemaCreator {
     public static final String DEFAULT_PARAMETERS_COLUMN_NAME = "parameters";
 
-	private CqlLibraryProvider libraryProvider;
+	private ElmAnalysisService elmAnalysis;
 	private CqlEvaluationRequests requests;
 	private ContextDefinitions contextDefinitions;
 	private SparkOutputColumnEncoder sparkOutputColumnEncoder;
@@ -83,7 +80,11 @@ public class SparkSchemaCreator {
     private String parametersColumnName = DEFAULT_PARAMETERS_COLUMN_NAME;
 
 	public SparkSchemaCreator(CqlLibraryProvider libraryProvider, CqlEvaluationRequests requests, ContextDefinitions contextDefinitions, SparkOutputColumnEncoder sparkOutputColumnEncoder, CqlToElmTranslator translator) {
-		this.libraryProvider = libraryProvider;
+		this(new ElmAnalysisService(libraryProvider, translator), requests, contextDefinitions, sparkOutputColumnEncoder, translator);
+	}
+
+	public SparkSchemaCreator(ElmAnalysisService elmAnalysis, CqlEvaluationRequests requests, ContextDefinitions contextDefinitions, SparkOutputColumnEncoder sparkOutputColumnEncoder, CqlToElmTranslator translator) {
+		this.elmAnalysis = elmAnalysis;
 		this.requests = requests;
 		this.contextDefinitions = contextDefinitions;
 		this.sparkOutputColumnEncoder = sparkOutputColumnEncoder;
@@ -111,45 +112,25 @@ public class SparkSchemaCreator {
 		Set<Tuple2<String, String>> usingInfo = new HashSet<>();
 
 		for (CqlEvaluationRequest filteredRequest : filteredRequests) {
+			Set<String> expressionNames = filteredRequest.getExpressionNames();
+			if (expressionNames.isEmpty()) {
+				continue;
+			}
+
 			CqlLibraryDescriptor descriptor = filteredRequest.getDescriptor();
-			String libraryId = descriptor.getLibraryId();
+			Library library = elmAnalysis.getLibrary(descriptor);
 
-			for (String expression : filteredRequest.getExpressionNames()) {
-				CqlLibrary providedLibrary = libraryProvider.getLibrary(new CqlLibraryDescriptor().setLibraryId(libraryId).setVersion(descriptor.getVersion()).setFormat(Format.ELM));
+			// Track the set of non-system using statements across libraries.
+			// Information is used later to access ModelInfos when searching
+			// for context key column type information.
+			usingInfo.addAll(library.getUsings().getDef().stream()
+									 .filter(x -> !x.getLocalIdentifier().equals("System"))
+									 .map(x -> new Tuple2<>(x.getLocalIdentifier(), x.getVersion()))
+									 .collect(Collectors.toList()));
 
-				if( providedLibrary == null ) {
-					throw new IllegalArgumentException("Library not found: " + descriptor.getLibraryId() + "-" + descriptor.getVersion());
-				}
-				
-				Library library = CqlLibraryReader.read(providedLibrary.getContentAsStream());
-
-				// Track the set of non-system using statements across libraries.
-				// Information is used later to access ModelInfos when searching
-				// for context key column type information.
-				usingInfo.addAll(library.getUsings().getDef().stream()
-										 .filter(x -> !x.getLocalIdentifier().equals("System"))
-										 .map(x -> new Tuple2<>(x.getLocalIdentifier(), x.getVersion()))
-										 .collect(Collectors.toList()));
-
-				List<ExpressionDef> expressionDefs = library.getStatements().getDef().stream()
-						.filter(x -> x.getName().equals(expression))
-						.collect(Collectors.toList());
-
-				if (expressionDefs.isEmpty()) {
-					throw new IllegalArgumentException("Expression " + expression + " is configured in the CQL jobs file, but not found in "
-															   + descriptor.getLibraryId() + "-" + descriptor.getVersion());
-				}
-				else if(expressionDefs.size() > 1) {
-					throw new IllegalArgumentException("Expression " + expression + " was defined multiple times in library: "
-															   + descriptor.getLibraryId() + "-" + descriptor.getVersion());
-				}
+			for (String expression : expressionNames) {
+				QName resultTypeName = elmAnalysis.getResultTypeName(descriptor, expression);
 
-				QName resultTypeName = expressionDefs.get(0).getExpression().getResultTypeName();
-				if( resultTypeName == null ) {
-					throw new IllegalArgumentException("Expression " + expression + " has a null result type: "
-															   + descriptor.getLibraryId() + "-" + descriptor.getVersion());
-				}
-				
 				// The column name encoder already performed duplicate checking. We just need to make sure 
 				// we add each uniquely named column to the output one time.
 				String columnName = sparkOutputColumnEncoder.getColumnName(filteredRequest, expression);
@@ -1,5 +1,5 @@
 /*
- * (C) Copyright IBM Corp. 2021, 2021
+ * (C) Copyright IBM Corp. 2021, 2022
  *
  * SPDX-License-Identifier: Apache-2.0
  */
@@ -29,6 +29,10 @@ public class AnyColumnVisitor extends PathCaptureVisitor<AnyColumnContext> {
         super(provider);
     }
     
+    public AnyColumnVisitor(ElmLibraryCache libraryCache) {
+        super(libraryCache);
+    }
+    
     @Override
     public Object visitFunctionRef(FunctionRef elm, AnyColumnContext context) {
         if( AnyColumnFunctions.FUNCTION_NAMES.contains( elm.getName() ) ) {
@@ -11,12 +11,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
-import javax.xml.bind.JAXB;
 import javax.xml.namespace.QName;
 
-import com.ibm.cohort.cql.library.Format;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.hl7.elm.r1.ExpressionDef;
 import org.hl7.elm.r1.Library;
@@ -24,7 +23,6 @@ import org.hl7.elm.r1.UsingDef;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.elm_modelinfo.r1.ModelInfo;
 
-import com.ibm.cohort.cql.library.CqlLibrary;
 import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
 import com.ibm.cohort.cql.spark.optimizer.ModelUtils.TypeNode;
@@ -65,7 +63,7 @@ public class DataTypeRequirementsProcessor {
             });
             
             pathMatchersByDataType.forEach( (key,value) -> {
-                result.merge(key, value, (prev,cur) -> { prev.addAll(cur); return prev; } );
+                result.merge(key, new HashSet<>(value), (prev,cur) -> { prev.addAll(cur); return prev; } );
             });
             
             return result;
@@ -74,7 +72,7 @@ public class DataTypeRequirementsProcessor {
     }
 
     private ModelManager modelManager;
-    private Map<String,Map<QName,TypeNode>> typeMapByModelUri = new HashMap<>();
+    private Map<String,Map<QName,TypeNode>> typeMapByModelUri = new ConcurrentHashMap<>();
 
     
     public DataTypeRequirementsProcessor(CqlToElmTranslator cqlTranslator) {
@@ -86,10 +84,23 @@ public class DataTypeRequirementsProcessor {
     }
     
     public DataTypeRequirements getDataRequirements(CqlLibraryProvider sourceProvider, CqlLibraryDescriptor libraryDescriptor, Set<String> expressions) {
-        AnyColumnVisitor visitor = new AnyColumnVisitor(sourceProvider);
+        return getDataRequirements(new ElmLibraryCache(sourceProvider), libraryDescriptor, expressions);
+    }
+    
+    /**
+     * Calculate data requirements using a library cache that may be shared with
+     * other consumers so that each library is only loaded and parsed once.
+     * 
+     * @param libraryCache cache used to resolve the ELM for the library and its dependencies
+     * @param libraryDescriptor library to process
+     * @param expressions expressions to include in the analysis or null for all expressions
+     * @return data requirements
+     */
+    public DataTypeRequirements getDataRequirements(ElmLibraryCache libraryCache, CqlLibraryDescriptor libraryDescriptor, Set<String> expressions) {
+        AnyColumnVisitor visitor = new AnyColumnVisitor(libraryCache);
         AnyColumnContext context = new AnyColumnContext();
         
-        Library elmLibrary = getElmLibrary(sourceProvider, libraryDescriptor);
+        Library elmLibrary = libraryCache.getLibrary(libraryDescriptor);
         
         // Build a list of all the expressions in the Library that we care about
         List<ExpressionDef> expressionDefs = elmLibrary.getStatements().getDef();
@@ -143,21 +154,6 @@ public class DataTypeRequirementsProcessor {
     }
     
 
-    protected Library getElmLibrary(CqlLibraryProvider sourceProvider, CqlLibraryDescriptor libraryDescriptor) {
-        CqlLibraryDescriptor targetFormat = new CqlLibraryDescriptor()
-                .setLibraryId(libraryDescriptor.getLibraryId())
-                .setVersion(libraryDescriptor.getVersion())
-                .setFormat(Format.ELM);
-        
-        CqlLibrary library = sourceProvider.getLibrary(targetFormat);
-        if( library == null ) {
-            throw new IllegalArgumentException("Failed to load library " + libraryDescriptor.toString());
-        }
-        
-        Library elmLibrary = JAXB.unmarshal(library.getContentAsStream(), Library.class);
-        return elmLibrary;
-    }
-    
     protected <T> void addToChildTypes(Map<String,VersionedIdentifier> models, Map<QName,Set<T>> valuesByDataType) {
         for( Map.Entry<String,VersionedIdentifier> modelData : models.entrySet() ) {
             Map<QName,TypeNode> typeMap = typeMapByModelUri.computeIfAbsent(modelData.getKey(), key -> {
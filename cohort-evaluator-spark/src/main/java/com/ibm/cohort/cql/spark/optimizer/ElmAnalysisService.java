@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.spark.optimizer;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import javax.xml.namespace.QName;
+
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.Library;
+
+import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.spark.optimizer.DataTypeRequirementsProcessor.DataTypeRequirements;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+
+/**
+ * Single point of ELM analysis for a job. Schema creation, column filtering,
+ * and anything else that needs to inspect the ELM of the libraries being
+ * evaluated should share one instance so that each library is loaded and
+ * parsed once and each analysis result is only calculated once.
+ *
+ * Results returned from this class are shared between callers and must be
+ * treated as read-only.
+ */
+public class ElmAnalysisService {
+
+    private final ElmLibraryCache libraryCache;
+    private final DataTypeRequirementsProcessor requirementsProcessor;
+    private final ConcurrentMap<String, DataTypeRequirements> requirementsByKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, QName> resultTypesByKey = new ConcurrentHashMap<>();
+
+    public ElmAnalysisService(CqlLibraryProvider libraryProvider, CqlToElmTranslator cqlTranslator) {
+        this.libraryCache = new ElmLibraryCache(libraryProvider);
+        this.requirementsProcessor = new DataTypeRequirementsProcessor(cqlTranslator);
+    }
+
+    public ElmLibraryCache getLibraryCache() {
+        return libraryCache;
+    }
+
+    public Library getLibrary(CqlLibraryDescriptor libraryDescriptor) {
+        return libraryCache.getLibrary(libraryDescriptor);
+    }
+
+    public List<Object> getAnnotations(CqlLibraryDescriptor libraryDescriptor) {
+        return libraryCache.getAnnotations(getLibrary(libraryDescriptor).getIdentifier());
+    }
+
+    /**
+     * Retrieve the data types and columns that are needed to evaluate the requested
+     * expressions.
+     *
+     * @param libraryDescriptor library containing the expressions
+     * @param expressions expression names or null for all expressions in the library
+     * @return data requirements
+     */
+    public DataTypeRequirements getDataRequirements(CqlLibraryDescriptor libraryDescriptor, Set<String> expressions) {
+        String key = getLibraryKey(libraryDescriptor) + "|" + (expressions != null ? new TreeSet<>(expressions) : "*");
+        return requirementsByKey.computeIfAbsent(key,
+                k -> requirementsProcessor.getDataRequirements(libraryCache, libraryDescriptor, expressions));
+    }
+
+    /**
+     * Retrieve the declared result type of an expression. The library must have
+     * been translated with the EnableResultTypes option.
+     *
+     * @param libraryDescriptor library containing the expression
+     * @param expression expression name
+     * @return result type name
+     * @throws IllegalArgumentException if the expression is missing, defined more than once,
+     *         or has no result type
+     */
+    public QName getResultTypeName(CqlLibraryDescriptor libraryDescriptor, String expression) {
+        String key = getLibraryKey(libraryDescriptor) + "|" + expression;
+        return resultTypesByKey.computeIfAbsent(key, k -> resolveResultTypeName(libraryDescriptor, expression));
+    }
+
+    private QName resolveResultTypeName(CqlLibraryDescriptor libraryDescriptor, String expression) {
+        Library library = getLibrary(libraryDescriptor);
+
+        List<ExpressionDef> expressionDefs = library.getStatements().getDef().stream()
+                .filter(x -> x.getName().equals(expression))
+                .collect(Collectors.toList());
+
+        if (expressionDefs.isEmpty()) {
+            throw new IllegalArgumentException("Expression " + expression + " is configured in the CQL jobs file, but not found in "
+                    + libraryDescriptor.getLibraryId() + "-" + libraryDescriptor.getVersion());
+        } else if (expressionDefs.size() > 1) {
+            throw new IllegalArgumentException("Expression " + expression + " was defined multiple times in library: "
+                    + libraryDescriptor.getLibraryId() + "-" + libraryDescriptor.getVersion());
+        }
+
+        QName resultTypeName = expressionDefs.get(0).getExpression().getResultTypeName();
+        if (resultTypeName == null) {
+            throw new IllegalArgumentException("Expression " + expression + " has a null result type: "
+                    + libraryDescriptor.getLibraryId() + "-" + libraryDescriptor.getVersion());
+        }
+        return resultTypeName;
+    }
+
+    private String getLibraryKey(CqlLibraryDescriptor libraryDescriptor) {
+        return libraryDescriptor.getLibraryId() + "-" + libraryDescriptor.getVersion();
+    }
+}
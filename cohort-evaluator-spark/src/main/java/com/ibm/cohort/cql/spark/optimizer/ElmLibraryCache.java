@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.spark.optimizer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.cohort.cql.library.CqlLibrary;
+import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.Format;
+
+/**
+ * Loads ELM libraries from a {@link CqlLibraryProvider} and keeps the
+ * deserialized result so that each library is fetched and parsed at most
+ * once no matter how many visitors or processors ask for it. Deserialized
+ * annotations are kept alongside the library.
+ *
+ * The cached Library objects are shared and must be treated as read-only.
+ */
+public class ElmLibraryCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ElmLibraryCache.class);
+
+    private final CqlLibraryProvider libraryProvider;
+    private final ConcurrentMap<String, Library> librariesByKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<Object>> annotationsByKey = new ConcurrentHashMap<>();
+
+    public ElmLibraryCache(CqlLibraryProvider libraryProvider) {
+        this.libraryProvider = libraryProvider;
+    }
+
+    public CqlLibraryProvider getLibraryProvider() {
+        return libraryProvider;
+    }
+
+    public Library getLibrary(VersionedIdentifier libraryIdentifier) {
+        return getLibrary(libraryIdentifier.getId(), libraryIdentifier.getVersion());
+    }
+
+    public Library getLibrary(CqlLibraryDescriptor libraryDescriptor) {
+        return getLibrary(libraryDescriptor.getLibraryId(), libraryDescriptor.getVersion());
+    }
+
+    public Library getLibrary(String libraryId, String version) {
+        return librariesByKey.computeIfAbsent(getKey(libraryId, version), key -> loadLibrary(libraryId, version));
+    }
+
+    /**
+     * Retrieve the deserialized annotations for a library.
+     *
+     * @param libraryIdentifier library identifier
+     * @return List of annotation objects. See {@link ElmUtils#unmarshallAnnotations(Library)}.
+     */
+    public List<Object> getAnnotations(VersionedIdentifier libraryIdentifier) {
+        String key = getKey(libraryIdentifier.getId(), libraryIdentifier.getVersion());
+        return annotationsByKey.computeIfAbsent(key, k -> Collections.unmodifiableList(
+                ElmUtils.unmarshallAnnotations(getLibrary(libraryIdentifier))));
+    }
+
+    public int size() {
+        return librariesByKey.size();
+    }
+
+    protected Library loadLibrary(String libraryId, String version) {
+        CqlLibraryDescriptor descriptor = new CqlLibraryDescriptor().setLibraryId(libraryId)
+                .setVersion(version).setFormat(Format.ELM);
+
+        CqlLibrary library = libraryProvider.getLibrary(descriptor);
+        if( library == null ) {
+            throw new IllegalArgumentException("Library not found: " + libraryId + "-" + version);
+        }
+        LOG.trace(library.getContent());
+        return ElmUtils.unmarshallLibrary(library.getContentAsStream());
+    }
+
+    private String getKey(String libraryId, String version) {
+        return libraryId + "-" + version;
+    }
+}
@@ -1,11 +1,12 @@
 /*
- * (C) Copyright IBM Corp. 2021
+ * (C) Copyright IBM Corp. 2021, 2022
  *
  * SPDX-License-Identifier: Apache-2.0
  */
 
 package com.ibm.cohort.cql.spark.optimizer;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -13,8 +14,10 @@ import java.util.Set;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
 
 import org.hl7.cql_annotations.r1.CqlToElmError;
 import org.hl7.cql_annotations.r1.CqlToElmInfo;
@@ -34,6 +37,24 @@ import org.w3c.dom.Element;
 public class ElmUtils {
     private static final Logger LOG = LoggerFactory.getLogger(ElmUtils.class);
 
+    /**
+     * JAXBContext creation is expensive and the resulting objects are thread-safe,
+     * so a single instance of each context is shared by the whole JVM. Unmarshaller
+     * objects are not thread-safe and are created per call.
+     */
+    private static class ContextHolder {
+        private static final JAXBContext LIBRARY_CONTEXT = newContext(Library.class);
+        private static final JAXBContext ANNOTATION_CONTEXT = newContext(ObjectFactory.class);
+
+        private static JAXBContext newContext(Class<?> clazz) {
+            try {
+                return JAXBContext.newInstance(clazz);
+            } catch (JAXBException ex) {
+                throw new IllegalStateException("Failed to initialize JAXB context for " + clazz.getName(), ex);
+            }
+        }
+    }
+
     public static Set<QName> getModelTypeNames(Expression expression) {
         Set<QName> modelTypeNames = new HashSet<>();
         if( expression.getResultTypeName() != null ) {
@@ -72,6 +93,21 @@ public class ElmUtils {
         return specifierModelTypeNames;
     }
     
+    /**
+     * Deserialize an ELM XML document using the shared JAXB context.
+     * 
+     * @param is ELM XML content
+     * @return deserialized library
+     */
+    public static Library unmarshallLibrary(InputStream is) {
+        try {
+            Unmarshaller u = ContextHolder.LIBRARY_CONTEXT.createUnmarshaller();
+            return u.unmarshal(new StreamSource(is), Library.class).getValue();
+        } catch( JAXBException ex ) {
+            throw new IllegalArgumentException("Failed to deserialize ELM library", ex);
+        }
+    }
+    
     /**
      * When a Library is deserialized via the CqlLibraryReader helper class the
      * annotations do not get mapped to Objects. This method helps bridge the gap.
@@ -85,8 +121,7 @@ public class ElmUtils {
         List<Object> annotations = new ArrayList<>();
         if (library.getAnnotation() != null) {
             try {
-                JAXBContext ctx = JAXBContext.newInstance(ObjectFactory.class);
-                Unmarshaller u = ctx.createUnmarshaller();
+                Unmarshaller u = ContextHolder.ANNOTATION_CONTEXT.createUnmarshaller();
     
                 for (Object elem : library.getAnnotation()) {
                     JAXBElement<?> j = (JAXBElement<?>) u.unmarshal((Element) elem);
@@ -12,9 +12,6 @@ import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
 
-import javax.xml.bind.JAXB;
-
-import com.ibm.cohort.cql.library.Format;
 import org.cqframework.cql.cql2elm.NamespaceManager;
 import org.cqframework.cql.elm.visiting.ElmBaseLibraryVisitor;
 import org.hl7.elm.r1.Element;
@@ -24,11 +21,7 @@ import org.hl7.elm.r1.FunctionRef;
 import org.hl7.elm.r1.IncludeDef;
 import org.hl7.elm.r1.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import com.ibm.cohort.cql.library.CqlLibrary;
-import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
 
 /**
@@ -43,14 +36,20 @@ import com.ibm.cohort.cql.library.CqlLibraryProvider;
  */
 public class GraphWalkingElmVisitor<R, C> extends ElmBaseLibraryVisitor <R, C> {
     
-    private static final Logger LOG = LoggerFactory.getLogger(GraphWalkingElmVisitor.class);
-    
     private Deque<VersionedIdentifier> libraryStack = new ArrayDeque<>();
     private Set<Element> visited = new HashSet<>();
-    private CqlLibraryProvider libraryProvider;
+    private ElmLibraryCache libraryCache;
     
     public GraphWalkingElmVisitor(CqlLibraryProvider libraryProvider) {
-        this.libraryProvider = libraryProvider;
+        this(new ElmLibraryCache(libraryProvider));
+    }
+    
+    public GraphWalkingElmVisitor(ElmLibraryCache libraryCache) {
+        this.libraryCache = libraryCache;
+    }
+    
+    protected ElmLibraryCache getLibraryCache() {
+        return libraryCache;
     }
     
     public void enterLibrary(VersionedIdentifier libraryIdentifier) {
@@ -150,16 +149,7 @@ public class GraphWalkingElmVisitor<R, C> extends ElmBaseLibraryVisitor <R, C> {
     }
     
     protected Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
-        CqlLibraryDescriptor descriptor = new CqlLibraryDescriptor().setLibraryId(libraryIdentifier.getId())
-                .setVersion(libraryIdentifier.getVersion()).setFormat(Format.ELM);
-        
-        CqlLibrary library = libraryProvider.getLibrary(descriptor);
-        if( library == null ) {
-            throw new IllegalArgumentException("Missing library " + descriptor.toString());
-        }
-        LOG.trace(library.getContent());
-        Library elmLibrary = JAXB.unmarshal(library.getContentAsStream(), Library.class);
-        return elmLibrary;
+        return libraryCache.getLibrary(libraryIdentifier);
     }
     
     public Library resolveLibraryFromIncludeDef(IncludeDef includeDef) {
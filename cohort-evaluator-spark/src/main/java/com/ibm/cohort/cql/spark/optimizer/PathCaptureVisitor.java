@@ -1,5 +1,5 @@
 /*
- * (C) Copyright IBM Corp. 2021
+ * (C) Copyright IBM Corp. 2021, 2022
  *
  * SPDX-License-Identifier: Apache-2.0
  */
@@ -35,6 +35,10 @@ public class PathCaptureVisitor <C extends PathCaptureContext> extends GraphWalk
     public PathCaptureVisitor(CqlLibraryProvider libraryProvider) {
         super(libraryProvider);
     }
+    
+    public PathCaptureVisitor(ElmLibraryCache libraryCache) {
+        super(libraryCache);
+    }
 
     @Override
     public Object visitProperty(Property elm, C context) {
@@ -118,7 +122,7 @@ public class PathCaptureVisitor <C extends PathCaptureContext> extends GraphWalk
     @Override
     protected Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
         Library library = super.resolveLibrary(libraryIdentifier);
-        if( library.getAnnotation() != null && ElmUtils.unmarshallAnnotations(library).stream().filter( anno -> {
+        if( library.getAnnotation() != null && getLibraryCache().getAnnotations(libraryIdentifier).stream().filter( anno -> {
             boolean hasOption = false;
             if( anno instanceof CqlToElmInfo ) {
                 CqlToElmInfo info = (CqlToElmInfo) anno;
@@ -13,6 +13,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -57,8 +58,9 @@ public class R4FileSystemFhirTerminologyProvider implements CqlTerminologyProvid
 	
 	private static final FhirContext fhirContext = FhirContext.forR4();
 	
-	private Map<VersionedIdentifier, Map<String, Set<String>>> valueSetToCodesCache = new HashMap<>();
-	private Map<VersionedIdentifier, List<Code>> valueSetCodeCache = new HashMap<>();
+	// Concurrent so that ValueSets can be loaded in parallel (e.g. by the TerminologyPrefetcher)
+	private Map<VersionedIdentifier, Map<String, Set<String>>> valueSetToCodesCache = new ConcurrentHashMap<>();
+	private Map<VersionedIdentifier, List<Code>> valueSetCodeCache = new ConcurrentHashMap<>();
 	
 	public R4FileSystemFhirTerminologyProvider(Path terminologyDirectory, Configuration configuration) {
 		super();
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.cql.spark;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.delta.DeltaLog;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FhirNdjsonIngesterTest extends BaseSparkTest {
+    private static final long serialVersionUID = 1L;
+
+    private SparkSession spark;
+
+    @Before
+    public void setUp() {
+        this.spark = initializeSession(Java8API.ENABLED);
+    }
+
+    @Test
+    public void testIngest() throws Exception {
+        String outputLocation = "target/output/fhir-ndjson-ingest";
+
+        String[] args = new String[] {
+                "-i", new File("src/test/resources/fhir-ndjson/input").toURI().toString(),
+                "-m", "src/test/resources/fhir-ndjson/modelinfo/fhir-tables-modelinfo-1.0.0.xml",
+                "-o", new File(outputLocation).toURI().toString(),
+                "-n", "2",
+                "--output-format", "delta",
+                "--overwrite-output"
+        };
+
+        FhirNdjsonIngester.main(args);
+
+        DeltaLog.clearCache();
+        spark = initializeSession(Java8API.ENABLED);
+
+        Dataset<Row> patients = spark.read().format("delta").load(outputLocation + "/Patient");
+        assertEquals(new HashSet<>(Arrays.asList("123", "456")), getValues(patients, "id"));
+
+        // Each coding of an Observation is a row of its own
+        Dataset<Row> observations = spark.read().format("delta").load(outputLocation + "/Observation");
+        assertEquals(3, observations.count());
+        assertEquals(new HashSet<>(Arrays.asList(
+                "obs1|8302-2|http://loinc.org|Body height|123",
+                "obs1|50373000|http://snomed.info/sct|null|123",
+                "obs2|29463-7|http://loinc.org|null|456")),
+                getValues(observations, "id", "code", "code_system", "code_display", "patient_id"));
+    }
+
+    private static Set<String> getValues(Dataset<Row> dataset, String column, String... columns) {
+        List<Row> rows = dataset.select(column, columns).collectAsList();
+        return rows.stream()
+                .map(row -> {
+                    StringBuilder value = new StringBuilder(String.valueOf(row.get(0)));
+                    for (int i = 1; i < row.size(); i++) {
+                        value.append('|').append(row.get(i));
+                    }
+                    return value.toString();
+                })
+                .collect(Collectors.toSet());
+    }
+}
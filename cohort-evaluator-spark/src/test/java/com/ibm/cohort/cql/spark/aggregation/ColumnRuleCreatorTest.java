@@ -16,6 +16,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ibm.cohort.cql.evaluation.CqlEvaluationRequests;
 import com.ibm.cohort.cql.library.ClasspathCqlLibraryProvider;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.spark.optimizer.ElmAnalysisService;
 import com.ibm.cohort.cql.translation.CqlToElmTranslator;
 import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
 import com.ibm.cohort.cql.util.EqualsStringMatcher;
@@ -122,4 +123,35 @@ public class ColumnRuleCreatorTest {
 
         assertEquals( expected, actual );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetFiltersForMultipleContextsSharedAnalysis() throws Exception {
+        CqlToElmTranslator cqlTranslator = new CqlToElmTranslator();
+        cqlTranslator.registerModelInfo(new File("src/test/resources/alltypes/modelinfo/alltypes-modelinfo-1.0.0.xml"));
+
+        ObjectMapper mapper = new ObjectMapper();
+        CqlEvaluationRequests requests = mapper.readValue(new File("src/test/resources/alltypes/metadata/parent-child-jobs.json"), CqlEvaluationRequests.class);
+
+        TranslatingCqlLibraryProvider cqlLibraryProvider = new TranslatingCqlLibraryProvider(
+                new ClasspathCqlLibraryProvider("alltypes.cql"),
+                cqlTranslator
+        );
+
+        ColumnRuleCreator columnRuleCreator = new ColumnRuleCreator(
+                requests.getEvaluations(),
+                new ElmAnalysisService(cqlLibraryProvider, cqlTranslator)
+        );
+
+        ContextDefinitions definitions = mapper.readValue(new File("src/test/resources/alltypes/metadata/context-definitions.json"), ContextDefinitions.class);
+
+        // Columns added for one context must not leak into the shared analysis results
+        columnRuleCreator.getDataRequirementsForContext(definitions.getContextDefinitionByName("Patient"));
+        Map<String, Set<StringMatcher>> actual = columnRuleCreator.getDataRequirementsForContext(definitions.getContextDefinitionByName("A"));
+
+        Map<String,Set<StringMatcher>> expected = new HashMap<>();
+        expected.put("A", new HashSet<>(Arrays.asList(new EqualsStringMatcher(ContextRetriever.SOURCE_FACT_IDX), new EqualsStringMatcher("id_col"),
+                                                      new EqualsStringMatcher("code_col"), new EqualsStringMatcher("boolean_col"))));
+
+        assertEquals( expected, actual );
+    }
+}
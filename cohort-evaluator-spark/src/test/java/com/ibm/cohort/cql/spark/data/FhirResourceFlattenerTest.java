@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.cql.spark.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.Metadata;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.cohort.cql.spark.data.FhirResourceFlattener.ResourceTable;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+
+import scala.Tuple2;
+
+public class FhirResourceFlattenerTest {
+
+    private FhirResourceFlattener flattener;
+
+    @Before
+    public void setUp() {
+        CqlToElmTranslator translator = new CqlToElmTranslator();
+        translator.registerModelInfo(new File("src/test/resources/fhir-ndjson/modelinfo/fhir-tables-modelinfo-1.0.0.xml"));
+        flattener = new FhirResourceFlattener(translator.getRegisteredModelInfos().values());
+    }
+
+    @Test
+    public void testTables() {
+        assertEquals(2, flattener.getTables().size());
+
+        ResourceTable patient = flattener.getTable("Patient");
+        StructType schema = patient.getSchema();
+        assertEquals("id", schema.fields()[0].name());
+        assertEquals(DataTypes.DateType, schema.apply("birthDate").dataType());
+        assertTrue(MetadataUtils.isCodeCol(schema.apply("gender").metadata()));
+        assertFalse(MetadataUtils.hasSystemCol(schema.apply("gender").metadata()));
+        assertEquals("id", patient.getPatientKeyColumn());
+
+        ResourceTable observation = flattener.getTable("Observation");
+        schema = observation.getSchema();
+        Metadata codeMetadata = schema.apply("code").metadata();
+        assertTrue(MetadataUtils.isCodeCol(codeMetadata));
+        assertEquals(DataTypes.StringType, schema.apply("code").dataType());
+        assertEquals("code_system", MetadataUtils.getSystemCol(codeMetadata));
+        assertEquals("code_display", MetadataUtils.getDisplayCol(codeMetadata));
+        assertFalse(MetadataUtils.isCodeCol(schema.apply("code_system").metadata()));
+        assertEquals(DataTypes.TimestampType, schema.apply("effective").dataType());
+        assertEquals("patient_id", observation.getPatientKeyColumn());
+    }
+
+    @Test
+    public void testFlattenPatient() throws Exception {
+        List<Tuple2<String, Row>> results = flattener.flatten(
+                "{\"resourceType\":\"Patient\",\"id\":\"123\",\"gender\":\"female\",\"birthDate\":\"1980-06\",\"active\":true}");
+
+        assertEquals(1, results.size());
+        Tuple2<String, Row> result = results.get(0);
+        assertEquals("Patient", result._1());
+        Row row = result._2();
+        assertEquals("123", row.get(0));
+        assertEquals("female", row.get(1));
+        assertEquals(Date.valueOf("1980-06-01"), row.get(2));
+        assertEquals(Boolean.TRUE, row.get(3));
+    }
+
+    @Test
+    public void testFlattenObservation() throws Exception {
+        List<Tuple2<String, Row>> results = flattener.flatten("{\"resourceType\":\"Observation\",\"id\":\"obs1\","
+                + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"8302-2\",\"display\":\"Body height\"},"
+                + "{\"system\":\"http://snomed.info/sct\",\"code\":\"50373000\"}]},"
+                + "\"effectiveDateTime\":\"2020-01-02T03:04:05-05:00\","
+                + "\"valueQuantity\":{\"value\":180.25,\"unit\":\"cm\"},"
+                + "\"subject\":{\"reference\":\"Patient/123\"}}");
+
+        // Each coding is a row of its own
+        assertEquals(2, results.size());
+        assertEquals("Observation", results.get(0)._1());
+        Row row = results.get(0)._2();
+        assertEquals("obs1", row.get(0));
+        assertEquals("8302-2", row.get(1));
+        assertEquals("http://loinc.org", row.get(2));
+        assertEquals("Body height", row.get(3));
+        assertEquals(Timestamp.from(Instant.parse("2020-01-02T08:04:05Z")), row.get(4));
+        assertEquals(new BigDecimal("180.25"), row.get(5));
+        assertEquals("123", row.get(6));
+
+        assertEquals("Observation", results.get(1)._1());
+        row = results.get(1)._2();
+        assertEquals("obs1", row.get(0));
+        assertEquals("50373000", row.get(1));
+        assertEquals("http://snomed.info/sct", row.get(2));
+        assertNull(row.get(3));
+        assertEquals(Timestamp.from(Instant.parse("2020-01-02T08:04:05Z")), row.get(4));
+        assertEquals(new BigDecimal("180.25"), row.get(5));
+        assertEquals("123", row.get(6));
+    }
+
+    @Test
+    public void testFlattenEmptyRepeatingElement() throws Exception {
+        List<Tuple2<String, Row>> results = flattener.flatten("{\"resourceType\":\"Observation\",\"id\":\"obs1\",\"code\":{\"coding\":[]}}");
+
+        assertEquals(1, results.size());
+        assertEquals("obs1", results.get(0)._2().get(0));
+        assertNull(results.get(0)._2().get(1));
+    }
+
+    @Test
+    public void testFlattenJava8APIDatetime() throws Exception {
+        CqlToElmTranslator translator = new CqlToElmTranslator();
+        translator.registerModelInfo(new File("src/test/resources/fhir-ndjson/modelinfo/fhir-tables-modelinfo-1.0.0.xml"));
+        flattener = new FhirResourceFlattener(translator.getRegisteredModelInfos().values(), true);
+
+        Row patient = flattener.flatten("{\"resourceType\":\"Patient\",\"id\":\"123\",\"birthDate\":\"1980-06\"}").get(0)._2();
+        assertEquals(LocalDate.of(1980, 6, 1), patient.get(2));
+
+        Row observation = flattener.flatten("{\"resourceType\":\"Observation\",\"id\":\"obs1\",\"effectiveDateTime\":\"2020-01-02\"}").get(0)._2();
+        assertEquals(Instant.parse("2020-01-02T00:00:00Z"), observation.get(4));
+    }
+
+    @Test
+    public void testFlattenMissingElements() throws Exception {
+        Row row = flattener.flatten("{\"resourceType\":\"Observation\",\"id\":\"obs1\",\"effectiveDateTime\":\"2020-01-02\"}").get(0)._2();
+
+        assertEquals("obs1", row.get(0));
+        assertNull(row.get(1));
+        assertEquals(Timestamp.from(Instant.parse("2020-01-02T00:00:00Z")), row.get(4));
+        assertNull(row.get(6));
+    }
+
+    @Test
+    public void testFlattenUnknownType() throws Exception {
+        assertTrue(flattener.flatten("{\"resourceType\":\"Encounter\",\"id\":\"enc1\"}").isEmpty());
+    }
+
+    @Test
+    public void testFlattenInvalidValue() {
+        assertThrows(IllegalArgumentException.class,
+                () -> flattener.flatten("{\"resourceType\":\"Patient\",\"id\":\"123\",\"birthDate\":\"June 1980\"}"));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.spark.optimizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.cohort.cql.library.CqlLibrary;
+import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.Format;
+import com.ibm.cohort.cql.spark.optimizer.DataTypeRequirementsProcessor.DataTypeRequirements;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+
+public class ElmAnalysisServiceTest extends BaseDataTypeRequirementsProcessorTest {
+
+    private static final CqlLibraryDescriptor CONTEXT1 = new CqlLibraryDescriptor().setLibraryId("Context1Id").setVersion("1.0.0");
+
+    private Map<String, Integer> elmRequests;
+    private ElmAnalysisService service;
+
+    @Before
+    public void setUp() throws Exception {
+        String basePath = "src/test/resources/output-validation";
+        CqlToElmTranslator translator = createCqlTranslator(basePath + "/modelinfo/simple-all-types-model-info.xml");
+        CqlLibraryProvider sourceProvider = createLibrarySourceProvider(basePath + "/cql", translator);
+
+        elmRequests = new HashMap<>();
+        CqlLibraryProvider countingProvider = descriptor -> {
+            CqlLibrary library = sourceProvider.getLibrary(descriptor);
+            if (descriptor.getFormat() == Format.ELM) {
+                elmRequests.merge(descriptor.getLibraryId(), 1, Integer::sum);
+            }
+            return library;
+        };
+
+        service = new ElmAnalysisService(countingProvider, translator);
+    }
+
+    @Test
+    public void testLibraryLoadedOnce() {
+        service.getLibrary(CONTEXT1);
+        service.getResultTypeName(CONTEXT1, "define_integer");
+        service.getDataRequirements(CONTEXT1, null);
+        service.getDataRequirements(CONTEXT1, new HashSet<>(Arrays.asList("define_integer")));
+        assertFalse(service.getAnnotations(CONTEXT1).isEmpty());
+
+        assertEquals(Integer.valueOf(1), elmRequests.get("Context1Id"));
+        assertSame(service.getLibrary(CONTEXT1), service.getLibraryCache().getLibrary("Context1Id", "1.0.0"));
+    }
+
+    @Test
+    public void testDataRequirementsMemoized() {
+        Set<String> first = new HashSet<>(Arrays.asList("define_integer", "define_boolean"));
+        Set<String> second = new HashSet<>(Arrays.asList("define_boolean", "define_integer"));
+
+        DataTypeRequirements requirements = service.getDataRequirements(CONTEXT1, first);
+        assertSame(requirements, service.getDataRequirements(CONTEXT1, second));
+    }
+
+    @Test
+    public void testResultTypeName() {
+        QName resultTypeName = service.getResultTypeName(CONTEXT1, "define_integer");
+        assertEquals("Integer", resultTypeName.getLocalPart());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResultTypeNameMissingExpression() {
+        service.getResultTypeName(CONTEXT1, "does_not_exist");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingLibrary() {
+        service.getLibrary(new CqlLibraryDescriptor().setLibraryId("Missing").setVersion("1.0.0"));
+    }
+}
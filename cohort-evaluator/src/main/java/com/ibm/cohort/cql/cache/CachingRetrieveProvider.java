@@ -6,29 +6,132 @@
 
 package com.ibm.cohort.cql.cache;
 
+import com.ibm.cohort.cql.cache.RetrievePlan.PlannedRetrieve;
+import com.ibm.cohort.cql.data.BatchRetrieveProvider;
+import com.ibm.cohort.cql.data.MultiRetrieveProvider;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.cache.Cache;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * <p>A {@link RetrieveProvider} decorator that leverages a cache for easily cacheable retrieve() calls.
  *
  * <p>The underlying cache implementation depends on what {@link RetrieveCacheContext} is passed in.
+ *
+ * <p>When several threads evaluate the same context at the same time (e.g. multiple measures for one patient),
+ * a retrieve that is already in progress is shared with the other callers instead of being issued again.
+ *
+ * <p>Resources looked up with {@link #retrieveByIds(String, List)} are held until the matching by-id retrieve
+ * is made for their own context (e.g. the Patient retrieve when that patient is evaluated), which is then
+ * answered without another call to the base provider.
+ *
+ * <p>When a {@link RetrievePlan} is set and a {@link RetrieveCodeExtractor} is provided, a cache miss for a code
+ * filtered retrieve that the plan groups with others (e.g. [Condition: "Diabetes"] and [Condition: "Hypertension"])
+ * makes one base retrieve with the codes of every retrieve in the group that is not cached yet. The results are
+ * divided between the retrieves by the codes at the code path and each share is cached, so the other retrieves of
+ * the group are answered from the cache. ValueSets are expanded with the terminology provider for the combined
+ * retrieve when the base provider also expands them on the client, otherwise retrieves of a ValueSet are made on
+ * their own.
+ *
+ * <p>Retrieves made with {@link #prefetch(List, Executor)} are held, like the batch retrieved resources, until evaluation
+ * makes the same retrieve and the results are moved to the cache of their context. They are not put in the cache
+ * directly so that the retrieves of the next context can be made while the current context is evaluated without
+ * replacing its cache. Retrieves that are already cached for the context being evaluated are not prefetched.
+ * The base provider makes the prefetched retrieves at once when it is a {@link MultiRetrieveProvider}.
+ *
+ * <p>Element requirements are passed on when the base provider is {@link ElementProjectionAware}. The cache and the
+ * prefetched retrieves are flushed when the requirements of a data type are widened, because the resources held
+ * may lack the elements that are now read.
+ *
+ * <p>Retrieves with a date filter are passed to the base provider uncached unless date ranges may be widened (see
+ * {@link DateRangeAware}), which is also passed on when the base provider is {@link DateRangeAware}.
  */
-public class CachingRetrieveProvider implements RetrieveProvider {
+public class CachingRetrieveProvider implements RetrieveProvider, BatchRetrieveProvider, RetrievePlanAware, RetrievePrefetcher, ElementProjectionAware, DateRangeAware {
 
 	private static final Logger LOG = LoggerFactory.getLogger(CachingRetrieveProvider.class);
 
+	/**
+	 * Upper bound on the number of batch retrieved resources that are waiting for their by-id retrieve, and
+	 * separately on the number of prefetched retrieves. Results that are never retrieved again are discarded once
+	 * the bound is reached, and only the first entries of a larger batch are held.
+	 */
+	public static final int MAX_PRIMED_RETRIEVES = 10000;
+
+	private static final String BASE_PROFILE_PREFIX = "http://hl7.org/fhir/StructureDefinition/";
+
 	private final RetrieveProvider baseProvider;
 	private final RetrieveCacheContext retrieveCacheContext;
+	private final RetrieveCodeExtractor codeExtractor;
+	private final TerminologyProvider terminologyProvider;
+	private volatile RetrievePlan retrievePlan;
+	private volatile String currentContextValue;
+	private volatile boolean widenDateRanges;
+	private final ConcurrentMap<RetrieveCacheKey, FutureTask<Iterable<Object>>> pendingRetrieves = new ConcurrentHashMap<>();
+	private final ConcurrentMap<RetrieveCacheKey, Iterable<Object>> primedRetrieves = new ConcurrentHashMap<>();
+	private final ConcurrentMap<RetrieveCacheKey, FutureTask<Iterable<Object>>> prefetchedRetrieves = new ConcurrentHashMap<>();
+	private final ElementProjection elementProjection = new ElementProjection();
 
 	public CachingRetrieveProvider(RetrieveProvider baseProvider, RetrieveCacheContext retrieveCacheContext) {
+		this(baseProvider, retrieveCacheContext, null, null);
+	}
+
+	/**
+	 * @param baseProvider         provider used on a cache miss
+	 * @param retrieveCacheContext caches used for each context
+	 * @param codeExtractor        extractor used to divide combined retrieves or null to never combine retrieves
+	 * @param terminologyProvider  provider used to expand ValueSets for combined retrieves or null to only combine
+	 *                             retrieves that filter on codes
+	 */
+	public CachingRetrieveProvider(RetrieveProvider baseProvider, RetrieveCacheContext retrieveCacheContext, RetrieveCodeExtractor codeExtractor, TerminologyProvider terminologyProvider) {
 		this.baseProvider = baseProvider;
 		this.retrieveCacheContext = retrieveCacheContext;
+		this.codeExtractor = codeExtractor;
+		this.terminologyProvider = terminologyProvider;
+	}
+
+	@Override
+	public void setRetrievePlan(RetrievePlan retrievePlan) {
+		this.retrievePlan = retrievePlan;
+	}
+
+	@Override
+	public void addElementRequirements(RetrievePlan retrievePlan) {
+		if (baseProvider instanceof ElementProjectionAware) {
+			if (elementProjection.add(retrievePlan)) {
+				LOG.debug("Element requirements widened, flushing cached retrieves");
+				prefetchedRetrieves.clear();
+				retrieveCacheContext.flushCache();
+			}
+			((ElementProjectionAware) baseProvider).addElementRequirements(retrievePlan);
+		}
+	}
+
+	@Override
+	public void setWidenDateRanges(boolean widenDateRanges) {
+		this.widenDateRanges = widenDateRanges;
+		if (baseProvider instanceof DateRangeAware) {
+			((DateRangeAware) baseProvider).setWidenDateRanges(widenDateRanges);
+		}
 	}
 
 	@Override
@@ -55,24 +158,45 @@ public class CachingRetrieveProvider implements RetrieveProvider {
 		 *     This can be relaxed once we better understand what other types show up here,
 		 *     and how they might be serialized.
 		 *
-		 * * If any of the date based fields are non-null.
+		 * * If any of the date based fields are non-null and date ranges may not be widened.
 		 *     Due to the nature of time itself, the values returned by the underlying provider may change
 		 *     in between calls that are minutes or even seconds apart even though the parameters are the same.
 		 */
-		if (contextValue.getClass() != String.class || datePath != null || dateLowPath != null || dateHighPath != null || dateRange != null) {
+		boolean dated = datePath != null || dateLowPath != null || dateHighPath != null || dateRange != null;
+		if (contextValue.getClass() != String.class || (dated && !widenDateRanges)) {
 			LOG.trace("Skipping cache");
 			retVal = baseProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
 		}
+		else if (dated) {
+			retVal = retrieveDated(context, contextPath, (String)contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+		}
 		else {
 			Cache<RetrieveCacheKey, Iterable<Object>> cache = retrieveCacheContext.getCache((String)contextValue);
+			currentContextValue = (String)contextValue;
 			LOG.trace("Attempting cache");
 			RetrieveCacheKey key = RetrieveCacheKey.create(context, contextPath, (String)contextValue, dataType, templateId, codePath, codes, valueSet);
 
 			retVal = cache.get(key);
 			if (retVal == null) {
 				LOG.trace("Cache miss");
-				retVal = baseProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, null, null, null, null);
-				cache.put(key, retVal);
+				retVal = retrieveOnce(key, new FutureTask<>(() -> {
+					// Another caller may have completed the same retrieve after our cache miss
+					Iterable<Object> cached = cache.get(key);
+					if (cached == null) {
+						cached = getPrimedRetrieve(context, contextPath, (String)contextValue, dataType, templateId, codePath, codes, valueSet);
+						if (cached == null) {
+							cached = getPrefetchedRetrieve(key);
+						}
+						if (cached == null) {
+							cached = retrieveFused(cache, key, context, contextPath, (String)contextValue, dataType, templateId, codePath);
+						}
+						if (cached == null) {
+							cached = baseProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, null, null, null, null);
+						}
+						cache.put(key, cached);
+					}
+					return cached;
+				}));
 			}
 			else {
 				LOG.trace("Cache hit");
@@ -82,4 +206,306 @@ public class CachingRetrieveProvider implements RetrieveProvider {
 		return retVal;
 	}
 
+	/**
+	 * Retrieve with a date filter, which is cached with its date paths and range. Date ranges may be widened, so
+	 * cached or prefetched results of the same retrieve without one are used when available. Dated
+	 * retrieves are not planned, so they are never prefetched or combined themselves.
+	 */
+	private Iterable<Object> retrieveDated(String context, String contextPath, String contextValue, String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+		Cache<RetrieveCacheKey, Iterable<Object>> cache = retrieveCacheContext.getCache(contextValue);
+		currentContextValue = contextValue;
+		RetrieveCacheKey undatedKey = RetrieveCacheKey.create(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet);
+		RetrieveCacheKey key = RetrieveCacheKey.create(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+		Iterable<Object> retVal = cache.get(undatedKey);
+		if (retVal == null) {
+			retVal = cache.get(key);
+		}
+		if (retVal == null) {
+			LOG.trace("Cache miss");
+			retVal = retrieveOnce(key, new FutureTask<>(() -> {
+				Iterable<Object> cached = cache.get(key);
+				if (cached == null) {
+					cached = getPrefetchedRetrieve(undatedKey);
+					if (cached != null) {
+						cache.put(undatedKey, cached);
+						return cached;
+					}
+					cached = baseProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+					cache.put(key, cached);
+				}
+				return cached;
+			}));
+		}
+		else {
+			LOG.trace("Cache hit");
+		}
+		return retVal;
+	}
+
+	@Override
+	public Map<String, Object> retrieveByIds(String dataType, List<String> ids) {
+		Map<String, Object> resources = baseProvider instanceof BatchRetrieveProvider
+				? ((BatchRetrieveProvider)baseProvider).retrieveByIds(dataType, ids)
+				: BatchRetrieveProvider.retrieveEach(baseProvider, dataType, ids);
+
+		if (primedRetrieves.size() + ids.size() > MAX_PRIMED_RETRIEVES) {
+			LOG.debug("Discarding {} unused batch retrieved resources", primedRetrieves.size());
+			primedRetrieves.clear();
+		}
+		// Resources beyond the bound are not held and are retrieved again when their context is evaluated.
+		// Ids that were not found are not held either, so that their by-id retrieve reports them as the
+		// base provider does.
+		for (String id : ids.size() > MAX_PRIMED_RETRIEVES ? ids.subList(0, MAX_PRIMED_RETRIEVES) : ids) {
+			Object resource = resources.get(id);
+			if (resource != null) {
+				primedRetrieves.put(createPrimedKey(dataType, id), Collections.singletonList(resource));
+			}
+		}
+		return resources;
+	}
+
+	@Override
+	public void prefetch(List<RetrieveRequest> requests, Executor executor) {
+		if (prefetchedRetrieves.size() + requests.size() > MAX_PRIMED_RETRIEVES) {
+			LOG.debug("Discarding {} unused prefetched retrieves", prefetchedRetrieves.size());
+			prefetchedRetrieves.clear();
+		}
+		if (requests.size() > MAX_PRIMED_RETRIEVES) {
+			requests = requests.subList(0, MAX_PRIMED_RETRIEVES);
+		}
+
+		// Only the cache of the context being evaluated is checked, getting the cache of another context may flush it
+		String contextValue = currentContextValue;
+		Cache<RetrieveCacheKey, Iterable<Object>> cache = null;
+		List<RetrieveRequest> batchRequests = new ArrayList<>();
+		for (RetrieveRequest request : requests) {
+			if (request.getContextValue() == null) {
+				continue;
+			}
+			RetrieveCacheKey key = request.toCacheKey();
+			if (prefetchedRetrieves.containsKey(key)) {
+				continue;
+			}
+			if (request.getContextValue().equals(contextValue)) {
+				if (cache == null) {
+					cache = retrieveCacheContext.getCache(contextValue);
+				}
+				if (cache.containsKey(key)) {
+					continue;
+				}
+			}
+			batchRequests.add(request);
+		}
+		if (batchRequests.isEmpty()) {
+			return;
+		}
+
+		FutureTask<List<Iterable<Object>>> batch = new FutureTask<>(() -> baseProvider instanceof MultiRetrieveProvider
+				? ((MultiRetrieveProvider)baseProvider).retrieveAll(batchRequests)
+				: MultiRetrieveProvider.retrieveEach(baseProvider, batchRequests));
+		for (int i = 0; i < batchRequests.size(); i++) {
+			int index = i;
+			// A retrieve made by evaluation before the batch is started starts it
+			prefetchedRetrieves.putIfAbsent(batchRequests.get(i).toCacheKey(), new FutureTask<>(() -> {
+				batch.run();
+				return batch.get().get(index);
+			}));
+		}
+
+		LOG.debug("Prefetching {} retrieves", batchRequests.size());
+		Runnable prefetch = () -> {
+			batch.run();
+			try {
+				batch.get();
+			}
+			catch (ExecutionException e) {
+				LOG.warn("Prefetch of {} retrieves failed, they will be retrieved during evaluation: {}", batchRequests.size(), e.getCause().getMessage());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		if (executor == null) {
+			prefetch.run();
+		}
+		else {
+			try {
+				executor.execute(prefetch);
+			}
+			catch (RejectedExecutionException e) {
+				LOG.debug("Prefetch rejected, the retrieves will be made during evaluation: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Return, and stop holding, the results of a prefetched retrieve, waiting for the prefetch when it is still
+	 * in progress.
+	 *
+	 * @return the results, or null when the retrieve was not prefetched or the prefetch failed
+	 */
+	private Iterable<Object> getPrefetchedRetrieve(RetrieveCacheKey key) {
+		if (prefetchedRetrieves.isEmpty()) {
+			return null;
+		}
+		FutureTask<Iterable<Object>> prefetched = prefetchedRetrieves.remove(key);
+		if (prefetched == null) {
+			return null;
+		}
+
+		prefetched.run();
+		try {
+			Iterable<Object> results = prefetched.get();
+			LOG.trace("Prefetched retrieve hit");
+			return results;
+		}
+		catch (ExecutionException e) {
+			LOG.trace("Prefetched retrieve failed");
+			return null;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for prefetched retrieve", e);
+		}
+	}
+
+	/**
+	 * Return, and stop holding, the batch retrieved resource for a by-id retrieve. Retrieves that filter by
+	 * code or ask for a profile other than the base resource profile are never answered from the batch.
+	 */
+	private Iterable<Object> getPrimedRetrieve(String context, String contextPath, String contextValue, String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet) {
+		if (primedRetrieves.isEmpty()
+				|| !dataType.equals(context)
+				|| !"id".equals(contextPath)
+				|| codePath != null || codes != null || valueSet != null
+				|| (templateId != null && !templateId.equals(BASE_PROFILE_PREFIX + dataType))) {
+			return null;
+		}
+		Iterable<Object> primed = primedRetrieves.remove(createPrimedKey(dataType, contextValue));
+		if (primed != null) {
+			LOG.trace("Batch retrieve hit");
+		}
+		return primed;
+	}
+
+	/**
+	 * Make the retrieve for the provided key together with the other uncached retrieves of its group in the
+	 * retrieve plan, cache the results of the others and return the results for the key.
+	 *
+	 * @return the results for the key, or null when the retrieve is not combined with any other
+	 */
+	private Iterable<Object> retrieveFused(Cache<RetrieveCacheKey, Iterable<Object>> cache, RetrieveCacheKey key, String context, String contextPath, String contextValue, String dataType, String templateId, String codePath) {
+		RetrievePlan plan = retrievePlan;
+		if (plan == null || codeExtractor == null || codePath == null) {
+			return null;
+		}
+
+		Map<RetrieveCacheKey, Set<String>> memberTokens = new LinkedHashMap<>();
+		Map<String, Code> fusedCodes = new LinkedHashMap<>();
+		for (PlannedRetrieve member : plan.getFusedRetrieves(dataType, templateId, codePath)) {
+			RetrieveCacheKey memberKey = member.toCacheKey(context, contextPath, contextValue);
+			if (!memberKey.equals(key) && (cache.containsKey(memberKey) || prefetchedRetrieves.containsKey(memberKey))) {
+				continue;
+			}
+			Iterable<Code> memberCodes = member.getValueSet() != null ? expand(member.getValueSet()) : member.getCodes();
+			if (memberCodes == null) {
+				continue;
+			}
+			Set<String> tokens = new HashSet<>();
+			for (Code code : memberCodes) {
+				String token = getToken(code.getSystem(), code.getCode());
+				tokens.add(token);
+				fusedCodes.putIfAbsent(token, code);
+			}
+			memberTokens.put(memberKey, tokens);
+		}
+		if (memberTokens.size() < 2 || !memberTokens.containsKey(key)) {
+			return null;
+		}
+
+		LOG.trace("Combining {} retrieves", memberTokens.size());
+		Map<RetrieveCacheKey, List<Object>> partitions = new LinkedHashMap<>();
+		for (RetrieveCacheKey memberKey : memberTokens.keySet()) {
+			partitions.put(memberKey, new ArrayList<>());
+		}
+		Iterable<Object> resources = baseProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, new ArrayList<>(fusedCodes.values()), null, null, null, null, null);
+		for (Object resource : resources) {
+			// A code without a system in the filter matches the code in any system
+			Set<String> resourceTokens = new HashSet<>();
+			for (Code code : codeExtractor.extractCodes(resource, codePath)) {
+				resourceTokens.add(getToken(code.getSystem(), code.getCode()));
+				resourceTokens.add(getToken(null, code.getCode()));
+			}
+			for (Map.Entry<RetrieveCacheKey, Set<String>> member : memberTokens.entrySet()) {
+				if (!Collections.disjoint(member.getValue(), resourceTokens)) {
+					partitions.get(member.getKey()).add(resource);
+				}
+			}
+		}
+
+		for (Map.Entry<RetrieveCacheKey, List<Object>> partition : partitions.entrySet()) {
+			if (!partition.getKey().equals(key)) {
+				cache.putIfAbsent(partition.getKey(), partition.getValue());
+			}
+		}
+		return partitions.get(key);
+	}
+
+	private Iterable<Code> expand(String valueSet) {
+		// A base provider that leaves ValueSet filtering to the server (e.g. with the :in modifier) keeps doing so
+		if (terminologyProvider == null || (baseProvider instanceof TerminologyAwareRetrieveProvider
+				&& !((TerminologyAwareRetrieveProvider) baseProvider).isExpandValueSets())) {
+			return null;
+		}
+		try {
+			return terminologyProvider.expand(new ValueSetInfo().withId(valueSet));
+		}
+		catch (RuntimeException e) {
+			LOG.debug("ValueSet {} could not be expanded, it will be retrieved on its own: {}", valueSet, e.getMessage());
+			return null;
+		}
+	}
+
+	private static String getToken(String system, String code) {
+		return (system != null ? system : "") + "|" + code;
+	}
+
+	private static RetrieveCacheKey createPrimedKey(String dataType, String id) {
+		return RetrieveCacheKey.create(dataType, "id", id, dataType, null, null, null, null);
+	}
+
+	private Iterable<Object> retrieveOnce(RetrieveCacheKey key, FutureTask<Iterable<Object>> task) {
+		FutureTask<Iterable<Object>> pending = pendingRetrieves.putIfAbsent(key, task);
+		if (pending == null) {
+			pending = task;
+			try {
+				task.run();
+			}
+			finally {
+				pendingRetrieves.remove(key, task);
+			}
+		}
+		else {
+			LOG.trace("Waiting for pending retrieve");
+		}
+
+		try {
+			return pending.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			throw new RuntimeException("Retrieve failed", e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for retrieve", e);
+		}
+	}
+
 }
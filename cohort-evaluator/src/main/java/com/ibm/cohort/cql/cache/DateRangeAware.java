@@ -0,0 +1,24 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+/**
+ * A provider that can return more resources than the date range of a retrieve matches when the query that gave the
+ * retrieve its range filters the results again.
+ */
+public interface DateRangeAware {
+
+	/**
+	 * Set whether the date ranges of retrieves were copied from queries that keep their date conditions, as
+	 * {@link com.ibm.cohort.cql.evaluation.RetrieveDateRangeOptimizer} does. Only then may the provider widen a
+	 * range, by searching without it or by returning the results of the same retrieve without one. Otherwise date
+	 * ranges are applied as given.
+	 *
+	 * @param widenDateRanges true when date ranges may be widened
+	 */
+	void setWidenDateRanges(boolean widenDateRanges);
+}
@@ -24,6 +24,8 @@ import java.util.UUID;
  * <p><b>NOTE</b>: The last contextId passed in will not be flushed
  * automatically.  The user will either need to call {@link #flushCache()}
  * or {@link #close()}.
+ *
+ * <p>Multiple threads may share the cache while they work on the same contextId.
  */
 public class DefaultRetrieveCacheContext implements RetrieveCacheContext {
 
@@ -72,7 +74,7 @@ public class DefaultRetrieveCacheContext implements RetrieveCacheContext {
 	}
 
 	@Override
-	public Cache<RetrieveCacheKey, Iterable<Object>> getCache(String contextId) {
+	public synchronized Cache<RetrieveCacheKey, Iterable<Object>> getCache(String contextId) {
 		if (!contextId.equals(currentContextId)) {
 			if (currentContextId != null) {
 				flushCache();
@@ -84,7 +86,7 @@ public class DefaultRetrieveCacheContext implements RetrieveCacheContext {
 	}
 
 	@Override
-	public void flushCache() {
+	public synchronized void flushCache() {
 		cache.clear();
 		currentContextId = null;
 	}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * <p>The top-level elements to request for each data type, combined from the element requirements of every
+ * {@link RetrievePlan} added so far. A data type is requested as a whole until a plan reports its elements, when a
+ * plan reads every element of it, and for every data type once a plan with unknown element requirements is added.
+ *
+ * <p>Instances are safe for use by multiple threads.
+ */
+public class ElementProjection {
+
+	private boolean complete;
+	private final Map<String, SortedSet<String>> elementsByDataType = new HashMap<>();
+
+	/**
+	 * Add the element requirements of a plan.
+	 *
+	 * @param retrievePlan plan of a library
+	 * @return true when the elements of a data type were widened, so that resources returned before this call may lack
+	 *         elements that are now requested
+	 */
+	public synchronized boolean add(RetrievePlan retrievePlan) {
+		if (complete) {
+			return false;
+		}
+		Map<String, Set<String>> planElements = retrievePlan.getElementsByDataType();
+		if (planElements == null) {
+			complete = true;
+			return true;
+		}
+
+		boolean widened = false;
+		for (Map.Entry<String, Set<String>> entry : planElements.entrySet()) {
+			String dataType = entry.getKey();
+			if (!elementsByDataType.containsKey(dataType)) {
+				// A null value is kept for data types that are requested as a whole
+				elementsByDataType.put(dataType, entry.getValue() != null ? new TreeSet<>(entry.getValue()) : null);
+			}
+			else if (elementsByDataType.get(dataType) != null) {
+				widened |= entry.getValue() == null
+						? elementsByDataType.put(dataType, null) != null
+						: elementsByDataType.get(dataType).addAll(entry.getValue());
+			}
+		}
+		return widened;
+	}
+
+	/**
+	 * @return the elements to request for a data type in name order, or null when the data type is requested as a
+	 *         whole
+	 */
+	public synchronized SortedSet<String> getElements(String dataType) {
+		if (complete) {
+			return null;
+		}
+		SortedSet<String> elements = elementsByDataType.get(dataType);
+		return elements != null ? Collections.unmodifiableSortedSet(new TreeSet<>(elements)) : null;
+	}
+}
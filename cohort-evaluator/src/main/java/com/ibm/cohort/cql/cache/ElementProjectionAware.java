@@ -0,0 +1,22 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+/**
+ * A provider that can limit the elements of the resources it returns to those that evaluation reads.
+ */
+public interface ElementProjectionAware {
+
+	/**
+	 * Add the elements that a library reads to the elements returned for each data type. Requirements are only ever
+	 * added, so that the resources returned for one library keep the elements that other libraries read from them.
+	 *
+	 * @param retrievePlan retrieves of the library being evaluated, with the elements it reads
+	 * @see ElementProjection
+	 */
+	void addElementRequirements(RetrievePlan retrievePlan);
+}
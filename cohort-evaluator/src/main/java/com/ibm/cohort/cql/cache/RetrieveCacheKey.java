@@ -8,6 +8,7 @@ package com.ibm.cohort.cql.cache;
 
 import com.ibm.cohort.annotations.Generated;
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -41,6 +42,29 @@ public class RetrieveCacheKey {
 		return new RetrieveCacheKey(context, contextPath, contextValue, dataType, templateId, codePath, retrieveCacheCodes, valueSet);
 	}
 
+	public static RetrieveCacheKey create(
+			String context,
+			String contextPath,
+			String contextValue,
+			String dataType,
+			String templateId,
+			String codePath,
+			Iterable<Code> codes,
+			String valueSet,
+			String datePath,
+			String dateLowPath,
+			String dateHighPath,
+			Interval dateRange
+	) {
+		RetrieveCacheKey undated = create(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet);
+		if (datePath == null && dateLowPath == null && dateHighPath == null && dateRange == null) {
+			return undated;
+		}
+		String dateFilter = datePath + "|" + dateLowPath + "|" + dateHighPath + "|" + (dateRange == null ? null
+				: (dateRange.getLowClosed() ? "[" : "(") + dateRange.getLow() + ", " + dateRange.getHigh() + (dateRange.getHighClosed() ? "]" : ")"));
+		return new RetrieveCacheKey(context, contextPath, contextValue, dataType, templateId, codePath, undated.codes, valueSet, dateFilter);
+	}
+
 	private final String context;
 	private final String contextPath;
 	private final String contextValue;
@@ -49,6 +73,7 @@ public class RetrieveCacheKey {
 	private final String codePath;
 	private final List<RetrieveCacheCode> codes;
 	private final String valueSet;
+	private final String dateFilter;
 
 	public RetrieveCacheKey(
 			String context,
@@ -59,6 +84,23 @@ public class RetrieveCacheKey {
 			String codePath,
 			List<RetrieveCacheCode> codes,
 			String valueSet
+	) {
+		this(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, null);
+	}
+
+	/**
+	 * @param dateFilter date paths and range of the retrieve, or null when it is not filtered by date
+	 */
+	public RetrieveCacheKey(
+			String context,
+			String contextPath,
+			String contextValue,
+			String dataType,
+			String templateId,
+			String codePath,
+			List<RetrieveCacheCode> codes,
+			String valueSet,
+			String dateFilter
 	) {
 		this.context = context;
 		this.contextPath = contextPath;
@@ -68,6 +110,7 @@ public class RetrieveCacheKey {
 		this.codePath = codePath;
 		this.codes = codes;
 		this.valueSet = valueSet;
+		this.dateFilter = dateFilter;
 	}
 
 	@Override
@@ -83,13 +126,14 @@ public class RetrieveCacheKey {
 				&& Objects.equals(templateId, retrieveCacheKey.templateId)
 				&& Objects.equals(codePath, retrieveCacheKey.codePath)
 				&& Objects.equals(codes, retrieveCacheKey.codes)
-				&& Objects.equals(valueSet, retrieveCacheKey.valueSet);
+				&& Objects.equals(valueSet, retrieveCacheKey.valueSet)
+				&& Objects.equals(dateFilter, retrieveCacheKey.dateFilter);
 	}
 
 	@Override
 	@Generated
 	public int hashCode() {
-		return Objects.hash(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet);
+		return Objects.hash(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, dateFilter);
 	}
 
 	@Override
@@ -103,6 +147,7 @@ public class RetrieveCacheKey {
 				", codePath='" + codePath + '\'' +
 				", codes=" + codes +
 				", valueSet='" + valueSet + '\'' +
+				", dateFilter='" + dateFilter + '\'' +
 				'}';
 	}
 }
@@ -0,0 +1,23 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * Reads the codes that a retrieve filters on from a retrieved resource, so that the results of one retrieve made
+ * for several code filters can be divided between them.
+ */
+public interface RetrieveCodeExtractor {
+
+	/**
+	 * @param resource resource returned by the retrieve provider
+	 * @param codePath code path of the retrieve
+	 * @return codes at the path. Only the code and system of each code are used.
+	 */
+	Iterable<Code> extractCodes(Object resource, String codePath);
+}
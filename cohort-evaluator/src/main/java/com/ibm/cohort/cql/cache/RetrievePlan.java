@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>The cacheable retrieves that evaluation of a library can make for each context, found ahead of evaluation
+ * from the ELM. A retrieve is cacheable when it has no date filter and its codes do not depend on the context.
+ *
+ * <p>Retrieves of the same data type, template and code path that filter on different codes are grouped so that
+ * they can be made with one call to the data source (see {@link CachingRetrieveProvider}).
+ *
+ * <p>The plan can also hold the top-level elements that evaluation reads from the resources of each retrieved data
+ * type, for every retrieve and not only the cacheable ones, so that data sources can return only those elements
+ * (see {@link ElementProjectionAware}).
+ */
+public class RetrievePlan {
+
+	private final List<PlannedRetrieve> retrieves;
+	private final Map<String, List<PlannedRetrieve>> fusedRetrieves = new HashMap<>();
+	private final Map<String, Set<String>> elementsByDataType;
+
+	public RetrievePlan(Collection<PlannedRetrieve> retrieves) {
+		this(retrieves, null);
+	}
+
+	/**
+	 * @param retrieves          cacheable retrieves
+	 * @param elementsByDataType top-level elements read from the resources of each retrieved data type, with a null
+	 *                           value for a data type whose resources may be read as a whole, or null when the elements
+	 *                           that are read are unknown
+	 */
+	public RetrievePlan(Collection<PlannedRetrieve> retrieves, Map<String, Set<String>> elementsByDataType) {
+		this.retrieves = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(retrieves)));
+		this.elementsByDataType = elementsByDataType != null ? Collections.unmodifiableMap(new HashMap<>(elementsByDataType)) : null;
+
+		Map<String, List<PlannedRetrieve>> groups = new HashMap<>();
+		for (PlannedRetrieve retrieve : this.retrieves) {
+			if (retrieve.isCodeFiltered()) {
+				groups.computeIfAbsent(getGroupKey(retrieve.getDataType(), retrieve.getTemplateId(), retrieve.getCodePath()), k -> new ArrayList<>())
+						.add(retrieve);
+			}
+		}
+		for (Map.Entry<String, List<PlannedRetrieve>> group : groups.entrySet()) {
+			if (group.getValue().size() > 1) {
+				fusedRetrieves.put(group.getKey(), Collections.unmodifiableList(group.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * @return every distinct cacheable retrieve in the order it was found
+	 */
+	public List<PlannedRetrieve> getRetrieves() {
+		return retrieves;
+	}
+
+	/**
+	 * Return the code filtered retrieves that can be made together with a retrieve of the provided data type,
+	 * template and code path.
+	 *
+	 * @return the group, or an empty list when the library makes fewer than two such retrieves
+	 */
+	public List<PlannedRetrieve> getFusedRetrieves(String dataType, String templateId, String codePath) {
+		return fusedRetrieves.getOrDefault(getGroupKey(dataType, templateId, codePath), Collections.emptyList());
+	}
+
+	public boolean hasFusedRetrieves() {
+		return !fusedRetrieves.isEmpty();
+	}
+
+	/**
+	 * @return top-level elements read from the resources of each retrieved data type, with a null value for a data
+	 *         type whose resources may be read as a whole, or null when the elements that are read are unknown
+	 */
+	public Map<String, Set<String>> getElementsByDataType() {
+		return elementsByDataType;
+	}
+
+	/**
+	 * Create the requests for every retrieve of the plan in one context, with the context path of each data type
+	 * that the CQL engine would use (see {@link RetrievePrefetcher}).
+	 *
+	 * @param context       context name (e.g. Patient)
+	 * @param contextValue  context value (e.g. the patient id)
+	 * @param modelResolver resolver of the context path of each data type
+	 * @return requests in the order of the retrieves
+	 */
+	public List<RetrieveRequest> toRequests(String context, String contextValue, ModelResolver modelResolver) {
+		List<RetrieveRequest> requests = new ArrayList<>(retrieves.size());
+		for (PlannedRetrieve retrieve : retrieves) {
+			Object contextPath = modelResolver.getContextPath(context, retrieve.getDataType());
+			requests.add(new RetrieveRequest(context, contextPath != null ? contextPath.toString() : null, contextValue,
+					retrieve.getDataType(), retrieve.getTemplateId(), retrieve.getCodePath(), retrieve.getCodes(), retrieve.getValueSet()));
+		}
+		return requests;
+	}
+
+	private static String getGroupKey(String dataType, String templateId, String codePath) {
+		return dataType + "|" + templateId + "|" + codePath;
+	}
+
+	/**
+	 * The context-independent arguments of one retrieve.
+	 */
+	public static class PlannedRetrieve {
+		private final String dataType;
+		private final String templateId;
+		private final String codePath;
+		private final List<Code> codes;
+		private final String valueSet;
+
+		public PlannedRetrieve(String dataType, String templateId, String codePath, List<Code> codes, String valueSet) {
+			this.dataType = dataType;
+			this.templateId = templateId;
+			this.codePath = codePath;
+			this.codes = codes;
+			this.valueSet = valueSet;
+		}
+
+		public String getDataType() {
+			return dataType;
+		}
+
+		public String getTemplateId() {
+			return templateId;
+		}
+
+		public String getCodePath() {
+			return codePath;
+		}
+
+		public List<Code> getCodes() {
+			return codes;
+		}
+
+		public String getValueSet() {
+			return valueSet;
+		}
+
+		public boolean isCodeFiltered() {
+			return codePath != null && (valueSet != null || (codes != null && !codes.isEmpty()));
+		}
+
+		/**
+		 * @return the key of this retrieve in the cache of one context
+		 */
+		public RetrieveCacheKey toCacheKey(String context, String contextPath, String contextValue) {
+			return RetrieveCacheKey.create(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			return Objects.equals(toCacheKey(null, null, null), ((PlannedRetrieve) o).toCacheKey(null, null, null));
+		}
+
+		@Override
+		public int hashCode() {
+			return toCacheKey(null, null, null).hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "PlannedRetrieve{" +
+					"dataType='" + dataType + '\'' +
+					", templateId='" + templateId + '\'' +
+					", codePath='" + codePath + '\'' +
+					", codes=" + codes +
+					", valueSet='" + valueSet + '\'' +
+					'}';
+		}
+	}
+}
@@ -0,0 +1,18 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+/**
+ * A provider that can use the retrieves planned for a library to reduce the number of calls made to its data source.
+ */
+public interface RetrievePlanAware {
+
+	/**
+	 * @param retrievePlan retrieves of the library being evaluated, or null when there is no plan
+	 */
+	void setRetrievePlan(RetrievePlan retrievePlan);
+}
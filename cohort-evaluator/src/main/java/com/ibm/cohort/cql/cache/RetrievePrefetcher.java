@@ -0,0 +1,28 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A provider that can make the retrieves of a context ahead of its evaluation and answer them from memory when
+ * evaluation makes them.
+ */
+public interface RetrievePrefetcher {
+
+	/**
+	 * Make the provided retrieves ahead of evaluation. Retrieves that are already prefetched are not made again.
+	 * The retrieves are registered before this method returns, so a retrieve that evaluation makes while its
+	 * prefetch is still in progress waits for the prefetch instead of being made twice.
+	 *
+	 * @param requests retrieves to make, usually every retrieve of a {@link RetrievePlan} for one context
+	 * @param executor executor that makes the retrieves in the background or null to make them on the calling
+	 *                 thread
+	 */
+	void prefetch(List<RetrieveRequest> requests, Executor executor);
+}
@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * The arguments of one cacheable `RetrieveProvider.retrieve()` call, so that several retrieves can be handed to a
+ * provider at once. The date arguments of the call are always null.
+ * @see org.opencds.cqf.cql.engine.retrieve.RetrieveProvider
+ */
+public class RetrieveRequest {
+
+	private final String context;
+	private final String contextPath;
+	private final String contextValue;
+	private final String dataType;
+	private final String templateId;
+	private final String codePath;
+	private final Iterable<Code> codes;
+	private final String valueSet;
+
+	public RetrieveRequest(
+			String context,
+			String contextPath,
+			String contextValue,
+			String dataType,
+			String templateId,
+			String codePath,
+			Iterable<Code> codes,
+			String valueSet
+	) {
+		this.context = context;
+		this.contextPath = contextPath;
+		this.contextValue = contextValue;
+		this.dataType = dataType;
+		this.templateId = templateId;
+		this.codePath = codePath;
+		this.codes = codes;
+		this.valueSet = valueSet;
+	}
+
+	public String getContext() {
+		return context;
+	}
+
+	public String getContextPath() {
+		return contextPath;
+	}
+
+	public String getContextValue() {
+		return contextValue;
+	}
+
+	public String getDataType() {
+		return dataType;
+	}
+
+	public String getTemplateId() {
+		return templateId;
+	}
+
+	public String getCodePath() {
+		return codePath;
+	}
+
+	public Iterable<Code> getCodes() {
+		return codes;
+	}
+
+	public String getValueSet() {
+		return valueSet;
+	}
+
+	public RetrieveCacheKey toCacheKey() {
+		return RetrieveCacheKey.create(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet);
+	}
+
+	@Override
+	public String toString() {
+		return "RetrieveRequest{" +
+				"context='" + context + '\'' +
+				", contextPath='" + contextPath + '\'' +
+				", contextValue='" + contextValue + '\'' +
+				", dataType='" + dataType + '\'' +
+				", templateId='" + templateId + '\'' +
+				", codePath='" + codePath + '\'' +
+				", codes=" + codes +
+				", valueSet='" + valueSet + '\'' +
+				'}';
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.data;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+
+/**
+ * A provider that can look up many resources of the same type by logical id
+ * with fewer round trips than one retrieve per id.
+ */
+public interface BatchRetrieveProvider {
+
+	/**
+	 * Retrieve resources of one data type by logical id.
+	 *
+	 * @param dataType resource type (e.g. Patient)
+	 * @param ids      logical ids to retrieve
+	 * @return resources keyed by logical id. Ids that were not found are not
+	 *         included.
+	 */
+	Map<String, Object> retrieveByIds(String dataType, List<String> ids);
+
+	/**
+	 * Retrieve resources one id at a time with a provider that does not support
+	 * batched retrieval.
+	 *
+	 * @param retrieveProvider provider used for each id
+	 * @param dataType         resource type (e.g. Patient)
+	 * @param ids              logical ids to retrieve
+	 * @return resources keyed by logical id
+	 */
+	static Map<String, Object> retrieveEach(RetrieveProvider retrieveProvider, String dataType, List<String> ids) {
+		Map<String, Object> resources = new HashMap<>();
+		for (String id : ids) {
+			Iterator<Object> iterator = retrieveProvider.retrieve(dataType, "id", id, dataType, null, null, null, null, null, null, null, null).iterator();
+			if (iterator.hasNext()) {
+				resources.put(id, iterator.next());
+			}
+		}
+		return resources;
+	}
+}
@@ -6,16 +6,20 @@
 
 package com.ibm.cohort.cql.data;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 
 // copy/pasted from CQL Engine 1.5.1. Revisit on upgrade of that dependency
 public class CachingModelResolverDecorator implements ModelResolver {
-	static Map<String, Map<String,Map<String, Object>>> perPackageContextResolutions = new HashMap<>();
-	static Map<String, Map<String,Class<?>>> perPackageTypeResolutionsByTypeName = new HashMap<>();
-	static Map<String, Map<Class<?>,Class<?>>> perPackageTypeResolutionsByClass = new HashMap<>();
+	// Resolutions can legitimately be null, which ConcurrentHashMap does not
+	// allow as a value, so they are wrapped in an Optional.
+	static ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, Optional<Object>>>> perPackageContextResolutions = new ConcurrentHashMap<>();
+	static ConcurrentMap<String, ConcurrentMap<String, Optional<Class<?>>>> perPackageTypeResolutionsByTypeName = new ConcurrentHashMap<>();
+	static ConcurrentMap<String, ConcurrentMap<Class<?>, Optional<Class<?>>>> perPackageTypeResolutionsByClass = new ConcurrentHashMap<>();
+	static ConcurrentMap<String, ConcurrentMap<Class<?>, ConcurrentMap<String, PropertyAccessor>>> perPackagePropertyAccessors = new ConcurrentHashMap<>();
 
 	private ModelResolver innerResolver;
 
@@ -33,59 +37,63 @@ public class CachingModelResolverDecorator implements ModelResolver {
 		this.innerResolver.setPackageName(packageName);
 	}
 
+	/**
+	 * Resolves a path against the target. When the inner resolver is a
+	 * {@link PropertyAccessorCompiler}, the accessor it compiles for the
+	 * target class and path is cached and reused for every subsequent
+	 * resolution. Otherwise, resolution is delegated to the inner resolver.
+	 */
 	@Override
 	public Object resolvePath(Object target, String path) {
-		return this.innerResolver.resolvePath(target, path);
-	}
-
-	@Override
-	public Object getContextPath(String contextType, String targetType) {
-		if (!perPackageContextResolutions.containsKey(this.getPackageName())) {
-			perPackageContextResolutions.put(this.getPackageName(),  new HashMap<>());
+		if (target == null || !(this.innerResolver instanceof PropertyAccessorCompiler)) {
+			return this.innerResolver.resolvePath(target, path);
 		}
 
-		Map<String,Map<String, Object>> packageContextResolutions = perPackageContextResolutions.get(this.getPackageName());
+		PropertyAccessor accessor = perPackagePropertyAccessors
+				.computeIfAbsent(getPackageKey(), x -> new ConcurrentHashMap<>())
+				.computeIfAbsent(target.getClass(), x -> new ConcurrentHashMap<>())
+				.computeIfAbsent(path, x -> compileAccessor(target.getClass(), path));
 
-		if (!packageContextResolutions.containsKey(contextType)) {
-			packageContextResolutions.put(contextType, new HashMap<>());
-		}
+		return accessor.getValue(target);
+	}
 
-		Map<String, Object> contextTypeResolutions = packageContextResolutions.get(contextType);
-		if (!contextTypeResolutions.containsKey(targetType)) {
-			contextTypeResolutions.put(targetType, this.innerResolver.getContextPath(contextType, targetType));
+	private PropertyAccessor compileAccessor(Class<?> targetType, String path) {
+		PropertyAccessor accessor = ((PropertyAccessorCompiler) this.innerResolver).compilePropertyAccessor(targetType, path);
+		if (accessor == null) {
+			accessor = target -> this.innerResolver.resolvePath(target, path);
 		}
+		return accessor;
+	}
 
-		return contextTypeResolutions.get(targetType);
+	@Override
+	public Object getContextPath(String contextType, String targetType) {
+		return perPackageContextResolutions
+				.computeIfAbsent(getPackageKey(), x -> new ConcurrentHashMap<>())
+				.computeIfAbsent(contextType, x -> new ConcurrentHashMap<>())
+				.computeIfAbsent(targetType, x -> Optional.ofNullable(this.innerResolver.getContextPath(contextType, targetType)))
+				.orElse(null);
 	}
 
 	@Override
 	public Class<?> resolveType(String typeName) {
-		if (!perPackageTypeResolutionsByTypeName.containsKey(this.getPackageName())) {
-			perPackageTypeResolutionsByTypeName.put(this.getPackageName(), new HashMap<>());
-		}
-
-		Map<String, Class<?>> packageTypeResolutions = perPackageTypeResolutionsByTypeName.get(this.getPackageName());
-		if (!packageTypeResolutions.containsKey(typeName)) {
-			packageTypeResolutions.put(typeName, this.innerResolver.resolveType(typeName));
-		}
-
-		return packageTypeResolutions.get(typeName);
+		return perPackageTypeResolutionsByTypeName
+				.computeIfAbsent(getPackageKey(), x -> new ConcurrentHashMap<>())
+				.computeIfAbsent(typeName, x -> Optional.ofNullable(this.innerResolver.resolveType(typeName)))
+				.orElse(null);
 	}
 
 	@Override
 	public Class<?> resolveType(Object value) {
-		if (!perPackageTypeResolutionsByClass.containsKey(this.getPackageName())) {
-			perPackageTypeResolutionsByClass.put(this.getPackageName(), new HashMap<>());
-		}
-
-		Map<Class<?>, Class<?>> packageTypeResolutions = perPackageTypeResolutionsByClass.get(this.getPackageName());
-
-		Class<?> valueClass = value.getClass();
-		if (!packageTypeResolutions.containsKey(valueClass)) {
-			packageTypeResolutions.put(valueClass, this.innerResolver.resolveType(value));
-		}
+		return perPackageTypeResolutionsByClass
+				.computeIfAbsent(getPackageKey(), x -> new ConcurrentHashMap<>())
+				.computeIfAbsent(value.getClass(), x -> Optional.ofNullable(this.innerResolver.resolveType(value)))
+				.orElse(null);
+	}
 
-		return packageTypeResolutions.get(valueClass);
+	private String getPackageKey() {
+		// ConcurrentHashMap does not allow null keys
+		String packageName = this.getPackageName();
+		return packageName != null ? packageName : "";
 	}
 
 	@Override
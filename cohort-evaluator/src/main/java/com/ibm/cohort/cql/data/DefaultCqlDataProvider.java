@@ -6,16 +6,33 @@
 
 package com.ibm.cohort.cql.data;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
+import com.ibm.cohort.cql.cache.DateRangeAware;
+import com.ibm.cohort.cql.cache.ElementProjectionAware;
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrievePlanAware;
+import com.ibm.cohort.cql.cache.RetrievePrefetcher;
+import com.ibm.cohort.cql.cache.RetrieveRequest;
+
 /**
  * An implementation of {@link CqlDataProvider} that delegates to provided
- * {@link ModelResolver} and {@link RetrieveProvider} instances.
+ * {@link ModelResolver} and {@link RetrieveProvider} instances. Lookups by id
+ * are batched when the retrieve provider is a {@link BatchRetrieveProvider},
+ * retrieve plans are passed on when it is a {@link RetrievePlanAware},
+ * prefetches are passed on when it is a {@link RetrievePrefetcher},
+ * element requirements are passed on when it is
+ * {@link ElementProjectionAware} and whether date ranges may be widened is
+ * passed on when it is {@link DateRangeAware}.
  */
-public class DefaultCqlDataProvider implements CqlDataProvider {
+public class DefaultCqlDataProvider implements CqlDataProvider, BatchRetrieveProvider, RetrievePlanAware, RetrievePrefetcher, ElementProjectionAware, DateRangeAware {
 
     private final ModelResolver modelResolver;
     private final RetrieveProvider retrieveProvider;
@@ -90,4 +107,40 @@ public class DefaultCqlDataProvider implements CqlDataProvider {
         return retrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
     }
 
+    @Override
+    public Map<String, Object> retrieveByIds(String dataType, List<String> ids) {
+        if (retrieveProvider instanceof BatchRetrieveProvider) {
+            return ((BatchRetrieveProvider) retrieveProvider).retrieveByIds(dataType, ids);
+        }
+        return BatchRetrieveProvider.retrieveEach(retrieveProvider, dataType, ids);
+    }
+
+    @Override
+    public void setRetrievePlan(RetrievePlan retrievePlan) {
+        if (retrieveProvider instanceof RetrievePlanAware) {
+            ((RetrievePlanAware) retrieveProvider).setRetrievePlan(retrievePlan);
+        }
+    }
+
+    @Override
+    public void prefetch(List<RetrieveRequest> requests, Executor executor) {
+        if (retrieveProvider instanceof RetrievePrefetcher) {
+            ((RetrievePrefetcher) retrieveProvider).prefetch(requests, executor);
+        }
+    }
+
+    @Override
+    public void addElementRequirements(RetrievePlan retrievePlan) {
+        if (retrieveProvider instanceof ElementProjectionAware) {
+            ((ElementProjectionAware) retrieveProvider).addElementRequirements(retrievePlan);
+        }
+    }
+
+    @Override
+    public void setWidenDateRanges(boolean widenDateRanges) {
+        if (retrieveProvider instanceof DateRangeAware) {
+            ((DateRangeAware) retrieveProvider).setWidenDateRanges(widenDateRanges);
+        }
+    }
+
 }
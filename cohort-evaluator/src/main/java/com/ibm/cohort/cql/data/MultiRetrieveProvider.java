@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+
+import com.ibm.cohort.cql.cache.RetrieveRequest;
+
+/**
+ * A provider that can make several retrieves with fewer round trips than one
+ * call per retrieve.
+ */
+public interface MultiRetrieveProvider {
+
+	/**
+	 * Make several retrieves at once.
+	 *
+	 * @param requests retrieves to make
+	 * @return the results of each request, in the order of the requests
+	 */
+	List<Iterable<Object>> retrieveAll(List<RetrieveRequest> requests);
+
+	/**
+	 * Make retrieves one at a time with a provider that does not support
+	 * multiple retrieves.
+	 *
+	 * @param retrieveProvider provider used for each request
+	 * @param requests         retrieves to make
+	 * @return the results of each request, in the order of the requests
+	 */
+	static List<Iterable<Object>> retrieveEach(RetrieveProvider retrieveProvider, List<RetrieveRequest> requests) {
+		List<Iterable<Object>> results = new ArrayList<>(requests.size());
+		for (RetrieveRequest request : requests) {
+			results.add(retrieveProvider.retrieve(request.getContext(), request.getContextPath(), request.getContextValue(),
+					request.getDataType(), request.getTemplateId(), request.getCodePath(), request.getCodes(), request.getValueSet(),
+					null, null, null, null));
+		}
+		return results;
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.data;
+
+/**
+ * Reads a single property path from objects of one specific class. Instances
+ * are produced by a {@link PropertyAccessorCompiler} and cached by
+ * {@link CachingModelResolverDecorator}, so they must be thread-safe.
+ */
+@FunctionalInterface
+public interface PropertyAccessor {
+	Object getValue(Object target);
+}
@@ -0,0 +1,26 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.data;
+
+/**
+ * Optional capability of a {@link org.opencds.cqf.cql.engine.model.ModelResolver}
+ * that allows the per-path lookup work done in
+ * {@link org.opencds.cqf.cql.engine.model.ModelResolver#resolvePath(Object, String)}
+ * to be performed once per target class instead of once per call.
+ */
+public interface PropertyAccessorCompiler {
+	/**
+	 * Build an accessor that produces the same result as
+	 * <code>resolvePath(target, path)</code> for any target of exactly the
+	 * provided class.
+	 *
+	 * @param targetType class of the objects the accessor will be applied to
+	 * @param path       path being resolved
+	 * @return accessor or null if the path cannot be compiled for the class
+	 */
+	PropertyAccessor compilePropertyAccessor(Class<?> targetType, String path);
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import com.ibm.cohort.cql.cache.RetrievePlan;
+
+/**
+ * CQL engine context that keeps the results of context-independent
+ * expression definitions when the expression cache is cleared between
+ * context switches. The results are specific to the library, parameters and
+ * evaluation date/time that this context was created with, so instances must
+ * not be shared across different values for any of those.
+ *
+ * <p>The context also holds the {@link RetrievePlan} of its library once
+ * one has been made, so the library is only planned once.
+ *
+ * @see ContextIndependentExpressionAnalyzer
+ */
+public class ContextIndependentCachingContext extends Context {
+
+    private Set<String> contextIndependentExpressions = Collections.emptySet();
+    // ConcurrentHashMap does not allow null values, but null is a valid CQL result
+    private final ConcurrentMap<String, Optional<Object>> contextIndependentResults = new ConcurrentHashMap<>();
+    private volatile RetrievePlan retrievePlan;
+
+    public ContextIndependentCachingContext(Library library, DataProvider systemDataProvider) {
+        super(library, systemDataProvider);
+    }
+
+    public ContextIndependentCachingContext(Library library, ZonedDateTime evaluationZonedDateTime, DataProvider systemDataProvider) {
+        super(library, evaluationZonedDateTime, systemDataProvider);
+    }
+
+    public Set<String> getContextIndependentExpressions() {
+        return contextIndependentExpressions;
+    }
+
+    /**
+     * Set the expression definitions whose results are retained across
+     * context switches. Any previously retained results are discarded.
+     *
+     * @param contextIndependentExpressions keys as produced by
+     *        {@link ContextIndependentExpressionAnalyzer#getCacheKey(VersionedIdentifier, String)}
+     */
+    public void setContextIndependentExpressions(Set<String> contextIndependentExpressions) {
+        this.contextIndependentExpressions = contextIndependentExpressions;
+        clearContextIndependentExpressions();
+    }
+
+    public RetrievePlan getRetrievePlan() {
+        return retrievePlan;
+    }
+
+    public void setRetrievePlan(RetrievePlan retrievePlan) {
+        this.retrievePlan = retrievePlan;
+    }
+
+    public void clearContextIndependentExpressions() {
+        contextIndependentResults.clear();
+    }
+
+    @Override
+    public boolean isExpressionInCache(VersionedIdentifier libraryId, String name) {
+        String key = ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, name);
+        if (contextIndependentExpressions.contains(key)) {
+            return contextIndependentResults.containsKey(key);
+        }
+        return super.isExpressionInCache(libraryId, name);
+    }
+
+    @Override
+    public void addExpressionToCache(VersionedIdentifier libraryId, String name, Object result) {
+        String key = ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, name);
+        if (contextIndependentExpressions.contains(key)) {
+            contextIndependentResults.put(key, Optional.ofNullable(result));
+        }
+        else {
+            super.addExpressionToCache(libraryId, name, result);
+        }
+    }
+
+    @Override
+    public Object getExpressionResultFromCache(VersionedIdentifier libraryId, String name) {
+        String key = ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, name);
+        if (contextIndependentExpressions.contains(key)) {
+            Optional<Object> result = contextIndependentResults.get(key);
+            return result != null ? result.orElse(null) : null;
+        }
+        return super.getExpressionResultFromCache(libraryId, name);
+    }
+}
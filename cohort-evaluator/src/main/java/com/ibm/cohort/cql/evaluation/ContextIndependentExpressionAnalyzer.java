@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cqframework.cql.elm.execution.Element;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ParameterDef;
+import org.cqframework.cql.elm.execution.ParameterRef;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.TypeSpecifier;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Static analysis of an ELM library graph that identifies the expression
+ * definitions whose results cannot vary with the context value (e.g. the
+ * Patient ID) being evaluated. A definition is considered context-independent
+ * when neither it nor anything it transitively references performs a
+ * retrieve or calls an external function. Such definitions depend only on
+ * parameters, terminology and the evaluation date/time and can safely be
+ * reused across context switches.
+ *
+ * <p>The analysis is conservative. Anything that cannot be resolved
+ * statically, including recursive references, is treated as
+ * context-dependent.
+ */
+public class ContextIndependentExpressionAnalyzer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContextIndependentExpressionAnalyzer.class);
+
+    private static final String ELM_PACKAGE = Element.class.getPackage().getName();
+
+    private static final ConcurrentMap<Class<?>, List<Field>> CHILD_FIELDS = new ConcurrentHashMap<>();
+
+    private final Map<String, Boolean> results = new HashMap<>();
+    private final Map<FunctionDef, Boolean> functionResults = new IdentityHashMap<>();
+    private final Set<ExpressionDef> inProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Classify every expression definition reachable from the current library
+     * of the provided context. The context is used to navigate library
+     * includes so that included libraries are loaded only once. The library
+     * stack of the context is left as it was found.
+     *
+     * @param context CQL context with a registered library loader
+     * @return set of cache keys (see {@link #getCacheKey(VersionedIdentifier, String)})
+     *         for the definitions that are context-independent
+     */
+    public Set<String> analyze(Context context) {
+        Library library = context.getCurrentLibrary();
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                if (!(def instanceof FunctionDef)) {
+                    isIndependent(context, def);
+                }
+            }
+        }
+
+        Set<String> independent = new HashSet<>();
+        for (Map.Entry<String, Boolean> entry : results.entrySet()) {
+            if (entry.getValue()) {
+                independent.add(entry.getKey());
+            }
+        }
+        LOG.debug("Found {} context-independent definitions out of {} analyzed for library {}", independent.size(), results.size(), library.getIdentifier().getId());
+        return independent;
+    }
+
+    /**
+     * Build the key used to identify an expression definition in the
+     * set returned by {@link #analyze(Context)}.
+     *
+     * @param libraryId identifier of the library containing the definition
+     * @param name      definition name
+     * @return key
+     */
+    public static String getCacheKey(VersionedIdentifier libraryId, String name) {
+        return String.format("%s|%s|%s", libraryId.getId(), libraryId.getVersion(), name);
+    }
+
+    private boolean isIndependent(Context context, ExpressionDef def) {
+        // Function overloads share a name, so they are tracked separately from
+        // the expression definitions that are eligible for caching.
+        String key = getCacheKey(context.getCurrentLibrary().getIdentifier(), def.getName());
+        Boolean result = (def instanceof FunctionDef) ? functionResults.get(def) : results.get(key);
+        if (result == null) {
+            if (!inProgress.add(def)) {
+                return false;
+            }
+            try {
+                result = isIndependent(context, def.getExpression());
+            } finally {
+                inProgress.remove(def);
+            }
+            if (def instanceof FunctionDef) {
+                functionResults.put((FunctionDef) def, result);
+            } else {
+                results.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    private boolean isIndependent(Context context, Object node) {
+        if (node == null) {
+            return true;
+        }
+        else if (node instanceof Retrieve) {
+            return false;
+        }
+        else if (node instanceof FunctionRef) {
+            FunctionRef ref = (FunctionRef) node;
+            return isChildrenIndependent(context, ref) && isFunctionIndependent(context, ref);
+        }
+        else if (node instanceof ExpressionRef) {
+            return isExpressionRefIndependent(context, (ExpressionRef) node);
+        }
+        else if (node instanceof ParameterRef) {
+            return isParameterIndependent(context, (ParameterRef) node);
+        }
+        return isChildrenIndependent(context, node);
+    }
+
+    private boolean isChildrenIndependent(Context context, Object node) {
+        for (Object child : getChildren(node)) {
+            if (!isIndependent(context, child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isExpressionRefIndependent(Context context, ExpressionRef ref) {
+        boolean enteredLibrary = context.enterLibrary(ref.getLibraryName());
+        try {
+            Library library = context.getCurrentLibrary();
+            if (library.getStatements() != null) {
+                for (ExpressionDef def : library.getStatements().getDef()) {
+                    if (!(def instanceof FunctionDef) && ref.getName().equals(def.getName())) {
+                        return isIndependent(context, def);
+                    }
+                }
+            }
+            return false;
+        } finally {
+            context.exitLibrary(enteredLibrary);
+        }
+    }
+
+    private boolean isFunctionIndependent(Context context, FunctionRef ref) {
+        boolean enteredLibrary = context.enterLibrary(ref.getLibraryName());
+        try {
+            // Overload resolution requires runtime types, so every overload with
+            // the referenced name has to be context-independent.
+            boolean found = false;
+            Library library = context.getCurrentLibrary();
+            if (library.getStatements() != null) {
+                for (ExpressionDef def : library.getStatements().getDef()) {
+                    if (def instanceof FunctionDef && ref.getName().equals(def.getName())) {
+                        found = true;
+                        if (Boolean.TRUE.equals(((FunctionDef) def).isExternal()) || !isIndependent(context, def)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return found;
+        } finally {
+            context.exitLibrary(enteredLibrary);
+        }
+    }
+
+    private boolean isParameterIndependent(Context context, ParameterRef ref) {
+        boolean enteredLibrary = context.enterLibrary(ref.getLibraryName());
+        try {
+            Library library = context.getCurrentLibrary();
+            if (library.getParameters() != null) {
+                for (ParameterDef def : library.getParameters().getDef()) {
+                    if (ref.getName().equals(def.getName())) {
+                        return isIndependent(context, def.getDefault());
+                    }
+                }
+            }
+            return true;
+        } finally {
+            context.exitLibrary(enteredLibrary);
+        }
+    }
+
+    /**
+     * Collect the child ELM elements of a node. The ELM execution model
+     * has no visitor support, so the JAXB-generated fields are walked
+     * reflectively. Annotations and type specifiers never contain
+     * executable content and are skipped.
+     */
+    static List<Object> getChildren(Object node) {
+        List<Object> children = new ArrayList<>();
+        for (Field field : CHILD_FIELDS.computeIfAbsent(node.getClass(), ContextIndependentExpressionAnalyzer::findChildFields)) {
+            Object value;
+            try {
+                value = field.get(node);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+
+            if (value instanceof Collection) {
+                for (Object item : (Collection<?>) value) {
+                    if (item instanceof Element && !(item instanceof TypeSpecifier)) {
+                        children.add(item);
+                    }
+                }
+            } else if (value instanceof Element && !(value instanceof TypeSpecifier)) {
+                children.add(value);
+            }
+        }
+        return children;
+    }
+
+    private static List<Field> findChildFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (c.getPackage() == null || !ELM_PACKAGE.equals(c.getPackage().getName())) {
+                continue;
+            }
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || "annotation".equals(field.getName())) {
+                    continue;
+                }
+                if (Element.class.isAssignableFrom(field.getType()) || Collection.class.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+        }
+        return Collections.unmodifiableList(fields);
+    }
+}
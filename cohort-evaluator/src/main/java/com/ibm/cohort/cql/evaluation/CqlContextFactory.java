@@ -13,6 +13,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -24,14 +25,21 @@ import org.opencds.cqf.cql.engine.debug.DebugMap;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 
+import com.ibm.cohort.cql.cache.DateRangeAware;
+import com.ibm.cohort.cql.cache.ElementProjectionAware;
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrievePlanAware;
+import com.ibm.cohort.cql.cache.RetrievePrefetcher;
 import com.ibm.cohort.cql.data.CqlDataProvider;
 import com.ibm.cohort.cql.data.CqlSystemDataProvider;
 import com.ibm.cohort.cql.evaluation.parameters.Parameter;
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
 import com.ibm.cohort.cql.library.CqlLibraryDeserializationException;
 import com.ibm.cohort.cql.library.CqlLibraryProvider;
 import com.ibm.cohort.cql.library.CqlVersionedIdentifier;
 import com.ibm.cohort.cql.library.ProviderBasedLibraryLoader;
 import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
+import com.ibm.cohort.cql.terminology.TerminologyPrefetcher;
 
 public class CqlContextFactory {
 
@@ -39,7 +47,9 @@ public class CqlContextFactory {
      * This class captures all of the data that is included in a CQL context
      * object that either must remain the same between use of the context
      * because it cannot be changed once set or generally does remain the
-     * same between evaluations (libraryProvider, terminologyProvider).
+     * same between evaluations (libraryProvider, terminologyProvider). The
+     * factory settings that change how a context is initialized are part of
+     * the key, so factories with different settings do not share contexts.
      */
     protected static class ContextCacheKey {
         final public CqlLibraryProvider libraryProvider;
@@ -48,6 +58,9 @@ public class CqlContextFactory {
         final public CqlVersionedIdentifier topLevelLibraryIdentifier;
         final public ZonedDateTime evaluationDateTime;
         final public Map<String,Parameter> parameters;
+        final public boolean cacheContextIndependentExpressions;
+        final public boolean prefetchTerminology;
+        final public boolean pushDateRanges;
 
         public ContextCacheKey(
             CqlLibraryProvider libraryProvider,
@@ -55,13 +68,19 @@ public class CqlContextFactory {
             CqlTerminologyProvider terminologyProvider,
             ExternalFunctionProvider externalFunctionProvider,
             ZonedDateTime evaluationDateTime,
-            Map<String, Parameter> parameters ) {
+            Map<String, Parameter> parameters,
+            boolean cacheContextIndependentExpressions,
+            boolean prefetchTerminology,
+            boolean pushDateRanges ) {
             this.libraryProvider = libraryProvider;
             this.topLevelLibraryIdentifier = topLevelLibraryIdentifier;
             this.terminologyProvider = terminologyProvider;
             this.externalFunctionProvider = externalFunctionProvider;
             this.evaluationDateTime = evaluationDateTime;
             this.parameters = parameters;
+            this.cacheContextIndependentExpressions = cacheContextIndependentExpressions;
+            this.prefetchTerminology = prefetchTerminology;
+            this.pushDateRanges = pushDateRanges;
         }
 
         @Override
@@ -76,7 +95,10 @@ public class CqlContextFactory {
                         Objects.equals( terminologyProvider, k2.terminologyProvider ) &&
                         Objects.equals( externalFunctionProvider, k2.externalFunctionProvider ) &&
                         Objects.equals( evaluationDateTime, k2.evaluationDateTime ) &&
-                        Objects.equals( parameters, k2.parameters );
+                        Objects.equals( parameters, k2.parameters ) &&
+                        cacheContextIndependentExpressions == k2.cacheContextIndependentExpressions &&
+                        prefetchTerminology == k2.prefetchTerminology &&
+                        pushDateRanges == k2.pushDateRanges;
 
             }
 
@@ -85,15 +107,33 @@ public class CqlContextFactory {
 
         @Override
         public int hashCode() {
-            return Objects.hash(topLevelLibraryIdentifier, libraryProvider, terminologyProvider, externalFunctionProvider, evaluationDateTime, parameters);
+            return Objects.hash(topLevelLibraryIdentifier, libraryProvider, terminologyProvider, externalFunctionProvider, evaluationDateTime, parameters,
+                    cacheContextIndependentExpressions, prefetchTerminology, pushDateRanges);
         }
     }
 
     public static final boolean DEFAULT_CACHE_EXPRESSIONS = true;
     public static final boolean DEFAULT_CACHE_CONTEXTS = true;
+    public static final boolean DEFAULT_CACHE_CONTEXT_INDEPENDENT_EXPRESSIONS = true;
+    public static final boolean DEFAULT_PREFETCH_TERMINOLOGY = false;
+    public static final boolean DEFAULT_FUSE_RETRIEVES = false;
+    public static final boolean DEFAULT_PREFETCH_RETRIEVES = false;
+    public static final boolean DEFAULT_PROJECT_ELEMENTS = false;
+    public static final boolean DEFAULT_PUSH_DATE_RANGES = false;
+
+    /**
+     * Default number of threads, shared by every factory, that make the
+     * retrieves of the next context value while the current one is evaluated.
+     * The {@value #RETRIEVE_PREFETCH_THREADS_PROPERTY} system property
+     * overrides it.
+     */
+    public static final int RETRIEVE_PREFETCH_THREADS = 4;
+    public static final String RETRIEVE_PREFETCH_THREADS_PROPERTY = "cohort.retrievePrefetch.threads";
 
     private static ConcurrentMap<ContextCacheKey, Context> CONTEXT_CACHE = new ConcurrentHashMap<>();
 
+    private static ExecutorService retrievePrefetchExecutor;
+
     /**
      * Controls whether or not the CQL engine caches the result of each expression.
      * This is a trade off of memory vs. runtime performance. The default is true
@@ -101,9 +141,64 @@ public class CqlContextFactory {
      */
     private boolean cacheExpressions = DEFAULT_CACHE_EXPRESSIONS;
     private boolean cacheContexts = DEFAULT_CACHE_CONTEXTS;
+    /**
+     * Controls whether the results of expressions that do not depend on the
+     * context value (see {@link ContextIndependentExpressionAnalyzer}) are
+     * kept when the context is reused for a different context value. This
+     * only has an effect when both contexts and expressions are cached.
+     */
+    private boolean cacheContextIndependentExpressions = DEFAULT_CACHE_CONTEXT_INDEPENDENT_EXPRESSIONS;
+    /**
+     * Controls whether all ValueSets referenced by the library graph are
+     * expanded (see {@link TerminologyPrefetcher}) when a new context is
+     * created. This is only useful when the terminology provider caches
+     * expansions.
+     */
+    private boolean prefetchTerminology = DEFAULT_PREFETCH_TERMINOLOGY;
+    /**
+     * Controls whether the retrieves of the library graph are planned (see
+     * {@link RetrievePlanner}) and the plan is given to data providers that
+     * are {@link RetrievePlanAware}, so that retrieves of the same data type
+     * can be combined into one call to the data source.
+     */
+    private boolean fuseRetrieves = DEFAULT_FUSE_RETRIEVES;
+    /**
+     * Controls whether the planned retrieves of the library graph are made
+     * for the context value by data providers that are
+     * {@link RetrievePrefetcher}s when a context is created, before any
+     * expression is evaluated. Providers that support it make them with one
+     * request to the data source.
+     */
+    private boolean prefetchRetrieves = DEFAULT_PREFETCH_RETRIEVES;
+    /**
+     * Controls whether the elements that the library graph reads from each
+     * retrieved data type (see {@link RetrievePlanner}) are given to data
+     * providers that are {@link ElementProjectionAware}, so that they can
+     * request only those elements from the data source. Resources returned
+     * by expressions then only hold the elements that are read.
+     */
+    private boolean projectElements = DEFAULT_PROJECT_ELEMENTS;
+    /**
+     * Controls whether the date range conditions of queries are copied onto
+     * the retrieves they filter (see {@link RetrieveDateRangeOptimizer}) so
+     * that data providers can limit the resources they return to the range.
+     * The libraries of a context are changed when it is created, so contexts
+     * are only shared between factories with the same setting. Dated
+     * retrieves are not prefetched or fused, and not every data provider
+     * accepts them, so this is only useful when the data source can filter by
+     * date. Data providers that are {@link DateRangeAware} are told whether
+     * the ranges may be widened.
+     */
+    private boolean pushDateRanges = DEFAULT_PUSH_DATE_RANGES;
 
     private ExternalFunctionProvider externalFunctionProvider;
 
+    /**
+     * Cache used when contexts are cached. This is the process-wide cache
+     * unless a caller that owns its contexts supplies its own.
+     */
+    private Map<ContextCacheKey, Context> contextCache = CONTEXT_CACHE;
+
     public CqlContextFactory() {
 
     }
@@ -124,11 +219,71 @@ public class CqlContextFactory {
         this.cacheContexts = cacheContexts;
     }
 
+    public boolean isCacheContextIndependentExpressions() {
+        return cacheContextIndependentExpressions;
+    }
+
+    public void setCacheContextIndependentExpressions(boolean cacheContextIndependentExpressions) {
+        this.cacheContextIndependentExpressions = cacheContextIndependentExpressions;
+    }
+
+    public boolean isPrefetchTerminology() {
+        return prefetchTerminology;
+    }
+
+    public void setPrefetchTerminology(boolean prefetchTerminology) {
+        this.prefetchTerminology = prefetchTerminology;
+    }
+
+    public boolean isFuseRetrieves() {
+        return fuseRetrieves;
+    }
+
+    public void setFuseRetrieves(boolean fuseRetrieves) {
+        this.fuseRetrieves = fuseRetrieves;
+    }
+
+    public boolean isPrefetchRetrieves() {
+        return prefetchRetrieves;
+    }
+
+    public void setPrefetchRetrieves(boolean prefetchRetrieves) {
+        this.prefetchRetrieves = prefetchRetrieves;
+    }
+
+    public boolean isProjectElements() {
+        return projectElements;
+    }
+
+    public void setProjectElements(boolean projectElements) {
+        this.projectElements = projectElements;
+    }
+
+    public boolean isPushDateRanges() {
+        return pushDateRanges;
+    }
+
+    public void setPushDateRanges(boolean pushDateRanges) {
+        this.pushDateRanges = pushDateRanges;
+    }
+
 
     public void setExternalFunctionProvider(ExternalFunctionProvider externalFunctionProvider) {
         this.externalFunctionProvider = externalFunctionProvider;
     }
 
+    /**
+     * Replace the process-wide context cache with one owned by the caller.
+     * Context objects are not thread-safe, so a caller that evaluates on
+     * several threads at once can give each thread its own cache and reuse
+     * the contexts in it without sharing them.
+     *
+     * @param contextCache cache to use when contexts are cached
+     */
+    protected void setContextCache(Map<ContextCacheKey, Context> contextCache) {
+        this.contextCache = contextCache;
+    }
+
     /**
      * Initialize a CQL Engine Context object with the provided settings.
      *
@@ -160,12 +315,15 @@ public class CqlContextFactory {
                 terminologyProvider,
                 this.externalFunctionProvider,
                 evaluationDateTime,
-                parameters
+                parameters,
+                cacheContextIndependentExpressions && cacheExpressions,
+                prefetchTerminology,
+                pushDateRanges
         );
 
         Context cqlContext;
         if (cacheContexts) {
-            cqlContext = CONTEXT_CACHE.computeIfAbsent(key, this::createContext);
+            cqlContext = contextCache.computeIfAbsent(key, this::createContext);
         }
         else {
             cqlContext = createContext(key);
@@ -178,11 +336,30 @@ public class CqlContextFactory {
             cqlContext.registerDataProvider(modelUri, dataProvider);
         }
 
+        RetrievePlan retrievePlan = (fuseRetrieves && dataProvider instanceof RetrievePlanAware)
+                || (prefetchRetrieves && dataProvider instanceof RetrievePrefetcher)
+                || (projectElements && dataProvider instanceof ElementProjectionAware)
+                ? getRetrievePlan(cqlContext)
+                : null;
+        if (dataProvider instanceof RetrievePlanAware) {
+            ((RetrievePlanAware) dataProvider).setRetrievePlan(fuseRetrieves ? retrievePlan : null);
+        }
+        if (projectElements && retrievePlan != null && dataProvider instanceof ElementProjectionAware) {
+            ((ElementProjectionAware) dataProvider).addElementRequirements(retrievePlan);
+        }
+        if (dataProvider instanceof DateRangeAware) {
+            ((DateRangeAware) dataProvider).setWidenDateRanges(pushDateRanges);
+        }
+
         resetContextValues(cqlContext);
         cqlContext.clearExpressions();
 
         if( contextData != null ) {
             cqlContext.setContextValue(contextData.getKey(), contextData.getValue());
+
+            if (prefetchRetrieves && retrievePlan != null && dataProvider instanceof RetrievePrefetcher) {
+                ((RetrievePrefetcher) dataProvider).prefetch(retrievePlan.toRequests(contextData.getKey(), contextData.getValue(), dataProvider), null);
+            }
         }
 
         DebugMap debugMap = createDebugMap(debug);
@@ -195,6 +372,50 @@ public class CqlContextFactory {
         return cqlContext;
     }
 
+    /**
+     * Start the planned retrieves of a context value that will be evaluated
+     * next with the library of a context created by this factory. The
+     * retrieves are made on a background thread so that they overlap with the
+     * evaluation of the current context value. This only has an effect when
+     * retrieves are prefetched.
+     *
+     * @param cqlContext   context created by {@link #createContext}
+     * @param dataProvider provider that will be used for the next evaluation
+     * @param contextData  name-value pair of the next context
+     */
+    public void prefetchRetrieves(Context cqlContext, CqlDataProvider dataProvider, Pair<String, String> contextData) {
+        if (prefetchRetrieves && contextData != null && dataProvider instanceof RetrievePrefetcher) {
+            RetrievePlan retrievePlan = getRetrievePlan(cqlContext);
+            if (retrievePlan != null) {
+                ((RetrievePrefetcher) dataProvider).prefetch(retrievePlan.toRequests(contextData.getKey(), contextData.getValue(), dataProvider), getRetrievePrefetchExecutor());
+            }
+        }
+    }
+
+    private static RetrievePlan getRetrievePlan(Context cqlContext) {
+        if (!(cqlContext instanceof ContextIndependentCachingContext)) {
+            return null;
+        }
+        ContextIndependentCachingContext cachingContext = (ContextIndependentCachingContext) cqlContext;
+        // Cached contexts may have been created by a factory that did not plan retrieves
+        if (cachingContext.getRetrievePlan() == null) {
+            cachingContext.setRetrievePlan(new RetrievePlanner().plan(cachingContext));
+        }
+        return cachingContext.getRetrievePlan();
+    }
+
+    /**
+     * @return executor, shared by every factory, used to make the retrieves
+     *         of the next context value in the background
+     */
+    public static synchronized ExecutorService getRetrievePrefetchExecutor() {
+        if (retrievePrefetchExecutor == null) {
+            retrievePrefetchExecutor = DaemonExecutors.newFixedThreadPool("retrieve-prefetch",
+                    DaemonExecutors.getThreads(RETRIEVE_PREFETCH_THREADS_PROPERTY, RETRIEVE_PREFETCH_THREADS));
+        }
+        return retrievePrefetchExecutor;
+    }
+
     /**
      * Initialize a CQL context from the values associated with the provided
      * CQL Context Key. This encapsulates the set of initializations that are
@@ -211,11 +432,11 @@ public class CqlContextFactory {
                 .withVersion(contextKey.topLevelLibraryIdentifier.getVersion());
 
         Library entryPoint = libraryLoader.load(vid);
-        Context cqlContext;
+        ContextIndependentCachingContext cqlContext;
         if (contextKey.evaluationDateTime != null) {
-            cqlContext = new Context(entryPoint, contextKey.evaluationDateTime, new CqlSystemDataProvider());
+            cqlContext = new ContextIndependentCachingContext(entryPoint, contextKey.evaluationDateTime, new CqlSystemDataProvider());
         } else {
-            cqlContext = new Context(entryPoint, new CqlSystemDataProvider());
+            cqlContext = new ContextIndependentCachingContext(entryPoint, new CqlSystemDataProvider());
         }
 
         cqlContext.registerExternalFunctionProvider(vid, this.externalFunctionProvider);
@@ -244,6 +465,19 @@ public class CqlContextFactory {
             }
         }
 
+        // The libraries were loaded for this context alone, so changing them does not affect other contexts
+        if (contextKey.pushDateRanges) {
+            new RetrieveDateRangeOptimizer().optimize(cqlContext);
+        }
+
+        if (contextKey.cacheContextIndependentExpressions) {
+            cqlContext.setContextIndependentExpressions(new ContextIndependentExpressionAnalyzer().analyze(cqlContext));
+        }
+
+        if (contextKey.prefetchTerminology) {
+            new TerminologyPrefetcher().prefetch(cqlContext);
+        }
+
         return cqlContext;
     }
 
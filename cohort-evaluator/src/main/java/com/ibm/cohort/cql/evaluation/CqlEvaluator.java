@@ -13,6 +13,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -38,6 +39,12 @@ public class CqlEvaluator {
     private CqlTerminologyProvider terminologyProvider;
     private ExternalFunctionProvider externalFunctionProvider;
     private boolean cacheContexts = true;
+    private Map<CqlContextFactory.ContextCacheKey, Context> localContextCache;
+    private boolean prefetchTerminology = CqlContextFactory.DEFAULT_PREFETCH_TERMINOLOGY;
+    private boolean fuseRetrieves = CqlContextFactory.DEFAULT_FUSE_RETRIEVES;
+    private boolean prefetchRetrieves = CqlContextFactory.DEFAULT_PREFETCH_RETRIEVES;
+    private boolean projectElements = CqlContextFactory.DEFAULT_PROJECT_ELEMENTS;
+    private boolean pushDateRanges = CqlContextFactory.DEFAULT_PUSH_DATE_RANGES;
     
     public List<Pair<CqlEvaluationRequest,CqlEvaluationResult>> evaluate( CqlEvaluationRequests requests ) {
         return evaluate(requests, DEFAULT_CQL_DEBUG);
@@ -46,8 +53,9 @@ public class CqlEvaluator {
     public List<Pair<CqlEvaluationRequest,CqlEvaluationResult>> evaluate( CqlEvaluationRequests requests, CqlDebug debug ) {
         List<Pair<CqlEvaluationRequest,CqlEvaluationResult>> results = new ArrayList<>(requests.getEvaluations().size());
         ZonedDateTime batchDateTime = ZonedDateTime.now();
-        for( CqlEvaluationRequest request : requests.getEvaluations() ) {
-            
+        List<CqlEvaluationRequest> evaluations = requests.getEvaluations();
+        for( int i = 0; i < evaluations.size(); i++ ) {
+            CqlEvaluationRequest request = evaluations.get(i);
             
             Map<String,Parameter> parameters = new HashMap<>();
             if( requests.getGlobalParameters() != null ) {
@@ -60,7 +68,17 @@ public class CqlEvaluator {
             CqlEvaluationRequest withGlobals = new CqlEvaluationRequest(request);
             withGlobals.setParameters(parameters);
             
-            results.add( Pair.of(request, evaluate( withGlobals, debug, batchDateTime )) );
+            // The retrieves of the next request overlap with this evaluation when it uses the same library
+            Pair<String,String> nextContext = null;
+            if( i + 1 < evaluations.size() ) {
+                CqlEvaluationRequest next = evaluations.get(i + 1);
+                if( Objects.equals(next.getDescriptor().getVersionedIdentifier(), request.getDescriptor().getVersionedIdentifier()) ) {
+                    nextContext = Pair.of(next.getContextKey(), next.getContextValue());
+                }
+            }
+
+            results.add( Pair.of(request, evaluate( withGlobals.getDescriptor().getVersionedIdentifier(), withGlobals.getParameters(),
+                    Pair.of(withGlobals.getContextKey(), withGlobals.getContextValue()), withGlobals.getExpressionNames(), debug, batchDateTime, nextContext )) );
         }
         return results;
     }
@@ -100,6 +118,20 @@ public class CqlEvaluator {
     public CqlEvaluationResult evaluate(CqlVersionedIdentifier topLevelLibraryIdentifier, Map<String, Parameter> parameters,
             Pair<String, String> context, Set<String> expressions, CqlDebug debug, ZonedDateTime batchDateTime)
             throws CqlLibraryDeserializationException {
+        return evaluate(topLevelLibraryIdentifier, parameters, context, expressions, debug, batchDateTime, null);
+    }
+
+    /**
+     * Evaluate a library for one context while the retrieves of the context
+     * that will be evaluated next are prefetched (see
+     * {@link #setPrefetchRetrieves(boolean)}).
+     *
+     * @param nextContext context that will be evaluated next with the same
+     *                    library and parameters or null when there is none
+     */
+    public CqlEvaluationResult evaluate(CqlVersionedIdentifier topLevelLibraryIdentifier, Map<String, Parameter> parameters,
+            Pair<String, String> context, Set<String> expressions, CqlDebug debug, ZonedDateTime batchDateTime,
+            Pair<String, String> nextContext) throws CqlLibraryDeserializationException {
         if (this.libraryProvider == null) {
             throw new IllegalArgumentException("Missing libraryProvider");
         }
@@ -116,9 +148,18 @@ public class CqlEvaluator {
         CqlContextFactory contextFactory = new CqlContextFactory();
         contextFactory.setExternalFunctionProvider(this.externalFunctionProvider);
         contextFactory.setCacheContexts(cacheContexts);
+        if (localContextCache != null) {
+            contextFactory.setContextCache(localContextCache);
+        }
+        contextFactory.setPrefetchTerminology(prefetchTerminology);
+        contextFactory.setFuseRetrieves(fuseRetrieves);
+        contextFactory.setPrefetchRetrieves(prefetchRetrieves);
+        contextFactory.setProjectElements(projectElements);
+        contextFactory.setPushDateRanges(pushDateRanges);
 
         Context cqlContext = contextFactory.createContext(libraryProvider, topLevelLibraryIdentifier,
                 terminologyProvider, dataProvider, batchDateTime, context, parameters, debug);
+        contextFactory.prefetchRetrieves(cqlContext, dataProvider, nextContext);
         
         if( expressions == null ) {
             expressions = cqlContext
@@ -190,4 +231,98 @@ public class CqlEvaluator {
         return this;
     }
 
+    public boolean isLocalContextCache() {
+        return localContextCache != null;
+    }
+
+    /**
+     * When enabled, cached contexts are kept by this evaluator instead of in
+     * the process-wide cache. An evaluator that is only used by one thread
+     * can then reuse its context for every context value it evaluates while
+     * other evaluators for the same library run on other threads. This only
+     * has an effect when contexts are cached.
+     *
+     * @param localContextCache whether this evaluator keeps its own contexts
+     * @return this evaluator
+     */
+    public CqlEvaluator setLocalContextCache(boolean localContextCache) {
+        this.localContextCache = localContextCache ? new HashMap<>() : null;
+        return this;
+    }
+
+    public boolean isPrefetchTerminology() {
+        return prefetchTerminology;
+    }
+
+    public CqlEvaluator setPrefetchTerminology(boolean prefetchTerminology) {
+        this.prefetchTerminology = prefetchTerminology;
+        return this;
+    }
+
+    public boolean isFuseRetrieves() {
+        return fuseRetrieves;
+    }
+
+    public CqlEvaluator setFuseRetrieves(boolean fuseRetrieves) {
+        this.fuseRetrieves = fuseRetrieves;
+        return this;
+    }
+
+    public boolean isPrefetchRetrieves() {
+        return prefetchRetrieves;
+    }
+
+    /**
+     * When enabled, the retrieves that the library can make are found ahead
+     * of evaluation and made for each context value before its first
+     * expression is evaluated. When several contexts are evaluated in a row,
+     * the retrieves of the next context are made while the current one is
+     * evaluated. This needs a data provider that caches retrieves.
+     *
+     * @param prefetchRetrieves whether retrieves are prefetched
+     * @return this evaluator
+     */
+    public CqlEvaluator setPrefetchRetrieves(boolean prefetchRetrieves) {
+        this.prefetchRetrieves = prefetchRetrieves;
+        return this;
+    }
+
+    public boolean isProjectElements() {
+        return projectElements;
+    }
+
+    /**
+     * When enabled, data providers that support it request only the elements
+     * of each resource that the library reads. Resources in the results of
+     * expressions then hold only those elements. Every element is requested
+     * when the library reads properties whose type is not in the ELM.
+     *
+     * @param projectElements whether only the elements that are read are
+     *                        requested
+     * @return this evaluator
+     */
+    public CqlEvaluator setProjectElements(boolean projectElements) {
+        this.projectElements = projectElements;
+        return this;
+    }
+
+    public boolean isPushDateRanges() {
+        return pushDateRanges;
+    }
+
+    /**
+     * When enabled, queries that filter a retrieve by a date element being
+     * during a fixed range, such as a measurement period, give that range to
+     * the data provider so that it can return only the resources in the
+     * range. The queries still apply the filter themselves. Not every data
+     * provider accepts date ranges.
+     *
+     * @param pushDateRanges whether date ranges are given to data providers
+     * @return this evaluator
+     */
+    public CqlEvaluator setPushDateRanges(boolean pushDateRanges) {
+        this.pushDateRanges = pushDateRanges;
+        return this;
+    }
+
 }
@@ -0,0 +1,242 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.AliasRef;
+import org.cqframework.cql.elm.execution.AliasedQuerySource;
+import org.cqframework.cql.elm.execution.And;
+import org.cqframework.cql.elm.execution.As;
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.IdentifierRef;
+import org.cqframework.cql.elm.execution.In;
+import org.cqframework.cql.elm.execution.IncludedIn;
+import org.cqframework.cql.elm.execution.IntervalTypeSpecifier;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.NamedTypeSpecifier;
+import org.cqframework.cql.elm.execution.OperandRef;
+import org.cqframework.cql.elm.execution.Property;
+import org.cqframework.cql.elm.execution.Query;
+import org.cqframework.cql.elm.execution.QueryLetRef;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.ToDateTime;
+import org.cqframework.cql.elm.execution.TypeSpecifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Static analysis of an ELM library graph that copies date range conditions
+ * of queries onto the retrieves they filter, so that data providers can
+ * limit the resources they return to the range. A query such as
+ * <code>[Encounter] E where E.period during "Measurement Period"</code> gets
+ * a retrieve with a date property of <code>period</code> and the
+ * measurement period as its date range.
+ *
+ * <p>Unlike the date range optimization of the CQL translator, the condition
+ * stays in the query. Data providers can filter with a range that returns
+ * more resources than the condition matches, or not filter at all, without
+ * changing the results of evaluation. Only ranges of DateTimes that do not
+ * depend on the query are copied, since the CQL engine evaluates the range
+ * before the retrieve is made.
+ *
+ * <p>The library objects of the context are changed, so the retrieves keep
+ * their date ranges for every later evaluation of the context. Libraries
+ * that are also loaded by contexts that should not give date ranges to
+ * their data providers must not be optimized.
+ */
+public class RetrieveDateRangeOptimizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetrieveDateRangeOptimizer.class);
+
+    /**
+     * FHIRHelpers functions that convert a FHIR date element for comparison.
+     */
+    private static final Set<String> DATE_CONVERSIONS = new HashSet<>(Arrays.asList("ToDateTime", "ToInterval"));
+
+    private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int optimized;
+
+    /**
+     * Copy the date range conditions of the queries reachable from the
+     * expression definitions of the current library of the provided context.
+     * The library stack of the context is left as it was found.
+     *
+     * @param context CQL context with a registered library loader
+     * @return number of retrieves that were given a date range
+     */
+    public int optimize(Context context) {
+        Library library = context.getCurrentLibrary();
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                if (!(def instanceof FunctionDef)) {
+                    visit(context, def);
+                }
+            }
+        }
+
+        LOG.debug("Added date ranges to {} retrieves for library {}", optimized, library.getIdentifier().getId());
+        return optimized;
+    }
+
+    private void visit(Context context, Object node) {
+        if (node == null || !visited.add(node)) {
+            return;
+        }
+
+        if (node instanceof ExpressionDef) {
+            visit(context, ((ExpressionDef) node).getExpression());
+            return;
+        }
+        else if (node instanceof FunctionRef) {
+            visitDefs(context, ((FunctionRef) node).getLibraryName(), ((FunctionRef) node).getName(), true);
+        }
+        else if (node instanceof ExpressionRef) {
+            visitDefs(context, ((ExpressionRef) node).getLibraryName(), ((ExpressionRef) node).getName(), false);
+        }
+        else if (node instanceof Query) {
+            optimize((Query) node);
+        }
+
+        for (Object child : ContextIndependentExpressionAnalyzer.getChildren(node)) {
+            visit(context, child);
+        }
+    }
+
+    private void visitDefs(Context context, String libraryName, String name, boolean functions) {
+        // Translated libraries can qualify references to their own functions with their own name
+        boolean enteredLibrary = !Objects.equals(libraryName, context.getCurrentLibrary().getIdentifier().getId())
+                && context.enterLibrary(libraryName);
+        try {
+            Library library = context.getCurrentLibrary();
+            if (library.getStatements() != null) {
+                for (ExpressionDef def : library.getStatements().getDef()) {
+                    if ((def instanceof FunctionDef) == functions && name.equals(def.getName())) {
+                        visit(context, def);
+                    }
+                }
+            }
+        } finally {
+            context.exitLibrary(enteredLibrary);
+        }
+    }
+
+    private void optimize(Query query) {
+        if (query.getWhere() == null) {
+            return;
+        }
+        List<Expression> conditions = new ArrayList<>();
+        addConditions(query.getWhere(), conditions);
+
+        for (AliasedQuerySource source : query.getSource()) {
+            if (!(source.getExpression() instanceof Retrieve)) {
+                continue;
+            }
+            Retrieve retrieve = (Retrieve) source.getExpression();
+            if (retrieve.getDateProperty() != null || retrieve.getDateLowProperty() != null
+                    || retrieve.getDateHighProperty() != null || retrieve.getDateRange() != null) {
+                continue;
+            }
+            for (Expression condition : conditions) {
+                if (condition instanceof In || condition instanceof IncludedIn) {
+                    List<Expression> operands = condition instanceof In ? ((In) condition).getOperand() : ((IncludedIn) condition).getOperand();
+                    String path = getDatePath(operands.get(0), source.getAlias());
+                    if (path != null && isDateTimeRange(operands.get(1))) {
+                        retrieve.setDateProperty(path);
+                        retrieve.setDateRange(operands.get(1));
+                        optimized++;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addConditions(Expression condition, List<Expression> conditions) {
+        if (condition instanceof And) {
+            for (Expression operand : ((And) condition).getOperand()) {
+                addConditions(operand, conditions);
+            }
+        }
+        else {
+            conditions.add(condition);
+        }
+    }
+
+    /**
+     * @return the path of a date element of the alias, possibly converted to
+     *         a DateTime or an Interval, or null when the expression is
+     *         anything else
+     */
+    private static String getDatePath(Expression expression, String alias) {
+        Expression current = expression;
+        while (true) {
+            if (current instanceof FunctionRef && DATE_CONVERSIONS.contains(((FunctionRef) current).getName())
+                    && ((FunctionRef) current).getOperand().size() == 1) {
+                current = ((FunctionRef) current).getOperand().get(0);
+            }
+            else if (current instanceof As) {
+                current = ((As) current).getOperand();
+            }
+            else if (current instanceof ToDateTime) {
+                current = ((ToDateTime) current).getOperand();
+            }
+            else {
+                break;
+            }
+        }
+        if (current instanceof Property) {
+            Property property = (Property) current;
+            if (alias.equals(property.getScope()) && property.getPath() != null && property.getPath().indexOf('.') < 0) {
+                return property.getPath();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true when the expression is an Interval of DateTimes that does
+     *         not refer to anything declared by a query or function
+     */
+    private static boolean isDateTimeRange(Expression expression) {
+        TypeSpecifier type = expression.getResultTypeSpecifier();
+        if (!(type instanceof IntervalTypeSpecifier)) {
+            return false;
+        }
+        TypeSpecifier pointType = ((IntervalTypeSpecifier) type).getPointType();
+        if (!(pointType instanceof NamedTypeSpecifier) || ((NamedTypeSpecifier) pointType).getName() == null
+                || !"DateTime".equals(((NamedTypeSpecifier) pointType).getName().getLocalPart())) {
+            return false;
+        }
+        return isQueryIndependent(expression);
+    }
+
+    private static boolean isQueryIndependent(Object node) {
+        if (node instanceof AliasRef || node instanceof QueryLetRef || node instanceof OperandRef
+                || node instanceof IdentifierRef || (node instanceof Property && ((Property) node).getScope() != null)) {
+            return false;
+        }
+        for (Object child : ContextIndependentExpressionAnalyzer.getChildren(node)) {
+            if (!isQueryIndependent(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.AliasedQuerySource;
+import org.cqframework.cql.elm.execution.ByColumn;
+import org.cqframework.cql.elm.execution.Children;
+import org.cqframework.cql.elm.execution.ChoiceTypeSpecifier;
+import org.cqframework.cql.elm.execution.CodeRef;
+import org.cqframework.cql.elm.execution.CodeSystemRef;
+import org.cqframework.cql.elm.execution.ConceptRef;
+import org.cqframework.cql.elm.execution.Descendents;
+import org.cqframework.cql.elm.execution.Element;
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ListTypeSpecifier;
+import org.cqframework.cql.elm.execution.Literal;
+import org.cqframework.cql.elm.execution.NamedTypeSpecifier;
+import org.cqframework.cql.elm.execution.OperandDef;
+import org.cqframework.cql.elm.execution.OperandRef;
+import org.cqframework.cql.elm.execution.Property;
+import org.cqframework.cql.elm.execution.Query;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.SortByItem;
+import org.cqframework.cql.elm.execution.ToConcept;
+import org.cqframework.cql.elm.execution.ToList;
+import org.cqframework.cql.elm.execution.TypeSpecifier;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.opencds.cqf.cql.engine.elm.execution.ValueSetRefEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+import org.opencds.cqf.cql.engine.runtime.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrievePlan.PlannedRetrieve;
+
+/**
+ * Static analysis of an ELM library graph that collects the retrieves that
+ * evaluation can make for each context, with the same arguments the CQL
+ * engine passes to the retrieve provider. These are the data requirements
+ * of the library, limited to the retrieves whose results can be cached:
+ * retrieves with a date filter and retrieves whose codes are computed from
+ * anything other than the terminology declarations of the library are left
+ * out.
+ *
+ * <p>The planner also collects the top-level elements that are read from the
+ * resources of each retrieved data type, from the property paths of the ELM
+ * and the type of the value each path is read from. This relies on the
+ * result types that the translator adds to the ELM. When the type of a
+ * property path cannot be determined, no element requirements are
+ * reported and every element of every data type is assumed to be needed.
+ */
+public class RetrievePlanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetrievePlanner.class);
+
+    /**
+     * Types whose properties are inherited by every resource type.
+     */
+    private static final Set<String> BASE_RESOURCE_TYPES = new HashSet<>(Arrays.asList("Resource", "DomainResource"));
+
+    private final Set<PlannedRetrieve> retrieves = new LinkedHashSet<>();
+    private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<String> retrievedDataTypes = new LinkedHashSet<>();
+    private final Map<String, Set<String>> elementsByType = new HashMap<>();
+    private final Set<String> wholeResourceTypes = new HashSet<>();
+    private final Deque<Map<String, AliasedQuerySource>> aliasScopes = new ArrayDeque<>();
+    private final Deque<Map<String, TypeSpecifier>> operandScopes = new ArrayDeque<>();
+    private boolean elementsUnknown;
+
+    /**
+     * Collect the retrieves reachable from the expression definitions of the
+     * current library of the provided context. The context is used to
+     * navigate library includes and to evaluate the codes of each retrieve.
+     * The library stack of the context is left as it was found.
+     *
+     * @param context CQL context with a registered library loader
+     * @return retrieve plan
+     */
+    public RetrievePlan plan(Context context) {
+        Library library = context.getCurrentLibrary();
+        if (library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                if (!(def instanceof FunctionDef)) {
+                    visit(context, def);
+                }
+            }
+        }
+
+        RetrievePlan plan = new RetrievePlan(retrieves, getElementsByDataType());
+        LOG.debug("Planned {} retrieves for library {}", plan.getRetrieves().size(), library.getIdentifier().getId());
+        return plan;
+    }
+
+    private void visit(Context context, Object node) {
+        if (node == null || !visited.add(node)) {
+            return;
+        }
+
+        if (node instanceof FunctionDef) {
+            Map<String, TypeSpecifier> operands = new HashMap<>();
+            for (OperandDef operand : ((FunctionDef) node).getOperand()) {
+                operands.put(operand.getName(), operand.getOperandTypeSpecifier());
+            }
+            operandScopes.push(operands);
+            try {
+                visit(context, ((FunctionDef) node).getExpression());
+            } finally {
+                operandScopes.pop();
+            }
+            return;
+        }
+        else if (node instanceof ExpressionDef) {
+            visit(context, ((ExpressionDef) node).getExpression());
+            return;
+        }
+        else if (node instanceof Retrieve) {
+            addRetrieve(context, (Retrieve) node);
+        }
+        else if (node instanceof FunctionRef) {
+            visitDefs(context, ((FunctionRef) node).getLibraryName(), ((FunctionRef) node).getName(), true);
+        }
+        else if (node instanceof ExpressionRef) {
+            visitDefs(context, ((ExpressionRef) node).getLibraryName(), ((ExpressionRef) node).getName(), false);
+        }
+        else if (node instanceof Property) {
+            addProperty((Property) node);
+        }
+        else if (node instanceof Children || node instanceof Descendents) {
+            // Every element of the source is read
+            Expression source = node instanceof Children ? ((Children) node).getSource() : ((Descendents) node).getSource();
+            Set<String> types = getTypeNames(source);
+            if (types == null) {
+                elementsUnknown = true;
+                types = Collections.emptySet();
+            }
+            for (String type : types) {
+                if (BASE_RESOURCE_TYPES.contains(type)) {
+                    elementsUnknown = true;
+                }
+                wholeResourceTypes.add(type);
+            }
+        }
+
+        if (node instanceof Query) {
+            Query query = (Query) node;
+            Map<String, AliasedQuerySource> aliases = new HashMap<>();
+            for (AliasedQuerySource source : query.getSource()) {
+                aliases.put(source.getAlias(), source);
+            }
+            for (AliasedQuerySource relationship : query.getRelationship()) {
+                aliases.put(relationship.getAlias(), relationship);
+            }
+            if (query.getSort() != null) {
+                for (SortByItem item : query.getSort().getBy()) {
+                    if (item instanceof ByColumn) {
+                        addElement(getTypeNames(query), ((ByColumn) item).getPath());
+                    }
+                }
+            }
+            aliasScopes.push(aliases);
+        }
+        try {
+            for (Object child : ContextIndependentExpressionAnalyzer.getChildren(node)) {
+                visit(context, child);
+            }
+        } finally {
+            if (node instanceof Query) {
+                aliasScopes.pop();
+            }
+        }
+    }
+
+    private void visitDefs(Context context, String libraryName, String name, boolean functions) {
+        // Translated libraries can qualify references to their own functions with their own name
+        boolean enteredLibrary = !Objects.equals(libraryName, context.getCurrentLibrary().getIdentifier().getId())
+                && context.enterLibrary(libraryName);
+        try {
+            Library library = context.getCurrentLibrary();
+            if (library.getStatements() != null) {
+                for (ExpressionDef def : library.getStatements().getDef()) {
+                    if ((def instanceof FunctionDef) == functions && name.equals(def.getName())) {
+                        visit(context, def);
+                    }
+                }
+            }
+        } finally {
+            context.exitLibrary(enteredLibrary);
+        }
+    }
+
+    private void addProperty(Property property) {
+        Element source = property.getSource();
+        if (source == null && property.getScope() != null) {
+            for (Map<String, AliasedQuerySource> aliases : aliasScopes) {
+                source = aliases.get(property.getScope());
+                if (source != null) {
+                    break;
+                }
+            }
+        }
+        Set<String> types = getTypeNames(source);
+        if (types == null && source instanceof Property) {
+            // Retrieved resources are not held in the elements of other values
+            return;
+        }
+        if (types == null) {
+            LOG.debug("Type of property {} is unknown, every element is required", property.getPath());
+            elementsUnknown = true;
+            return;
+        }
+        addElement(types, property.getPath());
+    }
+
+    private void addElement(Set<String> types, String path) {
+        if (types == null || path == null) {
+            return;
+        }
+        int end = path.indexOf('.');
+        String element = end < 0 ? path : path.substring(0, end);
+        for (String type : types) {
+            elementsByType.computeIfAbsent(type, k -> new TreeSet<>()).add(element);
+        }
+    }
+
+    /**
+     * Return the names of the types whose properties a property of the
+     * provided element reads. The elements of lists are read for properties
+     * of lists. Tuples and intervals have no named type.
+     *
+     * @return type names or null when the element has no result type
+     */
+    private Set<String> getTypeNames(Element element) {
+        if (element == null) {
+            return null;
+        }
+        if (element.getResultTypeName() != null) {
+            return Collections.singleton(element.getResultTypeName().getLocalPart());
+        }
+        TypeSpecifier specifier = element.getResultTypeSpecifier();
+        // Elements of libraries translated without result types are typed
+        // by their declarations where possible
+        if (specifier == null) {
+            if (element instanceof AliasedQuerySource) {
+                return getTypeNames(((AliasedQuerySource) element).getExpression());
+            }
+            else if (element instanceof Retrieve) {
+                return Collections.singleton(((Retrieve) element).getDataType().getLocalPart());
+            }
+            else if (element instanceof OperandRef && !operandScopes.isEmpty()) {
+                specifier = operandScopes.peek().get(((OperandRef) element).getName());
+            }
+        }
+        if (specifier != null) {
+            Set<String> types = new HashSet<>();
+            addTypeNames(specifier, types);
+            return types;
+        }
+        return null;
+    }
+
+    private static void addTypeNames(TypeSpecifier specifier, Set<String> types) {
+        if (specifier instanceof NamedTypeSpecifier) {
+            QName name = ((NamedTypeSpecifier) specifier).getName();
+            if (name != null) {
+                types.add(name.getLocalPart());
+            }
+        }
+        else if (specifier instanceof ListTypeSpecifier) {
+            addTypeNames(((ListTypeSpecifier) specifier).getElementType(), types);
+        }
+        else if (specifier instanceof ChoiceTypeSpecifier) {
+            ChoiceTypeSpecifier choiceType = (ChoiceTypeSpecifier) specifier;
+            for (TypeSpecifier choice : choiceType.getChoice()) {
+                addTypeNames(choice, types);
+            }
+            for (TypeSpecifier choice : choiceType.getType()) {
+                addTypeNames(choice, types);
+            }
+        }
+    }
+
+    /**
+     * @return elements read from each retrieved data type, null for a type
+     *         whose resources are read as a whole, or null when the type of a
+     *         property path is unknown
+     */
+    private Map<String, Set<String>> getElementsByDataType() {
+        if (elementsUnknown) {
+            return null;
+        }
+        Map<String, Set<String>> elementsByDataType = new HashMap<>();
+        for (String dataType : retrievedDataTypes) {
+            if (wholeResourceTypes.contains(dataType)) {
+                elementsByDataType.put(dataType, null);
+                continue;
+            }
+            Set<String> elements = new TreeSet<>(elementsByType.getOrDefault(dataType, Collections.emptySet()));
+            for (String baseType : BASE_RESOURCE_TYPES) {
+                elements.addAll(elementsByType.getOrDefault(baseType, Collections.emptySet()));
+            }
+            elementsByDataType.put(dataType, elements);
+        }
+        return elementsByDataType;
+    }
+
+    private void addRetrieve(Context context, Retrieve retrieve) {
+        String retrievedType = retrieve.getDataType().getLocalPart();
+        retrievedDataTypes.add(retrievedType);
+        Set<String> retrievedTypes = Collections.singleton(retrievedType);
+        addElement(retrievedTypes, retrieve.getCodeProperty());
+        addElement(retrievedTypes, retrieve.getDateProperty());
+        addElement(retrievedTypes, retrieve.getDateLowProperty());
+        addElement(retrievedTypes, retrieve.getDateHighProperty());
+
+        if (retrieve.getDateProperty() != null || retrieve.getDateLowProperty() != null
+                || retrieve.getDateHighProperty() != null || retrieve.getDateRange() != null) {
+            return;
+        }
+
+        String dataType = retrieve.getDataType().getLocalPart();
+        List<Code> codes = null;
+        String valueSet = null;
+        Expression codesExpression = retrieve.getCodes();
+        if (codesExpression != null) {
+            if (!isTerminology(codesExpression)) {
+                return;
+            }
+            try {
+                // Matches the conversion made by the engine's RetrieveEvaluator
+                Object value = codesExpression instanceof ValueSetRef
+                        ? ValueSetRefEvaluator.toValueSet(context, (ValueSetRef) codesExpression)
+                        : codesExpression.evaluate(context);
+                if (value instanceof ValueSet) {
+                    valueSet = ((ValueSet) value).getId();
+                }
+                else {
+                    codes = toCodes(value);
+                    if (codes == null) {
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.debug("Codes of {} retrieve could not be resolved: {}", dataType, e.getMessage());
+                return;
+            }
+        }
+
+        retrieves.add(new PlannedRetrieve(dataType, retrieve.getTemplateId(), retrieve.getCodeProperty(), codes, valueSet));
+    }
+
+    private static boolean isTerminology(Object node) {
+        if (!(node instanceof ValueSetRef || node instanceof CodeRef || node instanceof ConceptRef
+                || node instanceof CodeSystemRef || node instanceof org.cqframework.cql.elm.execution.Code
+                || node instanceof org.cqframework.cql.elm.execution.Concept || node instanceof ToList
+                || node instanceof ToConcept || node instanceof org.cqframework.cql.elm.execution.List
+                || node instanceof Literal)) {
+            return false;
+        }
+        for (Object child : ContextIndependentExpressionAnalyzer.getChildren(node)) {
+            if (!isTerminology(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Code> toCodes(Object value) {
+        List<Code> codes = new ArrayList<>();
+        if (value instanceof String) {
+            codes.add(new Code().withCode((String) value));
+        }
+        else if (value instanceof Code) {
+            codes.add((Code) value);
+        }
+        else if (value instanceof Concept) {
+            for (Code code : ((Concept) value).getCodes()) {
+                codes.add(code);
+            }
+        }
+        else if (value instanceof Iterable) {
+            for (Object item : (Iterable<?>) value) {
+                if (!(item instanceof Code)) {
+                    return null;
+                }
+                codes.add((Code) item);
+            }
+        }
+        else {
+            return null;
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.helpers;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thread pools used for background work. Pool threads are
+ * daemon threads and are released when idle, so a pool that is kept for the
+ * life of the JVM never needs to be shut down.
+ */
+public class DaemonExecutors {
+
+    public static final long KEEP_ALIVE_SECONDS = 60;
+
+    private DaemonExecutors() {
+    }
+
+    /**
+     * Create a pool with an unbounded work queue.
+     *
+     * @param name    prefix of the pool thread names
+     * @param threads maximum number of pool threads
+     * @return thread pool
+     */
+    public static ThreadPoolExecutor newFixedThreadPool(String name, int threads) {
+        return newFixedThreadPool(name, threads, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Create a pool that queues work in the provided queue.
+     *
+     * @param name    prefix of the pool thread names
+     * @param threads maximum number of pool threads
+     * @param queue   queue that holds work waiting for a thread
+     * @return thread pool
+     */
+    public static ThreadPoolExecutor newFixedThreadPool(String name, int threads, BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, new DaemonThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Read a pool size from a system property.
+     *
+     * @param property       system property name
+     * @param defaultThreads pool size used when the property is not set
+     * @return pool size, never less than one
+     */
+    public static int getThreads(String property, int defaultThreads) {
+        return Math.max(1, Integer.getInteger(property, defaultThreads));
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        DaemonThreadFactory(String name) {
+            this.prefix = name + "-" + POOL_NUMBER.getAndIncrement() + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.library;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+/**
+ * {@link LibraryLoader} decorator that keeps each loaded library so that
+ * repeated loads of the same library, whether for a new context or for an
+ * include of another library, do not re-resolve, re-translate, or
+ * re-deserialize the content.
+ */
+public class CachingLibraryLoader implements LibraryLoader {
+
+    private final LibraryLoader delegate;
+    private final ConcurrentMap<String, Library> libraries = new ConcurrentHashMap<>();
+
+    public CachingLibraryLoader(LibraryLoader delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Library load(VersionedIdentifier libraryIdentifier) {
+        return libraries.computeIfAbsent(getKey(libraryIdentifier), key -> delegate.load(libraryIdentifier));
+    }
+
+    public int size() {
+        return libraries.size();
+    }
+
+    public void clear() {
+        libraries.clear();
+    }
+
+    private String getKey(VersionedIdentifier libraryIdentifier) {
+        return libraryIdentifier.getSystem() + "|" + libraryIdentifier.getId() + "|" + libraryIdentifier.getVersion();
+    }
+}
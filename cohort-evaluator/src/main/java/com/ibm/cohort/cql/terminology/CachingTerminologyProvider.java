@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * Terminology provider decorator that keeps the result of each ValueSet
+ * expansion in a {@link TerminologyExpansionCache}. Once a ValueSet has been
+ * expanded, membership checks against it are answered from the cached
+ * expansion instead of being passed on to the wrapped provider.
+ *
+ * <p>A single cache can be shared by providers that talk to different
+ * terminology servers. The namespace, typically the server base URL,
+ * keeps their entries apart. Instances are safe to share between threads
+ * provided that the wrapped provider is.
+ */
+public class CachingTerminologyProvider implements CqlTerminologyProvider {
+
+    private final TerminologyProvider delegate;
+    private final TerminologyExpansionCache cache;
+    private final String namespace;
+
+    public CachingTerminologyProvider(TerminologyProvider delegate) {
+        this(delegate, new TerminologyExpansionCache(), "");
+    }
+
+    public CachingTerminologyProvider(TerminologyProvider delegate, TerminologyExpansionCache cache, String namespace) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.namespace = (namespace != null) ? namespace : "";
+    }
+
+    public TerminologyProvider getDelegate() {
+        return delegate;
+    }
+
+    public TerminologyExpansionCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        ValueSetExpansion expansion = cache.get(getNamespacedKey(valueSet));
+        if (expansion == null) {
+            return delegate.in(code, valueSet);
+        }
+        // Per the CQL specification, a code without a system is ambiguous when
+        // the ValueSet holds its code value under more than one system
+        if (code.getSystem() == null && expansion.getSystems(code.getCode()).size() > 1) {
+            throw new IllegalArgumentException("Ambiguous code lookup of code[" + code.getCode() + "] under valueset[" + valueSet.getId() + "]");
+        }
+        return expansion.contains(code);
+    }
+
+    @Override
+    public Iterable<Code> expand(ValueSetInfo valueSet) {
+        // Some providers rewrite the ValueSetInfo during resolution, so the
+        // key must be computed before the request is delegated.
+        String key = getNamespacedKey(valueSet);
+        ValueSetExpansion expansion = cache.get(key);
+        if (expansion == null) {
+            expansion = cache.put(key, delegate.expand(valueSet));
+        }
+        return expansion.getCodes();
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        return delegate.lookup(code, codeSystem);
+    }
+
+    /**
+     * @param valueSet ValueSet reference
+     * @return true if an unexpired expansion of the ValueSet is available in the cache
+     */
+    public boolean isExpanded(ValueSetInfo valueSet) {
+        return cache.get(getNamespacedKey(valueSet)) != null;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Build the key used to identify a ValueSet expansion. The key includes
+     * the ValueSet version and any code system bindings as both of those
+     * affect the result of the expansion.
+     *
+     * @param valueSet ValueSet reference
+     * @return cache key
+     */
+    public static String getCacheKey(ValueSetInfo valueSet) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(valueSet.getId()).append('|').append(valueSet.getVersion());
+        if (valueSet.getCodeSystems() != null) {
+            for (CodeSystemInfo codeSystem : valueSet.getCodeSystems()) {
+                sb.append('|').append(codeSystem.getId()).append(':').append(codeSystem.getVersion());
+            }
+        }
+        return sb.toString();
+    }
+
+    private String getNamespacedKey(ValueSetInfo valueSet) {
+        return namespace + "|" + getCacheKey(valueSet);
+    }
+}
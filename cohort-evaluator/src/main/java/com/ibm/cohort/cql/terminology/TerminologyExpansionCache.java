@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Store for ValueSet expansions that is intended to be shared by any number
+ * of {@link CachingTerminologyProvider} instances. Expansions are held in a
+ * bounded in-memory LRU map and, optionally, written to a directory so that
+ * they survive a restart. Entries older than the configured time-to-live are
+ * ignored in both tiers.
+ *
+ * <p>Files in the directory are named by the SHA-256 hash of the cache key
+ * and are written atomically. Failures reading or writing the directory are
+ * logged and otherwise treated as cache misses.
+ */
+public class TerminologyExpansionCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerminologyExpansionCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofHours(24);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Map<String, ValueSetExpansion> memory;
+    private final long timeToLiveMillis;
+    private final Path directory;
+    private final Clock clock;
+
+    public TerminologyExpansionCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE, null);
+    }
+
+    /**
+     * @param maxEntries maximum number of expansions to keep in memory
+     * @param timeToLive maximum age of an expansion before it is requested again
+     * @param directory  optional directory in which expansions are persisted
+     */
+    public TerminologyExpansionCache(int maxEntries, Duration timeToLive, Path directory) {
+        this(maxEntries, timeToLive, directory, Clock.systemUTC());
+    }
+
+    TerminologyExpansionCache(int maxEntries, Duration timeToLive, Path directory, Clock clock) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than zero");
+        }
+        this.memory = new LinkedHashMap<String, ValueSetExpansion>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ValueSetExpansion> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.timeToLiveMillis = timeToLive.toMillis();
+        this.directory = directory;
+        this.clock = clock;
+    }
+
+    /**
+     * @param key cache key
+     * @return unexpired expansion for the key or null if there is none
+     */
+    public ValueSetExpansion get(String key) {
+        ValueSetExpansion expansion;
+        synchronized (memory) {
+            expansion = memory.get(key);
+            if (expansion != null && isExpired(expansion)) {
+                memory.remove(key);
+                expansion = null;
+            }
+        }
+
+        if (expansion == null && directory != null) {
+            expansion = readFromDirectory(key);
+            if (expansion != null) {
+                synchronized (memory) {
+                    memory.put(key, expansion);
+                }
+            }
+        }
+        return expansion;
+    }
+
+    /**
+     * Store the result of an expansion.
+     *
+     * @param key   cache key
+     * @param codes expanded codes
+     * @return the stored expansion
+     */
+    public ValueSetExpansion put(String key, Iterable<Code> codes) {
+        ValueSetExpansion expansion = new ValueSetExpansion(codes, clock.millis());
+        synchronized (memory) {
+            memory.put(key, expansion);
+        }
+        if (directory != null) {
+            writeToDirectory(key, expansion);
+        }
+        return expansion;
+    }
+
+    /**
+     * Remove all in-memory entries. Persisted entries are left in place.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    private boolean isExpired(ValueSetExpansion expansion) {
+        return clock.millis() - expansion.getCreatedMillis() > timeToLiveMillis;
+    }
+
+    private ValueSetExpansion readFromDirectory(String key) {
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (InputStream is = Files.newInputStream(file)) {
+            StoredExpansion stored = MAPPER.readValue(is, StoredExpansion.class);
+            if (!key.equals(stored.key)) {
+                return null;
+            }
+
+            List<Code> codes = new ArrayList<>();
+            if (stored.codes != null) {
+                for (StoredCode code : stored.codes) {
+                    codes.add(new Code().withCode(code.code).withSystem(code.system).withVersion(code.version).withDisplay(code.display));
+                }
+            }
+            ValueSetExpansion expansion = new ValueSetExpansion(codes, stored.created);
+            return isExpired(expansion) ? null : expansion;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to read cached expansion {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeToDirectory(String key, ValueSetExpansion expansion) {
+        StoredExpansion stored = new StoredExpansion();
+        stored.key = key;
+        stored.created = expansion.getCreatedMillis();
+        stored.codes = new ArrayList<>(expansion.getCodes().size());
+        for (Code code : expansion.getCodes()) {
+            StoredCode storedCode = new StoredCode();
+            storedCode.code = code.getCode();
+            storedCode.system = code.getSystem();
+            storedCode.version = code.getVersion();
+            storedCode.display = code.getDisplay();
+            stored.codes.add(storedCode);
+        }
+
+        Path file = getFile(key);
+        try {
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                MAPPER.writeValue(os, stored);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to write cached expansion {}: {}", file, e.getMessage());
+        }
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(sha256(key) + ".json");
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class StoredExpansion {
+        public String key;
+        public long created;
+        public List<StoredCode> codes;
+    }
+
+    private static class StoredCode {
+        public String code;
+        public String system;
+        public String version;
+        public String display;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.opencds.cqf.cql.engine.elm.execution.ValueSetRefEvaluator;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
+
+/**
+ * Expands every ValueSet declared in a CQL library graph ahead of
+ * evaluation so that the terminology provider cache is warm before the
+ * first context is evaluated. Expansion requests are issued in parallel on
+ * a thread pool shared by every prefetcher, sized by the
+ * {@value #THREADS_PROPERTY} system property. Any CodeSystem bindings on the ValueSet definitions
+ * are resolved the same way the CQL engine resolves them at runtime, so the
+ * prefetched expansions match the requests made during evaluation.
+ *
+ * <p>Prefetching is best effort. Failed expansions are logged and left for
+ * the evaluation to report if the ValueSet is actually used.
+ */
+public class TerminologyPrefetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerminologyPrefetcher.class);
+
+    public static final int DEFAULT_MAX_THREADS = 4;
+    public static final String THREADS_PROPERTY = "cohort.terminologyPrefetch.threads";
+
+    private static ExecutorService sharedExecutor;
+
+    private final int maxThreads;
+
+    public TerminologyPrefetcher() {
+        this(DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * @param maxThreads maximum number of ValueSets that a single prefetch
+     *                   expands at the same time
+     */
+    public TerminologyPrefetcher(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be greater than zero");
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Expand all ValueSets declared by the current library of the provided
+     * context and the libraries it includes using the context's terminology
+     * provider. The provider must be safe for use by multiple threads. The
+     * library stack of the context is left as it was found.
+     *
+     * @param context CQL context with a registered library loader and
+     *                terminology provider
+     * @return statistics describing the prefetch
+     */
+    public Statistics prefetch(Context context) {
+        long start = System.currentTimeMillis();
+
+        Map<String, ValueSetInfo> valueSets = new LinkedHashMap<>();
+        collectValueSets(context, new HashSet<>(), valueSets);
+
+        Statistics statistics = new Statistics(valueSets.size());
+        TerminologyProvider terminologyProvider = context.resolveTerminologyProvider();
+        if (!valueSets.isEmpty() && terminologyProvider != null) {
+            Queue<Map.Entry<String, ValueSetInfo>> pending = new ConcurrentLinkedQueue<>(valueSets.entrySet());
+            Callable<Void> worker = () -> {
+                Map.Entry<String, ValueSetInfo> valueSet;
+                while ((valueSet = pending.poll()) != null) {
+                    try {
+                        int codes = countCodes(terminologyProvider.expand(valueSet.getValue()));
+                        synchronized (statistics) {
+                            statistics.codes += codes;
+                            statistics.succeeded++;
+                        }
+                    } catch (RuntimeException e) {
+                        synchronized (statistics) {
+                            statistics.failed++;
+                        }
+                        LOG.warn("Failed to prefetch ValueSet {}: {}", valueSet.getKey(), e.getMessage());
+                        LOG.debug("Prefetch failure", e);
+                    }
+                }
+                return null;
+            };
+
+            int workers = Math.min(maxThreads, valueSets.size());
+            List<Future<Void>> futures = new ArrayList<>(workers);
+            try {
+                for (int i = 0; i < workers; i++) {
+                    futures.add(getSharedExecutor().submit(worker));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to prefetch terminology", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while prefetching terminology");
+            } finally {
+                futures.forEach(future -> future.cancel(true));
+            }
+        }
+        statistics.elapsedMillis = System.currentTimeMillis() - start;
+
+        LOG.info("Prefetched {} of {} ValueSets ({} codes, {} failed) for library {} in {} ms",
+                 statistics.succeeded, statistics.valueSets, statistics.codes, statistics.failed,
+                 context.getCurrentLibrary().getIdentifier().getId(), statistics.elapsedMillis);
+        return statistics;
+    }
+
+    /**
+     * @return executor, shared by every prefetcher, used to expand ValueSets
+     *         in parallel
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = DaemonExecutors.newFixedThreadPool("terminology-prefetch",
+                    DaemonExecutors.getThreads(THREADS_PROPERTY, DEFAULT_MAX_THREADS));
+        }
+        return sharedExecutor;
+    }
+
+    private void collectValueSets(Context context, Set<String> visitedLibraries, Map<String, ValueSetInfo> valueSets) {
+        Library library = context.getCurrentLibrary();
+        if (!visitedLibraries.add(library.getIdentifier().getId() + "|" + library.getIdentifier().getVersion())) {
+            return;
+        }
+
+        if (library.getValueSets() != null) {
+            for (ValueSetDef def : library.getValueSets().getDef()) {
+                ValueSetInfo valueSet = ValueSetInfo.fromValueSet(
+                        ValueSetRefEvaluator.toValueSet(context, new ValueSetRef().withName(def.getName())));
+                valueSets.putIfAbsent(CachingTerminologyProvider.getCacheKey(valueSet), valueSet);
+            }
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                boolean enteredLibrary = context.enterLibrary(include.getLocalIdentifier());
+                try {
+                    collectValueSets(context, visitedLibraries, valueSets);
+                } finally {
+                    context.exitLibrary(enteredLibrary);
+                }
+            }
+        }
+    }
+
+    private static int countCodes(Iterable<Code> codes) {
+        int count = 0;
+        if (codes != null) {
+            for (Iterator<Code> it = codes.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Completion statistics for a single prefetch.
+     */
+    public static class Statistics {
+        private final int valueSets;
+        private int succeeded;
+        private int failed;
+        private long codes;
+        private long elapsedMillis;
+
+        private Statistics(int valueSets) {
+            this.valueSets = valueSets;
+        }
+
+        public int getValueSets() {
+            return valueSets;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getCodes() {
+            return codes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+}
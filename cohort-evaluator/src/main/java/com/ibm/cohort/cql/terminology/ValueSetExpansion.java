@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * Immutable result of a ValueSet expansion. In addition to the list of codes
+ * that is returned from {@link org.opencds.cqf.cql.engine.terminology.TerminologyProvider#expand(org.opencds.cqf.cql.engine.terminology.ValueSetInfo)},
+ * the codes are indexed by code value so that membership checks do not need
+ * to scan the expansion.
+ */
+public class ValueSetExpansion {
+
+    private final List<Code> codes;
+    private final Map<String, Set<String>> codeToSystems;
+    private final long createdMillis;
+
+    public ValueSetExpansion(Iterable<Code> codes, long createdMillis) {
+        List<Code> codeList = new ArrayList<>();
+        Map<String, Set<String>> index = new HashMap<>();
+        if (codes != null) {
+            for (Code code : codes) {
+                codeList.add(code);
+                index.computeIfAbsent(code.getCode(), x -> new HashSet<>()).add(code.getSystem());
+            }
+        }
+        this.codes = Collections.unmodifiableList(codeList);
+        this.codeToSystems = index;
+        this.createdMillis = createdMillis;
+    }
+
+    public List<Code> getCodes() {
+        return codes;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * @param code code value
+     * @return systems of the codes in the expansion with the provided code
+     *         value, or an empty set when there are none
+     */
+    public Set<String> getSystems(String code) {
+        Set<String> systems = codeToSystems.get(code);
+        return systems != null ? Collections.unmodifiableSet(systems) : Collections.emptySet();
+    }
+
+    /**
+     * Check whether the expansion contains the provided code. When the code
+     * has no system, any code with a matching code value is considered a
+     * match.
+     *
+     * @param code code to check
+     * @return true if the code is a member of the expansion
+     */
+    public boolean contains(Code code) {
+        Set<String> systems = codeToSystems.get(code.getCode());
+        if (systems == null) {
+            return false;
+        }
+        return code.getSystem() == null || systems.contains(code.getSystem());
+    }
+}
@@ -6,8 +6,8 @@
 
 package com.ibm.cohort.cql.translation;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ibm.cohort.cql.library.CqlLibrary;
 import com.ibm.cohort.cql.library.CqlLibraryDescriptor;
@@ -20,8 +20,9 @@ public class TranslatingCqlLibraryProvider implements CqlLibraryProvider {
     private final CqlToElmTranslator translator;
     private final boolean forceTranslation;
     
-    // Cache of libraries that have already been translated
-    private final Map<CqlLibraryDescriptor, CqlLibrary> translations = new HashMap<>();
+    // Cache of libraries that have already been translated. This provider is
+    // shared by evaluators running on different threads.
+    private final Map<CqlLibraryDescriptor, CqlLibrary> translations = new ConcurrentHashMap<>();
     
     public TranslatingCqlLibraryProvider(CqlLibraryProvider backingProvider, CqlToElmTranslator translator) {
         this(backingProvider, translator, false);
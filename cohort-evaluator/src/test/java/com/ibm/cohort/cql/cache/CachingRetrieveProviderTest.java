@@ -9,17 +9,31 @@ package com.ibm.cohort.cql.cache;
 import com.ibm.cohort.cql.cache.CachingRetrieveProvider;
 import com.ibm.cohort.cql.cache.RetrieveCacheContext;
 import com.ibm.cohort.cql.cache.RetrieveCacheKey;
+import com.ibm.cohort.cql.data.MultiRetrieveProvider;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 
 import javax.cache.Cache;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class CachingRetrieveProviderTest {
 
@@ -79,6 +93,106 @@ public class CachingRetrieveProviderTest {
 		Assert.assertSame(expected, actual);
 	}
 
+	@Test
+	public void retrieve_concurrentCacheMiss_retrievedOnce() throws Exception {
+		Iterable<Object> expected = new ArrayList<>();
+
+		CountDownLatch retrieveStarted = new CountDownLatch(1);
+		CountDownLatch releaseRetrieve = new CountDownLatch(1);
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null))
+				.thenAnswer(invocation -> {
+					retrieveStarted.countDown();
+					releaseRetrieve.await(5, TimeUnit.SECONDS);
+					return expected;
+				});
+
+		Map<RetrieveCacheKey, Iterable<Object>> cacheContents = new ConcurrentHashMap<>();
+		Cache<RetrieveCacheKey, Iterable<Object>> mockCache = Mockito.mock(Cache.class);
+		Mockito.when(mockCache.get(Mockito.any())).thenAnswer(invocation -> cacheContents.get(invocation.getArgument(0)));
+		Mockito.doAnswer(invocation -> cacheContents.put(invocation.getArgument(0), invocation.getArgument(1)))
+				.when(mockCache).put(Mockito.any(), Mockito.any());
+
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, createMockCacheContext(mockCache));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Iterable<Object>> first = executor.submit(() -> provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null));
+			Assert.assertTrue(retrieveStarted.await(5, TimeUnit.SECONDS));
+			Future<Iterable<Object>> second = executor.submit(() -> provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null));
+			releaseRetrieve.countDown();
+
+			Assert.assertSame(expected, first.get(5, TimeUnit.SECONDS));
+			Assert.assertSame(expected, second.get(5, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null);
+	}
+
+	@Test
+	public void retrieveByIds_batchLargerThanBound_onlyBoundHeld() {
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any()))
+				.thenAnswer(invocation -> Collections.singletonList(invocation.getArgument(2)));
+
+		RetrieveCacheContext mockCacheContext = Mockito.mock(RetrieveCacheContext.class);
+		Mockito.when(mockCacheContext.getCache(Mockito.anyString())).thenReturn(Mockito.mock(Cache.class));
+
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i <= CachingRetrieveProvider.MAX_PRIMED_RETRIEVES; i++) {
+			ids.add(String.valueOf(i));
+		}
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, mockCacheContext);
+		Assert.assertEquals(ids.size(), provider.retrieveByIds("Patient", ids).size());
+
+		String templateId = "http://hl7.org/fhir/StructureDefinition/Patient";
+		String lastId = ids.get(ids.size() - 1);
+		Assert.assertEquals(Collections.singletonList("0"), provider.retrieve("Patient", "id", "0", "Patient", templateId, null, null, null, null, null, null, null));
+		Mockito.verify(mockProvider, Mockito.never())
+				.retrieve(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.eq(templateId), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+
+		Assert.assertEquals(Collections.singletonList(lastId), provider.retrieve("Patient", "id", lastId, "Patient", templateId, null, null, null, null, null, null, null));
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve("Patient", "id", lastId, "Patient", templateId, null, null, null, null, null, null, null);
+	}
+
+	@Test
+	public void retrieveByIds_primesByIdRetrieve() {
+		Object patient = new Object();
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve("Patient", "id", "1", "Patient", null, null, null, null, null, null, null, null))
+				.thenReturn(Collections.singletonList(patient));
+		Mockito.when(mockProvider.retrieve("Patient", "id", "2", "Patient", null, null, null, null, null, null, null, null))
+				.thenReturn(Collections.emptyList());
+
+		RetrieveCacheContext mockCacheContext = Mockito.mock(RetrieveCacheContext.class);
+		Mockito.when(mockCacheContext.getCache(Mockito.anyString())).thenReturn(Mockito.mock(Cache.class));
+
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, mockCacheContext);
+		Map<String, Object> resources = provider.retrieveByIds("Patient", Arrays.asList("1", "2"));
+		Assert.assertEquals(Collections.singletonMap("1", patient), resources);
+
+		String templateId = "http://hl7.org/fhir/StructureDefinition/Patient";
+		Assert.assertEquals(Collections.singletonList(patient), provider.retrieve("Patient", "id", "1", "Patient", templateId, null, null, null, null, null, null, null));
+		Mockito.verify(mockProvider, Mockito.never())
+				.retrieve(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.eq(templateId), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+
+		// An id that was not found is left to the base provider
+		Assert.assertFalse(provider.retrieve("Patient", "id", "2", "Patient", templateId, null, null, null, null, null, null, null).iterator().hasNext());
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve("Patient", "id", "2", "Patient", templateId, null, null, null, null, null, null, null);
+
+		// A batch retrieved resource only answers one retrieve, later retrieves are left to the cache
+		provider.retrieve("Patient", "id", "1", "Patient", templateId, null, null, null, null, null, null, null);
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve("Patient", "id", "1", "Patient", templateId, null, null, null, null, null, null, null);
+	}
+
 	@Test
 	public void retrieve_passthrough_nonStringContextValue() {
 		Iterable<Object> expected = new ArrayList<>();
@@ -155,6 +269,271 @@ public class CachingRetrieveProviderTest {
 		Assert.assertSame(expected, actual);
 	}
 
+	@Test
+	public void retrieve_dated_cachedWithDateRange() throws Exception {
+		Iterable<Object> undated = new ArrayList<>();
+		Iterable<Object> dated = new ArrayList<>();
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, DATE_PATH, null, null, DATE_RANGE))
+				.thenReturn(dated);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null))
+				.thenReturn(undated);
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			provider.setWidenDateRanges(true);
+			Assert.assertSame(dated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, DATE_PATH, null, null, DATE_RANGE));
+			Assert.assertSame(dated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, DATE_PATH, null, null, DATE_RANGE));
+
+			// The results without a date range hold every resource in the range
+			Assert.assertSame(undated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null));
+			Assert.assertSame(undated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, DATE_PATH, null, null, DATE_RANGE));
+		}
+
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, DATE_PATH, null, null, DATE_RANGE);
+		Mockito.verify(mockProvider, Mockito.never())
+				.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, DATE_PATH, null, null, DATE_RANGE);
+	}
+
+	@Test
+	public void retrieve_dated_notWidened_passthrough() throws Exception {
+		Iterable<Object> undated = new ArrayList<>();
+		Iterable<Object> dated = new ArrayList<>();
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, DATE_PATH, null, null, DATE_RANGE))
+				.thenReturn(dated);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null))
+				.thenReturn(undated);
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			Assert.assertSame(undated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, null, null, null, null));
+
+			// The date range is applied as given, so the results without one are not used
+			Assert.assertSame(dated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, DATE_PATH, null, null, DATE_RANGE));
+			Assert.assertSame(dated, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, DATE_PATH, null, null, DATE_RANGE));
+		}
+
+		Mockito.verify(mockProvider, Mockito.times(2))
+				.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, VALUE_SET, DATE_PATH, null, null, DATE_RANGE);
+	}
+
+	@Test
+	public void retrieve_fusedRetrieves_retrievedOnceAndPartitioned() throws Exception {
+		Code diabetes = createCode("diabetes");
+		Code hypertension = createCode("hypertension");
+		Code pregnancy = createCode("pregnancy");
+		Code unsystematic = new Code().withCode("hypertension");
+
+		Map<Object, Code> resourceCodes = new HashMap<>();
+		resourceCodes.put("diabetes-condition", diabetes);
+		resourceCodes.put("hypertension-condition", hypertension);
+		resourceCodes.put("pregnancy-condition", pregnancy);
+		RetrieveCodeExtractor codeExtractor = (resource, codePath) -> Collections.singletonList(resourceCodes.get(resource));
+
+		TerminologyProvider terminologyProvider = Mockito.mock(TerminologyProvider.class);
+		Mockito.when(terminologyProvider.expand(Mockito.any(ValueSetInfo.class)))
+				.thenReturn(Collections.singletonList(pregnancy));
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve(Mockito.eq(CONTEXT), Mockito.eq(CONTEXT_PATH), Mockito.eq(CONTEXT_VALUE), Mockito.eq(DATA_TYPE), Mockito.eq(TEMPLATE_ID), Mockito.eq(CODE_PATH), Mockito.any(), Mockito.isNull(), Mockito.isNull(), Mockito.isNull(), Mockito.isNull(), Mockito.isNull()))
+				.thenReturn(Arrays.asList("diabetes-condition", "hypertension-condition", "pregnancy-condition"));
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext, codeExtractor, terminologyProvider);
+			provider.setRetrievePlan(new RetrievePlan(Arrays.asList(
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(diabetes), null),
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(unsystematic), null),
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, null, VALUE_SET)
+			)));
+
+			Assert.assertEquals(Collections.singletonList("diabetes-condition"), toList(
+					provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(diabetes), null, null, null, null, null)));
+			// A code without a system matches the code in any system
+			Assert.assertEquals(Collections.singletonList("hypertension-condition"), toList(
+					provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(unsystematic), null, null, null, null, null)));
+			Assert.assertEquals(Collections.singletonList("pregnancy-condition"), toList(
+					provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, null, VALUE_SET, null, null, null, null)));
+		}
+
+		ArgumentCaptor<Iterable<Code>> codes = ArgumentCaptor.forClass(Iterable.class);
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve(Mockito.eq(CONTEXT), Mockito.eq(CONTEXT_PATH), Mockito.eq(CONTEXT_VALUE), Mockito.eq(DATA_TYPE), Mockito.eq(TEMPLATE_ID), Mockito.eq(CODE_PATH), codes.capture(), Mockito.isNull(), Mockito.isNull(), Mockito.isNull(), Mockito.isNull(), Mockito.isNull());
+		Assert.assertEquals(Arrays.asList(diabetes, unsystematic, pregnancy), toList(codes.getValue()));
+	}
+
+	@Test
+	public void retrieve_valueSetExpandedByServer_valueSetNotFused() throws Exception {
+		Code diabetes = createCode("diabetes");
+		Code hypertension = createCode("hypertension");
+		Iterable<Object> expected = Collections.singletonList("pregnancy-condition");
+
+		TerminologyProvider terminologyProvider = Mockito.mock(TerminologyProvider.class);
+
+		// Base provider leaves ValueSet filtering to the server
+		TerminologyAwareRetrieveProvider mockProvider = Mockito.mock(TerminologyAwareRetrieveProvider.class);
+		Mockito.when(mockProvider.isExpandValueSets()).thenReturn(false);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, null, VALUE_SET, null, null, null, null))
+				.thenReturn(expected);
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext, (resource, codePath) -> Collections.emptyList(), terminologyProvider);
+			provider.setRetrievePlan(new RetrievePlan(Arrays.asList(
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(diabetes), null),
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(hypertension), null),
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, null, VALUE_SET)
+			)));
+
+			Assert.assertSame(expected, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, null, VALUE_SET, null, null, null, null));
+		}
+
+		Mockito.verify(terminologyProvider, Mockito.never()).expand(Mockito.any(ValueSetInfo.class));
+		Mockito.verify(mockProvider, Mockito.times(1))
+				.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, null, VALUE_SET, null, null, null, null);
+	}
+
+	@Test
+	public void retrieve_notInRetrievePlan_notFused() throws Exception {
+		Iterable<Object> expected = new ArrayList<>();
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class);
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null))
+				.thenReturn(expected);
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext, (resource, codePath) -> Collections.emptyList(), null);
+			provider.setRetrievePlan(new RetrievePlan(Arrays.asList(
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(createCode("code4")), null),
+					new RetrievePlan.PlannedRetrieve(DATA_TYPE, TEMPLATE_ID, CODE_PATH, Collections.singletonList(createCode("code5")), null)
+			)));
+
+			Iterable<Object> actual = provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null);
+			Assert.assertSame(expected, actual);
+		}
+	}
+
+	@Test
+	public void prefetch_retrievesMadeTogetherAndAnsweredOnce() throws Exception {
+		Iterable<Object> first = Collections.singletonList("first");
+		Iterable<Object> second = Collections.singletonList("second");
+		RetrieveRequest firstRequest = new RetrieveRequest(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null);
+		RetrieveRequest secondRequest = new RetrieveRequest(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, null, null, null);
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class, Mockito.withSettings().extraInterfaces(MultiRetrieveProvider.class));
+		Mockito.when(((MultiRetrieveProvider)mockProvider).retrieveAll(Arrays.asList(firstRequest, secondRequest)))
+				.thenReturn(Arrays.asList(first, second));
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			provider.prefetch(Arrays.asList(firstRequest, secondRequest), null);
+			// Already prefetched retrieves are not made again
+			provider.prefetch(Collections.singletonList(firstRequest), null);
+
+			Assert.assertSame(first, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null));
+			Assert.assertSame(second, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, null, null, null, null, null, null, null));
+			Assert.assertSame(first, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null));
+
+			Mockito.verify((MultiRetrieveProvider)mockProvider, Mockito.times(1)).retrieveAll(Mockito.any());
+			Mockito.verify(mockProvider, Mockito.never())
+					.retrieve(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+		}
+	}
+
+	@Test
+	public void prefetch_cachedForCurrentContext_notPrefetched() throws Exception {
+		Iterable<Object> expected = new ArrayList<>();
+		RetrieveRequest request = new RetrieveRequest(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null);
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class, Mockito.withSettings().extraInterfaces(MultiRetrieveProvider.class));
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null))
+				.thenReturn(expected);
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null);
+			provider.prefetch(Collections.singletonList(request), null);
+
+			Mockito.verify((MultiRetrieveProvider)mockProvider, Mockito.never()).retrieveAll(Mockito.any());
+		}
+	}
+
+	@Test
+	public void prefetch_failed_retrievedDuringEvaluation() throws Exception {
+		Iterable<Object> expected = new ArrayList<>();
+		RetrieveRequest request = new RetrieveRequest(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null);
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class, Mockito.withSettings().extraInterfaces(MultiRetrieveProvider.class));
+		Mockito.when(((MultiRetrieveProvider)mockProvider).retrieveAll(Mockito.any()))
+				.thenThrow(new IllegalStateException("Server unavailable"));
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null))
+				.thenReturn(expected);
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			provider.prefetch(Collections.singletonList(request), null);
+
+			Assert.assertSame(expected, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null));
+		}
+	}
+
+	@Test
+	public void prefetch_inBackground_retrieveWaitsForPrefetch() throws Exception {
+		Iterable<Object> expected = new ArrayList<>();
+		RetrieveRequest request = new RetrieveRequest(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null);
+
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class, Mockito.withSettings().extraInterfaces(MultiRetrieveProvider.class));
+		Mockito.when(((MultiRetrieveProvider)mockProvider).retrieveAll(Mockito.any()))
+				.thenReturn(Collections.singletonList(expected));
+
+		List<Runnable> backgroundTasks = new ArrayList<>();
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			provider.prefetch(Collections.singletonList(request), backgroundTasks::add);
+			Assert.assertEquals(1, backgroundTasks.size());
+
+			// The retrieve makes the prefetch itself when it has not started yet
+			Assert.assertSame(expected, provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null));
+			backgroundTasks.get(0).run();
+
+			Mockito.verify((MultiRetrieveProvider)mockProvider, Mockito.times(1)).retrieveAll(Mockito.any());
+			Mockito.verify(mockProvider, Mockito.never())
+					.retrieve(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+		}
+	}
+
+	@Test
+	public void addElementRequirements_widened_cacheFlushed() throws Exception {
+		RetrieveProvider mockProvider = Mockito.mock(RetrieveProvider.class, Mockito.withSettings().extraInterfaces(ElementProjectionAware.class));
+		Mockito.when(mockProvider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null))
+				.thenReturn(new ArrayList<>());
+		RetrievePlan codePlan = new RetrievePlan(Collections.emptyList(), Collections.singletonMap(DATA_TYPE, Collections.singleton("code")));
+		RetrievePlan statusPlan = new RetrievePlan(Collections.emptyList(), Collections.singletonMap(DATA_TYPE, Collections.singleton("status")));
+
+		try (RetrieveCacheContext cacheContext = new DefaultRetrieveCacheContext()) {
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(mockProvider, cacheContext);
+			provider.addElementRequirements(codePlan);
+			provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null);
+			// Requirements that are already requested keep the cache
+			provider.addElementRequirements(codePlan);
+			provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null);
+			provider.addElementRequirements(statusPlan);
+			provider.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null);
+
+			Mockito.verify((ElementProjectionAware)mockProvider, Mockito.times(3)).addElementRequirements(Mockito.any());
+			Mockito.verify(mockProvider, Mockito.times(2))
+					.retrieve(CONTEXT, CONTEXT_PATH, CONTEXT_VALUE, DATA_TYPE, TEMPLATE_ID, CODE_PATH, CODES, null, null, null, null, null);
+		}
+	}
+
+	private static <T> List<T> toList(Iterable<T> iterable) {
+		List<T> list = new ArrayList<>();
+		iterable.forEach(list::add);
+		return list;
+	}
+
 	private RetrieveCacheContext createMockCacheContext(Cache<RetrieveCacheKey, Iterable<Object>> retVal) {
 		RetrieveCacheContext mockCacheContext = Mockito.mock(RetrieveCacheContext.class);
 		Mockito.when(mockCacheContext.getCache(CONTEXT_VALUE))
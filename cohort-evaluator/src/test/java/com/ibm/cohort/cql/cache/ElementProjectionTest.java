@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class ElementProjectionTest {
+
+	@Test
+	public void add_elementsCombined() {
+		ElementProjection projection = new ElementProjection();
+		// Data types are requested as a whole until a plan reports their elements
+		Assert.assertNull(projection.getElements("Condition"));
+
+		Assert.assertFalse(projection.add(createPlan("Condition", "onset", "code")));
+		Assert.assertEquals(Arrays.asList("code", "onset"), Arrays.asList(projection.getElements("Condition").toArray()));
+
+		Assert.assertFalse(projection.add(createPlan("Condition", "code")));
+		Assert.assertTrue(projection.add(createPlan("Condition", "code", "subject")));
+		Assert.assertEquals(new HashSet<>(Arrays.asList("code", "onset", "subject")), projection.getElements("Condition"));
+		Assert.assertNull(projection.getElements("Observation"));
+	}
+
+	@Test
+	public void add_wholeDataType_dataTypeNotProjected() {
+		ElementProjection projection = new ElementProjection();
+		projection.add(createPlan("Condition", "code"));
+
+		Map<String, Set<String>> wholeCondition = new HashMap<>();
+		wholeCondition.put("Condition", null);
+		Assert.assertTrue(projection.add(new RetrievePlan(Collections.emptyList(), wholeCondition)));
+		Assert.assertNull(projection.getElements("Condition"));
+
+		Assert.assertFalse(projection.add(createPlan("Condition", "code")));
+		Assert.assertNull(projection.getElements("Condition"));
+	}
+
+	@Test
+	public void add_unknownElements_nothingProjected() {
+		ElementProjection projection = new ElementProjection();
+		projection.add(createPlan("Condition", "code"));
+
+		Assert.assertTrue(projection.add(new RetrievePlan(Collections.emptyList())));
+		Assert.assertNull(projection.getElements("Condition"));
+
+		Assert.assertFalse(projection.add(createPlan("Observation", "code")));
+		Assert.assertNull(projection.getElements("Observation"));
+	}
+
+	private static RetrievePlan createPlan(String dataType, String... elements) {
+		return new RetrievePlan(Collections.emptyList(), Collections.singletonMap(dataType, new HashSet<>(Arrays.asList(elements))));
+	}
+}
@@ -7,9 +7,11 @@
 package com.ibm.cohort.cql.data;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -71,4 +73,52 @@ public class CachingModelResolverDecoratorTest {
 
 		verify(this.innerModelResolver, times(1)).getContextPath(objectType, objectType);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void test_null_context_path__inner_method_called_once() {
+		Mockito.doReturn(null).when(innerModelResolver).getContextPath(objectType, "Other");
+
+		assertNull(this.modelResolver.getContextPath(objectType, "Other"));
+		assertNull(this.modelResolver.getContextPath(objectType, "Other"));
+
+		verify(this.innerModelResolver, times(1)).getContextPath(objectType, "Other");
+	}
+
+	@Test
+	public void test_resolve_path__not_compiler__delegates_to_inner() {
+		Mockito.doReturn("value").when(innerModelResolver).resolvePath(object, idField);
+
+		assertEquals("value", this.modelResolver.resolvePath(object, idField));
+		assertEquals("value", this.modelResolver.resolvePath(object, idField));
+
+		verify(this.innerModelResolver, times(2)).resolvePath(object, idField);
+	}
+
+	@Test
+	public void test_resolve_path__compiled_accessor__compiled_once() {
+		ModelResolver compilingResolver = Mockito.mock(ModelResolver.class, withSettings().extraInterfaces(PropertyAccessorCompiler.class));
+		Mockito.doReturn((PropertyAccessor) target -> "compiled").when((PropertyAccessorCompiler) compilingResolver).compilePropertyAccessor(objectClass, idField);
+		TestCachingModelResolverDecorator decorator = new TestCachingModelResolverDecorator(compilingResolver);
+		decorator.clearCaches();
+
+		assertEquals("compiled", decorator.resolvePath(object, idField));
+		assertEquals("compiled", decorator.resolvePath(new Object(), idField));
+
+		verify((PropertyAccessorCompiler) compilingResolver, times(1)).compilePropertyAccessor(objectClass, idField);
+		verify(compilingResolver, times(0)).resolvePath(object, idField);
+	}
+
+	@Test
+	public void test_resolve_path__not_compilable__falls_back_to_inner() {
+		ModelResolver compilingResolver = Mockito.mock(ModelResolver.class, withSettings().extraInterfaces(PropertyAccessorCompiler.class));
+		Mockito.doReturn("value").when(compilingResolver).resolvePath(object, idField);
+		TestCachingModelResolverDecorator decorator = new TestCachingModelResolverDecorator(compilingResolver);
+		decorator.clearCaches();
+
+		assertEquals("value", decorator.resolvePath(object, idField));
+		assertEquals("value", decorator.resolvePath(object, idField));
+
+		verify((PropertyAccessorCompiler) compilingResolver, times(1)).compilePropertyAccessor(objectClass, idField);
+		verify(compilingResolver, times(2)).resolvePath(object, idField);
+	}
+}
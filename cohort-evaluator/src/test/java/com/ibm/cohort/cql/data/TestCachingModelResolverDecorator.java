@@ -18,5 +18,6 @@ public class TestCachingModelResolverDecorator extends CachingModelResolverDecor
 		perPackageContextResolutions.clear();
 		perPackageTypeResolutionsByClass.clear();
 		perPackageTypeResolutionsByTypeName.clear();
+		perPackagePropertyAccessors.clear();
 	}
 }
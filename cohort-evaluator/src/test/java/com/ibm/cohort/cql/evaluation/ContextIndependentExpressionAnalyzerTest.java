@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import com.ibm.cohort.cql.data.CqlDataProvider;
+import com.ibm.cohort.cql.library.ClasspathCqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlVersionedIdentifier;
+import com.ibm.cohort.cql.library.PriorityCqlLibraryProvider;
+import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
+import com.ibm.cohort.cql.terminology.UnsupportedTerminologyProvider;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
+
+public class ContextIndependentExpressionAnalyzerTest {
+
+    private static final CqlVersionedIdentifier LIBRARY_ID = new CqlVersionedIdentifier("ContextIndependent", "1.0.0");
+    private static final ZonedDateTime EVALUATION_DATE_TIME = ZonedDateTime.of(LocalDateTime.of(2021, 6, 1, 0, 0, 0), ZoneId.of("UTC"));
+
+    private CqlLibraryProvider libraryProvider;
+    private CqlTerminologyProvider terminologyProvider;
+    private CqlDataProvider dataProvider;
+
+    @Before
+    public void setUp() {
+        CqlLibraryProvider classpathProvider = new PriorityCqlLibraryProvider(
+                new ClasspathCqlLibraryProvider("cql/context-independent", ClasspathCqlLibraryProvider.FHIR_HELPERS_CLASSPATH)
+        );
+        libraryProvider = new TranslatingCqlLibraryProvider(classpathProvider, new CqlToElmTranslator());
+        terminologyProvider = new UnsupportedTerminologyProvider();
+        dataProvider = mock(CqlDataProvider.class);
+    }
+
+    @Test
+    public void testAnalyzeClassifiesDefinitions() {
+        CqlContextFactory factory = new CqlContextFactory();
+        factory.setCacheContexts(false);
+
+        Context context = factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, dataProvider,
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+
+        VersionedIdentifier libraryId = context.getCurrentLibrary().getIdentifier();
+        Set<String> actual = new ContextIndependentExpressionAnalyzer().analyze(context).stream()
+                .filter(key -> key.startsWith(LIBRARY_ID.getId() + "|"))
+                .collect(Collectors.toSet());
+
+        Set<String> expected = new HashSet<>(Arrays.asList(
+                ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, "Period Start"),
+                ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, "Period Length"),
+                ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, "Doubled"),
+                ContextIndependentExpressionAnalyzer.getCacheKey(libraryId, "Current Year")
+        ));
+        assertEquals(expected, actual);
+
+        // the library stack is left untouched
+        assertEquals(LIBRARY_ID.getId(), context.getCurrentLibrary().getIdentifier().getId());
+    }
+
+    @Test
+    public void testContextIndependentResultsSurviveContextSwitch() {
+        CqlContextFactory factory = new CqlContextFactory();
+
+        Context context = factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, dataProvider,
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+        VersionedIdentifier libraryId = context.getCurrentLibrary().getIdentifier();
+
+        Object periodLength = context.resolveExpressionRef("Period Length").evaluate(context);
+        assertEquals(365, periodLength);
+        assertTrue(context.isExpressionInCache(libraryId, "Period Start"));
+
+        context.addExpressionToCache(libraryId, "Has Conditions", Boolean.TRUE);
+
+        Context reused = factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, dataProvider,
+                EVALUATION_DATE_TIME, Pair.of("Patient", "456"), null, CqlDebug.NONE);
+        assertSame(context, reused);
+
+        assertTrue(reused.isExpressionInCache(libraryId, "Period Start"));
+        assertTrue(reused.isExpressionInCache(libraryId, "Period Length"));
+        assertEquals(periodLength, reused.getExpressionResultFromCache(libraryId, "Period Length"));
+        assertFalse(reused.isExpressionInCache(libraryId, "Has Conditions"));
+    }
+
+    @Test
+    public void testContextIndependentCachingDisabled() {
+        CqlContextFactory factory = new CqlContextFactory();
+        factory.setCacheContextIndependentExpressions(false);
+
+        Context context = factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, dataProvider,
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+        VersionedIdentifier libraryId = context.getCurrentLibrary().getIdentifier();
+
+        context.resolveExpressionRef("Period Start").evaluate(context);
+        assertTrue(context.isExpressionInCache(libraryId, "Period Start"));
+
+        factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, dataProvider,
+                EVALUATION_DATE_TIME, Pair.of("Patient", "456"), null, CqlDebug.NONE);
+        assertFalse(context.isExpressionInCache(libraryId, "Period Start"));
+    }
+
+    @Test
+    public void testNullResultIsCached() {
+        CqlContextFactory factory = new CqlContextFactory();
+
+        ContextIndependentCachingContext context = (ContextIndependentCachingContext) factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, dataProvider,
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+        VersionedIdentifier libraryId = context.getCurrentLibrary().getIdentifier();
+
+        context.addExpressionToCache(libraryId, "Doubled", null);
+        assertTrue(context.isExpressionInCache(libraryId, "Doubled"));
+        assertEquals(null, context.getExpressionResultFromCache(libraryId, "Doubled"));
+
+        context.clearContextIndependentExpressions();
+        assertFalse(context.isExpressionInCache(libraryId, "Doubled"));
+    }
+}
@@ -7,6 +7,9 @@
 package com.ibm.cohort.cql.evaluation;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -90,6 +93,34 @@ public class CqlContextFactoryTest {
         verify(cqlContextFactory, times(1)).createContext(any(ContextCacheKey.class));
     }
     
+    @Test
+    public void testCreateContextDifferentSettingsNotShared() {
+        PriorityCqlLibraryProvider libraryProvider = new PriorityCqlLibraryProvider(
+                new ClasspathCqlLibraryProvider("cql", ClasspathCqlLibraryProvider.FHIR_HELPERS_CLASSPATH)
+        );
+        TranslatingCqlLibraryProvider translatingProvider = new TranslatingCqlLibraryProvider(libraryProvider, new CqlToElmTranslator());
+        CqlVersionedIdentifier topLevelLibraryIdentifier = new CqlVersionedIdentifier("MyCQL", "1.0.0");
+        CqlTerminologyProvider terminologyProvider = new UnsupportedTerminologyProvider();
+        CqlDataProvider dataProvider = mock(CqlDataProvider.class);
+        ZonedDateTime evaluationDateTime = ZonedDateTime.now();
+        Map<ContextCacheKey, Context> contextCache = new HashMap<>();
+
+        CqlContextFactory cachingFactory = new CqlContextFactory();
+        cachingFactory.setContextCache(contextCache);
+        Context cachingContext = cachingFactory.createContext(translatingProvider, topLevelLibraryIdentifier, terminologyProvider,
+                dataProvider, evaluationDateTime, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+
+        CqlContextFactory nonCachingFactory = new CqlContextFactory();
+        nonCachingFactory.setContextCache(contextCache);
+        nonCachingFactory.setCacheContextIndependentExpressions(false);
+        Context nonCachingContext = nonCachingFactory.createContext(translatingProvider, topLevelLibraryIdentifier, terminologyProvider,
+                dataProvider, evaluationDateTime, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+
+        assertNotSame(cachingContext, nonCachingContext);
+        assertEquals(2, contextCache.size());
+        assertTrue(((ContextIndependentCachingContext) nonCachingContext).getContextIndependentExpressions().isEmpty());
+    }
+
     @Test
     public void testContextCacheKeyEquals() {
         CqlLibraryProvider libraryProvider = mock(CqlLibraryProvider.class);
@@ -101,15 +132,21 @@ public class CqlContextFactoryTest {
         ZonedDateTime evaluationDateTime = ZonedDateTime.now();
         
         
-        CqlContextFactory.ContextCacheKey k1 = new CqlContextFactory.ContextCacheKey(libraryProvider, topLevelLibraryIdentifier, terminologyProvider, null, evaluationDateTime, parameters);
+        CqlContextFactory.ContextCacheKey k1 = new CqlContextFactory.ContextCacheKey(libraryProvider, topLevelLibraryIdentifier, terminologyProvider, null, evaluationDateTime, parameters, true, false, false);
         assertEquals(k1, k1);
         
-        CqlContextFactory.ContextCacheKey k2 = new CqlContextFactory.ContextCacheKey(libraryProvider, topLevelLibraryIdentifier, terminologyProvider, null, evaluationDateTime, parameters);
+        CqlContextFactory.ContextCacheKey k2 = new CqlContextFactory.ContextCacheKey(libraryProvider, topLevelLibraryIdentifier, terminologyProvider, null, evaluationDateTime, parameters, true, false, false);
         assertEquals(k1, k2);
         
         Map<ContextCacheKey,String> map = new HashMap<>();
         map.put(k1, "Hello,World");
         
         assertEquals( "Hello,World", map.get(k2) );
+
+        CqlContextFactory.ContextCacheKey k3 = new CqlContextFactory.ContextCacheKey(libraryProvider, topLevelLibraryIdentifier, terminologyProvider, null, evaluationDateTime, parameters, false, false, false);
+        assertNotEquals(k1, k3);
+
+        CqlContextFactory.ContextCacheKey k4 = new CqlContextFactory.ContextCacheKey(libraryProvider, topLevelLibraryIdentifier, terminologyProvider, null, evaluationDateTime, parameters, true, false, true);
+        assertNotEquals(k1, k4);
     }
 }
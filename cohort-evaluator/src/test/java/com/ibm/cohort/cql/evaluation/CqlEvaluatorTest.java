@@ -9,9 +9,13 @@ package com.ibm.cohort.cql.evaluation;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -193,4 +197,41 @@ public class CqlEvaluatorTest {
         assertEquals(1, result.getExpressionResults().size());
         assertEquals(false, result.getExpressionResults().get("OtherThing"));
     }
+
+    @Test
+    public void testLocalContextCache() {
+        CqlLibraryDescriptor libraryDescriptor = new CqlLibraryDescriptor()
+                .setLibraryId("Sample")
+                .setVersion("1.0.0")
+                .setFormat(Format.CQL);
+
+        CqlLibrary library = new CqlLibrary()
+                .setDescriptor(libraryDescriptor)
+                .setContent("library \"Sample\" version '1.0.0'\n\ndefine \"Something\":1<10");
+
+        CqlLibraryProvider libraryProvider = mock(CqlLibraryProvider.class);
+        when(libraryProvider.getLibrary(libraryDescriptor)).thenReturn(library);
+
+        TranslatingCqlLibraryProvider translatingProvider = new TranslatingCqlLibraryProvider(libraryProvider, new CqlToElmTranslator());
+        CqlLibraryProvider countingProvider = mock(CqlLibraryProvider.class);
+        when(countingProvider.getLibrary(any(CqlLibraryDescriptor.class))).then(invocation -> translatingProvider.getLibrary(invocation.getArgument(0)));
+
+        ZonedDateTime evaluationDateTime = ZonedDateTime.now();
+        for (int i = 0; i < 2; i++) {
+            CqlEvaluator evaluator = new CqlEvaluator()
+                    .setTerminologyProvider(mock(CqlTerminologyProvider.class))
+                    .setDataProvider(mock(CqlDataProvider.class))
+                    .setLibraryProvider(countingProvider)
+                    .setLocalContextCache(true);
+
+            for (String patientId : Arrays.asList("123", "456")) {
+                CqlEvaluationResult result = evaluator.evaluate(libraryDescriptor.getVersionedIdentifier(), null,
+                        Pair.of("Patient", patientId), null, CqlDebug.NONE, evaluationDateTime);
+                assertEquals(true, result.getExpressionResults().get("Something"));
+            }
+        }
+
+        // Each evaluator loads the library for its own context and reuses it for the second patient
+        verify(countingProvider, times(2)).getLibrary(any(CqlLibraryDescriptor.class));
+    }
 }
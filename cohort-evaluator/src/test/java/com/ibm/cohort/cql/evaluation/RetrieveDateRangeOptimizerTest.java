@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Query;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import com.ibm.cohort.cql.data.CqlDataProvider;
+import com.ibm.cohort.cql.library.ClasspathCqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlVersionedIdentifier;
+import com.ibm.cohort.cql.library.PriorityCqlLibraryProvider;
+import com.ibm.cohort.cql.terminology.CqlTerminologyProvider;
+import com.ibm.cohort.cql.terminology.UnsupportedTerminologyProvider;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
+
+public class RetrieveDateRangeOptimizerTest {
+
+    private static final CqlVersionedIdentifier LIBRARY_ID = new CqlVersionedIdentifier("DateRange", "1.0.0");
+    private static final ZonedDateTime EVALUATION_DATE_TIME = ZonedDateTime.of(LocalDateTime.of(2021, 6, 1, 0, 0, 0), ZoneId.of("UTC"));
+
+    private CqlLibraryProvider libraryProvider;
+    private Context context;
+
+    @Before
+    public void setUp() {
+        CqlLibraryProvider classpathProvider = new PriorityCqlLibraryProvider(
+                new ClasspathCqlLibraryProvider("cql/date-range", ClasspathCqlLibraryProvider.FHIR_HELPERS_CLASSPATH)
+        );
+        libraryProvider = new TranslatingCqlLibraryProvider(classpathProvider, new CqlToElmTranslator());
+
+        CqlContextFactory factory = new CqlContextFactory();
+        factory.setCacheContexts(false);
+        context = factory.createContext(libraryProvider, LIBRARY_ID, new UnsupportedTerminologyProvider(), mock(CqlDataProvider.class),
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+    }
+
+    @Test
+    public void testOptimizeCopiesDateRangeConditions() {
+        assertEquals(2, new RetrieveDateRangeOptimizer().optimize(context));
+
+        Retrieve encounters = getRetrieve("Encounters In Period");
+        assertEquals("period", encounters.getDateProperty());
+        assertNotNull(encounters.getDateRange());
+        // The condition is kept in the query
+        assertNotNull(((Query) getDef("Encounters In Period").getExpression()).getWhere());
+
+        assertEquals("effective", getRetrieve("Observations In Period").getDateProperty());
+
+        // Ranges that depend on the query or are not of DateTimes are left out
+        assertNull(getRetrieve("Encounters After Observations").getDateProperty());
+        assertNull(getRetrieve("Encounters In Year").getDateRange());
+
+        // Retrieves that already have a date range are not optimized again
+        assertEquals(0, new RetrieveDateRangeOptimizer().optimize(context));
+        assertTrue(context.getCurrentLibrary().getIdentifier().getId().equals(LIBRARY_ID.getId()));
+    }
+
+    @Test
+    public void testPushedDateRangesNotSharedWithOtherFactories() {
+        Map<CqlContextFactory.ContextCacheKey, Context> contextCache = new HashMap<>();
+        CqlTerminologyProvider terminologyProvider = new UnsupportedTerminologyProvider();
+
+        CqlContextFactory pushingFactory = new CqlContextFactory();
+        pushingFactory.setContextCache(contextCache);
+        pushingFactory.setPushDateRanges(true);
+        Context pushingContext = pushingFactory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, mock(CqlDataProvider.class),
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+
+        CqlContextFactory factory = new CqlContextFactory();
+        factory.setContextCache(contextCache);
+        Context otherContext = factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, mock(CqlDataProvider.class),
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+
+        assertNotSame(pushingContext, otherContext);
+        assertEquals("period", getRetrieve(pushingContext, "Encounters In Period").getDateProperty());
+        assertNull(getRetrieve(otherContext, "Encounters In Period").getDateProperty());
+        assertNull(getRetrieve(otherContext, "Encounters In Period").getDateRange());
+        assertNull(getRetrieve(otherContext, "Observations In Period").getDateProperty());
+    }
+
+    private Retrieve getRetrieve(String name) {
+        return getRetrieve(context, name);
+    }
+
+    private ExpressionDef getDef(String name) {
+        return getDef(context, name);
+    }
+
+    private static Retrieve getRetrieve(Context context, String name) {
+        return (Retrieve) ((Query) getDef(context, name).getExpression()).getSource().get(0).getExpression();
+    }
+
+    private static ExpressionDef getDef(Context context, String name) {
+        return context.getCurrentLibrary().getStatements().getDef().stream()
+                .filter(def -> name.equals(def.getName()))
+                .findFirst()
+                .orElseThrow(IllegalArgumentException::new);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrievePlan.PlannedRetrieve;
+import com.ibm.cohort.cql.data.CqlDataProvider;
+import com.ibm.cohort.cql.library.ClasspathCqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlVersionedIdentifier;
+import com.ibm.cohort.cql.library.PriorityCqlLibraryProvider;
+import com.ibm.cohort.cql.terminology.UnsupportedTerminologyProvider;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
+
+public class RetrievePlannerTest {
+
+    private static final CqlVersionedIdentifier LIBRARY_ID = new CqlVersionedIdentifier("RetrievePlan", "1.0.0");
+    private static final ZonedDateTime EVALUATION_DATE_TIME = ZonedDateTime.of(LocalDateTime.of(2021, 6, 1, 0, 0, 0), ZoneId.of("UTC"));
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        CqlLibraryProvider classpathProvider = new PriorityCqlLibraryProvider(
+                new ClasspathCqlLibraryProvider("cql/retrieve-plan", ClasspathCqlLibraryProvider.FHIR_HELPERS_CLASSPATH)
+        );
+        CqlLibraryProvider libraryProvider = new TranslatingCqlLibraryProvider(classpathProvider, new CqlToElmTranslator());
+
+        CqlContextFactory factory = new CqlContextFactory();
+        factory.setCacheContexts(false);
+        context = factory.createContext(libraryProvider, LIBRARY_ID, new UnsupportedTerminologyProvider(), mock(CqlDataProvider.class),
+                EVALUATION_DATE_TIME, Pair.of("Patient", "123"), null, CqlDebug.NONE);
+    }
+
+    @Test
+    public void testPlanGroupsCodedRetrievesOfSameType() {
+        RetrievePlan plan = new RetrievePlanner().plan(context);
+
+        List<PlannedRetrieve> conditions = plan.getFusedRetrieves("Condition", "http://hl7.org/fhir/StructureDefinition/Condition", "code");
+        assertEquals(3, conditions.size());
+        assertEquals("urn:oid:2.16.840.1.113883.3.464.1003.103.12.1001", conditions.get(0).getValueSet());
+        assertNull(conditions.get(0).getCodes());
+        assertEquals("38341003", conditions.get(1).getCodes().get(0).getCode());
+        assertEquals("http://snomed.info/sct", conditions.get(1).getCodes().get(0).getSystem());
+        assertEquals("77386006", conditions.get(2).getCodes().get(0).getCode());
+
+        // A single coded retrieve of a type has nothing to be combined with
+        assertTrue(plan.getFusedRetrieves("Procedure", "http://hl7.org/fhir/StructureDefinition/Procedure", "code").isEmpty());
+
+        // Retrieves referenced more than once are planned once, including the Patient retrieve of the context
+        List<String> dataTypes = plan.getRetrieves().stream().map(PlannedRetrieve::getDataType).collect(Collectors.toList());
+        assertEquals(7, dataTypes.size());
+        assertTrue(dataTypes.containsAll(Arrays.asList("Patient", "Encounter", "Observation", "Procedure")));
+
+        // the library stack is left untouched
+        assertEquals(LIBRARY_ID.getId(), context.getCurrentLibrary().getIdentifier().getId());
+    }
+
+    @Test
+    public void testPlanCollectsElementsReadFromEachDataType() {
+        RetrievePlan plan = new RetrievePlanner().plan(context);
+
+        Map<String, Set<String>> elements = plan.getElementsByDataType();
+        assertEquals(new HashSet<>(Arrays.asList("code", "onset")), elements.get("Condition"));
+        assertEquals(Collections.singleton("effective"), elements.get("Observation"));
+        assertEquals(Collections.singleton("period"), elements.get("Encounter"));
+        assertEquals(Collections.singleton("code"), elements.get("Procedure"));
+        // Data types that are retrieved without reading any element
+        assertEquals(Collections.emptySet(), elements.get("Patient"));
+        assertEquals(5, elements.size());
+    }
+}
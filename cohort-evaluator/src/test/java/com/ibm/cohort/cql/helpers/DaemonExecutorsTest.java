@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.helpers;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DaemonExecutorsTest {
+
+    private static final String THREADS_PROPERTY = "cohort.test.daemonExecutors.threads";
+
+    @Test
+    public void newFixedThreadPool_daemonThreadsReleasedWhenIdle() throws Exception {
+        ThreadPoolExecutor executor = DaemonExecutors.newFixedThreadPool("daemon-test", 2);
+        try {
+            Assert.assertEquals(2, executor.getMaximumPoolSize());
+            Assert.assertTrue(executor.allowsCoreThreadTimeOut());
+
+            Thread thread = executor.submit(Thread::currentThread).get();
+            Assert.assertTrue(thread.isDaemon());
+            Assert.assertTrue(thread.getName().startsWith("daemon-test-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void getThreads() {
+        try {
+            Assert.assertEquals(3, DaemonExecutors.getThreads(THREADS_PROPERTY, 3));
+
+            System.setProperty(THREADS_PROPERTY, "5");
+            Assert.assertEquals(5, DaemonExecutors.getThreads(THREADS_PROPERTY, 3));
+
+            System.setProperty(THREADS_PROPERTY, "0");
+            Assert.assertEquals(1, DaemonExecutors.getThreads(THREADS_PROPERTY, 3));
+        } finally {
+            System.clearProperty(THREADS_PROPERTY);
+        }
+    }
+}
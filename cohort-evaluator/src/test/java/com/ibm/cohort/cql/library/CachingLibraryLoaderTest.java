@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+public class CachingLibraryLoaderTest {
+    @Test
+    public void libraryLoadedOncePerIdentifier() {
+        LibraryLoader delegate = mock(LibraryLoader.class);
+        when(delegate.load(any())).thenAnswer(invocation -> new Library().withIdentifier(invocation.getArgument(0)));
+
+        CachingLibraryLoader loader = new CachingLibraryLoader(delegate);
+
+        Library first = loader.load(new VersionedIdentifier().withId("Name").withVersion("1.0.0"));
+        Library second = loader.load(new VersionedIdentifier().withId("Name").withVersion("1.0.0"));
+        Library other = loader.load(new VersionedIdentifier().withId("Name").withVersion("2.0.0"));
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(2, loader.size());
+        verify(delegate, times(2)).load(any());
+
+        loader.clear();
+        loader.load(new VersionedIdentifier().withId("Name").withVersion("1.0.0"));
+        verify(delegate, times(3)).load(any());
+    }
+}
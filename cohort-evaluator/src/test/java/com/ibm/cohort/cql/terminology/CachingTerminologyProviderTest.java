@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+public class CachingTerminologyProviderTest {
+
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String LOINC = "http://loinc.org";
+
+    private TerminologyProvider delegate;
+    private CachingTerminologyProvider provider;
+
+    @Before
+    public void setUp() {
+        delegate = mock(TerminologyProvider.class);
+        provider = new CachingTerminologyProvider(delegate);
+    }
+
+    @Test
+    public void testExpandIsCached() {
+        when(delegate.expand(any())).thenReturn(Arrays.asList(new Code().withCode("123").withSystem(SNOMED)));
+
+        Iterable<Code> first = provider.expand(new ValueSetInfo().withId("urn:oid:1.2.3"));
+        Iterable<Code> second = provider.expand(new ValueSetInfo().withId("urn:oid:1.2.3"));
+
+        assertSame(first, second);
+        verify(delegate, times(1)).expand(any());
+    }
+
+    @Test
+    public void testCacheKeyComputedBeforeDelegation() {
+        when(delegate.expand(any())).thenAnswer(invocation -> {
+            // simulate providers that rewrite the id during resolution
+            ((ValueSetInfo) invocation.getArgument(0)).setId("1.2.3");
+            return Arrays.asList(new Code().withCode("123").withSystem(SNOMED));
+        });
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("urn:oid:1.2.3");
+        provider.expand(valueSet);
+
+        assertTrue(provider.isExpanded(new ValueSetInfo().withId("urn:oid:1.2.3")));
+    }
+
+    @Test
+    public void testInUsesCachedExpansion() {
+        when(delegate.expand(any())).thenReturn(Arrays.asList(
+                new Code().withCode("123").withSystem(SNOMED),
+                new Code().withCode("456").withSystem(LOINC)));
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("urn:oid:1.2.3");
+        provider.expand(valueSet);
+
+        assertTrue(provider.in(new Code().withCode("123").withSystem(SNOMED), valueSet));
+        assertTrue(provider.in(new Code().withCode("456"), valueSet));
+        assertFalse(provider.in(new Code().withCode("123").withSystem(LOINC), valueSet));
+        assertFalse(provider.in(new Code().withCode("789").withSystem(SNOMED), valueSet));
+        verify(delegate, never()).in(any(), any());
+    }
+
+    @Test
+    public void testInAmbiguousCodeWithoutSystem() {
+        when(delegate.expand(any())).thenReturn(Arrays.asList(
+                new Code().withCode("123").withSystem(SNOMED),
+                new Code().withCode("123").withSystem(LOINC)));
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("urn:oid:1.2.3");
+        provider.expand(valueSet);
+
+        assertTrue(provider.in(new Code().withCode("123").withSystem(LOINC), valueSet));
+        assertThrows(IllegalArgumentException.class, () -> provider.in(new Code().withCode("123"), valueSet));
+        assertFalse(provider.in(new Code().withCode("456"), valueSet));
+    }
+
+    @Test
+    public void testInDelegatesWhenNotExpanded() {
+        when(delegate.in(any(), any())).thenReturn(true);
+
+        assertTrue(provider.in(new Code().withCode("123").withSystem(SNOMED), new ValueSetInfo().withId("urn:oid:1.2.3")));
+        verify(delegate, times(1)).in(any(), any());
+    }
+
+    @Test
+    public void testCacheKeyIncludesVersionAndCodeSystems() {
+        String unversioned = CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:1.2.3"));
+        String versioned = CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:1.2.3").withVersion("1"));
+        String bound = CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:1.2.3")
+                .withCodeSystem(new CodeSystemInfo().withId(SNOMED)));
+
+        assertNotEquals(unversioned, versioned);
+        assertNotEquals(unversioned, bound);
+        assertEquals(unversioned, CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:1.2.3")));
+    }
+
+    @Test
+    public void testClear() {
+        when(delegate.expand(any())).thenReturn(Arrays.asList(new Code().withCode("123").withSystem(SNOMED)));
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("urn:oid:1.2.3");
+        provider.expand(valueSet);
+        provider.clear();
+
+        assertFalse(provider.isExpanded(valueSet));
+    }
+
+    @Test
+    public void testNamespacesAreIsolated() {
+        when(delegate.expand(any())).thenReturn(Arrays.asList(new Code().withCode("123").withSystem(SNOMED)));
+
+        TerminologyExpansionCache cache = new TerminologyExpansionCache();
+        CachingTerminologyProvider first = new CachingTerminologyProvider(delegate, cache, "http://server-a/fhir");
+        CachingTerminologyProvider second = new CachingTerminologyProvider(delegate, cache, "http://server-b/fhir");
+        CachingTerminologyProvider third = new CachingTerminologyProvider(delegate, cache, "http://server-a/fhir");
+
+        ValueSetInfo valueSet = new ValueSetInfo().withId("urn:oid:1.2.3");
+        first.expand(valueSet);
+
+        assertFalse(second.isExpanded(valueSet));
+        assertTrue(third.isExpanded(valueSet));
+    }
+}
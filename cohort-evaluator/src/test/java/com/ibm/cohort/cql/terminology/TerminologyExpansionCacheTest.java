@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+public class TerminologyExpansionCacheTest {
+
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final TestClock clock = new TestClock();
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        TerminologyExpansionCache cache = new TerminologyExpansionCache(2, Duration.ofHours(1), null, clock);
+
+        cache.put("a", Collections.emptyList());
+        cache.put("b", Collections.emptyList());
+        assertNotNull(cache.get("a"));
+        cache.put("c", Collections.emptyList());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void testExpiredEntriesIgnored() {
+        TerminologyExpansionCache cache = new TerminologyExpansionCache(10, Duration.ofMinutes(5), null, clock);
+
+        cache.put("a", Collections.emptyList());
+        clock.advance(Duration.ofMinutes(5));
+        assertNotNull(cache.get("a"));
+
+        clock.advance(Duration.ofMillis(1));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPersistedEntriesSurviveRestart() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+
+        TerminologyExpansionCache cache = new TerminologyExpansionCache(10, Duration.ofHours(1), directory, clock);
+        cache.put("urn:oid:1.2.3|null", Arrays.asList(
+                new Code().withCode("123").withSystem(SNOMED).withDisplay("Display").withVersion("2020")));
+
+        File[] files = directory.toFile().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".json"));
+
+        TerminologyExpansionCache restarted = new TerminologyExpansionCache(10, Duration.ofHours(1), directory, clock);
+        ValueSetExpansion expansion = restarted.get("urn:oid:1.2.3|null");
+        assertNotNull(expansion);
+        assertEquals(1, expansion.getCodes().size());
+        Code code = expansion.getCodes().get(0);
+        assertEquals("123", code.getCode());
+        assertEquals(SNOMED, code.getSystem());
+        assertEquals("Display", code.getDisplay());
+        assertEquals("2020", code.getVersion());
+        assertTrue(expansion.contains(new Code().withCode("123")));
+
+        clock.advance(Duration.ofHours(2));
+        TerminologyExpansionCache expired = new TerminologyExpansionCache(10, Duration.ofHours(1), directory, clock);
+        assertNull(expired.get("urn:oid:1.2.3|null"));
+    }
+
+    @Test
+    public void testUnreadableFileIsCacheMiss() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+
+        TerminologyExpansionCache cache = new TerminologyExpansionCache(10, Duration.ofHours(1), directory, clock);
+        cache.put("key", Collections.emptyList());
+        File[] files = directory.toFile().listFiles();
+        Files.write(files[0].toPath(), "not json".getBytes());
+
+        assertNull(new TerminologyExpansionCache(10, Duration.ofHours(1), directory, clock).get("key"));
+    }
+
+    @Test
+    public void testMembership() {
+        ValueSetExpansion expansion = new ValueSetExpansion(Arrays.asList(
+                new Code().withCode("123").withSystem(SNOMED),
+                new Code().withCode("123").withSystem("http://loinc.org")), 0);
+
+        assertTrue(expansion.contains(new Code().withCode("123").withSystem(SNOMED)));
+        assertTrue(expansion.contains(new Code().withCode("123")));
+        assertFalse(expansion.contains(new Code().withCode("123").withSystem("http://other")));
+        assertFalse(expansion.contains(new Code().withCode("456")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxEntries() {
+        new TerminologyExpansionCache(0, Duration.ofHours(1), null);
+    }
+
+    private static class TestClock extends Clock {
+        private Instant instant = Instant.EPOCH;
+
+        void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.cql.terminology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import com.ibm.cohort.cql.data.CqlDataProvider;
+import com.ibm.cohort.cql.evaluation.CqlContextFactory;
+import com.ibm.cohort.cql.evaluation.CqlDebug;
+import com.ibm.cohort.cql.library.ClasspathCqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlLibraryProvider;
+import com.ibm.cohort.cql.library.CqlVersionedIdentifier;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+import com.ibm.cohort.cql.translation.TranslatingCqlLibraryProvider;
+
+public class TerminologyPrefetcherTest {
+
+    private static final CqlVersionedIdentifier LIBRARY_ID = new CqlVersionedIdentifier("Prefetch", "1.0.0");
+
+    private CqlLibraryProvider libraryProvider;
+    private RecordingTerminologyProvider terminologyProvider;
+
+    @Before
+    public void setUp() {
+        libraryProvider = new TranslatingCqlLibraryProvider(
+                new ClasspathCqlLibraryProvider("cql/terminology-prefetch"), new CqlToElmTranslator());
+        terminologyProvider = new RecordingTerminologyProvider();
+    }
+
+    @Test
+    public void testPrefetchExpandsLibraryGraph() {
+        Context context = createContext(false);
+
+        TerminologyPrefetcher.Statistics statistics = new TerminologyPrefetcher(2).prefetch(context);
+
+        Set<String> expected = new HashSet<>(Arrays.asList(
+                CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:2.16.840.1.113883.3.464.1003.103.12.1001")),
+                CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:1.2.3.4")),
+                CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:9.9.9")),
+                CachingTerminologyProvider.getCacheKey(new ValueSetInfo().withId("urn:oid:5.6.7.8")
+                        .withCodeSystem(new CodeSystemInfo().withId("http://snomed.info/sct")))
+        ));
+        assertEquals(expected, terminologyProvider.expanded.keySet());
+        assertTrue(terminologyProvider.expanded.values().stream().allMatch(count -> count == 1));
+
+        assertEquals(4, statistics.getValueSets());
+        assertEquals(3, statistics.getSucceeded());
+        assertEquals(1, statistics.getFailed());
+        assertEquals(3, statistics.getCodes());
+
+        // the library stack is left untouched
+        assertEquals(LIBRARY_ID.getId(), context.getCurrentLibrary().getIdentifier().getId());
+    }
+
+    @Test
+    public void testPrefetchOnContextCreation() {
+        createContext(true);
+
+        assertEquals(4, terminologyProvider.expanded.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreadCount() {
+        new TerminologyPrefetcher(0);
+    }
+
+    private Context createContext(boolean prefetchTerminology) {
+        CqlContextFactory factory = new CqlContextFactory();
+        factory.setCacheContexts(false);
+        factory.setPrefetchTerminology(prefetchTerminology);
+
+        return factory.createContext(libraryProvider, LIBRARY_ID, terminologyProvider, mock(CqlDataProvider.class),
+                null, null, null, CqlDebug.NONE);
+    }
+
+    private static class RecordingTerminologyProvider implements CqlTerminologyProvider {
+        private final ConcurrentHashMap<String, Integer> expanded = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            expanded.merge(CachingTerminologyProvider.getCacheKey(valueSet), 1, Integer::sum);
+            if (valueSet.getId().equals("urn:oid:9.9.9")) {
+                throw new IllegalArgumentException("Could not resolve value set " + valueSet.getId());
+            }
+            return Collections.singletonList(new Code().withCode("123").withSystem("http://snomed.info/sct"));
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -34,9 +34,13 @@ import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
+import com.ibm.cohort.cql.cache.RetrievePlan;
 import com.ibm.cohort.cql.cdm.CDMConstants;
 import com.ibm.cohort.measure.cqfruler.CDMContext;
 import com.ibm.cohort.measure.cqfruler.MeasureEvaluation;
+import com.ibm.cohort.measure.cqfruler.MeasureEvaluationResults;
+import com.ibm.cohort.measure.cqfruler.PopulationSubjectSink;
+import com.ibm.cohort.measure.evidence.DeferredDefineResults;
 import com.ibm.cohort.measure.evidence.MeasureEvidenceHelper;
 import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions;
 import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions.DefineReturnOptions;
@@ -110,6 +114,14 @@ public class CDMMeasureEvaluation {
 		evaluation = new MeasureEvaluation(provider, measurementPeriod);
 	}
 
+	/**
+	 * @param prefetchPlan retrieves to prefetch for each patient or null to not
+	 *                     prefetch (see {@link MeasureEvaluation#setPrefetchPlan(RetrievePlan)})
+	 */
+	public void setPrefetchPlan(RetrievePlan prefetchPlan) {
+		evaluation.setPrefetchPlan(prefetchPlan);
+	}
+
 	/**
 	 * Evaluate a CDM Patient Quality Measure
 	 * 
@@ -139,6 +151,81 @@ public class CDMMeasureEvaluation {
 				throw new IllegalStateException("Unsupported measure report type requested: " + type);
 		}
 
+		return completeReport(measure, context, report, evidenceOptions, parameterMap);
+	}
+
+	/**
+	 * Evaluate a CDM Patient Quality Measure for one part of a patient list. The
+	 * results for each part are combined into a single report by
+	 * {@link #evaluatePatientListMeasure(Measure, Context, List, MeasureEvidenceOptions, Map)}.
+	 * Parts that are evaluated concurrently must each use their own context.
+	 *
+	 * @param measure         CDM Patient Quality Measure
+	 * @param context         CQL Engine Execution Context pre-configured for use in
+	 *                        measure evaluation
+	 * @param patientIds      Patient IDs in this part of the list
+	 * @param evidenceOptions MeasureEvidenceOptions to indicate whether or not to return evaluated resources
+	 * @return population results for the patients in this part of the list
+	 */
+	public MeasureEvaluationResults evaluatePatientListPartition(Measure measure, Context context, List<String> patientIds, MeasureEvidenceOptions evidenceOptions) {
+		context.setExpressionCaching(true);
+
+		boolean includeEvaluatedResources = (evidenceOptions != null) ? evidenceOptions.isIncludeEvaluatedResources() : false;
+		return evaluation.evaluatePatientListPartition(measure, context, patientIds, includeEvaluatedResources);
+	}
+
+	/**
+	 * Combine the results for each part of a patient list into a SUBJECTLIST
+	 * report.
+	 *
+	 * @param measure         CDM Patient Quality Measure
+	 * @param context         Context that evaluated the last patient of the list. Care
+	 *                        gaps, define evidence, and parameter values are taken
+	 *                        from this context, matching a single context evaluation.
+	 * @param partitions      Results for each part of the list in patient list order
+	 * @param evidenceOptions MeasureEvidenceOptions to indicate whether or not to return evaluated resources and define level results
+	 * @param parameterMap    Map of parameter names to Parameter objects
+	 * @return MeasureReport with population components filled out.
+	 */
+	public MeasureReport evaluatePatientListMeasure(Measure measure, Context context, List<MeasureEvaluationResults> partitions, MeasureEvidenceOptions evidenceOptions, Map<String, Parameter> parameterMap) {
+		return evaluatePatientListMeasure(measure, context, partitions, evidenceOptions, parameterMap, MeasureReport.MeasureReportType.SUBJECTLIST);
+	}
+
+	/**
+	 * Combine the results for each part of a patient list into a SUBJECTLIST or
+	 * SUMMARY report.
+	 *
+	 * @param measure         CDM Patient Quality Measure
+	 * @param context         Context that evaluated the last patient of the list
+	 * @param partitions      Results for each part of the list in patient list order
+	 * @param evidenceOptions MeasureEvidenceOptions to indicate whether or not to return define level results
+	 * @param parameterMap    Map of parameter names to Parameter objects
+	 * @param type            Type of report to be generated
+	 * @return MeasureReport with population components filled out.
+	 */
+	public MeasureReport evaluatePatientListMeasure(Measure measure, Context context, List<MeasureEvaluationResults> partitions, MeasureEvidenceOptions evidenceOptions, Map<String, Parameter> parameterMap, MeasureReport.MeasureReportType type) {
+		MeasureReport report = evaluation.buildPatientListReport(measure, partitions, type);
+		return completeReport(measure, context, report, evidenceOptions, parameterMap);
+	}
+
+	/**
+	 * Evaluate a CDM Patient Quality Measure for one part of a patient list,
+	 * keeping only population counts. See
+	 * {@link MeasureEvaluation#evaluateSummaryPartition(Measure, Context, Iterable, PopulationSubjectSink)}.
+	 *
+	 * @param measure     CDM Patient Quality Measure
+	 * @param context     CQL Engine Execution Context pre-configured for use in
+	 *                    measure evaluation
+	 * @param patientIds  Patient IDs in this part of the list
+	 * @param subjectSink receives the members of each population, may be null
+	 * @return population counts for the patients in this part of the list
+	 */
+	public MeasureEvaluationResults evaluateSummaryPartition(Measure measure, Context context, Iterable<String> patientIds, PopulationSubjectSink subjectSink) {
+		context.setExpressionCaching(true);
+		return evaluation.evaluateSummaryPartition(measure, context, patientIds, subjectSink);
+	}
+
+	private MeasureReport completeReport(Measure measure, Context context, MeasureReport report, MeasureEvidenceOptions evidenceOptions, Map<String, Parameter> parameterMap) {
 		setReportMeasureToMeasureId(report, measure);
 
 		MeasureScoring scoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
@@ -177,7 +264,11 @@ public class CDMMeasureEvaluation {
 			
 			// Grab the define results from the expression cache
 			MeasureEvidenceOptions.DefineReturnOptions defineReturnOptions = (evidenceOptions != null ) ? evidenceOptions.getDefineReturnOption() : MeasureEvidenceOptions.DefineReturnOptions.NONE;
-			addDefineEvaluationToReport(report, defineContext, defineReturnOptions);
+			if (evidenceOptions != null && evidenceOptions.isStreamDefineResults()) {
+				addDeferredDefineEvaluationToReport(report, defineContext, defineReturnOptions);
+			} else {
+				addDefineEvaluationToReport(report, defineContext, defineReturnOptions);
+			}
 		}
 
 		List<Extension> parameterExtensions = getParameterExtensions(measure, context, parameterMap);
@@ -196,32 +287,30 @@ public class CDMMeasureEvaluation {
 				
 				List<Type> values = MeasureEvidenceHelper.getFhirTypes(defineResult.getValue());
 				
-				if (shouldAddDefineResult(defineOption, values)) {
-					
-					Extension evidence = new Extension();
-					evidence.setUrl(CDMConstants.EVIDENCE_URL);
-					
-					StringType key = new StringType(MeasureEvidenceHelper.createEvidenceKey(libraryCache.getKey(), defineResult.getKey()));
-					
-					Extension textExtension = new Extension();
-					textExtension.setUrl(CDMConstants.EVIDENCE_TEXT_URL);
-					textExtension.setValue(key);
-					
-					evidence.addExtension(textExtension);
-					
-					for(Type value : values) {
-						Extension valueExtension = new Extension();
-						valueExtension.setUrl(CDMConstants.EVIDENCE_VALUE_URL);
-						valueExtension.setValue(value);
-						evidence.addExtension(valueExtension);
-					}
-					
-					report.addExtension(evidence);
+				if (MeasureEvidenceHelper.shouldAddDefineResult(defineOption, values)) {
+					report.addExtension(MeasureEvidenceHelper.createEvidenceExtension(libraryCache.getKey(), defineResult.getKey(), values));
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Keep the define results in the report without converting them to
+	 * extensions. {@link com.ibm.cohort.measure.evidence.MeasureReportEvidenceWriter} converts and writes them
+	 * one at a time when the report is serialized.
+	 *
+	 * @param report        MeasureReport to add the deferred results to
+	 * @param defineContext context holding the define results
+	 * @param defineOption  which define results are returned
+	 */
+	protected static void addDeferredDefineEvaluationToReport(MeasureReport report, CDMContext defineContext, DefineReturnOptions defineOption) {
+		if(DefineReturnOptions.NONE == defineOption) {
+			return;
+		}
+
+		report.addExtension(new DeferredDefineResults(defineContext.getEntriesInCache(), defineOption).toPlaceholder());
+	}
+	
 	protected static List<Extension> getParameterExtensions(Measure measure, Context context, Map<String, Parameter> parameterMap) {
 		Set<String> parameterNames = new HashSet<>();
 		
@@ -306,21 +395,6 @@ public class CDMMeasureEvaluation {
 		}
 	}
 
-	private static boolean shouldAddDefineResult(DefineReturnOptions defineOption, List<Type> values) {
-		if(!values.isEmpty()) {
-			if(DefineReturnOptions.ALL == defineOption) {
-				return true;
-			}
-			else if(DefineReturnOptions.BOOLEAN == defineOption
-					&& values.size() == 1
-					&& values.get(0) instanceof BooleanType) {
-				return true;
-			}
-		}
-		
-		return false;
-	}
-	
 	protected static void addBooleanDefineEvaluationToReport(MeasureReport report, CDMContext defineContext) {
 		for(Entry<VersionedIdentifier, Map<String, Object>> libraryCache : defineContext.getEntriesInCache()) {
 			for(Entry<String, Object> defineResult : libraryCache.getValue().entrySet()) {
@@ -5,31 +5,66 @@
  */
 package com.ibm.cohort.measure;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import com.ibm.cohort.cql.cache.DefaultRetrieveCacheContext;
+import com.ibm.cohort.cql.cache.RetrieveCacheContext;
 import com.ibm.cohort.cql.data.CqlDataProvider;
 import com.ibm.cohort.cql.fhir.resolver.FhirResourceResolver;
+import com.ibm.cohort.cql.helpers.DaemonExecutors;
 import com.ibm.cohort.cql.hapi.R4LibraryDependencyGatherer;
+import com.ibm.cohort.cql.hapi.R4TranslatingLibraryLoader;
+import com.ibm.cohort.cql.library.CachingLibraryLoader;
+import com.ibm.cohort.cql.translation.CqlToElmTranslator;
+import com.ibm.cohort.measure.cqfruler.CDMContext;
+import com.ibm.cohort.measure.cqfruler.MeasureEvaluationResults;
+import com.ibm.cohort.measure.cqfruler.PopulationSubjectSink;
+import com.ibm.cohort.measure.cqfruler.SharedExpressionCache;
 import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions;
 import com.ibm.cohort.measure.seed.IMeasureEvaluationSeed;
+import com.ibm.cohort.measure.seed.MeasureEvaluationSeedCache;
 import com.ibm.cohort.measure.seed.MeasureEvaluationSeeder;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.ibm.cohort.cql.evaluation.parameters.Parameter;
 
 /**
  * Provide an interface for doing quality measure evaluation against a FHIR R4
  * server.
+ *
+ * <p>Loaded libraries and prepared measure seeds are cached for the lifetime
+ * of the evaluator, so a single instance should be reused when evaluating
+ * many patients. Instances are not thread-safe, but the measures for a
+ * single patient and the patients of a patient list can be evaluated in
+ * parallel (see {@link #setMeasureThreads(int)}).
  */
 public class MeasureEvaluator {
 
+	private static final Logger LOG = LoggerFactory.getLogger(MeasureEvaluator.class);
+
+	public static final boolean DEFAULT_CACHE_SEEDS = true;
+	public static final int DEFAULT_MEASURE_THREADS = 1;
+	public static final boolean DEFAULT_SHARE_EXPRESSION_RESULTS = true;
+
+	private static final String PRODUCT_LINE = "ProductLine";
+
 	private final FhirResourceResolver<Measure> measureResolver;
 	private final FhirResourceResolver<Library> libraryResolver;
 	private final R4LibraryDependencyGatherer libraryDependencyGatherer;
@@ -37,6 +72,20 @@ public class MeasureEvaluator {
 	private final TerminologyProvider terminologyProvider;
 	private final Map<String, CqlDataProvider> dataProviders;
 	private MeasurementPeriodStrategy measurementPeriodStrategy;
+	private boolean prefetchTerminology;
+	private boolean fuseRetrieves;
+	private boolean prefetchRetrieves;
+	private boolean projectElements;
+	private boolean pushDateRanges;
+	private boolean cacheSeeds = DEFAULT_CACHE_SEEDS;
+	private int measureThreads = DEFAULT_MEASURE_THREADS;
+	private boolean shareExpressionResults = DEFAULT_SHARE_EXPRESSION_RESULTS;
+	private ExecutorService measureExecutor;
+	private PartitionDataProviderFactory partitionDataProviderFactory;
+
+	private final LibraryLoader libraryLoader;
+	private LibraryLoader dateRangeLibraryLoader;
+	private MeasureEvaluationSeedCache seedCache = new MeasureEvaluationSeedCache();
 
 	public MeasureEvaluator(
 			FhirResourceResolver<Measure> measureResolver,
@@ -44,18 +93,230 @@ public class MeasureEvaluator {
 			R4LibraryDependencyGatherer libraryDependencyGatherer,
 			TerminologyProvider terminologyProvider,
 			Map<String, CqlDataProvider> dataProviders
+	) {
+		this(measureResolver, libraryResolver, libraryDependencyGatherer, terminologyProvider, dataProviders,
+				createLibraryLoader(libraryResolver));
+	}
+
+	/**
+	 * @param libraryLoader loads the ELM for the libraries resolved by
+	 *                      <code>libraryResolver</code>. A caching loader can be
+	 *                      shared by evaluators that use the same resolvers so
+	 *                      that CQL is only translated once.
+	 */
+	public MeasureEvaluator(
+			FhirResourceResolver<Measure> measureResolver,
+			FhirResourceResolver<Library> libraryResolver,
+			R4LibraryDependencyGatherer libraryDependencyGatherer,
+			TerminologyProvider terminologyProvider,
+			Map<String, CqlDataProvider> dataProviders,
+			LibraryLoader libraryLoader
 	) {
 		this.measureResolver = measureResolver;
 		this.libraryResolver = libraryResolver;
 		this.libraryDependencyGatherer = libraryDependencyGatherer;
 		this.terminologyProvider = terminologyProvider;
 		this.dataProviders = dataProviders;
+		this.libraryLoader = libraryLoader;
+	}
+
+	public static CachingLibraryLoader createLibraryLoader(FhirResourceResolver<Library> libraryResolver) {
+		return new CachingLibraryLoader(new R4TranslatingLibraryLoader(libraryResolver, new CqlToElmTranslator()));
 	}
 
 	public void setMeasurementPeriodStrategy(MeasurementPeriodStrategy strategy) {
 		this.measurementPeriodStrategy = strategy;
 	}
 
+	/**
+	 * Controls whether all ValueSets referenced by the measure libraries are
+	 * expanded in parallel before evaluation starts. This is only useful when
+	 * the terminology provider caches expansions.
+	 *
+	 * @param prefetchTerminology true to enable terminology prefetch
+	 */
+	public void setPrefetchTerminology(boolean prefetchTerminology) {
+		this.prefetchTerminology = prefetchTerminology;
+	}
+
+	public boolean isPrefetchTerminology() {
+		return prefetchTerminology;
+	}
+
+	/**
+	 * Controls whether retrieves of the same data type made by the measure
+	 * libraries for a patient are combined into one call to the data source.
+	 * This only has an effect when the data provider caches retrieves.
+	 *
+	 * @param fuseRetrieves true to combine retrieves
+	 */
+	public void setFuseRetrieves(boolean fuseRetrieves) {
+		this.fuseRetrieves = fuseRetrieves;
+	}
+
+	public boolean isFuseRetrieves() {
+		return fuseRetrieves;
+	}
+
+	/**
+	 * Controls whether the retrieves that the measure libraries make for a
+	 * patient are made before the patient is evaluated, with one request to
+	 * the data source when the data provider supports it. When a list of
+	 * patients is evaluated, the retrieves of the next patient are made while
+	 * the current one is evaluated. This only has an effect when the data
+	 * provider caches retrieves.
+	 *
+	 * @param prefetchRetrieves true to prefetch retrieves
+	 */
+	public void setPrefetchRetrieves(boolean prefetchRetrieves) {
+		this.prefetchRetrieves = prefetchRetrieves;
+	}
+
+	public boolean isPrefetchRetrieves() {
+		return prefetchRetrieves;
+	}
+
+	/**
+	 * Controls whether only the elements of each resource that the measure
+	 * libraries read are requested from the data source, when the data
+	 * provider supports it. Evaluated resources then hold only those
+	 * elements.
+	 *
+	 * @param projectElements true to request only the elements that are read
+	 */
+	public void setProjectElements(boolean projectElements) {
+		this.projectElements = projectElements;
+	}
+
+	public boolean isProjectElements() {
+		return projectElements;
+	}
+
+	/**
+	 * Controls whether queries that filter a retrieve by a date element being
+	 * during a fixed range, such as the measurement period, give that range
+	 * to the data provider so that it can return only the resources in the
+	 * range. The queries still apply the filter themselves. The date ranges
+	 * are added to libraries loaded by this evaluator alone, so a library
+	 * loader shared with other evaluators is not used for them.
+	 *
+	 * @param pushDateRanges true to give date ranges to the data provider
+	 */
+	public void setPushDateRanges(boolean pushDateRanges) {
+		if (this.pushDateRanges != pushDateRanges) {
+			// Cached seeds hold libraries loaded for the previous setting
+			seedCache.clear();
+		}
+		this.pushDateRanges = pushDateRanges;
+	}
+
+	public boolean isPushDateRanges() {
+		return pushDateRanges;
+	}
+
+	/**
+	 * Controls whether the library graph, default parameters, and context
+	 * prepared for a measure are reused by later evaluations of the same
+	 * measure with the same measurement period and parameters. When
+	 * enabled, only the per-patient state of the context is reset between
+	 * evaluations.
+	 *
+	 * @param cacheSeeds true to enable seed caching
+	 */
+	public void setCacheSeeds(boolean cacheSeeds) {
+		this.cacheSeeds = cacheSeeds;
+		if (!cacheSeeds) {
+			seedCache.clear();
+		}
+	}
+
+	public boolean isCacheSeeds() {
+		return cacheSeeds;
+	}
+
+	/**
+	 * Limits the number of seeds kept when seed caching is enabled. The
+	 * least recently used seed is discarded when the limit is reached.
+	 * Seeds that are already cached are discarded.
+	 *
+	 * @param maxCachedSeeds maximum number of cached seeds
+	 */
+	public void setMaxCachedSeeds(int maxCachedSeeds) {
+		this.seedCache = new MeasureEvaluationSeedCache(maxCachedSeeds);
+	}
+
+	public int getMaxCachedSeeds() {
+		return seedCache.getMaxEntries();
+	}
+
+	/**
+	 * Controls whether the results of defines in libraries included by several
+	 * measures are shared when the measures are evaluated for the same patient
+	 * by {@link #evaluatePatientMeasures(String, List, MeasureEvidenceOptions)}.
+	 * Results are only shared between measures that set the same parameter
+	 * values. Sharing is skipped when evaluated resources are requested because
+	 * a shared result does not record the resources that produced it.
+	 *
+	 * @param shareExpressionResults true to share included library results
+	 */
+	public void setShareExpressionResults(boolean shareExpressionResults) {
+		this.shareExpressionResults = shareExpressionResults;
+	}
+
+	public boolean isShareExpressionResults() {
+		return shareExpressionResults;
+	}
+
+	/**
+	 * Controls how many threads are used to evaluate measures. A patient's
+	 * measures are evaluated at the same time by
+	 * {@link #evaluatePatientMeasures(String, List, MeasureEvidenceOptions)}.
+	 * Measures share the data providers, so when a retrieve cache is used every
+	 * search for the patient is only issued once no matter how many measures
+	 * need it. MeasureReports are always returned in the order of the provided
+	 * measure contexts. When a {@link PartitionDataProviderFactory} is set,
+	 * patient-list measures are split into one contiguous part per thread, each
+	 * evaluated with its own context and data providers, and the population
+	 * results are merged in patient list order. The data and terminology
+	 * providers must be safe for use by multiple threads when more than one
+	 * thread is used.
+	 *
+	 * @param measureThreads maximum number of measures evaluated at the same time.
+	 *                       A value of one evaluates measures on the calling thread.
+	 */
+	public void setMeasureThreads(int measureThreads) {
+		if (measureThreads < 1) {
+			throw new IllegalArgumentException("measureThreads must be greater than zero");
+		}
+		if (measureThreads != this.measureThreads && measureExecutor != null) {
+			measureExecutor.shutdown();
+			measureExecutor = null;
+		}
+		this.measureThreads = measureThreads;
+	}
+
+	public int getMeasureThreads() {
+		return measureThreads;
+	}
+
+	/**
+	 * Set the factory of the data providers used by each part of a patient list
+	 * that is evaluated in parallel. Patient lists are only split when a factory
+	 * is set, because data providers with a retrieve cache only hold the
+	 * retrieves of one patient at a time and would be flushed by every part.
+	 *
+	 * @param partitionDataProviderFactory creates the data providers of a part,
+	 *                                     or null to evaluate patient lists on
+	 *                                     the calling thread
+	 */
+	public void setPartitionDataProviderFactory(PartitionDataProviderFactory partitionDataProviderFactory) {
+		this.partitionDataProviderFactory = partitionDataProviderFactory;
+	}
+
+	public PartitionDataProviderFactory getPartitionDataProviderFactory() {
+		return partitionDataProviderFactory;
+	}
+
 	public MeasurementPeriodStrategy getMeasurementPeriodStrategy() {
 		if (this.measurementPeriodStrategy == null) {
 			this.measurementPeriodStrategy = new DefaultMeasurementPeriodStrategy();
@@ -72,15 +333,119 @@ public class MeasureEvaluator {
 	 * @return List of Measure Reports
 	 */
 	public List<MeasureReport> evaluatePatientMeasures(String patientId, List<MeasureContext> measureContexts, MeasureEvidenceOptions evidenceOptions) {
+		boolean includeEvaluatedResources = evidenceOptions != null && evidenceOptions.isIncludeEvaluatedResources();
+		SharedExpressionCache sharedExpressionCache = shareExpressionResults && !includeEvaluatedResources && measureContexts.size() > 1
+				? new SharedExpressionCache()
+				: null;
+
+		if (measureThreads > 1 && measureContexts.size() > 1) {
+			return evaluatePatientMeasuresInParallel(patientId, measureContexts, evidenceOptions, sharedExpressionCache);
+		}
+
 		List<MeasureReport> measureReports = new ArrayList<>();
 		MeasureReport measureReport;
 		for (MeasureContext measureContext: measureContexts) {
-			measureReport = evaluatePatientMeasure(patientId, measureContext, evidenceOptions);
+			if (sharedExpressionCache != null) {
+				measureReport = evaluatePatientMeasure(patientId, measureContext, evidenceOptions, sharedExpressionCache);
+			} else {
+				measureReport = evaluatePatientMeasure(patientId, measureContext, evidenceOptions);
+			}
 			measureReports.add(measureReport);
 		}
 		return measureReports;
 	}
 	
+	private List<MeasureReport> evaluatePatientMeasuresInParallel(String patientId, List<MeasureContext> measureContexts, MeasureEvidenceOptions evidenceOptions,
+			SharedExpressionCache sharedExpressionCache) {
+		// Measures are resolved and seeded on the calling thread so that only the
+		// evaluations themselves run concurrently.
+		List<Callable<MeasureReport>> evaluations = new ArrayList<>(measureContexts.size());
+		Set<IMeasureEvaluationSeed> usedSeeds = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (MeasureContext measureContext : measureContexts) {
+			if (measureContext.getMeasureId() == null && measureContext.getIdentifier() == null) {
+				evaluations.add(() -> null);
+				continue;
+			}
+
+			Measure measure = MeasureHelper.loadMeasure(measureContext, measureResolver);
+			Map<String, Parameter> parameters = measureContext.getParameters();
+			Pair<String, String> period = getMeasurementPeriodStrategy().getMeasurementPeriod(measure, parameters);
+
+			IMeasureEvaluationSeed seed = createSeed(measure, period.getLeft(), period.getRight(), parameters);
+			// A seed context can only be used by one evaluation at a time, so a
+			// measure that is requested twice gets a second, uncached seed.
+			if (!usedSeeds.add(seed)) {
+				seed = createSeeder().create(measure, period.getLeft(), period.getRight(), PRODUCT_LINE, parameters);
+			}
+
+			IMeasureEvaluationSeed evaluationSeed = seed;
+			evaluations.add(() -> evaluateSharedPatientMeasure(measure, evaluationSeed, patientId, parameters, evidenceOptions, sharedExpressionCache));
+		}
+
+		return invokeAll(evaluations);
+	}
+
+	private MeasureReport evaluatePatientMeasure(String patientId, MeasureContext measureContext, MeasureEvidenceOptions evidenceOptions,
+			SharedExpressionCache sharedExpressionCache) {
+		if (measureContext.getMeasureId() == null && measureContext.getIdentifier() == null) {
+			return null;
+		}
+
+		Measure measure = MeasureHelper.loadMeasure(measureContext, measureResolver);
+		Map<String, Parameter> parameters = measureContext.getParameters();
+		Pair<String, String> period = getMeasurementPeriodStrategy().getMeasurementPeriod(measure, parameters);
+
+		IMeasureEvaluationSeed seed = createSeed(measure, period.getLeft(), period.getRight(), parameters);
+		return evaluateSharedPatientMeasure(measure, seed, patientId, parameters, evidenceOptions, sharedExpressionCache);
+	}
+
+	private MeasureReport evaluateSharedPatientMeasure(Measure measure, IMeasureEvaluationSeed seed, String patientId,
+			Map<String, Parameter> parameters, MeasureEvidenceOptions evidenceOptions, SharedExpressionCache sharedExpressionCache) {
+		CDMContext context = sharedExpressionCache != null && seed.getContext() instanceof CDMContext
+				? (CDMContext) seed.getContext()
+				: null;
+		if (context == null) {
+			return evaluatePatientMeasure(measure, seed, Collections.singletonList(patientId), parameters, evidenceOptions, MeasureReport.MeasureReportType.INDIVIDUAL);
+		}
+
+		// Cached seeds outlive this evaluation, so the shared cache is only
+		// attached while the patient is evaluated.
+		context.setSharedExpressionCache(sharedExpressionCache);
+		try {
+			return evaluatePatientMeasure(measure, seed, Collections.singletonList(patientId), parameters, evidenceOptions, MeasureReport.MeasureReportType.INDIVIDUAL);
+		} finally {
+			context.setSharedExpressionCache(null);
+		}
+	}
+
+	private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<>(tasks.size());
+		try {
+			for (Future<T> future : getMeasureExecutor().invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException("Measure evaluation failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while evaluating measures", e);
+		}
+		return results;
+	}
+
+	private synchronized ExecutorService getMeasureExecutor() {
+		if (measureExecutor == null) {
+			measureExecutor = DaemonExecutors.newFixedThreadPool("measure-evaluation", measureThreads);
+		}
+		return measureExecutor;
+	}
+
 	/**
 	 * Evaluates measures for a given patient
 	 * 
@@ -152,13 +517,8 @@ public class MeasureEvaluator {
 	 */
 	public MeasureReport evaluatePatientMeasure(Measure measure, String patientId, String periodStart, String periodEnd,
 			Map<String, Parameter> parameters, MeasureEvidenceOptions evidenceOptions) {
-		MeasureEvaluationSeeder seeder = new MeasureEvaluationSeeder(terminologyProvider, dataProviders, libraryDependencyGatherer, libraryResolver);
-		seeder.disableDebugLogging();
-
-		IMeasureEvaluationSeed seed = seeder.create(measure, periodStart, periodEnd, "ProductLine", parameters);
-
-		CDMMeasureEvaluation evaluation = new CDMMeasureEvaluation(seed.getDataProvider(), seed.getMeasurementPeriod());
-		return evaluation.evaluatePatientMeasure(measure, seed.getContext(), Collections.singletonList(patientId), evidenceOptions, parameters, MeasureReport.MeasureReportType.INDIVIDUAL);
+		IMeasureEvaluationSeed seed = createSeed(measure, periodStart, periodEnd, parameters);
+		return evaluatePatientMeasure(measure, seed, Collections.singletonList(patientId), parameters, evidenceOptions, MeasureReport.MeasureReportType.INDIVIDUAL);
 	}
 
 	public MeasureReport evaluatePatientListMeasure(
@@ -175,14 +535,191 @@ public class MeasureEvaluator {
 			Measure measure,
 			Map<String, Parameter> parameters,
 			MeasureEvidenceOptions evidenceOptions) {
-		MeasureEvaluationSeeder seeder = new MeasureEvaluationSeeder(terminologyProvider, dataProviders, libraryDependencyGatherer, libraryResolver);
-		seeder.disableDebugLogging();
+		Pair<String, String> period = getMeasurementPeriodStrategy().getMeasurementPeriod(measure, parameters);
+
+		IMeasureEvaluationSeed seed = createSeed(measure, period.getLeft(), period.getRight(), parameters);
+		if (isPartitioned(patientIds)) {
+			return evaluatePatientListMeasureInParallel(patientIds, measure, parameters, evidenceOptions, seed, period, MeasureReport.MeasureReportType.SUBJECTLIST, null);
+		}
+		return evaluatePatientMeasure(measure, seed, patientIds, parameters, evidenceOptions, MeasureReport.MeasureReportType.SUBJECTLIST);
+	}
 
+	public MeasureReport evaluatePatientListSummaryMeasure(
+			Iterable<String> patientIds,
+			MeasureContext measureContext,
+			MeasureEvidenceOptions evidenceOptions,
+			PopulationSubjectSink subjectSink) {
+		Measure measure = MeasureHelper.loadMeasure(measureContext, measureResolver);
+
+		return evaluatePatientListSummaryMeasure(patientIds, measure, measureContext.getParameters(), evidenceOptions, subjectSink);
+	}
+
+	/**
+	 * Evaluate a measure for a list of patients and produce a SUMMARY report
+	 * that only contains population counts. Patients are retrieved and
+	 * evaluated one at a time and population members are not kept, so memory
+	 * use stays the same regardless of the size of the population. Evaluated
+	 * resources are not included in summary reports.
+	 *
+	 * @param patientIds      Patients to evaluate. Lists are split across threads
+	 *                        when more than one measure thread and a
+	 *                        {@link PartitionDataProviderFactory} are configured.
+	 * @param measure         FHIR Measure resource
+	 * @param parameters      override values for parameters defined in the CQL
+	 *                        libraries used to evaluate the measure
+	 * @param evidenceOptions Settings that control what evidence will be written
+	 *                        into the MeasureReport
+	 * @param subjectSink     Receives the members of each population instead of
+	 *                        the report listing them. May be null.
+	 * @return FHIR MeasureReport of type SUMMARY
+	 */
+	public MeasureReport evaluatePatientListSummaryMeasure(
+			Iterable<String> patientIds,
+			Measure measure,
+			Map<String, Parameter> parameters,
+			MeasureEvidenceOptions evidenceOptions,
+			PopulationSubjectSink subjectSink) {
 		Pair<String, String> period = getMeasurementPeriodStrategy().getMeasurementPeriod(measure, parameters);
 
-		IMeasureEvaluationSeed seed = seeder.create(measure, period.getLeft(), period.getRight(), "ProductLine", parameters);
+		IMeasureEvaluationSeed seed = createSeed(measure, period.getLeft(), period.getRight(), parameters);
+		if (patientIds instanceof List && isPartitioned((List<String>) patientIds)) {
+			return evaluatePatientListMeasureInParallel((List<String>) patientIds, measure, parameters, evidenceOptions, seed, period, MeasureReport.MeasureReportType.SUMMARY, subjectSink);
+		}
+
+		CDMMeasureEvaluation evaluation = createEvaluation(seed);
+		MeasureEvaluationResults results = evaluation.evaluateSummaryPartition(measure, seed.getContext(), patientIds, subjectSink);
+		return evaluation.evaluatePatientListMeasure(measure, seed.getContext(), Collections.singletonList(results), evidenceOptions, parameters, MeasureReport.MeasureReportType.SUMMARY);
+	}
+
+	private MeasureReport evaluatePatientListMeasureInParallel(
+			List<String> patientIds,
+			Measure measure,
+			Map<String, Parameter> parameters,
+			MeasureEvidenceOptions evidenceOptions,
+			IMeasureEvaluationSeed seed,
+			Pair<String, String> period,
+			MeasureReport.MeasureReportType type,
+			PopulationSubjectSink subjectSink) {
+		List<List<String>> partitions = partition(patientIds, measureThreads);
+
+		// Every partition is evaluated with its own context and data providers, so
+		// that the retrieve cache of one partition is not flushed by another
+		List<IMeasureEvaluationSeed> seeds = new ArrayList<>(partitions.size());
+		List<RetrieveCacheContext> retrieveCacheContexts = new ArrayList<>(partitions.size() - 1);
+		try {
+			seeds.add(seed);
+			while (seeds.size() < partitions.size()) {
+				RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext();
+				retrieveCacheContexts.add(retrieveCacheContext);
+				MeasureEvaluationSeeder seeder = createSeeder(partitionDataProviderFactory.create(retrieveCacheContext));
+				seeds.add(seeder.create(measure, period.getLeft(), period.getRight(), PRODUCT_LINE, parameters));
+			}
+
+			List<Callable<MeasureEvaluationResults>> evaluations = new ArrayList<>(partitions.size());
+			for (int i = 0; i < partitions.size(); i++) {
+				IMeasureEvaluationSeed partitionSeed = seeds.get(i);
+				List<String> partition = partitions.get(i);
+				evaluations.add(() -> evaluatePartition(partitionSeed, measure, partition, evidenceOptions, type, subjectSink));
+			}
+			List<MeasureEvaluationResults> results = invokeAll(evaluations);
+
+			// Care gaps and define evidence come from the context that evaluated the
+			// last patient, the same as when a single context evaluates the whole list.
+			int last = results.size() - 1;
+			while (last > 0 && results.get(last).getPatientCount() == 0) {
+				last--;
+			}
+			IMeasureEvaluationSeed lastSeed = seeds.get(last);
+			CDMMeasureEvaluation evaluation = new CDMMeasureEvaluation(lastSeed.getDataProvider(), lastSeed.getMeasurementPeriod());
+			return evaluation.evaluatePatientListMeasure(measure, lastSeed.getContext(), results, evidenceOptions, parameters, type);
+		} finally {
+			for (RetrieveCacheContext retrieveCacheContext : retrieveCacheContexts) {
+				try {
+					retrieveCacheContext.close();
+				} catch (IOException e) {
+					LOG.warn("Failed to close the retrieve cache of a patient list partition", e);
+				}
+			}
+		}
+	}
+
+	private boolean isPartitioned(List<String> patientIds) {
+		return measureThreads > 1 && patientIds.size() > 1 && partitionDataProviderFactory != null;
+	}
+
+	private static MeasureEvaluationResults evaluatePartition(IMeasureEvaluationSeed seed, Measure measure, List<String> patientIds,
+			MeasureEvidenceOptions evidenceOptions, MeasureReport.MeasureReportType type, PopulationSubjectSink subjectSink) {
+		CDMMeasureEvaluation evaluation = createEvaluation(seed);
+		if (type == MeasureReport.MeasureReportType.SUMMARY) {
+			return evaluation.evaluateSummaryPartition(measure, seed.getContext(), patientIds, subjectSink);
+		}
+		return evaluation.evaluatePatientListPartition(measure, seed.getContext(), patientIds, evidenceOptions);
+	}
+
+	// Split a list into at most the specified number of contiguous parts of nearly equal size
+	private static <T> List<List<T>> partition(List<T> list, int parts) {
+		int count = Math.min(parts, list.size());
+		List<List<T>> partitions = new ArrayList<>(count);
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = start + (list.size() - start) / (count - i);
+			partitions.add(list.subList(start, end));
+			start = end;
+		}
+		return partitions;
+	}
+
+	private MeasureReport evaluatePatientMeasure(Measure measure, IMeasureEvaluationSeed seed, List<String> patientIds,
+			Map<String, Parameter> parameters, MeasureEvidenceOptions evidenceOptions, MeasureReport.MeasureReportType type) {
+		CDMMeasureEvaluation evaluation = createEvaluation(seed);
+		return evaluation.evaluatePatientMeasure(measure, seed.getContext(), patientIds, evidenceOptions, parameters, type);
+	}
 
+	private static CDMMeasureEvaluation createEvaluation(IMeasureEvaluationSeed seed) {
 		CDMMeasureEvaluation evaluation = new CDMMeasureEvaluation(seed.getDataProvider(), seed.getMeasurementPeriod());
-		return evaluation.evaluatePatientMeasure(measure, seed.getContext(), patientIds, evidenceOptions, parameters, MeasureReport.MeasureReportType.SUBJECTLIST);
+		evaluation.setPrefetchPlan(seed.getRetrievePlan());
+		return evaluation;
+	}
+
+	private MeasureEvaluationSeeder createSeeder() {
+		return createSeeder(dataProviders);
+	}
+
+	private MeasureEvaluationSeeder createSeeder(Map<String, CqlDataProvider> dataProviders) {
+		MeasureEvaluationSeeder seeder = new MeasureEvaluationSeeder(terminologyProvider, dataProviders, libraryDependencyGatherer, libraryResolver,
+				pushDateRanges ? getDateRangeLibraryLoader() : libraryLoader);
+		seeder.disableDebugLogging();
+		if (prefetchTerminology) {
+			seeder.enableTerminologyPrefetch();
+		}
+		if (fuseRetrieves) {
+			seeder.enableRetrieveFusion();
+		}
+		if (prefetchRetrieves) {
+			seeder.enableRetrievePrefetch();
+		}
+		if (projectElements) {
+			seeder.enableElementProjection();
+		}
+		if (pushDateRanges) {
+			seeder.enableDateRangePushdown();
+		}
+		return seeder;
+	}
+
+	private synchronized LibraryLoader getDateRangeLibraryLoader() {
+		if (dateRangeLibraryLoader == null) {
+			dateRangeLibraryLoader = createLibraryLoader(libraryResolver);
+		}
+		return dateRangeLibraryLoader;
+	}
+
+	protected IMeasureEvaluationSeed createSeed(Measure measure, String periodStart, String periodEnd, Map<String, Parameter> parameters) {
+		MeasureEvaluationSeeder seeder = createSeeder();
+		if (cacheSeeds) {
+			return seedCache.getOrCreate(seeder, measure, periodStart, periodEnd, PRODUCT_LINE, parameters);
+		} else {
+			return seeder.create(measure, periodStart, periodEnd, PRODUCT_LINE, parameters);
+		}
 	}
 }
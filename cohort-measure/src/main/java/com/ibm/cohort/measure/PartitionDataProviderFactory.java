@@ -0,0 +1,30 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure;
+
+import java.util.Map;
+
+import com.ibm.cohort.cql.cache.RetrieveCacheContext;
+import com.ibm.cohort.cql.data.CqlDataProvider;
+
+/**
+ * Creates the data providers of one part of a patient list that
+ * {@link MeasureEvaluator} evaluates in parallel. Each part gets its own data
+ * providers so that retrieves cached for the patient of one part are not
+ * flushed by the patients of another.
+ */
+@FunctionalInterface
+public interface PartitionDataProviderFactory {
+
+	/**
+	 * @param retrieveCacheContext retrieve cache used only by the part. It is
+	 *                             closed once the patient list is evaluated.
+	 * @return data providers by model URL, the same as the ones provided to
+	 *         the {@link MeasureEvaluator}
+	 */
+	Map<String, CqlDataProvider> create(RetrieveCacheContext retrieveCacheContext);
+}
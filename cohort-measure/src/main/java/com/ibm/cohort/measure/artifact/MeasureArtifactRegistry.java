@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.artifact;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipInputStream;
+
+import com.ibm.cohort.cql.hapi.resolver.R4QualityMeasureResolverFactory;
+import com.ibm.cohort.cql.hapi.resolver.R4QualityMeasureResolvers;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Keeps parsed measure artifact packages (ZIP files of Measure and Library
+ * resources) keyed by the SHA-256 of their content, so a package that is sent
+ * many times is only parsed once and the libraries in it are only translated
+ * once. The least recently used packages are discarded when more than the
+ * maximum number of packages are registered or their combined size exceeds
+ * the byte limit. Package size is used as the measure of the memory a package
+ * holds.
+ *
+ * <p>Instances are safe for use by multiple threads.
+ */
+public class MeasureArtifactRegistry {
+
+	public static final int DEFAULT_MAX_ENTRIES = 50;
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final String[] SEARCH_PATHS = new String[] { "fhirResources", "fhirResources/libraries" };
+
+	private final FhirContext fhirContext;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final Map<String, MeasureArtifacts> artifacts = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	public MeasureArtifactRegistry(FhirContext fhirContext) {
+		this(fhirContext, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+
+	public MeasureArtifactRegistry(FhirContext fhirContext, int maxEntries, long maxBytes) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		this.fhirContext = fhirContext;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param handle content hash returned by {@link #register(byte[])}
+	 * @return the registered package or null if it is unknown or was evicted
+	 */
+	public synchronized MeasureArtifacts get(String handle) {
+		return artifacts.get(handle);
+	}
+
+	public MeasureArtifacts register(byte[] zipContent) throws IOException {
+		return register(zipContent, null);
+	}
+
+	/**
+	 * Register a package, parsing it only if a package with the same content
+	 * is not already registered.
+	 *
+	 * @param zipContent     ZIP file content
+	 * @param expectedHandle content hash supplied by the client or null
+	 * @return the registered package
+	 * @throws IllegalArgumentException if the content does not match
+	 *                                  <code>expectedHandle</code>
+	 * @throws IOException              if the content cannot be read
+	 */
+	public MeasureArtifacts register(byte[] zipContent, String expectedHandle) throws IOException {
+		String handle = computeHandle(zipContent);
+		if (expectedHandle != null && !expectedHandle.equalsIgnoreCase(handle)) {
+			throw new IllegalArgumentException(String.format("Measure artifact handle '%s' does not match the SHA-256 of the content '%s'", expectedHandle, handle));
+		}
+
+		MeasureArtifacts existing = get(handle);
+		if (existing != null) {
+			return existing;
+		}
+
+		// Parse outside the lock so that other packages are not held up
+		R4QualityMeasureResolverFactory resolverFactory = new R4QualityMeasureResolverFactory(fhirContext.newJsonParser());
+		R4QualityMeasureResolvers resolvers = resolverFactory.fromZipStream(new ZipInputStream(new ByteArrayInputStream(zipContent)), SEARCH_PATHS);
+		MeasureArtifacts parsed = new MeasureArtifacts(handle, zipContent.length, resolvers);
+
+		synchronized (this) {
+			existing = artifacts.get(handle);
+			if (existing != null) {
+				return existing;
+			}
+			artifacts.put(handle, parsed);
+			totalBytes += parsed.getSize();
+			evict();
+		}
+		return parsed;
+	}
+
+	public synchronized void remove(String handle) {
+		MeasureArtifacts removed = artifacts.remove(handle);
+		if (removed != null) {
+			totalBytes -= removed.getSize();
+		}
+	}
+
+	public synchronized int size() {
+		return artifacts.size();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @param content package content
+	 * @return lower case hex encoded SHA-256 of the content
+	 */
+	public static String computeHandle(byte[] content) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+
+		StringBuilder handle = new StringBuilder();
+		for (byte b : digest.digest(content)) {
+			handle.append(String.format("%02x", b));
+		}
+		return handle.toString();
+	}
+
+	private void evict() {
+		// The most recently registered package is never evicted
+		Iterator<MeasureArtifacts> iterator = artifacts.values().iterator();
+		while (artifacts.size() > 1 && (artifacts.size() > maxEntries || totalBytes > maxBytes)) {
+			MeasureArtifacts eldest = iterator.next();
+			iterator.remove();
+			totalBytes -= eldest.getSize();
+		}
+	}
+}
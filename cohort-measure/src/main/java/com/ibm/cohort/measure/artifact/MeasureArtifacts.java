@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.artifact;
+
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+
+import com.ibm.cohort.cql.data.CqlDataProvider;
+import com.ibm.cohort.cql.fhir.resolver.FhirResourceResolver;
+import com.ibm.cohort.cql.hapi.R4LibraryDependencyGatherer;
+import com.ibm.cohort.cql.hapi.resolver.R4QualityMeasureResolvers;
+import com.ibm.cohort.cql.library.CachingLibraryLoader;
+import com.ibm.cohort.measure.MeasureEvaluator;
+
+/**
+ * The parsed content of a measure artifact package together with the state
+ * that is derived from it while measures are evaluated: the library dependency
+ * closures and the translated ELM. Everything held here is safe to share
+ * between threads, so one instance can back the evaluators of many requests.
+ */
+public class MeasureArtifacts {
+
+	private final String handle;
+	private final long size;
+	private final R4QualityMeasureResolvers resolvers;
+	private final R4LibraryDependencyGatherer libraryDependencyGatherer;
+	private final CachingLibraryLoader libraryLoader;
+
+	/**
+	 * @param handle    content hash identifying the package
+	 * @param size      size of the package in bytes
+	 * @param resolvers resolvers for the resources in the package
+	 */
+	public MeasureArtifacts(String handle, long size, R4QualityMeasureResolvers resolvers) {
+		this.handle = handle;
+		this.size = size;
+		this.resolvers = resolvers;
+		this.libraryDependencyGatherer = new R4LibraryDependencyGatherer(resolvers.getLibraryResolver());
+		this.libraryLoader = MeasureEvaluator.createLibraryLoader(resolvers.getLibraryResolver());
+	}
+
+	public String getHandle() {
+		return handle;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public FhirResourceResolver<Measure> getMeasureResolver() {
+		return resolvers.getMeasureResolver();
+	}
+
+	public FhirResourceResolver<Library> getLibraryResolver() {
+		return resolvers.getLibraryResolver();
+	}
+
+	public R4LibraryDependencyGatherer getLibraryDependencyGatherer() {
+		return libraryDependencyGatherer;
+	}
+
+	public CachingLibraryLoader getLibraryLoader() {
+		return libraryLoader;
+	}
+
+	public MeasureEvaluator createEvaluator(TerminologyProvider terminologyProvider, Map<String, CqlDataProvider> dataProviders) {
+		return new MeasureEvaluator(
+				getMeasureResolver(),
+				getLibraryResolver(),
+				libraryDependencyGatherer,
+				terminologyProvider,
+				dataProviders,
+				libraryLoader
+		);
+	}
+}
@@ -12,9 +12,12 @@ import java.time.ZonedDateTime;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 
 import com.ibm.cohort.cql.data.CqlSystemDataProvider;
+import com.ibm.cohort.measure.cqfruler.SharedExpressionCache.ExpressionKey;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.opencds.cqf.cql.engine.execution.Context;
@@ -24,6 +27,10 @@ import org.opencds.cqf.cql.engine.execution.Context;
  * This class extends the base context with the purpose of removing the limit on the number of items stored in the expression cache.  
  * As this is expected to cleared between measure executions per patient, storing all of the define results shouldn't break the bank on memory.
  *
+ * When a {@link SharedExpressionCache} is set, results of defines in included libraries are also shared with the contexts
+ * of other measures evaluated for the same patient with the same parameter values. Shared results are computed with the
+ * evaluation date and time of the context that evaluated them first.
+ *
  */
 public class CDMContext extends Context {
 
@@ -31,6 +38,14 @@ public class CDMContext extends Context {
 		private static final long serialVersionUID = 2837966863351097165L;
 	};
     
+    private static final Object ABSENT = new Object();
+
+    private final VersionedIdentifier mainLibraryId;
+    private final Map<String, String> parameterValues = new TreeMap<>();
+    private String parameterFingerprint;
+    private String sharedContextValue;
+    private SharedExpressionCache sharedExpressionCache;
+
     private Map<String, Object> constructNoEvictLibraryExpressionHashMap() {
         return new LinkedHashMap<>(15, 0.9f, true);
     }
@@ -41,7 +56,19 @@ public class CDMContext extends Context {
             this.expressions.put(libraryId, constructNoEvictLibraryExpressionHashMap());
         }
 
-        return this.expressions.get(libraryId).containsKey(name);
+        if (this.expressions.get(libraryId).containsKey(name)) {
+            return true;
+        }
+
+        ExpressionKey key = getSharedExpressionKey(libraryId, name);
+        if (key != null) {
+            Object result = this.sharedExpressionCache.getOrDefault(key, ABSENT);
+            if (!ABSENT.equals(result)) {
+                this.expressions.get(libraryId).put(name, result);
+                return true;
+            }
+        }
+        return false;
     }
 	
 	@Override
@@ -51,6 +78,11 @@ public class CDMContext extends Context {
         }
 
         this.expressions.get(libraryId).put(name, result);
+
+        ExpressionKey key = getSharedExpressionKey(libraryId, name);
+        if (key != null) {
+            this.sharedExpressionCache.put(key, result);
+        }
     }
 
 	@Override
@@ -71,6 +103,52 @@ public class CDMContext extends Context {
 
 	public CDMContext(Library library, ZonedDateTime evaluationZonedDateTime) {
 		super(library, evaluationZonedDateTime, new CqlSystemDataProvider());
+		this.mainLibraryId = library.getIdentifier();
+	}
+
+	@Override
+	public void setContextValue(String context, Object contextValue) {
+		super.setContextValue(context, contextValue);
+		this.sharedContextValue = context + "/" + contextValue;
+	}
+
+	@Override
+	public void setParameter(String libraryName, String name, Object value) {
+		super.setParameter(libraryName, name, value);
+		this.parameterValues.put(libraryName != null ? libraryName + "." + name : name, String.valueOf(value));
+		this.parameterFingerprint = null;
+	}
+
+	/**
+	 * Share the results of defines in included libraries with other contexts
+	 * that use the same cache.
+	 *
+	 * @param sharedExpressionCache cache shared by the contexts of measures
+	 *                              evaluated for the same patient, or null to
+	 *                              stop sharing results
+	 */
+	public void setSharedExpressionCache(SharedExpressionCache sharedExpressionCache) {
+		this.sharedExpressionCache = sharedExpressionCache;
+	}
+
+	public SharedExpressionCache getSharedExpressionCache() {
+		return sharedExpressionCache;
+	}
+
+	private ExpressionKey getSharedExpressionKey(VersionedIdentifier libraryId, String name) {
+		if (this.sharedExpressionCache == null || this.sharedContextValue == null || isMainLibrary(libraryId)) {
+			return null;
+		}
+		if (this.parameterFingerprint == null) {
+			this.parameterFingerprint = this.parameterValues.toString();
+		}
+		return new ExpressionKey(this.sharedContextValue, libraryId, name, this.parameterFingerprint);
+	}
+
+	private boolean isMainLibrary(VersionedIdentifier libraryId) {
+		return this.mainLibraryId == null
+				|| (Objects.equals(this.mainLibraryId.getId(), libraryId.getId())
+					&& Objects.equals(this.mainLibraryId.getVersion(), libraryId.getVersion()));
 	}
 	
 	public Set<VersionedIdentifier> getLibrariesInCache() {
@@ -14,18 +14,24 @@
 package com.ibm.cohort.measure.cqfruler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
@@ -43,7 +49,13 @@ import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrievePrefetcher;
+import com.ibm.cohort.cql.data.BatchRetrieveProvider;
+import com.ibm.cohort.cql.evaluation.CqlContextFactory;
 import com.ibm.cohort.measure.builder.MeasureReportBuilder;
+import com.ibm.cohort.measure.cqfruler.MeasureEvaluationResults.GroupResults;
+import com.ibm.cohort.measure.cqfruler.MeasureEvaluationResults.PopulationResults;
 
 public class MeasureEvaluation {
 
@@ -51,14 +63,40 @@ public class MeasureEvaluation {
 
     public static final String PATIENT = "Patient";
 
+    /**
+     * Number of patients retrieved together when evaluating a summary report.
+     */
+    public static final int PATIENT_BATCH_SIZE = 100;
+
+    private static final List<MeasurePopulationType> REPORTED_POPULATIONS = Arrays.asList(
+            MeasurePopulationType.INITIALPOPULATION,
+            MeasurePopulationType.NUMERATOR,
+            MeasurePopulationType.NUMERATOREXCLUSION,
+            MeasurePopulationType.DENOMINATOR,
+            MeasurePopulationType.DENOMINATOREXCLUSION,
+            MeasurePopulationType.DENOMINATOREXCEPTION);
+
     private DataProvider provider;
     private Interval measurementPeriod;
+    private RetrievePlan prefetchPlan;
 
     public MeasureEvaluation(DataProvider provider, Interval measurementPeriod) {
         this.provider = provider;
         this.measurementPeriod = measurementPeriod;
     }
 
+    /**
+     * When a plan is set and the data provider is a {@link RetrievePrefetcher},
+     * the planned retrieves of each patient are made before the patient is
+     * evaluated and the retrieves of the next patient in a list are made in
+     * the background while the current one is evaluated.
+     *
+     * @param prefetchPlan retrieves to prefetch or null to not prefetch
+     */
+    public void setPrefetchPlan(RetrievePlan prefetchPlan) {
+        this.prefetchPlan = prefetchPlan;
+    }
+
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
     	return evaluatePatientMeasure(measure, context, patientId, false);
     }
@@ -91,13 +129,107 @@ public class MeasureEvaluation {
 	    return evaluate(measure, context, patients, MeasureReport.MeasureReportType.SUBJECTLIST, isSingle, includeEvaluatedResources);
     }
 
+    /**
+     * Evaluate one part of a patient list. The results for all parts are
+     * combined into a report by {@link #buildPatientListReport(Measure, List)}.
+     * Each part must be evaluated with its own context when parts are evaluated
+     * concurrently.
+     *
+     * @param measure                   FHIR Measure resource
+     * @param context                   CQL engine context for this part
+     * @param patientIds                Patient ids in this part of the list
+     * @param includeEvaluatedResources whether evaluated resources are collected
+     * @return population results for the patients in this part
+     */
+    public MeasureEvaluationResults evaluatePatientListPartition(Measure measure, Context context, List<String> patientIds, boolean includeEvaluatedResources) {
+        return evaluatePopulations(measure, context, toPatients(patientIds), MeasureReport.MeasureReportType.SUBJECTLIST, includeEvaluatedResources);
+    }
+
+    /**
+     * Build a patient-list report from the results of each part of the patient
+     * list.
+     *
+     * @param measure    FHIR Measure resource
+     * @param partitions Results for each part of the list in patient list order
+     * @return SUBJECTLIST MeasureReport
+     */
+    public MeasureReport buildPatientListReport(Measure measure, List<MeasureEvaluationResults> partitions) {
+        return buildPatientListReport(measure, partitions, MeasureReport.MeasureReportType.SUBJECTLIST);
+    }
+
+    /**
+     * Build a patient-list or summary report from the results of each part of
+     * the patient list.
+     *
+     * @param measure    FHIR Measure resource
+     * @param partitions Results for each part of the list in patient list order
+     * @param type       SUBJECTLIST or SUMMARY
+     * @return MeasureReport
+     */
+    public MeasureReport buildPatientListReport(Measure measure, List<MeasureEvaluationResults> partitions, MeasureReport.MeasureReportType type) {
+        logger.info("Generating {} report from {} partitions", type.toCode(), partitions.size());
+
+        MeasureEvaluationResults results = new MeasureEvaluationResults();
+        partitions.forEach(results::merge);
+        boolean isSingle = false;
+        return buildReport(measure, results, type, isSingle);
+    }
+
+    /**
+     * Evaluate one part of a patient list for a summary report. Patients are
+     * retrieved in batches of {@link #PATIENT_BATCH_SIZE} and evaluated one at
+     * a time. Only population counts and supplemental data counts are kept,
+     * so memory use does not depend on the number of patients. Evaluated
+     * resources are not collected. Population members can be sent to a
+     * subject sink instead of being listed in the report.
+     *
+     * @param measure     FHIR Measure resource
+     * @param context     CQL engine context for this part
+     * @param patientIds  Patient ids in this part of the list
+     * @param subjectSink receives the members of each population, may be null
+     * @return population counts for the patients in this part
+     */
+    public MeasureEvaluationResults evaluateSummaryPartition(Measure measure, Context context, Iterable<String> patientIds, PopulationSubjectSink subjectSink) {
+        MeasureReport.MeasureReportType type = subjectSink != null
+                ? MeasureReport.MeasureReportType.SUBJECTLIST
+                : MeasureReport.MeasureReportType.SUMMARY;
+
+        MeasureEvaluationResults results = new MeasureEvaluationResults();
+        List<String> batch = new ArrayList<>(PATIENT_BATCH_SIZE);
+        Iterator<String> iterator = patientIds.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            if (batch.size() == PATIENT_BATCH_SIZE || !iterator.hasNext()) {
+                for (Patient patient : prefetching(toPatients(batch))) {
+                    results.merge(evaluatePopulations(measure, context, Collections.singletonList(patient), type, false));
+                    results.summarize(subjectSink);
+                }
+                batch.clear();
+            }
+        }
+        return results;
+    }
+
+	/**
+	 * Retrieve the patients in a list with as few requests as the data provider
+	 * allows. A batching provider also keeps the patients for the Patient
+	 * retrieve made when each patient is evaluated.
+	 */
 	private List<Patient> toPatients(List<String> patientIds) {
-		List<Patient> patients = new ArrayList<>();
+		boolean batched = provider instanceof BatchRetrieveProvider;
+		Map<String, Object> resources = batched
+				? ((BatchRetrieveProvider) provider).retrieveByIds(PATIENT, patientIds)
+				: BatchRetrieveProvider.retrieveEach(provider, PATIENT, patientIds);
 
+		List<Patient> patients = new ArrayList<>();
 		for (String patientId : patientIds) {
-			Iterable<Object> patientRetrieve = provider.retrieve(PATIENT, "id", patientId, PATIENT, null, null, null, null, null, null, null, null);
-			if (patientRetrieve.iterator().hasNext()) {
-				Patient patient = (Patient) patientRetrieve.iterator().next();
+			Patient patient = (Patient) resources.get(patientId);
+			if (patient == null && batched) {
+				// Retrieved on its own so that a missing patient is reported as the provider reports it
+				Iterator<Object> patientRetrieve = provider.retrieve(PATIENT, "id", patientId, PATIENT, null, null, null, null, null, null, null, null).iterator();
+				patient = patientRetrieve.hasNext() ? (Patient) patientRetrieve.next() : null;
+			}
+			if (patient != null) {
 				patients.add(patient);
 			}
 		}
@@ -105,6 +237,43 @@ public class MeasureEvaluation {
 		return patients;
 	}
 
+	/**
+	 * Iterate a list of patients while the retrieves of the next patient are
+	 * prefetched. The retrieves of the first patient are made before it is
+	 * returned.
+	 */
+	private Iterable<Patient> prefetching(List<Patient> patients) {
+		if (prefetchPlan == null || !(provider instanceof RetrievePrefetcher)) {
+			return patients;
+		}
+		return () -> new Iterator<Patient>() {
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < patients.size();
+			}
+
+			@Override
+			public Patient next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (index == 0) {
+					prefetch(patients.get(0), null);
+				}
+				if (index + 1 < patients.size()) {
+					prefetch(patients.get(index + 1), CqlContextFactory.getRetrievePrefetchExecutor());
+				}
+				return patients.get(index++);
+			}
+		};
+	}
+
+	private void prefetch(Patient patient, Executor executor) {
+		((RetrievePrefetcher) provider).prefetch(prefetchPlan.toRequests(PATIENT, patient.getIdElement().getIdPart(), provider), executor);
+	}
+
 	@SuppressWarnings("unchecked")
     private Iterable<Resource> evaluateCriteria(Context context, Patient patient,
             Measure.MeasureGroupPopulationComponent pop) {
@@ -133,15 +302,15 @@ public class MeasureEvaluation {
     }
 
     protected boolean evaluatePopulationCriteria(Context context, Patient patient,
-            Measure.MeasureGroupPopulationComponent criteria, Map<String, Resource> population,
-            Map<String, Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
-            Map<String, Resource> exclusionPopulation, Map<String, Patient> exclusionPatients) {
+            Measure.MeasureGroupPopulationComponent criteria, PopulationResults<Resource> population,
+            PopulationResults<Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
+            PopulationResults<Resource> exclusionPopulation, PopulationResults<Patient> exclusionPatients) {
         
     	boolean inPopulation = false;
         if (criteria != null) {
             for (Resource resource : evaluateCriteria(context, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                population.add(resource.getIdElement().getIdPart(), resource);
             }
         }
 
@@ -150,17 +319,17 @@ public class MeasureEvaluation {
             if (exclusionCriteria != null) {
                 for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
+                    exclusionPopulation.add(resource.getIdElement().getIdPart(), resource);
                     population.remove(resource.getIdElement().getIdPart());
                 }
             }
         }
 
         if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+            populationPatients.add(patient.getIdElement().getIdPart(), patient);
         }
         if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+            exclusionPatients.add(patient.getIdElement().getIdPart(), patient);
         }
 
         return inPopulation;
@@ -168,8 +337,8 @@ public class MeasureEvaluation {
 
     private void addPopulationCriteriaReport(MeasureReport report,
             MeasureReport.MeasureReportGroupComponent reportGroup,
-            Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount,
-            Iterable<Patient> patientPopulation) {
+            Measure.MeasureGroupPopulationComponent populationCriteria, PopulationResults<Resource> population,
+            PopulationResults<Patient> patientPopulation) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setCode(populationCriteria.getCode());
@@ -177,7 +346,7 @@ public class MeasureEvaluation {
                 ListResource subjectList = new ListResource();
                 subjectList.setId(UUID.randomUUID().toString());
                 populationReport.setSubjectResults(new Reference().setReference("#" + subjectList.getId()));
-                for (Patient patient : patientPopulation) {
+                for (Patient patient : patientPopulation.values()) {
                     ListResource.ListEntryComponent entry = new ListResource.ListEntryComponent()
                             .setItem(new Reference()
                                     .setReference(patient.getIdElement().getIdPart().startsWith("Patient/")
@@ -188,125 +357,78 @@ public class MeasureEvaluation {
                 }
                 report.addContained(subjectList);
             }
-            populationReport.setCount(populationCount);
+            populationReport.setCount(population != null ? population.size() : 0);
             reportGroup.addPopulation(populationReport);
         }
     }
 
     protected MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle, boolean includeEvaluatedResources) {
-        MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
-        reportBuilder.buildStatus("complete");
-        reportBuilder.buildType(type);
-        reportBuilder.buildMeasureReference(
-                measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && CollectionUtils.isNotEmpty(patients)) {
-            IdType patientId = patients.get(0).getIdElement();
-            reportBuilder.buildPatientReference(patientId.getResourceType() + "/" + patientId.getIdPart());
-        }
-        reportBuilder.buildPeriod(measurementPeriod);
-
-        MeasureReport report = reportBuilder.build();
-
-        Map<String, Resource> resources = new HashMap<>();
-        Map<String, Set<String>> codeToResourceMap = new HashMap<>();
+        MeasureEvaluationResults results = evaluatePopulations(measure, context, patients, type, includeEvaluatedResources);
+        return buildReport(measure, results, type, isSingle);
+    }
 
-        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
-        if (measureScoring == null) {
-            throw new RuntimeException("Measure scoring is required in order to calculate.");
-        }
+    /**
+     * Evaluate the population criteria of every measure group for each of the
+     * provided patients.
+     *
+     * @param measure                   FHIR Measure resource
+     * @param context                   CQL engine context used for all patients
+     * @param patients                  Patients to evaluate
+     * @param type                      Type of report the results are for
+     * @param includeEvaluatedResources whether evaluated resources are collected
+     * @return accumulated population results
+     */
+    protected MeasureEvaluationResults evaluatePopulations(Measure measure, Context context, List<Patient> patients,
+            MeasureReport.MeasureReportType type, boolean includeEvaluatedResources) {
+        MeasureScoring measureScoring = getMeasureScoring(measure);
+
+        MeasureEvaluationResults results = new MeasureEvaluationResults(patients);
+        Map<String, Resource> resources = results.getEvaluatedResources();
+        Map<String, Set<String>> codeToResourceMap = results.getCodeToResourceMap();
 
         List<Measure.MeasureSupplementalDataComponent> sde = measure.getSupplementalData();
-        Map<String, Map<String, Integer>> sdeAccumulators = new HashMap<>();
+        Map<String, Map<String, Integer>> sdeAccumulators = results.getSdeAccumulators();
+        Map<String, Map<String, Coding>> sdeCodings = results.getSdeCodings();
         
         for (Measure.MeasureGroupComponent group : measure.getGroup()) {
-            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
-            reportGroup.setId(group.getId());
-            report.getGroup().add(reportGroup);
+            GroupResults groupResults = results.addGroup();
 
             // Declare variables to avoid a hash lookup on every patient
             // TODO: Isn't quite right, there may be multiple initial populations for a
             // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-
-            Map<String, Resource> initialPopulation = null;
-            Map<String, Resource> numerator = null;
-            Map<String, Resource> numeratorExclusion = null;
-            Map<String, Resource> denominator = null;
-            Map<String, Resource> denominatorExclusion = null;
-            Map<String, Resource> denominatorException = null;
-
-            Map<String, Patient> initialPopulationPatients = null;
-            Map<String, Patient> numeratorPatients = null;
-            Map<String, Patient> numeratorExclusionPatients = null;
-            Map<String, Patient> denominatorPatients = null;
-            Map<String, Patient> denominatorExclusionPatients = null;
-            Map<String, Patient> denominatorExceptionPatients = null;
-
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType
-                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                initialPopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExceptionPatients = new HashMap<>();
-                            }
-                            break;
-                        default:
-                        	throw new UnsupportedOperationException("Measure population, observation and measure population exclusion are used for continuous-variable scoring measures which are not supported");
-                    }
-                }
+            Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = getPopulationCriteria(group);
+            for (MeasurePopulationType populationType : criteria.keySet()) {
+                groupResults.addPopulation(populationType, type == MeasureReport.MeasureReportType.SUBJECTLIST);
             }
+
+            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = criteria.get(MeasurePopulationType.INITIALPOPULATION);
+            Measure.MeasureGroupPopulationComponent numeratorCriteria = criteria.get(MeasurePopulationType.NUMERATOR);
+            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = criteria.get(MeasurePopulationType.NUMERATOREXCLUSION);
+            Measure.MeasureGroupPopulationComponent denominatorCriteria = criteria.get(MeasurePopulationType.DENOMINATOR);
+            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = criteria.get(MeasurePopulationType.DENOMINATOREXCLUSION);
+            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = criteria.get(MeasurePopulationType.DENOMINATOREXCEPTION);
+
+            PopulationResults<Resource> initialPopulation = groupResults.getResources(MeasurePopulationType.INITIALPOPULATION);
+            PopulationResults<Resource> numerator = groupResults.getResources(MeasurePopulationType.NUMERATOR);
+            PopulationResults<Resource> numeratorExclusion = groupResults.getResources(MeasurePopulationType.NUMERATOREXCLUSION);
+            PopulationResults<Resource> denominator = groupResults.getResources(MeasurePopulationType.DENOMINATOR);
+            PopulationResults<Resource> denominatorExclusion = groupResults.getResources(MeasurePopulationType.DENOMINATOREXCLUSION);
+            PopulationResults<Resource> denominatorException = groupResults.getResources(MeasurePopulationType.DENOMINATOREXCEPTION);
+
+            PopulationResults<Patient> initialPopulationPatients = groupResults.getPatients(MeasurePopulationType.INITIALPOPULATION);
+            PopulationResults<Patient> numeratorPatients = groupResults.getPatients(MeasurePopulationType.NUMERATOR);
+            PopulationResults<Patient> numeratorExclusionPatients = groupResults.getPatients(MeasurePopulationType.NUMERATOREXCLUSION);
+            PopulationResults<Patient> denominatorPatients = groupResults.getPatients(MeasurePopulationType.DENOMINATOR);
+            PopulationResults<Patient> denominatorExclusionPatients = groupResults.getPatients(MeasurePopulationType.DENOMINATOREXCLUSION);
+            PopulationResults<Patient> denominatorExceptionPatients = groupResults.getPatients(MeasurePopulationType.DENOMINATOREXCEPTION);
             
             switch (measureScoring) {
                 case PROPORTION:
                 case RATIO: {
 
                     // For each patient in the initial population
-                    for (Patient patient : patients) {
+                    for (Patient patient : prefetching(patients)) {
                         // Are they in the initial population?
                         boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
                                 initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
@@ -336,14 +458,14 @@ public class MeasureEvaluation {
                                     for (Resource resource : evaluateCriteria(context, patient,
                                             denominatorExceptionCriteria)) {
                                         inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
+                                        denominatorException.add(resource.getIdElement().getIdPart(), resource);
                                         denominator.remove(resource.getIdElement().getIdPart());
                                         populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
                                                 resources, codeToResourceMap, includeEvaluatedResources);
                                     }
                                     if (inException) {
                                         if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
+                                            denominatorExceptionPatients.add(patient.getIdElement().getIdPart(),
                                                     patient);
                                         }
                                         if (denominatorPatients != null) {
@@ -353,12 +475,7 @@ public class MeasureEvaluation {
                                 }
                             }
                         }
-                        MeasureSupplementalDataEvaluation.populateSDEAccumulators(context, patient, sdeAccumulators, sde);
-                    }
-
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (numerator != null && MapUtils.isNotEmpty(denominator)) {
-                        reportGroup.setMeasureScore(new Quantity(numerator.size() / (double) denominator.size()));
+                        MeasureSupplementalDataEvaluation.populateSDEAccumulators(context, patient, sdeAccumulators, sdeCodings, sde);
                     }
 
                     break;
@@ -366,13 +483,13 @@ public class MeasureEvaluation {
                 case COHORT: {
 
                     // For each patient in the patient list
-                    for (Patient patient : patients) {
+                    for (Patient patient : prefetching(patients)) {
                         evaluatePopulationCriteria(context, patient,
                                 initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
                                 null);
                         populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
                                 codeToResourceMap, includeEvaluatedResources);
-                        MeasureSupplementalDataEvaluation.populateSDEAccumulators(context, patient, sdeAccumulators, sde);
+                        MeasureSupplementalDataEvaluation.populateSDEAccumulators(context, patient, sdeAccumulators, sdeCodings, sde);
                     }
 
                     break;
@@ -381,29 +498,67 @@ public class MeasureEvaluation {
                 	throw new UnsupportedOperationException("Scoring type CONTINUOUSVARIABLE is not supported");
                 
             }
+        }
+
+        return results;
+    }
+
+    /**
+     * Write accumulated population results to a new MeasureReport.
+     *
+     * @param measure  FHIR Measure resource
+     * @param results  Population results for all of the report's patients
+     * @param type     Type of report to build
+     * @param isSingle whether the report is for a single patient
+     * @return MeasureReport
+     */
+    protected MeasureReport buildReport(Measure measure, MeasureEvaluationResults results,
+            MeasureReport.MeasureReportType type, boolean isSingle) {
+        List<Patient> patients = results.getPatients();
+
+        MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
+        reportBuilder.buildStatus("complete");
+        reportBuilder.buildType(type);
+        reportBuilder.buildMeasureReference(
+                measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && CollectionUtils.isNotEmpty(patients)) {
+            IdType patientId = patients.get(0).getIdElement();
+            reportBuilder.buildPatientReference(patientId.getResourceType() + "/" + patientId.getIdPart());
+        }
+        reportBuilder.buildPeriod(measurementPeriod);
+
+        MeasureReport report = reportBuilder.build();
+
+        MeasureScoring measureScoring = getMeasureScoring(measure);
+
+        List<Measure.MeasureGroupComponent> groups = measure.getGroup();
+        for (int i = 0; i < groups.size(); i++) {
+            Measure.MeasureGroupComponent group = groups.get(i);
+            GroupResults groupResults = results.getGroups().get(i);
+
+            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
+            reportGroup.setId(group.getId());
+            report.getGroup().add(reportGroup);
+
+            if (measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO) {
+                // Calculate actual measure score, Count(numerator) / Count(denominator)
+                PopulationResults<Resource> numerator = groupResults.getResources(MeasurePopulationType.NUMERATOR);
+                PopulationResults<Resource> denominator = groupResults.getResources(MeasurePopulationType.DENOMINATOR);
+                if (numerator != null && denominator != null && !denominator.isEmpty()) {
+                    reportGroup.setMeasureScore(new Quantity(numerator.size() / (double) denominator.size()));
+                }
+            }
 
             // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
+            Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = getPopulationCriteria(group);
+            for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                addPopulationCriteriaReport(report, reportGroup, criteria.get(populationType),
+                        groupResults.getResources(populationType), groupResults.getPatients(populationType));
+            }
         }
 
-        for (Entry<String, Set<String>> entry : codeToResourceMap.entrySet()) {
+        Map<String, Resource> resources = new HashMap<>(results.getEvaluatedResources());
+        for (Entry<String, Set<String>> entry : results.getCodeToResourceMap().entrySet()) {
             ListResource list = new ListResource();
             
             for (String element : entry.getValue()) {
@@ -426,13 +581,44 @@ public class MeasureEvaluation {
             });
             report.setEvaluatedResource(evaluatedResourceIds);
         }
-        if (MapUtils.isNotEmpty(sdeAccumulators)) {
-            report = MeasureSupplementalDataEvaluation.processAccumulators(report, sdeAccumulators, isSingle, patients);
+        if (MapUtils.isNotEmpty(results.getSdeAccumulators())) {
+            report = MeasureSupplementalDataEvaluation.processAccumulators(report, results.getSdeAccumulators(), results.getSdeCodings(), isSingle);
         }
 
         return report;
     }
 
+    private static MeasureScoring getMeasureScoring(Measure measure) {
+        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
+        if (measureScoring == null) {
+            throw new RuntimeException("Measure scoring is required in order to calculate.");
+        }
+        return measureScoring;
+    }
+
+    private static Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> getPopulationCriteria(Measure.MeasureGroupComponent group) {
+        Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = new EnumMap<>(MeasurePopulationType.class);
+        for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
+            MeasurePopulationType populationType = MeasurePopulationType
+                    .fromCode(pop.getCode().getCodingFirstRep().getCode());
+            if (populationType != null) {
+                switch (populationType) {
+                    case INITIALPOPULATION:
+                    case NUMERATOR:
+                    case NUMERATOREXCLUSION:
+                    case DENOMINATOR:
+                    case DENOMINATOREXCLUSION:
+                    case DENOMINATOREXCEPTION:
+                        criteria.put(populationType, pop);
+                        break;
+                    default:
+                    	throw new UnsupportedOperationException("Measure population, observation and measure population exclusion are used for continuous-variable scoring measures which are not supported");
+                }
+            }
+        }
+        return criteria;
+    }
+
     protected void populateResourceMap(Context context, MeasurePopulationType type, Map<String, Resource> resources,
             Map<String, Set<String>> codeToResourceMap, boolean includeEvaluatedResources) {
         if (CollectionUtils.isEmpty(context.getEvaluatedResources())) {
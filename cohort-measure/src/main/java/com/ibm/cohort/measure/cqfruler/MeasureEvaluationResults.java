@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.cqfruler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * Population results accumulated by {@link MeasureEvaluation} for a list of
+ * patients before they are written to a MeasureReport. Results for separate
+ * parts of a patient list can be evaluated independently (e.g. on different
+ * threads) and then merged. Merging the parts in patient list order produces
+ * the same results as evaluating the whole list at once.
+ *
+ * <p>Summary reports call {@link #summarize(PopulationSubjectSink)} after
+ * each patient, which replaces population members with counts so that memory
+ * use does not grow with the size of the population. Resource ids are
+ * assumed to be unique to a patient once results are summarized.
+ */
+public class MeasureEvaluationResults {
+
+	/**
+	 * Members of a single population keyed by resource id. Removals are
+	 * remembered so that a member added by an earlier part of the patient list
+	 * is also removed when a later part is merged.
+	 *
+	 * @param <T> member type
+	 */
+	public static class PopulationResults<T> {
+		private final Map<String, T> members = new HashMap<>();
+		private final Set<String> removed = new HashSet<>();
+		private int summarizedCount;
+
+		public void add(String id, T member) {
+			members.put(id, member);
+		}
+
+		public void remove(String id) {
+			members.remove(id);
+			removed.add(id);
+		}
+
+		public int size() {
+			return summarizedCount + members.size();
+		}
+
+		public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		public Collection<T> values() {
+			return members.values();
+		}
+
+		protected void merge(PopulationResults<T> other) {
+			members.keySet().removeAll(other.removed);
+			members.putAll(other.members);
+			removed.addAll(other.removed);
+			summarizedCount += other.summarizedCount;
+		}
+
+		protected void summarize() {
+			summarizedCount += members.size();
+			members.clear();
+			removed.clear();
+		}
+	}
+
+	/**
+	 * Results for one measure group. A population is only present when the
+	 * group defines criteria for it. Patients are only tracked for patient
+	 * list reports.
+	 */
+	public static class GroupResults {
+		private final Map<MeasurePopulationType, PopulationResults<Resource>> resources = new EnumMap<>(MeasurePopulationType.class);
+		private final Map<MeasurePopulationType, PopulationResults<Patient>> patients = new EnumMap<>(MeasurePopulationType.class);
+
+		public void addPopulation(MeasurePopulationType type, boolean trackPatients) {
+			resources.put(type, new PopulationResults<>());
+			if (trackPatients) {
+				patients.put(type, new PopulationResults<>());
+			}
+		}
+
+		public PopulationResults<Resource> getResources(MeasurePopulationType type) {
+			return resources.get(type);
+		}
+
+		public PopulationResults<Patient> getPatients(MeasurePopulationType type) {
+			return patients.get(type);
+		}
+
+		protected void merge(GroupResults other) {
+			other.resources.forEach((type, population) -> resources.computeIfAbsent(type, t -> new PopulationResults<>()).merge(population));
+			other.patients.forEach((type, population) -> patients.computeIfAbsent(type, t -> new PopulationResults<>()).merge(population));
+		}
+
+		protected void summarize(int groupIndex, PopulationSubjectSink subjectSink) {
+			patients.forEach((type, population) -> {
+				if (subjectSink != null) {
+					population.values().forEach(patient -> subjectSink.accept(groupIndex, type, patient.getIdElement().getIdPart()));
+				}
+				population.summarize();
+			});
+			resources.values().forEach(PopulationResults::summarize);
+		}
+	}
+
+	private final List<Patient> patients = new ArrayList<>();
+	private final List<GroupResults> groups = new ArrayList<>();
+	private final Map<String, Resource> evaluatedResources = new HashMap<>();
+	private final Map<String, Set<String>> codeToResourceMap = new HashMap<>();
+	private final Map<String, Map<String, Integer>> sdeAccumulators = new HashMap<>();
+	private final Map<String, Map<String, Coding>> sdeCodings = new HashMap<>();
+	private int patientCount;
+
+	public MeasureEvaluationResults() {
+	}
+
+	public MeasureEvaluationResults(List<Patient> patients) {
+		this.patients.addAll(patients);
+		this.patientCount = patients.size();
+	}
+
+	public GroupResults addGroup() {
+		GroupResults group = new GroupResults();
+		groups.add(group);
+		return group;
+	}
+
+	public List<Patient> getPatients() {
+		return patients;
+	}
+
+	/**
+	 * @return number of patients evaluated, including patients that are no
+	 *         longer kept after the results were summarized
+	 */
+	public int getPatientCount() {
+		return patientCount;
+	}
+
+	public List<GroupResults> getGroups() {
+		return groups;
+	}
+
+	public Map<String, Resource> getEvaluatedResources() {
+		return evaluatedResources;
+	}
+
+	public Map<String, Set<String>> getCodeToResourceMap() {
+		return codeToResourceMap;
+	}
+
+	public Map<String, Map<String, Integer>> getSdeAccumulators() {
+		return sdeAccumulators;
+	}
+
+	/**
+	 * @return code system and display of the supplemental data codes by
+	 *         accumulator key and code
+	 */
+	public Map<String, Map<String, Coding>> getSdeCodings() {
+		return sdeCodings;
+	}
+
+	/**
+	 * Add the results for the patients that follow the patients already
+	 * included in these results.
+	 *
+	 * @param other results for the next part of the patient list
+	 */
+	public void merge(MeasureEvaluationResults other) {
+		patients.addAll(other.patients);
+		patientCount += other.patientCount;
+
+		for (int i = 0; i < other.groups.size(); i++) {
+			if (i == groups.size()) {
+				groups.add(new GroupResults());
+			}
+			groups.get(i).merge(other.groups.get(i));
+		}
+
+		other.evaluatedResources.forEach(evaluatedResources::putIfAbsent);
+		other.codeToResourceMap.forEach((code, ids) -> codeToResourceMap.computeIfAbsent(code, c -> new HashSet<>()).addAll(ids));
+		other.sdeAccumulators.forEach((key, counts) -> {
+			Map<String, Integer> accumulator = sdeAccumulators.computeIfAbsent(key, k -> new HashMap<>());
+			counts.forEach((code, count) -> accumulator.merge(code, count, Integer::sum));
+		});
+		other.sdeCodings.forEach((key, codings) -> sdeCodings.computeIfAbsent(key, k -> new HashMap<>()).putAll(codings));
+	}
+
+	/**
+	 * Replace the population members collected so far with counts. Patients in
+	 * a population are passed to the subject sink first. The evaluated patients
+	 * are not kept.
+	 *
+	 * @param subjectSink receives population members, may be null
+	 */
+	public void summarize(PopulationSubjectSink subjectSink) {
+		for (int i = 0; i < groups.size(); i++) {
+			groups.get(i).summarize(i, subjectSink);
+		}
+		patients.clear();
+	}
+}
@@ -43,6 +43,19 @@ public class MeasureSupplementalDataEvaluation {
 	public static void populateSDEAccumulators(Context context, Patient patient,
 			Map<String, Map<String, Integer>> sdeAccumulators,
 			List<Measure.MeasureSupplementalDataComponent> sde) {
+		populateSDEAccumulators(context, patient, sdeAccumulators, null, sde);
+	}
+
+	/**
+	 * @param sdeCodings receives the patient coding of each counted code by
+	 *                   accumulator key, which carries the code system and
+	 *                   display for {@link #processAccumulators(MeasureReport, Map, Map, boolean)}.
+	 *                   May be null.
+	 */
+	public static void populateSDEAccumulators(Context context, Patient patient,
+			Map<String, Map<String, Integer>> sdeAccumulators,
+			Map<String, Map<String, Coding>> sdeCodings,
+			List<Measure.MeasureSupplementalDataComponent> sde) {
 		
 		context.setContextValue(MeasureEvaluation.PATIENT, patient.getIdElement().getIdPart());
 		
@@ -88,6 +101,9 @@ public class MeasureSupplementalDataEvaluation {
 								sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
 							}
 						}
+						if (null != sdeCodings) {
+							recordCoding(patient, sdeAccumulatorKey, code, sdeCodings);
+						}
 					}
 				}
 			}
@@ -96,6 +112,14 @@ public class MeasureSupplementalDataEvaluation {
 
 	public static MeasureReport processAccumulators(MeasureReport report,
 			Map<String, Map<String, Integer>> sdeAccumulators, boolean isSingle, List<Patient> patients) {
+		Map<String, Map<String, Coding>> sdeCodings = new HashMap<>();
+		sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> sdeAccumulator.keySet().forEach(
+				code -> patients.forEach(patient -> recordCoding(patient, sdeKey, code, sdeCodings))));
+		return processAccumulators(report, sdeAccumulators, sdeCodings, isSingle);
+	}
+
+	public static MeasureReport processAccumulators(MeasureReport report,
+			Map<String, Map<String, Integer>> sdeAccumulators, Map<String, Map<String, Coding>> sdeCodings, boolean isSingle) {
 		List<Reference> newRefList = new ArrayList<>();
 		sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
 			sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue) -> {
@@ -106,21 +130,12 @@ public class MeasureSupplementalDataEvaluation {
 				if (sdeKey.equalsIgnoreCase(SDE_SEX)) {
 					valueCoding.setCode(sdeAccumulatorKey);
 				} else {
-					String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-'));
-					patients.forEach((pt) -> {
-						pt.getExtension().forEach((ptExt) -> {
-							if (ptExt.getUrl().contains(coreCategory)) {
-								String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-								if (code.equalsIgnoreCase(sdeAccumulatorKey)) {
-									valueCoding
-											.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-									valueCoding.setCode(code);
-									valueCoding
-											.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-								}
-							}
-						});
-					});
+					Coding coding = sdeCodings.getOrDefault(sdeKey, Collections.emptyMap()).get(sdeAccumulatorKey);
+					if (coding != null) {
+						valueCoding.setSystem(coding.getSystem());
+						valueCoding.setCode(coding.getCode());
+						valueCoding.setDisplay(coding.getDisplay());
+					}
 				}
 				CodeableConcept obsCodeableConcept = new CodeableConcept();
 				Extension obsExtension = new Extension()
@@ -149,4 +164,24 @@ public class MeasureSupplementalDataEvaluation {
 		report.setEvaluatedResource(newRefList);
 		return report;
 	}
+
+	/**
+	 * Keep the coding of a patient extension in the core category of an
+	 * accumulator (e.g. race for "sde-race") with the counted code. The last
+	 * matching extension of the patient is kept.
+	 */
+	private static void recordCoding(Patient patient, String sdeKey, String code, Map<String, Map<String, Coding>> sdeCodings) {
+		if (sdeKey.equalsIgnoreCase(SDE_SEX)) {
+			return;
+		}
+		String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-'));
+		for (Extension ptExt : patient.getExtension()) {
+			if (ptExt.getUrl().contains(coreCategory)) {
+				Coding coding = (Coding) ptExt.getExtension().get(0).getValue();
+				if (coding.getCode().equalsIgnoreCase(code)) {
+					sdeCodings.computeIfAbsent(sdeKey, k -> new HashMap<>()).put(code, coding.copy());
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,27 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.cqfruler;
+
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * Receives the members of each measure population while a summary report is
+ * evaluated so that subject lists can be written somewhere other than the
+ * MeasureReport (e.g. a file or a database table). Implementations must be
+ * safe for use by multiple threads when a patient list is evaluated in
+ * parallel.
+ */
+@FunctionalInterface
+public interface PopulationSubjectSink {
+
+	/**
+	 * @param groupIndex     index of the measure group
+	 * @param populationType population the subject is a member of
+	 * @param subjectId      logical id of the Patient resource
+	 */
+	void accept(int groupIndex, MeasurePopulationType populationType, String subjectId);
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.cqfruler;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+
+/**
+ * Define results that are shared by the {@link CDMContext} instances of
+ * several measures evaluated for the same patient. Results are keyed by
+ * context value (e.g. the patient id), library identifier and version, define
+ * name, and a fingerprint of the parameter values set in the context, so a
+ * helper library that is included by several measures is only evaluated once
+ * per patient. Results for a previous context value are discarded when the
+ * first result for a new context value is added.
+ *
+ * <p>Instances are safe for use by multiple threads.
+ */
+public class SharedExpressionCache {
+
+	private static final Object NULL_RESULT = new Object();
+
+	protected static class ExpressionKey {
+		private final String contextValue;
+		private final VersionedIdentifier libraryId;
+		private final String name;
+		private final String parameterFingerprint;
+
+		public ExpressionKey(String contextValue, VersionedIdentifier libraryId, String name, String parameterFingerprint) {
+			this.contextValue = contextValue;
+			this.libraryId = libraryId;
+			this.name = name;
+			this.parameterFingerprint = parameterFingerprint;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			ExpressionKey that = (ExpressionKey) o;
+			return Objects.equals(contextValue, that.contextValue)
+					&& Objects.equals(libraryId.getId(), that.libraryId.getId())
+					&& Objects.equals(libraryId.getVersion(), that.libraryId.getVersion())
+					&& Objects.equals(name, that.name)
+					&& Objects.equals(parameterFingerprint, that.parameterFingerprint);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(contextValue, libraryId.getId(), libraryId.getVersion(), name, parameterFingerprint);
+		}
+	}
+
+	private final ConcurrentMap<ExpressionKey, Object> results = new ConcurrentHashMap<>();
+	private volatile String currentContextValue;
+
+	/**
+	 * @param key    expression key
+	 * @param absent value returned when no result is stored for the key
+	 * @return the stored result, which may be null, or <code>absent</code>
+	 */
+	public Object getOrDefault(ExpressionKey key, Object absent) {
+		Object result = results.get(key);
+		if (result == null) {
+			return absent;
+		}
+		return NULL_RESULT.equals(result) ? null : result;
+	}
+
+	public void put(ExpressionKey key, Object result) {
+		if (!key.contextValue.equals(currentContextValue)) {
+			synchronized (this) {
+				if (!key.contextValue.equals(currentContextValue)) {
+					results.clear();
+					currentContextValue = key.contextValue;
+				}
+			}
+		}
+		results.put(key, result == null ? NULL_RESULT : result);
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	public void clear() {
+		synchronized (this) {
+			results.clear();
+			currentContextValue = null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.evidence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Type;
+
+import com.ibm.cohort.cql.cdm.CDMConstants;
+import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions.DefineReturnOptions;
+
+/**
+ * Define results captured at the end of a measure evaluation that have not
+ * been converted into evidence extensions yet. The results are carried in the
+ * MeasureReport by a placeholder extension that sits where the evidence
+ * extensions would have been added.
+ */
+public class DeferredDefineResults {
+
+	public static final String USER_DATA_KEY = DeferredDefineResults.class.getName();
+
+	private final Map<VersionedIdentifier, Map<String, Object>> results = new LinkedHashMap<>();
+	private final DefineReturnOptions defineOption;
+
+	/**
+	 * @param entries      define results by library, copied in iteration order
+	 *                     because the context they come from is reused
+	 * @param defineOption which define results are returned
+	 */
+	public DeferredDefineResults(Set<Entry<VersionedIdentifier, Map<String, Object>>> entries, DefineReturnOptions defineOption) {
+		for (Entry<VersionedIdentifier, Map<String, Object>> entry : entries) {
+			results.put(entry.getKey(), new LinkedHashMap<>(entry.getValue()));
+		}
+		this.defineOption = defineOption;
+	}
+
+	public Map<VersionedIdentifier, Map<String, Object>> getResults() {
+		return results;
+	}
+
+	public DefineReturnOptions getDefineReturnOption() {
+		return defineOption;
+	}
+
+	public Extension toPlaceholder() {
+		Extension placeholder = new Extension(CDMConstants.EVIDENCE_URL);
+		placeholder.setUserData(USER_DATA_KEY, this);
+		return placeholder;
+	}
+
+	/**
+	 * @param extension MeasureReport extension
+	 * @return the deferred results carried by a placeholder extension, or null
+	 */
+	public static DeferredDefineResults fromExtension(Extension extension) {
+		Object userData = extension.getUserData(USER_DATA_KEY);
+		return userData instanceof DeferredDefineResults ? (DeferredDefineResults) userData : null;
+	}
+
+	/**
+	 * Convert every returned define result into an evidence extension.
+	 *
+	 * @return evidence extensions in the order they are added to a report
+	 */
+	public List<Extension> toExtensions() {
+		List<Extension> extensions = new ArrayList<>();
+		for (Entry<VersionedIdentifier, Map<String, Object>> libraryResults : results.entrySet()) {
+			for (Entry<String, Object> defineResult : libraryResults.getValue().entrySet()) {
+				Extension evidence = toExtension(libraryResults.getKey(), defineResult.getKey(), defineResult.getValue());
+				if (evidence != null) {
+					extensions.add(evidence);
+				}
+			}
+		}
+		return extensions;
+	}
+
+	/**
+	 * @param libraryId  library the define belongs to
+	 * @param defineName define name
+	 * @param result     define result
+	 * @return evidence extension or null if the result is not returned
+	 */
+	public Extension toExtension(VersionedIdentifier libraryId, String defineName, Object result) {
+		List<Type> values = MeasureEvidenceHelper.getFhirTypes(result);
+		if (!MeasureEvidenceHelper.shouldAddDefineResult(defineOption, values)) {
+			return null;
+		}
+		return MeasureEvidenceHelper.createEvidenceExtension(libraryId, defineName, values);
+	}
+
+	/**
+	 * @return true if any define result is returned as evidence
+	 */
+	public boolean hasReturnedResults() {
+		for (Map<String, Object> libraryResults : results.values()) {
+			for (Object result : libraryResults.values()) {
+				if (MeasureEvidenceHelper.shouldAddDefineResult(defineOption, MeasureEvidenceHelper.getFhirTypes(result))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Resources without an id are written to the contained list of the report
+	 * when they are referenced, so evidence that references them cannot be
+	 * written separately from the rest of the report.
+	 *
+	 * @return true if any define result holds a resource without an id
+	 */
+	public boolean hasResourcesWithoutId() {
+		for (Map<String, Object> libraryResults : results.values()) {
+			for (Object result : libraryResults.values()) {
+				if (hasResourceWithoutId(result)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasResourceWithoutId(Object value) {
+		if (value instanceof Iterable) {
+			for (Object item : (Iterable<?>) value) {
+				if (hasResourceWithoutId(item)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return value instanceof DomainResource && !((DomainResource) value).getIdElement().hasIdPart();
+	}
+}
@@ -11,6 +11,7 @@ import java.util.Date;
 import java.util.List;
 
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Annotation;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.BooleanType;
@@ -28,6 +29,9 @@ import org.hl7.fhir.r4.model.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ibm.cohort.cql.cdm.CDMConstants;
+import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions.DefineReturnOptions;
+
 public class MeasureEvidenceHelper {
 	
 	private static final Logger logger = LoggerFactory.getLogger(MeasureEvidenceHelper.class);
@@ -45,6 +49,43 @@ public class MeasureEvidenceHelper {
 				.toString();
 	}
 	
+	public static Extension createEvidenceExtension(VersionedIdentifier libraryId, String defineName, List<Type> values) {
+		Extension evidence = new Extension();
+		evidence.setUrl(CDMConstants.EVIDENCE_URL);
+		
+		StringType key = new StringType(createEvidenceKey(libraryId, defineName));
+		
+		Extension textExtension = new Extension();
+		textExtension.setUrl(CDMConstants.EVIDENCE_TEXT_URL);
+		textExtension.setValue(key);
+		
+		evidence.addExtension(textExtension);
+		
+		for(Type value : values) {
+			Extension valueExtension = new Extension();
+			valueExtension.setUrl(CDMConstants.EVIDENCE_VALUE_URL);
+			valueExtension.setValue(value);
+			evidence.addExtension(valueExtension);
+		}
+		
+		return evidence;
+	}
+	
+	public static boolean shouldAddDefineResult(DefineReturnOptions defineOption, List<Type> values) {
+		if(!values.isEmpty()) {
+			if(DefineReturnOptions.ALL == defineOption) {
+				return true;
+			}
+			else if(DefineReturnOptions.BOOLEAN == defineOption
+					&& values.size() == 1
+					&& values.get(0) instanceof BooleanType) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
 	public static List<Type> getFhirTypes(Object value) {
 		List<Type> types = new ArrayList<>();
 		
@@ -6,9 +6,12 @@
 
 package com.ibm.cohort.measure.evidence;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class MeasureEvidenceOptions {
 	private boolean includeEvaluatedResources = false;
 	private DefineReturnOptions defineReturnOption = DefineReturnOptions.NONE;
+	private boolean streamDefineResults = false;
 	
 	public enum DefineReturnOptions {
 		ALL,
@@ -23,6 +26,12 @@ public class MeasureEvidenceOptions {
 		this.defineReturnOption = defineReturnOption;
 	}
 	
+	public MeasureEvidenceOptions(MeasureEvidenceOptions other) {
+		this.includeEvaluatedResources = other.includeEvaluatedResources;
+		this.defineReturnOption = other.defineReturnOption;
+		this.streamDefineResults = other.streamDefineResults;
+	}
+	
 	public boolean isIncludeEvaluatedResources() {
 		return includeEvaluatedResources;
 	}
@@ -39,12 +48,32 @@ public class MeasureEvidenceOptions {
 		this.defineReturnOption = defineReturnOption;
 	}
 	
+	@JsonIgnore
+	public boolean isStreamDefineResults() {
+		return streamDefineResults;
+	}
+
+	/**
+	 * When enabled, define results are kept in the MeasureReport unconverted
+	 * and are only turned into evidence extensions, one define at a time, by
+	 * {@link MeasureReportEvidenceWriter}. Reports evaluated with this option
+	 * must be serialized with that writer.
+	 *
+	 * @param streamDefineResults true to defer define result conversion to
+	 *                            serialization time
+	 */
+	@JsonIgnore
+	public void setStreamDefineResults(boolean streamDefineResults) {
+		this.streamDefineResults = streamDefineResults;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((defineReturnOption == null) ? 0 : defineReturnOption.hashCode());
 		result = prime * result + (includeEvaluatedResources ? 1231 : 1237);
+		result = prime * result + (streamDefineResults ? 1231 : 1237);
 		return result;
 	}
 
@@ -61,6 +90,8 @@ public class MeasureEvidenceOptions {
 			return false;
 		if (includeEvaluatedResources != other.includeEvaluatedResources)
 			return false;
+		if (streamDefineResults != other.streamDefineResults)
+			return false;
 		return true;
 	}
 }
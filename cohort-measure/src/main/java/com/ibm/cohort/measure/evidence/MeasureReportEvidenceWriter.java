@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.evidence;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Basic;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.StringType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes a MeasureReport as JSON, converting deferred define results (see
+ * {@link MeasureEvidenceOptions#setStreamDefineResults(boolean)}) into
+ * evidence extensions one define at a time. The report itself is encoded
+ * without the evidence and the encoded evidence extensions are written in
+ * place of the placeholder extension, so only one evidence extension is held
+ * in memory at any point. The output is identical to the compact JSON encoding
+ * of a report with all evidence extensions added to it.
+ *
+ * <p>{@link #prepare(MeasureReport)} encodes the report and locates the
+ * placeholder before anything is written, so that callers can report a
+ * failure with an error status before a response is committed.
+ *
+ * <p>Reports whose define results hold resources without an id are written by
+ * adding the evidence to the report first, because the parser writes such
+ * resources to the contained list of the report.
+ */
+public class MeasureReportEvidenceWriter {
+
+	private final FhirContext fhirContext;
+
+	public MeasureReportEvidenceWriter(FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+	}
+
+	public void write(MeasureReport report, Writer writer) throws IOException {
+		prepare(report).writeTo(writer);
+	}
+
+	/**
+	 * Encode a report without its deferred evidence.
+	 *
+	 * @param report report to write
+	 * @return the encoded report, which converts and writes the evidence when
+	 *         it is written
+	 * @throws IllegalStateException when the placeholder cannot be located in
+	 *                               the encoded report
+	 */
+	public EncodedReport prepare(MeasureReport report) {
+		IParser parser = fhirContext.newJsonParser();
+
+		int placeholderIndex = -1;
+		DeferredDefineResults deferred = null;
+		List<Extension> extensions = report.getExtension();
+		for (int i = 0; i < extensions.size() && deferred == null; i++) {
+			deferred = DeferredDefineResults.fromExtension(extensions.get(i));
+			placeholderIndex = i;
+		}
+
+		if (deferred == null) {
+			return new EncodedReport(parser, parser.encodeResourceToString(report));
+		}
+		else if (deferred.hasResourcesWithoutId()) {
+			return new EncodedReport(parser, encodeMaterialized(parser, report, placeholderIndex, deferred));
+		}
+		else if (!deferred.hasReturnedResults()) {
+			// Nothing is returned, so the report is written as if the placeholder was never added
+			Extension placeholder = extensions.remove(placeholderIndex);
+			try {
+				return new EncodedReport(parser, parser.encodeResourceToString(report));
+			}
+			finally {
+				extensions.add(placeholderIndex, placeholder);
+			}
+		}
+		else {
+			return encodeAroundPlaceholder(parser, report, extensions.get(placeholderIndex), deferred);
+		}
+	}
+
+	private String encodeMaterialized(IParser parser, MeasureReport report, int placeholderIndex, DeferredDefineResults deferred) {
+		List<Extension> extensions = report.getExtension();
+		Extension placeholder = extensions.remove(placeholderIndex);
+		List<Extension> evidence = deferred.toExtensions();
+		try {
+			extensions.addAll(placeholderIndex, evidence);
+			return parser.encodeResourceToString(report);
+		}
+		finally {
+			extensions.subList(placeholderIndex, placeholderIndex + evidence.size()).clear();
+			extensions.add(placeholderIndex, placeholder);
+		}
+	}
+
+	private EncodedReport encodeAroundPlaceholder(IParser parser, MeasureReport report, Extension placeholder, DeferredDefineResults deferred) {
+		String marker = UUID.randomUUID().toString();
+		String encodedReport;
+		try {
+			placeholder.setValue(new StringType(marker));
+			encodedReport = parser.encodeResourceToString(report);
+		}
+		finally {
+			placeholder.setValue(null);
+		}
+
+		// The placeholder is the JSON object around the marker. Its url and value hold no braces, so the
+		// object is found without depending on how the parser orders or spaces its members.
+		int markerIndex = encodedReport.indexOf(marker);
+		if (markerIndex < 0 || encodedReport.indexOf(marker, markerIndex + marker.length()) >= 0) {
+			throw new IllegalStateException("Evidence placeholder was not found in the encoded MeasureReport");
+		}
+		int start = encodedReport.lastIndexOf('{', markerIndex);
+		int end = encodedReport.indexOf('}', markerIndex);
+		if (start < 0 || end < 0) {
+			throw new IllegalStateException("Evidence placeholder was not found in the encoded MeasureReport");
+		}
+
+		return new EncodedReport(parser, encodedReport.substring(0, start), deferred, encodedReport.substring(end + 1));
+	}
+
+	/**
+	 * A report that is encoded except for its evidence.
+	 */
+	public static class EncodedReport {
+		private final IParser parser;
+		private final String head;
+		private final DeferredDefineResults deferred;
+		private final String tail;
+
+		private EncodedReport(IParser parser, String encoded) {
+			this(parser, encoded, null, null);
+		}
+
+		private EncodedReport(IParser parser, String head, DeferredDefineResults deferred, String tail) {
+			this.parser = parser;
+			this.head = head;
+			this.deferred = deferred;
+			this.tail = tail;
+		}
+
+		/**
+		 * Write the report, converting the evidence one define at a time.
+		 *
+		 * @param writer destination of the JSON
+		 * @throws IOException when writing fails
+		 */
+		public void writeTo(Writer writer) throws IOException {
+			writer.write(head);
+			if (deferred != null) {
+				boolean first = true;
+				for (Entry<VersionedIdentifier, Map<String, Object>> libraryResults : deferred.getResults().entrySet()) {
+					for (Entry<String, Object> defineResult : libraryResults.getValue().entrySet()) {
+						Extension evidence = deferred.toExtension(libraryResults.getKey(), defineResult.getKey(), defineResult.getValue());
+						if (evidence != null) {
+							if (!first) {
+								writer.write(',');
+							}
+							writeEvidence(evidence, writer);
+							first = false;
+						}
+					}
+				}
+				writer.write(tail);
+			}
+			writer.flush();
+		}
+
+		private void writeEvidence(Extension evidence, Writer writer) throws IOException {
+			// The extension is encoded as the only member of the extension array of a wrapper resource
+			String encoded = parser.encodeResourceToString(new Basic().addExtension(evidence));
+			int start = encoded.indexOf('[');
+			int end = encoded.lastIndexOf(']');
+			if (start < 0 || end < start) {
+				throw new IllegalStateException("Unexpected encoding of evidence extension: " + encoded);
+			}
+			writer.write(encoded, start + 1, end - start - 1);
+		}
+	}
+}
@@ -10,18 +10,26 @@ import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
+import com.ibm.cohort.cql.cache.RetrievePlan;
+
 public class CustomMeasureEvaluationSeed implements IMeasureEvaluationSeed {
 
 	private final Measure measure;
 	private final Context context;
 	private final Interval measurementPeriod;
 	private final DataProvider dataProvider;
+	private final RetrievePlan retrievePlan;
 
 	public CustomMeasureEvaluationSeed(Measure measure, Context context, Interval measurementPeriod, DataProvider dataProvider) {
+		this(measure, context, measurementPeriod, dataProvider, null);
+	}
+
+	public CustomMeasureEvaluationSeed(Measure measure, Context context, Interval measurementPeriod, DataProvider dataProvider, RetrievePlan retrievePlan) {
 		this.measure = measure;
 		this.context = context;
 		this.measurementPeriod = measurementPeriod;
 		this.dataProvider = dataProvider;
+		this.retrievePlan = retrievePlan;
 	}
 
 	@Override
@@ -43,4 +51,9 @@ public class CustomMeasureEvaluationSeed implements IMeasureEvaluationSeed {
 	public DataProvider getDataProvider() {
 		return dataProvider;
 	}
+
+	@Override
+	public RetrievePlan getRetrievePlan() {
+		return retrievePlan;
+	}
 }
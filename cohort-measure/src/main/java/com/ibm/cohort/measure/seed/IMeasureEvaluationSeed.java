@@ -10,6 +10,8 @@ import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
+import com.ibm.cohort.cql.cache.RetrievePlan;
+
 public interface IMeasureEvaluationSeed {
 	Measure getMeasure();
 
@@ -18,4 +20,10 @@ public interface IMeasureEvaluationSeed {
 	Interval getMeasurementPeriod();
 
 	DataProvider getDataProvider();
+
+	/**
+	 * @return retrieves to prefetch for each patient or null when retrieves
+	 *         are not prefetched
+	 */
+	RetrievePlan getRetrievePlan();
 }
@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.measure.seed;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import com.ibm.cohort.cql.evaluation.parameters.Parameter;
+
+/**
+ * Keeps measure evaluation seeds so that the library graph, default
+ * parameter values, and context setup for a measure are only prepared once
+ * for each combination of measure, measurement period, and parameters.
+ * Seeds returned from the cache have their per-evaluation state (expression
+ * results and evaluated resources) cleared. Measures that have neither an id
+ * nor a URL cannot be identified and are never cached.
+ *
+ * <p>A cache should only be used with seeders that are configured the same
+ * way because the seeder configuration is not part of the key. The
+ * {@link Context} held by a seed is not thread-safe, so a seed must not be
+ * used by more than one evaluation at a time.
+ *
+ * <p>At most a fixed number of seeds are kept. The least recently used seed
+ * is discarded when another one is added.
+ */
+public class MeasureEvaluationSeedCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 20;
+
+	protected static class SeedKey {
+		private final String measureKey;
+		private final String periodStart;
+		private final String periodEnd;
+		private final String productLine;
+		private final Map<String, Parameter> parameters;
+
+		public SeedKey(Measure measure, String periodStart, String periodEnd, String productLine, Map<String, Parameter> parameters) {
+			this.measureKey = getMeasureKey(measure);
+			this.periodStart = periodStart;
+			this.periodEnd = periodEnd;
+			this.productLine = productLine;
+			this.parameters = (parameters != null) ? new HashMap<>(parameters) : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			SeedKey seedKey = (SeedKey) o;
+			return Objects.equals(measureKey, seedKey.measureKey)
+					&& Objects.equals(periodStart, seedKey.periodStart)
+					&& Objects.equals(periodEnd, seedKey.periodEnd)
+					&& Objects.equals(productLine, seedKey.productLine)
+					&& Objects.equals(parameters, seedKey.parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(measureKey, periodStart, periodEnd, productLine, parameters);
+		}
+	}
+
+	private final int maxEntries;
+	private final Map<SeedKey, IMeasureEvaluationSeed> seeds = new LinkedHashMap<>(16, 0.75f, true);
+
+	public MeasureEvaluationSeedCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries maximum number of seeds to keep
+	 */
+	public MeasureEvaluationSeedCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Return the cached seed for the provided measure and settings, creating it
+	 * with the provided seeder when there is no cached value.
+	 *
+	 * @param seeder      Seeder used when the seed is not cached
+	 * @param measure     FHIR Measure resource
+	 * @param periodStart Start of the measurement period
+	 * @param periodEnd   End of the measurement period
+	 * @param productLine Product line parameter value
+	 * @param parameters  Parameter overrides
+	 * @return measure evaluation seed that is ready for a new evaluation
+	 */
+	public IMeasureEvaluationSeed getOrCreate(MeasureEvaluationSeeder seeder, Measure measure, String periodStart, String periodEnd, String productLine, Map<String, Parameter> parameters) {
+		if (getMeasureKey(measure) == null) {
+			return seeder.create(measure, periodStart, periodEnd, productLine, parameters);
+		}
+
+		SeedKey key = new SeedKey(measure, periodStart, periodEnd, productLine, parameters);
+		IMeasureEvaluationSeed seed;
+		synchronized (this) {
+			seed = seeds.get(key);
+			if (seed == null) {
+				seed = seeder.create(measure, periodStart, periodEnd, productLine, parameters);
+				seeds.put(key, seed);
+				evict();
+			}
+		}
+
+		resetContext(seed.getContext());
+
+		return seed;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized int size() {
+		return seeds.size();
+	}
+
+	public synchronized void clear() {
+		seeds.clear();
+	}
+
+	private void evict() {
+		Iterator<IMeasureEvaluationSeed> iterator = seeds.values().iterator();
+		while (seeds.size() > maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Clear the state that is left behind in a context by a previous
+	 * evaluation. Parameters, providers, and loaded libraries are kept.
+	 *
+	 * @param context CQL engine context
+	 */
+	protected void resetContext(Context context) {
+		context.clearExpressions();
+		context.clearEvaluatedResources();
+	}
+
+	/**
+	 * Measures are identified by their logical id, URL, and version. The
+	 * resource version is included when the server provides one so that an
+	 * updated measure is not matched with a stale seed.
+	 *
+	 * @param measure FHIR Measure resource
+	 * @return identity key or null if the measure has no id or URL
+	 */
+	protected static String getMeasureKey(Measure measure) {
+		if (!measure.getIdElement().hasIdPart() && !measure.hasUrl()) {
+			return null;
+		}
+		return measure.getIdElement().getIdPart() + "|" + measure.getIdElement().getVersionIdPart()
+				+ "|" + measure.getUrl() + "|" + measure.getVersion();
+	}
+}
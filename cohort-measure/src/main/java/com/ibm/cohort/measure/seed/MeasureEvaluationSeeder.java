@@ -11,11 +11,19 @@ import static com.ibm.cohort.cql.cdm.CDMConstants.PARAMETER_DEFAULT_URL;
 import java.util.List;
 import java.util.Map;
 
+import com.ibm.cohort.cql.cache.DateRangeAware;
+import com.ibm.cohort.cql.cache.ElementProjectionAware;
+import com.ibm.cohort.cql.cache.RetrievePlan;
+import com.ibm.cohort.cql.cache.RetrievePlanAware;
+import com.ibm.cohort.cql.cache.RetrievePrefetcher;
 import com.ibm.cohort.cql.data.CqlDataProvider;
+import com.ibm.cohort.cql.evaluation.RetrieveDateRangeOptimizer;
+import com.ibm.cohort.cql.evaluation.RetrievePlanner;
 import com.ibm.cohort.cql.fhir.resolver.FhirResourceResolver;
 import com.ibm.cohort.cql.hapi.R4LibraryDependencyGatherer;
 import com.ibm.cohort.cql.hapi.R4ParameterDefinitionWithDefaultToCohortParameterConverter;
 import com.ibm.cohort.cql.hapi.R4TranslatingLibraryLoader;
+import com.ibm.cohort.cql.terminology.TerminologyPrefetcher;
 import com.ibm.cohort.cql.translation.CqlToElmTranslator;
 import com.ibm.cohort.measure.cqfruler.CDMContext;
 import com.ibm.cohort.measure.MeasurementPeriodHelper;
@@ -42,8 +50,14 @@ public class MeasureEvaluationSeeder {
 	private final Map<String, CqlDataProvider> dataProviders;
 	private final R4LibraryDependencyGatherer libraryDependencyGatherer;
 	private final FhirResourceResolver<Library> libraryResolver;
+	private final LibraryLoader libraryLoader;
 
 	private boolean enableExpressionCaching;
+	private boolean enableTerminologyPrefetch;
+	private boolean enableRetrieveFusion;
+	private boolean enableRetrievePrefetch;
+	private boolean enableElementProjection;
+	private boolean enableDateRangePushdown;
 	private boolean debugMode = true;
 	
 	private static final String MEASUREMENT_PERIOD = "Measurement Period";
@@ -53,10 +67,30 @@ public class MeasureEvaluationSeeder {
 			Map<String, CqlDataProvider> dataProviders,
 			R4LibraryDependencyGatherer libraryDependencyGatherer,
 			FhirResourceResolver<Library> libraryResolver) {
+		this(terminologyProvider, dataProviders, libraryDependencyGatherer, libraryResolver, null);
+	}
+
+	/**
+	 * @param terminologyProvider       terminology provider registered with each context
+	 * @param dataProviders             data providers keyed by model URI
+	 * @param libraryDependencyGatherer gatherer used to find the measure libraries
+	 * @param libraryResolver           resolver for FHIR Library resources
+	 * @param libraryLoader             loader for the ELM libraries. This allows a single
+	 *                                  caching loader to be shared by many seeders. When
+	 *                                  null, a new translating loader is created for
+	 *                                  every seed.
+	 */
+	public MeasureEvaluationSeeder(
+			TerminologyProvider terminologyProvider,
+			Map<String, CqlDataProvider> dataProviders,
+			R4LibraryDependencyGatherer libraryDependencyGatherer,
+			FhirResourceResolver<Library> libraryResolver,
+			LibraryLoader libraryLoader) {
 		this.terminologyProvider = terminologyProvider;
 		this.dataProviders = dataProviders;
 		this.libraryDependencyGatherer = libraryDependencyGatherer;
 		this.libraryResolver = libraryResolver;
+		this.libraryLoader = libraryLoader;
 	}
 
 	public MeasureEvaluationSeeder disableDebugLogging() {
@@ -71,6 +105,43 @@ public class MeasureEvaluationSeeder {
 		return this;
 	}
 
+	public MeasureEvaluationSeeder enableTerminologyPrefetch() {
+		this.enableTerminologyPrefetch = true;
+
+		return this;
+	}
+
+	public MeasureEvaluationSeeder enableRetrieveFusion() {
+		this.enableRetrieveFusion = true;
+
+		return this;
+	}
+
+	public MeasureEvaluationSeeder enableRetrievePrefetch() {
+		this.enableRetrievePrefetch = true;
+
+		return this;
+	}
+
+	public MeasureEvaluationSeeder enableElementProjection() {
+		this.enableElementProjection = true;
+
+		return this;
+	}
+
+	/**
+	 * Copy the date ranges of queries onto their retrieves. The libraries of
+	 * the library loader are changed, so a loader given to this seeder must
+	 * not be shared with seeders that do not push date ranges.
+	 *
+	 * @return this seeder
+	 */
+	public MeasureEvaluationSeeder enableDateRangePushdown() {
+		this.enableDateRangePushdown = true;
+
+		return this;
+	}
+
 	public IMeasureEvaluationSeed create(Measure measure, String periodStart, String periodEnd, String productLine, Map<String, Parameter> parameters) {
 		// Gather the primary library and all of its dependencies
 		List<Library> fhirLibraries = libraryDependencyGatherer.gatherForMeasure(measure);
@@ -84,7 +155,7 @@ public class MeasureEvaluationSeeder {
 		VersionedIdentifier libraryIdentifier = new VersionedIdentifier()
 				.withId(primaryFhirLibrary.getName())
 				.withVersion(primaryFhirLibrary.getVersion());
-		LibraryLoader libraryLoader = new R4TranslatingLibraryLoader(libraryResolver, new CqlToElmTranslator());
+		LibraryLoader libraryLoader = (this.libraryLoader != null) ? this.libraryLoader : new R4TranslatingLibraryLoader(libraryResolver, new CqlToElmTranslator());
 		org.cqframework.cql.elm.execution.Library primaryLibrary = libraryLoader.load(libraryIdentifier);
 		
 		List<Triple<String, String, String>> usingDefs = UsingHelper.getUsingUrlAndVersion(primaryLibrary.getUsings());
@@ -117,7 +188,35 @@ public class MeasureEvaluationSeeder {
 		Interval measurementPeriod = createMeasurePeriod(periodStart, periodEnd);
 		context.setParameter(null, MEASUREMENT_PERIOD, measurementPeriod);
 
-		return new CustomMeasureEvaluationSeed(measure, context, measurementPeriod, dataProvider);
+		if (enableTerminologyPrefetch) {
+			new TerminologyPrefetcher().prefetch(context);
+		}
+
+		// Dated retrieves are left out of plans, so date ranges are pushed down first
+		if (enableDateRangePushdown) {
+			// Seeds of the same loader share the libraries, so only one of them changes the libraries at a time
+			synchronized (libraryLoader) {
+				new RetrieveDateRangeOptimizer().optimize(context);
+			}
+		}
+
+		RetrievePlan retrievePlan = (enableRetrieveFusion && dataProvider instanceof RetrievePlanAware)
+				|| (enableRetrievePrefetch && dataProvider instanceof RetrievePrefetcher)
+				|| (enableElementProjection && dataProvider instanceof ElementProjectionAware)
+				? new RetrievePlanner().plan(context)
+				: null;
+		if (enableRetrieveFusion && dataProvider instanceof RetrievePlanAware) {
+			((RetrievePlanAware) dataProvider).setRetrievePlan(retrievePlan);
+		}
+		if (enableElementProjection && dataProvider instanceof ElementProjectionAware) {
+			((ElementProjectionAware) dataProvider).addElementRequirements(retrievePlan);
+		}
+		if (dataProvider instanceof DateRangeAware) {
+			((DateRangeAware) dataProvider).setWidenDateRanges(enableDateRangePushdown);
+		}
+
+		return new CustomMeasureEvaluationSeed(measure, context, measurementPeriod, dataProvider,
+				enableRetrievePrefetch && dataProvider instanceof RetrievePrefetcher ? retrievePlan : null);
 	}
 
 	protected Context createContext(
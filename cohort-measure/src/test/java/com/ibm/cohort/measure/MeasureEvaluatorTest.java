@@ -5,9 +5,14 @@
  */
 package com.ibm.cohort.measure;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.ibm.cohort.cql.cdm.CDMConstants.MEASURE_PARAMETER_URL;
 import static com.ibm.cohort.cql.cdm.CDMConstants.MEASURE_PARAMETER_VALUE_URL;
@@ -24,6 +29,7 @@ import static org.junit.Assert.fail;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -42,6 +48,7 @@ import org.hamcrest.Matchers;
 import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.Base64BinaryType;
 import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -49,6 +56,7 @@ import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.HumanName;
@@ -72,7 +80,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.cql.engine.exception.InvalidOperatorArgument;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 
+import com.ibm.cohort.cql.cache.DefaultRetrieveCacheContext;
+import com.ibm.cohort.cql.cache.RetrieveCacheContext;
 import com.ibm.cohort.cql.data.CqlDataProvider;
 import com.ibm.cohort.cql.evaluation.parameters.BooleanParameter;
 import com.ibm.cohort.cql.evaluation.parameters.CodeParameter;
@@ -145,6 +156,81 @@ public class MeasureEvaluatorTest extends MeasureTestBase {
 		verify(1, getRequestedFor(urlEqualTo("/Library?name%3Aexact=" + library.getName() + "&version=1.0.0&_format=json")));
 	}
 	
+	@Test
+	public void same_measure_multiple_patients___seed_reused() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		Patient patient1 = getPatient("123", AdministrativeGender.MALE, "1970-10-10");
+		mockFhirResourceRetrieval(patient1);
+		Patient patient2 = getPatient("456", AdministrativeGender.FEMALE, "1980-10-10");
+		mockFhirResourceRetrieval(patient2);
+
+		Library library = mockLibraryRetrieval("TestDummyPopulations", DEFAULT_VERSION, "cql/fhir-measure/test-dummy-populations.xml", ELM_MIME_TYPE);
+
+		Measure measure = getCohortMeasure("CohortMeasureName", library, INITIAL_POPULATION);
+		mockFhirResourceRetrieval(measure);
+
+		Map<String, Parameter> notInPopulation = new HashMap<>();
+		notInPopulation.put("InInitialPopulation", new BooleanParameter(false));
+
+		MeasureReport report1 = evaluator.evaluatePatientMeasure(measure.getId(), patient1.getId(), null);
+		MeasureReport report2 = evaluator.evaluatePatientMeasure(measure.getId(), patient2.getId(), null);
+		MeasureReport report3 = evaluator.evaluatePatientMeasure(measure.getId(), patient1.getId(), notInPopulation);
+
+		assertEquals("Patient/123", report1.getSubject().getReference());
+		assertEquals(1, report1.getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertEquals("Patient/456", report2.getSubject().getReference());
+		assertEquals(1, report2.getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertEquals(0, report3.getGroupFirstRep().getPopulationFirstRep().getCount());
+
+		// The library is loaded once for the seed and then shared with the
+		// seed created for the different parameter values.
+		verify(1, getRequestedFor(urlEqualTo("/Library?name%3Aexact=" + library.getName() + "&version=1.0.0&_format=json")));
+	}
+
+	@Test
+	public void parallel_measure_evaluation___reports_in_context_order() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		Patient patient = getPatient("123", AdministrativeGender.MALE, "1970-10-10");
+		mockFhirResourceRetrieval(patient);
+
+		Library library = mockLibraryRetrieval("TestDummyPopulations", DEFAULT_VERSION, "cql/fhir-measure/test-dummy-populations.xml", ELM_MIME_TYPE);
+
+		Measure measure1 = getCohortMeasure("CohortMeasureName1", library, INITIAL_POPULATION);
+		mockFhirResourceRetrieval(measure1);
+		Measure measure2 = getCohortMeasure("CohortMeasureName2", library, INITIAL_POPULATION);
+		mockFhirResourceRetrieval(measure2);
+
+		Map<String, Parameter> notInPopulation = new HashMap<>();
+		notInPopulation.put("InInitialPopulation", new BooleanParameter(false));
+
+		// The first measure is requested twice with the same settings so that both
+		// evaluations would otherwise share one seed.
+		List<MeasureContext> measureContexts = new ArrayList<>();
+		measureContexts.add(new MeasureContext(measure1.getId()));
+		measureContexts.add(new MeasureContext(measure2.getId(), notInPopulation));
+		measureContexts.add(new MeasureContext(measure1.getId()));
+		measureContexts.add(new MeasureContext(measure2.getId()));
+
+		evaluator.setMeasureThreads(4);
+		List<MeasureReport> reports = evaluator.evaluatePatientMeasures(patient.getId(), measureContexts);
+
+		assertEquals(4, reports.size());
+		String measure1Reference = "Measure/CohortMeasureName1/_history/" + MeasureTestBase.MEASURE_META_VERSION_ID;
+		String measure2Reference = "Measure/CohortMeasureName2/_history/" + MeasureTestBase.MEASURE_META_VERSION_ID;
+		assertEquals(measure1Reference, reports.get(0).getMeasure());
+		assertEquals(1, reports.get(0).getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertEquals(measure2Reference, reports.get(1).getMeasure());
+		assertEquals(0, reports.get(1).getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertEquals(measure1Reference, reports.get(2).getMeasure());
+		assertEquals(1, reports.get(2).getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertEquals(measure2Reference, reports.get(3).getMeasure());
+		assertEquals(1, reports.get(3).getGroupFirstRep().getPopulationFirstRep().getCount());
+	}
+
 	@Test
 	public void elm_and_cql_in_initial_population___cohort_evaluated_correctly() throws Exception {
 		CapabilityStatement metadata = getCapabilityStatement();
@@ -930,6 +1016,7 @@ public class MeasureEvaluatorTest extends MeasureTestBase {
 		mockFhirResourceRetrieval(patient1);
 		Patient patient2 = getPatient("2", AdministrativeGender.FEMALE, "1970-10-10");
 		mockFhirResourceRetrieval(patient2);
+		mockPatientSearch(Arrays.asList(patient1, patient2));
 
 		List<String> patientIds = new ArrayList<>();
 		patientIds.add(patient1.getId());
@@ -949,6 +1036,193 @@ public class MeasureEvaluatorTest extends MeasureTestBase {
 		assertThat(actualPatientIds, Matchers.containsInAnyOrder(patient1.getId(), patient2.getId()));
 	}
 
+	@Test
+	public void measure_patient_list_report_generated_in_parallel() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		List<String> patientIds = new ArrayList<>();
+		List<Patient> patients = new ArrayList<>();
+		for (int i = 1; i <= 5; i++) {
+			Patient patient = getPatient(String.valueOf(i), i % 2 == 0 ? AdministrativeGender.FEMALE : AdministrativeGender.MALE, "1970-10-10");
+			mockFhirResourceRetrieval(patient);
+			patients.add(patient);
+			patientIds.add(patient.getId());
+		}
+		mockPatientSearch(patients);
+
+		Library library = mockLibraryRetrieval("TestDummyPopulations", DEFAULT_VERSION, "cql/fhir-measure/test-dummy-populations.cql",
+		                                       "text/cql", "cql/fhir-measure/test-dummy-populations.xml", "application/elm+xml");
+
+		Measure measure = getCohortMeasure("CohortMeasureName", library, INITIAL_POPULATION);
+
+		MeasureReport expected = evaluator.evaluatePatientListMeasure(patientIds, measure, null, null);
+
+		CqlTerminologyProvider terminologyProvider = new R4RestFhirTerminologyProvider(client);
+		evaluator.setMeasureThreads(2);
+		evaluator.setPartitionDataProviderFactory(retrieveCacheContext -> R4DataProviderFactory.createDataProviderMap(client, terminologyProvider, retrieveCacheContext));
+		MeasureReport actual = evaluator.evaluatePatientListMeasure(patientIds, measure, null, null);
+
+		assertEquals(MeasureReport.MeasureReportType.SUBJECTLIST, actual.getType());
+		assertEquals(expected.getGroupFirstRep().getPopulationFirstRep().getCount(), actual.getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertEquals(5, actual.getGroupFirstRep().getPopulationFirstRep().getCount());
+
+		List<ListResource.ListEntryComponent> patientList = ((ListResource) actual.getContained().get(0)).getEntry();
+		List<String> actualPatientIds = patientList.stream().map(a -> StringUtils.removeStart(a.getItem().getReference(), "Patient/")).collect(Collectors.toList());
+		assertThat(actualPatientIds, Matchers.containsInAnyOrder(patientIds.toArray()));
+	}
+
+	@Test
+	public void measure_patient_list_in_parallel___each_partition_keeps_its_retrieve_cache() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		List<String> patientIds = new ArrayList<>();
+		List<Patient> patients = new ArrayList<>();
+		for (int i = 1; i <= 6; i++) {
+			Patient patient = getPatient(String.valueOf(i), AdministrativeGender.MALE, "1970-10-10");
+			mockFhirResourceRetrieval(patient);
+			patients.add(patient);
+			patientIds.add(patient.getId());
+		}
+		mockPatientSearch(patients);
+		Encounter encounter = new Encounter();
+		encounter.setId("enc");
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")), new Bundle().setType(Bundle.BundleType.SEARCHSET).addEntry(new Bundle.BundleEntryComponent().setResource(encounter)));
+
+		Library library = mockLibraryRetrieval("TestRepeatedRetrieve", DEFAULT_VERSION, "cql/fhir-measure/test-repeated-retrieve.cql");
+		Measure measure = getCohortMeasure("CohortMeasureName", library, INITIAL_POPULATION);
+
+		CqlTerminologyProvider terminologyProvider = new R4RestFhirTerminologyProvider(client);
+		FhirResourceResolver<Library> libraryResolver = R4FhirServerResourceResolverFactory.createLibraryResolver(client);
+		try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
+			Map<String, CqlDataProvider> dataProviders = R4DataProviderFactory.createDataProviderMap(client, terminologyProvider, retrieveCacheContext);
+			MeasureEvaluator cachingEvaluator = new MeasureEvaluator(R4FhirServerResourceResolverFactory.createMeasureResolver(client), libraryResolver,
+					new R4LibraryDependencyGatherer(libraryResolver), terminologyProvider, dataProviders);
+			cachingEvaluator.setMeasureThreads(3);
+			cachingEvaluator.setPartitionDataProviderFactory(partitionCacheContext -> R4DataProviderFactory.createDataProviderMap(client, terminologyProvider, partitionCacheContext));
+
+			MeasureReport report = cachingEvaluator.evaluatePatientListMeasure(patientIds, measure, null, null);
+
+			assertEquals(6, report.getGroupFirstRep().getPopulationFirstRep().getCount());
+		}
+
+		// Both retrieves of a patient are answered by one search
+		verify(6, getRequestedFor(urlPathEqualTo("/Encounter")));
+	}
+
+	@Test
+	public void measure_patient_list_summary_report_generated() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		List<String> patientIds = new ArrayList<>();
+		List<Patient> patients = new ArrayList<>();
+		for (int i = 1; i <= 5; i++) {
+			Patient patient = getPatient(String.valueOf(i), i % 2 == 0 ? AdministrativeGender.FEMALE : AdministrativeGender.MALE, "1970-10-10");
+			mockFhirResourceRetrieval(patient);
+			patients.add(patient);
+			patientIds.add(patient.getId());
+		}
+		mockPatientSearch(patients);
+
+		Library library = mockLibraryRetrieval("TestDummyPopulations", DEFAULT_VERSION, "cql/fhir-measure/test-dummy-populations.cql",
+		                                       "text/cql", "cql/fhir-measure/test-dummy-populations.xml", "application/elm+xml");
+
+		Measure measure = getCohortMeasure("CohortMeasureName", library, INITIAL_POPULATION);
+
+		List<String> subjects = Collections.synchronizedList(new ArrayList<>());
+		MeasureReport report = evaluator.evaluatePatientListSummaryMeasure(patientIds, measure, null, null, (groupIndex, type, subjectId) -> subjects.add(subjectId));
+
+		assertEquals(MeasureReport.MeasureReportType.SUMMARY, report.getType());
+		assertEquals(5, report.getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertTrue(report.getContained().isEmpty());
+		assertThat(subjects, Matchers.containsInAnyOrder(patientIds.toArray()));
+
+		subjects.clear();
+		evaluator.setMeasureThreads(2);
+		report = evaluator.evaluatePatientListSummaryMeasure(patientIds, measure, null, null, (groupIndex, type, subjectId) -> subjects.add(subjectId));
+
+		assertEquals(5, report.getGroupFirstRep().getPopulationFirstRep().getCount());
+		assertThat(subjects, Matchers.containsInAnyOrder(patientIds.toArray()));
+	}
+
+	@Test
+	public void measure_patient_list___patients_retrieved_in_one_search() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		List<String> patientIds = new ArrayList<>();
+		Bundle patients = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		for (int i = 1; i <= 3; i++) {
+			Patient patient = getPatient(String.valueOf(i), AdministrativeGender.MALE, "1970-10-10");
+			patients.addEntry().setResource(patient);
+			patientIds.add(patient.getId());
+		}
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Patient")).withQueryParam("_id", equalTo("1,2,3")), patients);
+
+		Library library = mockLibraryRetrieval("TestDummyPopulations", DEFAULT_VERSION, "cql/fhir-measure/test-dummy-populations.cql",
+		                                       "text/cql", "cql/fhir-measure/test-dummy-populations.xml", "application/elm+xml");
+
+		Measure measure = getCohortMeasure("CohortMeasureName", library, INITIAL_POPULATION);
+
+		CqlTerminologyProvider terminologyProvider = new R4RestFhirTerminologyProvider(client);
+		FhirResourceResolver<Library> libraryResolver = R4FhirServerResourceResolverFactory.createLibraryResolver(client);
+		try (RetrieveCacheContext retrieveCacheContext = new DefaultRetrieveCacheContext()) {
+			Map<String, CqlDataProvider> dataProviders = R4DataProviderFactory.createDataProviderMap(client, terminologyProvider, retrieveCacheContext);
+			MeasureEvaluator cachingEvaluator = new MeasureEvaluator(R4FhirServerResourceResolverFactory.createMeasureResolver(client), libraryResolver,
+					new R4LibraryDependencyGatherer(libraryResolver), terminologyProvider, dataProviders);
+
+			MeasureReport report = cachingEvaluator.evaluatePatientListMeasure(patientIds, measure, null, null);
+
+			assertEquals(3, report.getGroupFirstRep().getPopulationFirstRep().getCount());
+		}
+
+		verify(1, getRequestedFor(urlPathEqualTo("/Patient")));
+		verify(0, getRequestedFor(urlMatching("/Patient/.*")));
+	}
+
+	@Test
+	public void push_date_ranges___shared_library_loader_unchanged_for_other_evaluators() throws Exception {
+		CapabilityStatement metadata = getCapabilityStatement();
+		mockFhirResourceRetrieval("/metadata?_format=json", metadata);
+
+		Patient patient = getPatient("123", AdministrativeGender.MALE, "1970-10-10");
+		mockFhirResourceRetrieval(patient);
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Encounter")), new Bundle().setType(Bundle.BundleType.SEARCHSET));
+
+		Library fhirHelpers = mockLibraryRetrieval("FHIRHelpers", "4.0.0", "cql/fhir-helpers/FHIRHelpers.cql");
+		Library library = mockLibraryRetrieval("TestDateRange", DEFAULT_VERSION, "cql/fhir-measure/test-date-range.cql");
+		library.addRelatedArtifact(asRelation(fhirHelpers));
+
+		Measure measure = getCohortMeasure("CohortMeasureName", library, INITIAL_POPULATION);
+		mockFhirResourceRetrieval(measure);
+
+		CqlTerminologyProvider terminologyProvider = new R4RestFhirTerminologyProvider(client);
+		FhirResourceResolver<Measure> measureResolver = R4FhirServerResourceResolverFactory.createMeasureResolver(client);
+		FhirResourceResolver<Library> libraryResolver = R4FhirServerResourceResolverFactory.createLibraryResolver(client);
+		R4LibraryDependencyGatherer libraryDependencyGatherer = new R4LibraryDependencyGatherer(libraryResolver);
+		Map<String, CqlDataProvider> dataProviders = R4DataProviderFactory.createDataProviderMap(client, terminologyProvider, null);
+		LibraryLoader libraryLoader = MeasureEvaluator.createLibraryLoader(libraryResolver);
+
+		MeasureEvaluator pushingEvaluator = new MeasureEvaluator(measureResolver, libraryResolver, libraryDependencyGatherer, terminologyProvider, dataProviders, libraryLoader);
+		pushingEvaluator.setPushDateRanges(true);
+		MeasureEvaluator otherEvaluator = new MeasureEvaluator(measureResolver, libraryResolver, libraryDependencyGatherer, terminologyProvider, dataProviders, libraryLoader);
+
+		assertNotNull(pushingEvaluator.evaluatePatientMeasure(measure.getId(), patient.getId(), null));
+		assertNotNull(otherEvaluator.evaluatePatientMeasure(measure.getId(), patient.getId(), null));
+
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter")).withQueryParam("date", matching(".+")));
+		// The evaluator that does not push date ranges still gets undated retrieves
+		verify(1, getRequestedFor(urlPathEqualTo("/Encounter")).withQueryParam("date", absent()));
+	}
+
+	private void mockPatientSearch(List<Patient> patients) {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		patients.forEach(patient -> bundle.addEntry().setResource(patient));
+		mockFhirResourceRetrieval(get(urlPathEqualTo("/Patient")).withQueryParam("_id", matching(".+")), bundle);
+	}
+
 	private void validateBooleanEvidence(Extension evidenceExtension, Boolean expectedValue) {
 		String name = evidenceExtension.getExtensionByUrl(CDMConstants.EVIDENCE_TEXT_URL).getValue().toString();
 		assertEquals("cql define " + name + " did not match expected value",
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.artifact;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class MeasureArtifactRegistryTest {
+
+	private final FhirContext fhirContext = FhirContext.forR4();
+
+	@Test
+	public void register_sameContent___parsedOnce() throws IOException {
+		MeasureArtifactRegistry registry = new MeasureArtifactRegistry(fhirContext);
+		byte[] content = createPackage("measure-1");
+
+		MeasureArtifacts artifacts = registry.register(content);
+
+		assertEquals(MeasureArtifactRegistry.computeHandle(content), artifacts.getHandle());
+		assertSame(artifacts, registry.register(content, artifacts.getHandle()));
+		assertSame(artifacts, registry.get(artifacts.getHandle()));
+		assertNotNull(artifacts.getMeasureResolver().resolveById("measure-1"));
+		assertNotNull(artifacts.getLibraryResolver().resolveById("library-measure-1"));
+		assertEquals(content.length, registry.getTotalBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void register_handleDoesNotMatchContent___rejected() throws IOException {
+		new MeasureArtifactRegistry(fhirContext).register(createPackage("measure-1"), "not-the-hash");
+	}
+
+	@Test
+	public void register_overMaxEntries___leastRecentlyUsedEvicted() throws IOException {
+		MeasureArtifactRegistry registry = new MeasureArtifactRegistry(fhirContext, 2, Long.MAX_VALUE);
+		MeasureArtifacts first = registry.register(createPackage("measure-1"));
+		MeasureArtifacts second = registry.register(createPackage("measure-2"));
+
+		// Using the first package makes the second the least recently used
+		registry.get(first.getHandle());
+		registry.register(createPackage("measure-3"));
+
+		assertEquals(2, registry.size());
+		assertNotNull(registry.get(first.getHandle()));
+		assertNull(registry.get(second.getHandle()));
+	}
+
+	@Test
+	public void register_overMaxBytes___evictedUntilUnderLimit() throws IOException {
+		byte[] content = createPackage("measure-1");
+		MeasureArtifactRegistry registry = new MeasureArtifactRegistry(fhirContext, 10, content.length);
+		MeasureArtifacts first = registry.register(content);
+		MeasureArtifacts second = registry.register(createPackage("measure-2"));
+
+		assertNull(registry.get(first.getHandle()));
+		assertSame(second, registry.get(second.getHandle()));
+		assertEquals(1, registry.size());
+		assertEquals(second.getSize(), registry.getTotalBytes());
+	}
+
+	private byte[] createPackage(String measureId) throws IOException {
+		Library library = new Library();
+		library.setId("library-" + measureId);
+		library.setName("Library" + measureId.replace("-", ""));
+		library.setVersion("1.0.0");
+		library.setUrl("http://ibm.com/health/Library/" + library.getName());
+
+		Measure measure = new Measure();
+		measure.setId(measureId);
+		measure.setName(measureId);
+		measure.setVersion("1.0.0");
+		measure.setUrl("http://ibm.com/health/Measure/" + measureId);
+		measure.addLibrary(library.getUrl());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry("fhirResources/" + measureId + ".json"));
+			zip.write(fhirContext.newJsonParser().encodeResourceToString(measure).getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("fhirResources/libraries/" + library.getName() + ".json"));
+			zip.write(fhirContext.newJsonParser().encodeResourceToString(library).getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.cqfruler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+
+public class CDMContextTest {
+
+	private static final VersionedIdentifier HELPERS = new VersionedIdentifier().withId("Helpers").withVersion("1.0.0");
+
+	@Test
+	public void sharedExpressionCache___included_library_results_shared() {
+		SharedExpressionCache sharedExpressionCache = new SharedExpressionCache();
+		CDMContext first = createContext("MeasureA", sharedExpressionCache);
+		CDMContext second = createContext("MeasureB", sharedExpressionCache);
+
+		first.addExpressionToCache(HELPERS, "Encounters", "encounters");
+		first.addExpressionToCache(HELPERS, "Nothing", null);
+		first.addExpressionToCache(first.getCurrentLibrary().getIdentifier(), "Numerator", Boolean.TRUE);
+
+		assertTrue(second.isExpressionInCache(HELPERS, "Encounters"));
+		assertEquals("encounters", second.getExpressionResultFromCache(HELPERS, "Encounters"));
+		assertTrue(second.isExpressionInCache(HELPERS, "Nothing"));
+		assertNull(second.getExpressionResultFromCache(HELPERS, "Nothing"));
+		assertEquals(2, sharedExpressionCache.size());
+	}
+
+	@Test
+	public void sharedExpressionCache_different_parameters___results_not_shared() {
+		SharedExpressionCache sharedExpressionCache = new SharedExpressionCache();
+		CDMContext first = createContext("MeasureA", sharedExpressionCache);
+		CDMContext second = createContext("MeasureB", sharedExpressionCache);
+		second.setParameter(null, "Product Line", "Other");
+
+		first.addExpressionToCache(HELPERS, "Encounters", "encounters");
+
+		assertFalse(second.isExpressionInCache(HELPERS, "Encounters"));
+	}
+
+	@Test
+	public void sharedExpressionCache_different_patient___results_not_shared() {
+		SharedExpressionCache sharedExpressionCache = new SharedExpressionCache();
+		CDMContext first = createContext("MeasureA", sharedExpressionCache);
+		CDMContext second = createContext("MeasureB", sharedExpressionCache);
+		second.setContextValue("Patient", "456");
+
+		first.addExpressionToCache(HELPERS, "Encounters", "encounters");
+		assertFalse(second.isExpressionInCache(HELPERS, "Encounters"));
+
+		// The first result for another patient replaces the previous patient's results
+		second.addExpressionToCache(HELPERS, "Encounters", "other encounters");
+		assertEquals(1, sharedExpressionCache.size());
+	}
+
+	private CDMContext createContext(String libraryName, SharedExpressionCache sharedExpressionCache) {
+		Library library = new Library().withIdentifier(new VersionedIdentifier().withId(libraryName).withVersion("1.0.0"));
+		CDMContext context = new CDMContext(library);
+		context.setParameter(null, "Product Line", "ProductLine");
+		context.setContextValue("Patient", "123");
+		context.setSharedExpressionCache(sharedExpressionCache);
+		return context;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.cqfruler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+import com.ibm.cohort.measure.cqfruler.MeasureEvaluationResults.GroupResults;
+
+public class MeasureEvaluationResultsTest {
+
+	@Test
+	public void merge_populationsCombinedInOrder() {
+		Patient patient1 = patient("1");
+		Patient patient2 = patient("2");
+		Patient patient3 = patient("3");
+
+		MeasureEvaluationResults first = new MeasureEvaluationResults(Arrays.asList(patient1, patient2));
+		GroupResults firstGroup = first.addGroup();
+		firstGroup.addPopulation(MeasurePopulationType.DENOMINATOR, true);
+		firstGroup.getResources(MeasurePopulationType.DENOMINATOR).add("1", patient1);
+		firstGroup.getResources(MeasurePopulationType.DENOMINATOR).add("2", patient2);
+		firstGroup.getPatients(MeasurePopulationType.DENOMINATOR).add("1", patient1);
+		firstGroup.getPatients(MeasurePopulationType.DENOMINATOR).add("2", patient2);
+
+		// A later part of the list removes a resource that an earlier part added
+		MeasureEvaluationResults second = new MeasureEvaluationResults(Collections.singletonList(patient3));
+		GroupResults secondGroup = second.addGroup();
+		secondGroup.addPopulation(MeasurePopulationType.DENOMINATOR, true);
+		secondGroup.getResources(MeasurePopulationType.DENOMINATOR).add("3", patient3);
+		secondGroup.getResources(MeasurePopulationType.DENOMINATOR).remove("1");
+		secondGroup.getPatients(MeasurePopulationType.DENOMINATOR).add("3", patient3);
+
+		MeasureEvaluationResults merged = new MeasureEvaluationResults();
+		merged.merge(first);
+		merged.merge(second);
+
+		assertEquals(Arrays.asList(patient1, patient2, patient3), merged.getPatients());
+		assertEquals(1, merged.getGroups().size());
+		GroupResults group = merged.getGroups().get(0);
+		assertEquals(new HashSet<Resource>(Arrays.asList(patient2, patient3)), new HashSet<>(group.getResources(MeasurePopulationType.DENOMINATOR).values()));
+		assertEquals(3, group.getPatients(MeasurePopulationType.DENOMINATOR).size());
+		assertNull(group.getResources(MeasurePopulationType.NUMERATOR));
+	}
+
+	@Test
+	public void merge_accumulatorsSummed() {
+		MeasureEvaluationResults first = new MeasureEvaluationResults();
+		first.getSdeAccumulators().put(MeasureSupplementalDataEvaluation.SDE_SEX, new HashMap<>(Collections.singletonMap("M", 2)));
+		first.getCodeToResourceMap().put("initial-population", new HashSet<>(Collections.singletonList("Patient/1")));
+
+		MeasureEvaluationResults second = new MeasureEvaluationResults();
+		Map<String, Integer> secondSex = new HashMap<>();
+		secondSex.put("M", 1);
+		secondSex.put("F", 3);
+		second.getSdeAccumulators().put(MeasureSupplementalDataEvaluation.SDE_SEX, secondSex);
+		second.getCodeToResourceMap().put("initial-population", new HashSet<>(Collections.singletonList("Patient/2")));
+
+		first.merge(second);
+
+		Map<String, Integer> sex = first.getSdeAccumulators().get(MeasureSupplementalDataEvaluation.SDE_SEX);
+		assertEquals(3, sex.get("M").intValue());
+		assertEquals(3, sex.get("F").intValue());
+		assertEquals(new HashSet<>(Arrays.asList("Patient/1", "Patient/2")), first.getCodeToResourceMap().get("initial-population"));
+	}
+
+	@Test
+	public void merge_codingsKept() {
+		MeasureEvaluationResults first = new MeasureEvaluationResults();
+		first.getSdeCodings().put("sde-race", new HashMap<>(Collections.singletonMap("2106-3", new Coding("urn:oid:2.16.840.1.113883.6.238", "2106-3", "White"))));
+
+		MeasureEvaluationResults second = new MeasureEvaluationResults();
+		second.getSdeCodings().put("sde-race", new HashMap<>(Collections.singletonMap("2028-9", new Coding("urn:oid:2.16.840.1.113883.6.238", "2028-9", "Asian"))));
+
+		first.merge(second);
+
+		Map<String, Coding> race = first.getSdeCodings().get("sde-race");
+		assertEquals("White", race.get("2106-3").getDisplay());
+		assertEquals("Asian", race.get("2028-9").getDisplay());
+	}
+
+	@Test
+	public void summarize_membersReplacedWithCounts() {
+		Patient patient1 = patient("1");
+		Patient patient2 = patient("2");
+
+		MeasureEvaluationResults results = new MeasureEvaluationResults(Arrays.asList(patient1, patient2));
+		GroupResults group = results.addGroup();
+		group.addPopulation(MeasurePopulationType.NUMERATOR, true);
+		group.getResources(MeasurePopulationType.NUMERATOR).add("1", patient1);
+		group.getResources(MeasurePopulationType.NUMERATOR).add("2", patient2);
+		group.getPatients(MeasurePopulationType.NUMERATOR).add("1", patient1);
+		group.getPatients(MeasurePopulationType.NUMERATOR).add("2", patient2);
+
+		List<String> subjects = new ArrayList<>();
+		results.summarize((groupIndex, type, subjectId) -> subjects.add(groupIndex + "|" + type.toCode() + "|" + subjectId));
+
+		assertEquals(new HashSet<>(Arrays.asList("0|numerator|1", "0|numerator|2")), new HashSet<>(subjects));
+		assertEquals(2, group.getPatients(MeasurePopulationType.NUMERATOR).size());
+		assertTrue(group.getPatients(MeasurePopulationType.NUMERATOR).values().isEmpty());
+		assertEquals(2, group.getResources(MeasurePopulationType.NUMERATOR).size());
+		assertTrue(results.getPatients().isEmpty());
+		assertEquals(2, results.getPatientCount());
+
+		MeasureEvaluationResults merged = new MeasureEvaluationResults();
+		merged.merge(results);
+		merged.merge(results);
+		assertEquals(4, merged.getGroups().get(0).getPatients(MeasurePopulationType.NUMERATOR).size());
+		assertEquals(4, merged.getPatientCount());
+	}
+
+	private Patient patient(String id) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		return patient;
+	}
+}
@@ -286,6 +286,41 @@ public class MeasureSupplementalDataEvaluationTest extends FhirTestBase {
 		assertEquals(WHITE_CODE, ((CodeableConcept)obs.getValue()).getCoding().get(0).getCode());
 	}
 	
+	@Test
+	public void testProcessAccumulators_accumulatedCodings() {
+		Code white = new Code();
+		white.setCode(WHITE_CODE);
+
+		Patient mockPatient = mockPatient();
+		Extension raceExtension = new Extension();
+		raceExtension.setUrl("something-race");
+		Extension valueExtension = new Extension();
+		valueExtension.setUrl("ombCategory");
+		valueExtension.setValue(getWhiteCoding());
+		raceExtension.setExtension(Arrays.asList(valueExtension));
+		Mockito.when(mockPatient.getExtension()).thenReturn(Arrays.asList(raceExtension));
+
+		ExpressionDef mockExpressionDef = Mockito.mock(ExpressionDef.class);
+		CDMContext context = Mockito.mock(CDMContext.class);
+		Mockito.when(context.resolveExpressionRef(SDE_RACE)).thenReturn(mockExpressionDef);
+		Mockito.when(mockExpressionDef.evaluate(context)).thenReturn(white);
+
+		Map<String, Map<String, Integer>> sdeAccumulators = new HashMap<>();
+		Map<String, Map<String, Coding>> sdeCodings = new HashMap<>();
+		MeasureSupplementalDataEvaluation.populateSDEAccumulators(context, mockPatient, sdeAccumulators, sdeCodings, Arrays.asList(createSupplementalDataComponent(SDE_RACE, null)));
+
+		// The code system and display are found without the patients
+		MeasureReport report = new MeasureReport();
+		MeasureSupplementalDataEvaluation.processAccumulators(report, sdeAccumulators, sdeCodings, false);
+
+		Observation obs = (Observation) report.getContained().get(0);
+		Coding coding = obs.getCode().getCodingFirstRep();
+		assertEquals(WHITE_CODE, coding.getCode());
+		assertEquals(getWhiteCoding().getSystem(), coding.getSystem());
+		assertEquals(getWhiteCoding().getDisplay(), coding.getDisplay());
+		assertEquals(1, ((IntegerType) obs.getValue()).getValue().intValue());
+	}
+	
 	private Patient mockPatient() {
 		Patient patient = Mockito.mock(Patient.class);
 		IdType patientId = new IdType();
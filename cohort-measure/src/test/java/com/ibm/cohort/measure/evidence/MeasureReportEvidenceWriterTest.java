@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.evidence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+
+import com.ibm.cohort.cql.cdm.CDMConstants;
+import com.ibm.cohort.measure.cqfruler.CDMContext;
+import com.ibm.cohort.measure.evidence.MeasureEvidenceOptions.DefineReturnOptions;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class MeasureReportEvidenceWriterTest {
+
+	private final FhirContext fhirContext = FhirContext.forR4();
+
+	@Test
+	public void write_allDefines___sameAsMaterializedReport() throws IOException {
+		assertStreamedMatchesMaterialized(createDefineContext(patientWithId("123")), DefineReturnOptions.ALL);
+	}
+
+	@Test
+	public void write_booleanDefines___sameAsMaterializedReport() throws IOException {
+		assertStreamedMatchesMaterialized(createDefineContext(patientWithId("123")), DefineReturnOptions.BOOLEAN);
+	}
+
+	@Test
+	public void write_resourceWithoutId___sameAsMaterializedReport() throws IOException {
+		assertStreamedMatchesMaterialized(createDefineContext(new Patient()), DefineReturnOptions.ALL);
+	}
+
+	@Test
+	public void write_noEvidenceReturned___sameAsReportWithoutEvidence() throws IOException {
+		CDMContext defineContext = new CDMContext(new Library());
+		defineContext.addExpressionToCache(libraryId("Library1"), "Define 1", "not a boolean");
+
+		assertStreamedMatchesMaterialized(defineContext, DefineReturnOptions.BOOLEAN);
+	}
+
+	@Test
+	public void prepare_placeholderBetweenExtensions___writtenAfterReportIsPrepared() throws IOException {
+		DeferredDefineResults deferred = new DeferredDefineResults(createDefineContext(patientWithId("123")).getEntriesInCache(), DefineReturnOptions.ALL);
+
+		MeasureReport materialized = createReport();
+		materialized.addExtension(parameterExtension());
+		materialized.getExtension().addAll(deferred.toExtensions());
+		materialized.addExtension(parameterExtension());
+
+		MeasureReport streamed = createReport();
+		streamed.addExtension(parameterExtension());
+		streamed.addExtension(deferred.toPlaceholder());
+		streamed.addExtension(parameterExtension());
+
+		MeasureReportEvidenceWriter.EncodedReport encoded = new MeasureReportEvidenceWriter(fhirContext).prepare(streamed);
+		// The placeholder is left without a value once the report is prepared
+		assertFalse(streamed.getExtension().get(1).hasValue());
+
+		StringWriter writer = new StringWriter();
+		encoded.writeTo(writer);
+		assertEquals(fhirContext.newJsonParser().encodeResourceToString(materialized), writer.toString());
+	}
+
+	private void assertStreamedMatchesMaterialized(CDMContext defineContext, DefineReturnOptions defineOption) throws IOException {
+		DeferredDefineResults deferred = new DeferredDefineResults(defineContext.getEntriesInCache(), defineOption);
+
+		MeasureReport materialized = createReport();
+		materialized.getExtension().addAll(deferred.toExtensions());
+		materialized.addExtension(parameterExtension());
+
+		MeasureReport streamed = createReport();
+		Extension placeholder = deferred.toPlaceholder();
+		streamed.addExtension(placeholder);
+		streamed.addExtension(parameterExtension());
+
+		StringWriter writer = new StringWriter();
+		new MeasureReportEvidenceWriter(fhirContext).write(streamed, writer);
+
+		assertEquals(fhirContext.newJsonParser().encodeResourceToString(materialized), writer.toString());
+		// The report is left as it was found
+		assertEquals(2, streamed.getExtension().size());
+		assertSame(placeholder, streamed.getExtension().get(0));
+	}
+
+	private MeasureReport createReport() {
+		MeasureReport report = new MeasureReport();
+		report.setId("report");
+		report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+		report.setMeasure("Measure/measure");
+		return report;
+	}
+
+	private Extension parameterExtension() {
+		return new Extension(CDMConstants.MEASURE_PARAMETER_VALUE_URL, new StringType("ProductLine"));
+	}
+
+	private CDMContext createDefineContext(Patient patient) {
+		CDMContext defineContext = new CDMContext(new Library());
+		defineContext.addExpressionToCache(libraryId("Library1"), "Define 1", true);
+		defineContext.addExpressionToCache(libraryId("Library1"), "Define 2", "Hello");
+		defineContext.addExpressionToCache(libraryId("Library2"), "Define 1", patient);
+		defineContext.addExpressionToCache(libraryId("Library2"), "Define 2", Arrays.asList(1, 2.5, false));
+		defineContext.addExpressionToCache(libraryId("Library2"), "Define 3", false);
+		return defineContext;
+	}
+
+	private Patient patientWithId(String id) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		return patient;
+	}
+
+	private VersionedIdentifier libraryId(String name) {
+		return new VersionedIdentifier().withId(name).withVersion("1.0.0");
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.ibm.cohort.measure.seed;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import com.ibm.cohort.cql.evaluation.parameters.IntegerParameter;
+import com.ibm.cohort.cql.evaluation.parameters.Parameter;
+
+public class MeasureEvaluationSeedCacheTest {
+
+    private final String periodStart = "2020-01-01";
+    private final String periodEnd = "2021-01-01";
+    private final String productLine = "productLine";
+
+    private MeasureEvaluationSeeder seeder;
+    private MeasureEvaluationSeedCache cache;
+
+    @Before
+    public void setUp() {
+        seeder = Mockito.mock(MeasureEvaluationSeeder.class);
+        Mockito.when(seeder.create(ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any()))
+                .thenAnswer(invocation -> createSeed(invocation.getArgument(0)));
+
+        cache = new MeasureEvaluationSeedCache();
+    }
+
+    @Test
+    public void getOrCreate_sameKeyReused() {
+        Measure measure = new Measure();
+        measure.setId("measure-id");
+
+        IMeasureEvaluationSeed first = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, null);
+        IMeasureEvaluationSeed second = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, null);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, cache.size());
+        Mockito.verify(seeder, Mockito.times(1)).create(measure, periodStart, periodEnd, productLine, null);
+
+        // Per-evaluation state is cleared every time the seed is handed out
+        Mockito.verify(first.getContext(), Mockito.times(2)).clearExpressions();
+        Mockito.verify(first.getContext(), Mockito.times(2)).clearEvaluatedResources();
+    }
+
+    @Test
+    public void getOrCreate_parametersAreKeyed() {
+        Measure measure = new Measure();
+        measure.setId("measure-id");
+
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put("Integer", new IntegerParameter(10));
+
+        IMeasureEvaluationSeed first = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, parameters);
+        IMeasureEvaluationSeed second = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, Collections.singletonMap("Integer", new IntegerParameter(10)));
+        IMeasureEvaluationSeed third = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, Collections.singletonMap("Integer", new IntegerParameter(11)));
+        IMeasureEvaluationSeed fourth = cache.getOrCreate(seeder, measure, periodStart, "2022-01-01", productLine, parameters);
+
+        Assert.assertSame(first, second);
+        Assert.assertNotSame(first, third);
+        Assert.assertNotSame(first, fourth);
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void getOrCreate_measureVersionsAreKeyed() {
+        Measure measure = new Measure();
+        measure.setId("measure-id");
+        measure.setUrl("http://test/Measure/measure");
+        measure.setVersion("1.0.0");
+
+        Measure otherVersion = measure.copy();
+        otherVersion.setVersion("2.0.0");
+
+        IMeasureEvaluationSeed first = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, null);
+        IMeasureEvaluationSeed second = cache.getOrCreate(seeder, otherVersion, periodStart, periodEnd, productLine, null);
+
+        Assert.assertNotSame(first, second);
+    }
+
+    @Test
+    public void getOrCreate_anonymousMeasureNotCached() {
+        Measure measure = new Measure();
+
+        IMeasureEvaluationSeed first = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, null);
+        IMeasureEvaluationSeed second = cache.getOrCreate(seeder, measure, periodStart, periodEnd, productLine, null);
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void getOrCreate_overMaxEntries_leastRecentlyUsedEvicted() {
+        cache = new MeasureEvaluationSeedCache(2);
+        Measure first = new Measure();
+        first.setId("first");
+        Measure second = new Measure();
+        second.setId("second");
+        Measure third = new Measure();
+        third.setId("third");
+
+        IMeasureEvaluationSeed firstSeed = cache.getOrCreate(seeder, first, periodStart, periodEnd, productLine, null);
+        cache.getOrCreate(seeder, second, periodStart, periodEnd, productLine, null);
+        // Using the first seed again makes the second one the least recently used
+        cache.getOrCreate(seeder, first, periodStart, periodEnd, productLine, null);
+        cache.getOrCreate(seeder, third, periodStart, periodEnd, productLine, null);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertSame(firstSeed, cache.getOrCreate(seeder, first, periodStart, periodEnd, productLine, null));
+        cache.getOrCreate(seeder, second, periodStart, periodEnd, productLine, null);
+        Mockito.verify(seeder, Mockito.times(2)).create(second, periodStart, periodEnd, productLine, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalidMaxEntries() {
+        new MeasureEvaluationSeedCache(0);
+    }
+
+    private IMeasureEvaluationSeed createSeed(Measure measure) {
+        return new CustomMeasureEvaluationSeed(measure, Mockito.mock(Context.class), null, null);
+    }
+}
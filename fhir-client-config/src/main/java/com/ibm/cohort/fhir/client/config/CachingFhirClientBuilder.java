@@ -0,0 +1,287 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.fhir.client.config;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+
+/**
+ * FhirClientBuilder that returns the same IGenericClient for every
+ * FhirServerConfig with the same settings. All clients share one pooled HTTP
+ * connection manager, so connections to a server are reused across requests.
+ *
+ * HAPI sends every request through the restful client factory of the
+ * FhirContext, so the builder replaces that factory with one backed by the
+ * pooled HTTP client when it is created. The FhirContext should not be used
+ * to create clients with other settings afterwards. Unlike
+ * {@link DefaultFhirClientBuilder}, the timeouts of a config are applied to
+ * the requests of the client created for it and the factory is never changed
+ * again, so a single builder can be shared by any number of threads for the
+ * life of the application.
+ *
+ * The clients are kept in a least recently used cache. Dropping a client
+ * from the cache does not affect requests that are still using it.
+ */
+public class CachingFhirClientBuilder implements FhirClientBuilder, Closeable {
+
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 200;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30_000L;
+	public static final int DEFAULT_MAX_CLIENTS = 100;
+
+	private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2_000;
+
+	private final FhirContext fhirContext;
+	private final long keepAliveMillis;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final Map<ClientKey, IGenericClient> clients;
+
+	public CachingFhirClientBuilder(FhirContext fhirContext) {
+		this(fhirContext, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_KEEP_ALIVE_MILLIS, DEFAULT_MAX_CLIENTS);
+	}
+
+	/**
+	 * @param fhirContext         FhirContext used to create the clients
+	 * @param maxTotalConnections maximum number of pooled connections
+	 * @param maxPerRoute         maximum number of pooled connections to one server
+	 * @param keepAliveMillis     how long an idle connection is kept when the
+	 *                            server does not ask for a shorter time
+	 * @param maxClients          maximum number of clients kept in the cache
+	 */
+	public CachingFhirClientBuilder(FhirContext fhirContext, int maxTotalConnections, int maxPerRoute, long keepAliveMillis, int maxClients) {
+		if (maxTotalConnections < 1 || maxPerRoute < 1 || maxClients < 1) {
+			throw new IllegalArgumentException("FHIR client pool sizes must be >= 1");
+		}
+		if (keepAliveMillis < 0) {
+			throw new IllegalArgumentException("FHIR client keep-alive must be >= 0");
+		}
+
+		this.fhirContext = fhirContext;
+		this.keepAliveMillis = keepAliveMillis;
+
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		this.connectionManager.setMaxTotal(maxTotalConnections);
+		this.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+		RequestConfig defaultRequestConfig = RequestConfig.custom()
+				.setSocketTimeout(IRestfulClientFactory.DEFAULT_SOCKET_TIMEOUT)
+				.setConnectTimeout(IRestfulClientFactory.DEFAULT_CONNECT_TIMEOUT)
+				.setConnectionRequestTimeout(IRestfulClientFactory.DEFAULT_CONNECTION_REQUEST_TIMEOUT)
+				.build();
+		CloseableHttpClient httpClient = HttpClients.custom()
+				.useSystemProperties()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(this::getKeepAliveDuration)
+				.setDefaultRequestConfig(defaultRequestConfig)
+				.disableCookieManagement()
+				.build();
+
+		ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(fhirContext);
+		clientFactory.setServerValidationMode(fhirContext.getRestfulClientFactory().getServerValidationMode());
+		clientFactory.setHttpClient(httpClient);
+		fhirContext.setRestfulClientFactory(clientFactory);
+
+		this.clients = new LinkedHashMap<ClientKey, IGenericClient>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ClientKey, IGenericClient> eldest) {
+				return size() > maxClients;
+			}
+		};
+	}
+
+	/**
+	 * Return the cached client for the provided FhirServerConfig, creating it
+	 * if no config with the same settings has been seen.
+	 *
+	 * @param config FhirServerConfig containing configuration details for the HAPI
+	 *               client
+	 * @return configured HAPI FHIR client
+	 */
+	@Override
+	public IGenericClient createFhirClient(FhirServerConfig config) {
+		ClientKey key = new ClientKey(config);
+		synchronized (clients) {
+			return clients.computeIfAbsent(key, k -> newClient(config, k));
+		}
+	}
+
+	/**
+	 * @return usage of the shared connection pool
+	 */
+	public FhirClientPoolStats getPoolStats() {
+		PoolStats totals = connectionManager.getTotalStats();
+		int cachedClients;
+		synchronized (clients) {
+			cachedClients = clients.size();
+		}
+		return new FhirClientPoolStats(
+				totals.getLeased(),
+				totals.getPending(),
+				totals.getAvailable(),
+				totals.getMax(),
+				connectionManager.getRoutes().size(),
+				cachedClients
+		);
+	}
+
+	/**
+	 * Drop every cached client and close the pooled connections.
+	 */
+	@Override
+	public void close() {
+		synchronized (clients) {
+			clients.clear();
+		}
+		connectionManager.close();
+	}
+
+	private IGenericClient newClient(FhirServerConfig config, ClientKey key) {
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setSocketTimeout(key.socketTimeout)
+				.setConnectTimeout(key.connectTimeout)
+				.setConnectionRequestTimeout(key.connectionRequestTimeout)
+				.build();
+
+		IGenericClient client = fhirContext.newRestfulGenericClient(config.getEndpoint());
+		FhirClientConfigurer.configureClient(client, config);
+		client.registerInterceptor(new RequestConfigInterceptor(requestConfig));
+		return client;
+	}
+
+	private long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+		long serverDuration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+		return serverDuration > 0 ? Math.min(serverDuration, keepAliveMillis) : keepAliveMillis;
+	}
+
+	/**
+	 * Applies the timeouts of one client to each of its requests.
+	 */
+	private static final class RequestConfigInterceptor implements IClientInterceptor {
+		private final RequestConfig requestConfig;
+
+		RequestConfigInterceptor(RequestConfig requestConfig) {
+			this.requestConfig = requestConfig;
+		}
+
+		@Override
+		public void interceptRequest(IHttpRequest request) {
+			if (request instanceof ApacheHttpRequest) {
+				((ApacheHttpRequest) request).getApacheRequest().setConfig(requestConfig);
+			}
+		}
+
+		@Override
+		public void interceptResponse(IHttpResponse response) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * The settings of a FhirServerConfig that affect the client created from
+	 * it. Configs that only differ in ways that produce the same client, such
+	 * as a trailing slash on the endpoint or the order of headers, share a key.
+	 */
+	private static final class ClientKey {
+		private final String endpoint;
+		private final String user;
+		private final String password;
+		private final String token;
+		private final Map<String, String> headers;
+		private final Map<String, String> additionalHeaders;
+		private final List<String> cookies;
+		private final Set<FhirServerConfig.LogInfo> logInfo;
+		private final int socketTimeout;
+		private final int connectTimeout;
+		private final int connectionRequestTimeout;
+
+		ClientKey(FhirServerConfig config) {
+			this.endpoint = normalizeEndpoint(config.getEndpoint());
+			this.user = config.getUser();
+			this.password = config.getPassword();
+			this.token = config.getToken();
+			this.headers = config.getHeaders() == null ? null : new TreeMap<>(config.getHeaders());
+			this.additionalHeaders = new TreeMap<>(config.getAdditionalHeaders());
+			this.cookies = config.getCookies() == null ? null : new ArrayList<>(config.getCookies());
+			if (config.getLogInfo() == null) {
+				this.logInfo = null;
+			}
+			else {
+				this.logInfo = EnumSet.noneOf(FhirServerConfig.LogInfo.class);
+				this.logInfo.addAll(config.getLogInfo());
+			}
+			this.socketTimeout = FhirClientConfigurer.validateAndGetTimeoutConfig(config.getSocketTimeout(), IRestfulClientFactory.DEFAULT_SOCKET_TIMEOUT);
+			this.connectTimeout = FhirClientConfigurer.validateAndGetTimeoutConfig(config.getConnectTimeout(), IRestfulClientFactory.DEFAULT_CONNECT_TIMEOUT);
+			this.connectionRequestTimeout = FhirClientConfigurer.validateAndGetTimeoutConfig(config.getConnectionRequestTimeout(), IRestfulClientFactory.DEFAULT_CONNECTION_REQUEST_TIMEOUT);
+		}
+
+		private static String normalizeEndpoint(String endpoint) {
+			if (endpoint == null) {
+				return null;
+			}
+			String normalized = endpoint.trim();
+			while (normalized.endsWith("/")) {
+				normalized = normalized.substring(0, normalized.length() - 1);
+			}
+			return normalized;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) o;
+			return Objects.equals(endpoint, other.endpoint)
+					&& Objects.equals(user, other.user)
+					&& Objects.equals(password, other.password)
+					&& Objects.equals(token, other.token)
+					&& Objects.equals(headers, other.headers)
+					&& Objects.equals(additionalHeaders, other.additionalHeaders)
+					&& Objects.equals(cookies, other.cookies)
+					&& Objects.equals(logInfo, other.logInfo)
+					&& socketTimeout == other.socketTimeout
+					&& connectTimeout == other.connectTimeout
+					&& connectionRequestTimeout == other.connectionRequestTimeout;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(endpoint, user, password, token, headers, additionalHeaders, cookies, logInfo,
+					socketTimeout, connectTimeout, connectionRequestTimeout);
+		}
+	}
+}
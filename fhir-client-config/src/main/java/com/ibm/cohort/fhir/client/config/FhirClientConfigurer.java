@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.fhir.client.config;
+
+import java.util.Map;
+
+import org.apache.commons.collections.MapUtils;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.AdditionalRequestHeadersInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.CookieInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+
+/**
+ * Client settings shared by the FhirClientBuilder implementations of this
+ * package.
+ */
+final class FhirClientConfigurer {
+
+	private FhirClientConfigurer() {
+	}
+
+	/**
+	 * Apply the encoding and the interceptors described by the FhirServerConfig
+	 * to a newly created client.
+	 *
+	 * @param client HAPI FHIR client
+	 * @param config FhirServerConfig containing configuration details for the HAPI
+	 *               client
+	 */
+	static void configureClient(IGenericClient client, FhirServerConfig config) {
+		// Force JSON encoding to ensure any data/errors passed directly to the client are in JSON
+		client.setEncoding(EncodingEnum.JSON);
+
+		if (config.getLogInfo() != null) {
+			/**
+			 * https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html#section1
+			 */
+			LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
+			for (FhirServerConfig.LogInfo logInfo : config.getLogInfo()) {
+				switch (logInfo) {
+				case REQUEST_BODY:
+					loggingInterceptor.setLogRequestBody(true);
+					break;
+				case REQUEST_HEADERS:
+					loggingInterceptor.setLogRequestHeaders(true);
+					break;
+				case REQUEST_SUMMARY:
+					loggingInterceptor.setLogRequestSummary(true);
+					break;
+				case RESPONSE_BODY:
+					loggingInterceptor.setLogResponseBody(true);
+					break;
+				case RESPONSE_HEADERS:
+					loggingInterceptor.setLogResponseHeaders(true);
+					break;
+				case RESPONSE_SUMMARY:
+					loggingInterceptor.setLogResponseSummary(true);
+					break;
+				case ALL:
+					loggingInterceptor.setLogRequestBody(true);
+					loggingInterceptor.setLogRequestHeaders(true);
+					loggingInterceptor.setLogRequestSummary(true);
+					loggingInterceptor.setLogResponseBody(true);
+					loggingInterceptor.setLogResponseHeaders(true);
+					loggingInterceptor.setLogResponseSummary(true);
+					break;
+				}
+			}
+			client.registerInterceptor(loggingInterceptor);
+		}
+
+		if (config.getUser() != null && config.getPassword() != null) {
+			/**
+			 * https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html#section2
+			 */
+			IClientInterceptor authInterceptor = new BasicAuthInterceptor(config.getUser(), config.getPassword());
+			client.registerInterceptor(authInterceptor);
+		}
+
+		if (config.getToken() != null) {
+			/**
+			 * https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html#section3
+			 */
+			IClientInterceptor authInterceptor = new BearerTokenAuthInterceptor(config.getToken());
+			client.registerInterceptor(authInterceptor);
+		}
+
+		/**
+		 * https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html#section4
+		 */
+		if (config.getHeaders() != null) {
+			AdditionalRequestHeadersInterceptor tenantInterceptor = new AdditionalRequestHeadersInterceptor();
+			for (Map.Entry<String, String> entry : config.getHeaders().entrySet()) {
+				tenantInterceptor.addHeaderValue(entry.getKey(), entry.getValue());
+			}
+			client.registerInterceptor(tenantInterceptor);
+		}
+
+		Map<String, String> additionalHeaders = config.getAdditionalHeaders();
+		if (MapUtils.isNotEmpty(additionalHeaders)) {
+			/**
+			 * https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html#section4
+			 */
+			AdditionalRequestHeadersInterceptor tenantInterceptor = new AdditionalRequestHeadersInterceptor();
+			for (Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
+				tenantInterceptor.addHeaderValue(entry.getKey(), entry.getValue());
+			}
+			client.registerInterceptor(tenantInterceptor);
+		}
+
+		if (config.getCookies() != null) {
+			/**
+			 * https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html#section5
+			 */
+			for (String cookie : config.getCookies()) {
+				IClientInterceptor cookieInterceptor = new CookieInterceptor(cookie);
+				client.registerInterceptor(cookieInterceptor);
+			}
+		}
+	}
+
+	static Integer validateAndGetTimeoutConfig(Integer configValue, Integer defaultValue) {
+		if (configValue == null) {
+			return defaultValue;
+		} else if (configValue >= 0) {
+			return configValue;
+		} else {
+			throw new IllegalArgumentException("FHIR client config timeout values must be >= 0");
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.fhir.client.config;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Point in time usage of the connection pool shared by the clients of a
+ * {@link CachingFhirClientBuilder}.
+ */
+public class FhirClientPoolStats {
+
+	private final int leasedConnections;
+	private final int pendingRequests;
+	private final int availableConnections;
+	private final int maxConnections;
+	private final int routes;
+	private final int cachedClients;
+
+	public FhirClientPoolStats(int leasedConnections, int pendingRequests, int availableConnections, int maxConnections, int routes, int cachedClients) {
+		this.leasedConnections = leasedConnections;
+		this.pendingRequests = pendingRequests;
+		this.availableConnections = availableConnections;
+		this.maxConnections = maxConnections;
+		this.routes = routes;
+		this.cachedClients = cachedClients;
+	}
+
+	/**
+	 * @return connections currently used by a request
+	 */
+	public int getLeasedConnections() {
+		return leasedConnections;
+	}
+
+	/**
+	 * @return requests waiting for a connection
+	 */
+	public int getPendingRequests() {
+		return pendingRequests;
+	}
+
+	/**
+	 * @return idle connections kept alive for reuse
+	 */
+	public int getAvailableConnections() {
+		return availableConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return number of servers the pool holds connections for
+	 */
+	public int getRoutes() {
+		return routes;
+	}
+
+	public int getCachedClients() {
+		return cachedClients;
+	}
+
+	@Override
+	public int hashCode() {
+		return HashCodeBuilder.reflectionHashCode(this);
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return EqualsBuilder.reflectionEquals(this, o);
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * (C) Copyright IBM Corp. 2022
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.ibm.cohort.fhir.client.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+
+public class CachingFhirClientBuilderTest {
+
+	static FhirContext ctx;
+	CachingFhirClientBuilder builder;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		// This step is expensive, so we cache if for all the test fixtures
+		ctx = FhirContext.forR4();
+	}
+
+	@After
+	public void tearDown() {
+		if (builder != null) {
+			builder.close();
+		}
+	}
+
+	@Test
+	public void testEquivalentConfigsShareClient() {
+		builder = new CachingFhirClientBuilder(ctx);
+
+		Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("A", "1");
+		headers.put("B", "2");
+		FhirServerConfig first = new FhirServerConfig();
+		first.setEndpoint("http://hapi.fhir.org/baseR4");
+		first.setUser("fhiruser");
+		first.setPassword("change-password");
+		first.setHeaders(headers);
+
+		Map<String, String> reordered = new LinkedHashMap<>();
+		reordered.put("B", "2");
+		reordered.put("A", "1");
+		FhirServerConfig second = new FhirServerConfig();
+		second.setEndpoint("http://hapi.fhir.org/baseR4/");
+		second.setUser("fhiruser");
+		second.setPassword("change-password");
+		second.setHeaders(reordered);
+		second.setSocketTimeout(IRestfulClientFactory.DEFAULT_SOCKET_TIMEOUT);
+
+		IGenericClient client = builder.createFhirClient(first);
+		assertSame(client, builder.createFhirClient(second));
+		// basic auth, headers and timeouts
+		assertEquals(3, client.getInterceptorService().getAllRegisteredInterceptors().size());
+		assertEquals(1, builder.getPoolStats().getCachedClients());
+	}
+
+	@Test
+	public void testDifferentSettingsGetOwnClient() {
+		builder = new CachingFhirClientBuilder(ctx);
+
+		FhirServerConfig config = new FhirServerConfig();
+		config.setEndpoint("http://hapi.fhir.org/baseR4");
+		FhirServerConfig token = new FhirServerConfig();
+		token.setEndpoint("http://hapi.fhir.org/baseR4");
+		token.setToken("token");
+		FhirServerConfig timeout = new FhirServerConfig();
+		timeout.setEndpoint("http://hapi.fhir.org/baseR4");
+		timeout.setSocketTimeout(1);
+
+		IGenericClient client = builder.createFhirClient(config);
+		assertNotSame(client, builder.createFhirClient(token));
+		assertNotSame(client, builder.createFhirClient(timeout));
+		assertEquals(3, builder.getPoolStats().getCachedClients());
+	}
+
+	@Test
+	public void testTimeoutsDoNotChangeContextFactory() {
+		FhirContext context = FhirContext.forR4();
+		builder = new CachingFhirClientBuilder(context);
+
+		FhirServerConfig config = new FhirServerConfig();
+		config.setEndpoint("http://hapi.fhir.org/baseR4");
+		config.setSocketTimeout(1);
+		config.setConnectTimeout(2);
+		config.setConnectionRequestTimeout(3);
+		builder.createFhirClient(config);
+
+		assertEquals(IRestfulClientFactory.DEFAULT_SOCKET_TIMEOUT, context.getRestfulClientFactory().getSocketTimeout());
+		assertEquals(IRestfulClientFactory.DEFAULT_CONNECT_TIMEOUT, context.getRestfulClientFactory().getConnectTimeout());
+		assertEquals(IRestfulClientFactory.DEFAULT_CONNECTION_REQUEST_TIMEOUT, context.getRestfulClientFactory().getConnectionRequestTimeout());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedClientDropped() {
+		builder = new CachingFhirClientBuilder(ctx, 10, 5, 1000, 2);
+
+		IGenericClient first = null;
+		for (String endpoint : Arrays.asList("http://one/fhir", "http://two/fhir", "http://three/fhir")) {
+			FhirServerConfig config = new FhirServerConfig();
+			config.setEndpoint(endpoint);
+			IGenericClient client = builder.createFhirClient(config);
+			if (first == null) {
+				first = client;
+			}
+		}
+
+		FhirServerConfig config = new FhirServerConfig();
+		config.setEndpoint("http://one/fhir");
+		assertNotSame(first, builder.createFhirClient(config));
+
+		FhirClientPoolStats stats = builder.getPoolStats();
+		assertEquals(2, stats.getCachedClients());
+		assertEquals(10, stats.getMaxConnections());
+		assertEquals(0, stats.getLeasedConnections());
+	}
+
+	@Test
+	public void testConnectionReusedAcrossClients() throws Exception {
+		builder = new CachingFhirClientBuilder(ctx);
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/fhir/metadata", exchange -> respond(exchange, "{\"resourceType\":\"CapabilityStatement\",\"fhirVersion\":\"4.0.1\"}"));
+		server.createContext("/fhir/Patient/123", exchange -> respond(exchange, "{\"resourceType\":\"Patient\",\"id\":\"123\"}"));
+		server.start();
+		try {
+			String endpoint = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+			FhirServerConfig config = new FhirServerConfig();
+			config.setEndpoint(endpoint);
+			FhirServerConfig timeout = new FhirServerConfig();
+			timeout.setEndpoint(endpoint);
+			timeout.setSocketTimeout(5000);
+
+			for (FhirServerConfig c : Arrays.asList(config, timeout, config)) {
+				IGenericClient client = builder.createFhirClient(c);
+				IBaseResource patient = client.read().resource("Patient").withId("123").execute();
+				assertEquals("123", patient.getIdElement().getIdPart());
+			}
+
+			// Every request reused the single connection kept alive by the shared pool
+			FhirClientPoolStats stats = builder.getPoolStats();
+			assertEquals(1, stats.getAvailableConnections());
+			assertEquals(0, stats.getLeasedConnections());
+			assertEquals(1, stats.getRoutes());
+		}
+		finally {
+			server.stop(0);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+		exchange.sendResponseHeaders(200, body.length);
+		exchange.getResponseBody().write(body);
+		exchange.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeTimeout() {
+		builder = new CachingFhirClientBuilder(ctx);
+
+		FhirServerConfig config = new FhirServerConfig();
+		config.setEndpoint("http://hapi.fhir.org/baseR4");
+		config.setConnectTimeout(-10);
+		builder.createFhirClient(config);
+	}
+}